@@ -0,0 +1,396 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed number of frames holding blocks of node records read from tree
+ * files, for trees larger than memory or than can be mapped. A block is as
+ * many records as fit in NodeStore.PAGE_BYTES, the pages of a sparse store,
+ * so a block read from a tree in van Emde Boas order holds a subtree. When
+ * every frame is in use the block in the frame chosen by the eviction policy
+ * is written back if it was changed and the frame is reused.
+ *
+ * Records are read and written a field at a time with the pool locked, and
+ * no frame is handed out, so a block can be evicted at any time without
+ * anything still pointing into it. A pool can be shared by several trees,
+ * and by the old and new files of a tree being rebuilt, which bounds the
+ * memory of all of them together. The blocks read and written are counted.
+ *
+ * @author Brian
+ *
+ */
+public class BufferPool {
+	private final int numFrames;
+	private final Eviction eviction;
+	private final Eviction.Policy policy;
+
+	private final int[][] frames; // Allocated when first used
+	private final Segment[] frameSegments; // Segment of each frame's block
+	private final int[] frameBlocks; // Block in each frame
+	private final boolean[] dirty;
+	private final int[] free; // Stack of empty frames
+	private int numFree;
+
+	// Frame of each loaded block, by open addressing on the segment id and
+	// block number. Slots hold frame + 1, 0 when empty.
+	private final long[] keys;
+	private final int[] slots;
+
+	private ByteBuffer io; // Moves blocks to and from the files
+	private int nextSegmentId;
+	private long blockReads;
+	private long blockWrites;
+
+	// Block accessed last, which is usually accessed again next
+	private Segment lastSegment;
+	private int lastBlock;
+	private int lastFrame;
+
+	/**
+	 * The records of one tree file, attached to a pool
+	 */
+	static final class Segment {
+		private final int id;
+		private final FileChannel channel;
+		private final long offset; // Of the first record in the file
+		private final int stride; // Ints in a record
+		private final int capacity; // Records in the file
+		private final int blockShift; // Location >> blockShift is the block
+		private final int blockMask;
+		private boolean detached;
+
+		private Segment(int id, FileChannel channel, long offset, int stride,
+				int capacity) {
+			this.id = id;
+			this.channel = channel;
+			this.offset = offset;
+			this.stride = stride;
+			this.capacity = capacity;
+			int records = Integer.highestOneBit(Math.max(1,
+					NodeStore.PAGE_BYTES / (4 * stride)));
+			blockShift = Integer.numberOfTrailingZeros(records);
+			blockMask = records - 1;
+		}
+
+		/**
+		 * Returns the number of records in the given block, the last one
+		 * may be short
+		 */
+		private int recordsIn(int block) {
+			return (int) Math.min(blockMask + 1, capacity
+					- ((long) block << blockShift));
+		}
+	}
+
+	/**
+	 * Creates a pool of empty frames
+	 *
+	 * @param frames
+	 *            Number of blocks the pool holds, at least 1
+	 * @param eviction
+	 *            Chooses the block evicted when the pool is full
+	 */
+	public BufferPool(int frames, Eviction eviction) {
+		if (frames < 1)
+			throw new IllegalArgumentException("Pool of " + frames
+					+ " frames");
+		numFrames = frames;
+		this.eviction = eviction;
+		policy = eviction.newPolicy(frames);
+		this.frames = new int[frames][];
+		frameSegments = new Segment[frames];
+		frameBlocks = new int[frames];
+		dirty = new boolean[frames];
+		free = new int[frames];
+		for (int i = 0; i < frames; i++)
+			free[numFree++] = frames - 1 - i;
+
+		int size = Integer.highestOneBit(frames) * 4;
+		keys = new long[size];
+		slots = new int[size];
+		io = ByteBuffer.allocateDirect(NodeStore.PAGE_BYTES).order(
+				ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Attaches the records of a file to the pool
+	 *
+	 * @param channel
+	 *            The file, open for reading and, unless it is only read,
+	 *            writing
+	 * @param offset
+	 *            Position of the first record in the file
+	 * @param stride
+	 *            Ints in a record
+	 * @param capacity
+	 *            Records in the file
+	 * @return The segment to read and write the records through
+	 */
+	synchronized Segment attach(FileChannel channel, long offset, int stride,
+			int capacity) {
+		return new Segment(nextSegmentId++, channel, offset, stride, capacity);
+	}
+
+	/**
+	 * Drops the blocks of a segment without writing them back, for a file
+	 * that is no longer used. Reads of the segment fail from then on.
+	 *
+	 * @param segment
+	 */
+	synchronized void detach(Segment segment) {
+		segment.detached = true;
+		for (int frame = 0; frame < numFrames; frame++) {
+			if (frameSegments[frame] == segment) {
+				remove(frame);
+				policy.removed(frame);
+				free[numFree++] = frame;
+			}
+		}
+		if (lastSegment == segment)
+			lastSegment = null;
+	}
+
+	/**
+	 * Writes the changed blocks of a segment back to its file and forces the
+	 * file to the storage device
+	 *
+	 * @param segment
+	 */
+	synchronized void flush(Segment segment) {
+		for (int frame = 0; frame < numFrames; frame++) {
+			if (frameSegments[frame] == segment && dirty[frame])
+				writeBack(frame);
+		}
+		try {
+			segment.channel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	synchronized int read(Segment segment, int index, int field) {
+		int frame = fetch(segment, index >>> segment.blockShift);
+		return frames[frame][(index & segment.blockMask) * segment.stride
+				+ field];
+	}
+
+	synchronized void write(Segment segment, int index, int field, int value) {
+		int frame = fetch(segment, index >>> segment.blockShift);
+		frames[frame][(index & segment.blockMask) * segment.stride + field] = value;
+		dirty[frame] = true;
+	}
+
+	/**
+	 * Copies a whole record out of the pool
+	 *
+	 * @param segment
+	 * @param index
+	 *            Location of the record
+	 * @param record
+	 *            Receives the stride ints of the record
+	 */
+	synchronized void readRecord(Segment segment, int index, int[] record) {
+		int frame = fetch(segment, index >>> segment.blockShift);
+		System.arraycopy(frames[frame], (index & segment.blockMask)
+				* segment.stride, record, 0, segment.stride);
+	}
+
+	/**
+	 * Copies a whole record into the pool, see readRecord
+	 */
+	synchronized void writeRecord(Segment segment, int index, int[] record) {
+		int frame = fetch(segment, index >>> segment.blockShift);
+		System.arraycopy(record, 0, frames[frame], (index & segment.blockMask)
+				* segment.stride, segment.stride);
+		dirty[frame] = true;
+	}
+
+	/**
+	 * Returns the frame holding a block, reading it in if it is not loaded
+	 */
+	private int fetch(Segment segment, int block) {
+		if (segment == lastSegment && block == lastBlock)
+			return lastFrame;
+		if (segment.detached)
+			throw new IllegalStateException("Segment " + segment.id
+					+ " is detached");
+
+		long key = ((long) segment.id << 32) | block;
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (slots[slot] != 0) {
+			if (keys[slot] == key) {
+				int frame = slots[slot] - 1;
+				policy.accessed(frame);
+				return remember(segment, block, frame);
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int frame;
+		if (numFree > 0) {
+			frame = free[--numFree];
+		} else {
+			frame = policy.victim();
+			if (dirty[frame])
+				writeBack(frame);
+			remove(frame);
+			policy.removed(frame);
+			// The block's slot may have moved to fill the one removed
+			slot = hash(key) & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+		}
+
+		int ints = segment.recordsIn(block) * segment.stride;
+		if (frames[frame] == null || frames[frame].length < ints)
+			frames[frame] = new int[ints];
+		readBlock(segment, block, frames[frame], ints);
+		frameSegments[frame] = segment;
+		frameBlocks[frame] = block;
+		dirty[frame] = false;
+		keys[slot] = key;
+		slots[slot] = frame + 1;
+		policy.loaded(frame);
+		return remember(segment, block, frame);
+	}
+
+	private int remember(Segment segment, int block, int frame) {
+		lastSegment = segment;
+		lastBlock = block;
+		lastFrame = frame;
+		return frame;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Takes the block in a frame out of the table. The entries after it in
+	 * its run are moved back so no lookup stops short of them.
+	 */
+	private void remove(int frame) {
+		long key = ((long) frameSegments[frame].id << 32)
+				| frameBlocks[frame];
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (slots[slot] != frame + 1)
+			slot = (slot + 1) & mask;
+
+		int hole = slot;
+		for (int i = (hole + 1) & mask; slots[i] != 0; i = (i + 1) & mask) {
+			int home = hash(keys[i]) & mask;
+			// Move the entry unless its home lies after the hole
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				keys[hole] = keys[i];
+				slots[hole] = slots[i];
+				hole = i;
+			}
+		}
+		slots[hole] = 0;
+
+		frameSegments[frame] = null;
+		if (lastFrame == frame)
+			lastSegment = null;
+	}
+
+	/**
+	 * Reads a block, past the end of the file reads as zeros
+	 */
+	private void readBlock(Segment segment, int block, int[] frame, int ints) {
+		ByteBuffer buffer = buffer(4 * ints);
+		long position = segment.offset + 4L * segment.stride
+				* ((long) block << segment.blockShift);
+		try {
+			while (buffer.hasRemaining()) {
+				if (segment.channel.read(buffer, position + buffer.position()) < 0)
+					break;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		while (buffer.hasRemaining())
+			buffer.put((byte) 0);
+		buffer.flip();
+		buffer.asIntBuffer().get(frame, 0, ints);
+		blockReads++;
+	}
+
+	private void writeBack(int frame) {
+		Segment segment = frameSegments[frame];
+		int block = frameBlocks[frame];
+		int ints = segment.recordsIn(block) * segment.stride;
+		ByteBuffer buffer = buffer(4 * ints);
+		IntBuffer view = buffer.asIntBuffer();
+		view.put(frames[frame], 0, ints);
+		long position = segment.offset + 4L * segment.stride
+				* ((long) block << segment.blockShift);
+		try {
+			while (buffer.hasRemaining())
+				segment.channel.write(buffer, position + buffer.position());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		dirty[frame] = false;
+		blockWrites++;
+	}
+
+	/**
+	 * Returns the I/O buffer, cleared and limited to the given size
+	 */
+	private ByteBuffer buffer(int bytes) {
+		if (io.capacity() < bytes)
+			io = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		io.clear().limit(bytes);
+		return io;
+	}
+
+	/**
+	 * Returns the number of blocks read from files since the pool was
+	 * created
+	 */
+	public synchronized long getBlockReads() {
+		return blockReads;
+	}
+
+	/**
+	 * Returns the number of changed blocks written back to files
+	 */
+	public synchronized long getBlockWrites() {
+		return blockWrites;
+	}
+
+	/**
+	 * Returns the number of blocks the pool holds
+	 */
+	public int getFrames() {
+		return numFrames;
+	}
+
+	public Eviction getEviction() {
+		return eviction;
+	}
+
+	/**
+	 * Returns the bytes taken by the frames allocated so far
+	 */
+	synchronized long getAllocatedBytes() {
+		long bytes = 0;
+		for (int[] frame : frames)
+			bytes += frame == null ? 0 : 4L * frame.length;
+		return bytes;
+	}
+
+	public String toString() {
+		return "BufferPool[frames=" + numFrames + ", eviction="
+				+ eviction.getShortName() + ", reads=" + getBlockReads()
+				+ ", writes=" + getBlockWrites() + "]";
+	}
+}
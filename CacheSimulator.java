@@ -0,0 +1,246 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts the block transfers a tree causes in the ideal cache model. The
+ * accesses a NodeStore reports are replayed through a fully associative cache
+ * of cacheSize bytes, made of blocks of blockSize bytes, that evicts the
+ * least recently used block. Every miss is one transfer. LRU is within a
+ * factor of two of the optimal replacement the model assumes when given
+ * twice the cache.
+ *
+ * Transfers are also counted per operation of the tree, an insert or a
+ * query for example, and kept in a histogram for each kind of operation.
+ * Operations are counted on the thread that runs them and may be nested, a
+ * rebuild is counted on its own and as part of the insert that started it
+ * when it runs inside that insert.
+ *
+ * @author Brian
+ *
+ */
+public class CacheSimulator {
+	/**
+	 * Kinds of operation that are counted separately
+	 */
+	public enum Operation {
+		INSERT, BATCH, QUERY, REBUILD, REMOVE, DECAY, MERGE
+	}
+
+	static final int HISTOGRAM_SIZE = 4096; // Larger counts share a bucket
+
+	private final int blockSize;
+	private final long cacheBlocks;
+	private final LinkedHashMap<Long, Boolean> cache; // Blocks in LRU order
+
+	private long accesses;
+	private long transfers;
+	private long nextAddressSpace;
+
+	private final long[] operations; // Operations of each kind
+	private final long[] operationTransfers; // Transfers of each kind
+	private final long[][] histograms; // Operations by transfers, per kind
+
+	private final ThreadLocal<ThreadState> threadState;
+
+	/**
+	 * Transfers made by a thread and the count at the start of each of its
+	 * open operations
+	 */
+	private static class ThreadState {
+		long transfers;
+		long[] starts = new long[8];
+		int depth;
+	}
+
+	/**
+	 * @param blockSize
+	 *            Bytes in a block
+	 * @param cacheSize
+	 *            Bytes in the cache, at least one block
+	 */
+	public CacheSimulator(int blockSize, long cacheSize) {
+		if (blockSize < 1 || cacheSize < blockSize)
+			throw new IllegalArgumentException("Cache of " + cacheSize
+					+ " bytes can not hold a block of " + blockSize);
+
+		this.blockSize = blockSize;
+		this.cacheBlocks = cacheSize / blockSize;
+		this.cache = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> e) {
+				return size() > cacheBlocks;
+			}
+		};
+
+		operations = new long[Operation.values().length];
+		operationTransfers = new long[Operation.values().length];
+		histograms = new long[Operation.values().length][HISTOGRAM_SIZE];
+		threadState = new ThreadLocal<ThreadState>();
+	}
+
+	/**
+	 * Returns the start of an address range that no other store uses, so
+	 * that the nodes of different stores never share a block
+	 */
+	synchronized long newAddressSpace() {
+		return nextAddressSpace++ << 40;
+	}
+
+	/**
+	 * Replays an access to a range of bytes
+	 *
+	 * @param address
+	 *            First byte accessed
+	 * @param length
+	 *            Number of bytes accessed
+	 */
+	synchronized void access(long address, int length) {
+		long first = address / blockSize;
+		long last = (address + length - 1) / blockSize;
+		for (long block = first; block <= last; block++) {
+			accesses++;
+			if (cache.get(block) == null) {
+				cache.put(block, Boolean.TRUE);
+				transfers++;
+				state().transfers++;
+			}
+		}
+	}
+
+	private ThreadState state() {
+		ThreadState state = threadState.get();
+		if (state == null) {
+			state = new ThreadState();
+			threadState.set(state);
+		}
+		return state;
+	}
+
+	/**
+	 * Starts counting the transfers of an operation run by the calling
+	 * thread
+	 */
+	synchronized void beginOperation() {
+		ThreadState state = state();
+		if (state.depth == state.starts.length)
+			state.starts = Arrays.copyOf(state.starts,
+					2 * state.depth);
+		state.starts[state.depth++] = state.transfers;
+	}
+
+	/**
+	 * Ends the innermost operation of the calling thread and adds its
+	 * transfers to the counts of the given kind
+	 *
+	 * @param operation
+	 */
+	synchronized void endOperation(Operation operation) {
+		ThreadState state = state();
+		long made = state.transfers - state.starts[--state.depth];
+
+		int kind = operation.ordinal();
+		operations[kind]++;
+		operationTransfers[kind] += made;
+		histograms[kind][(int) Math.min(made, HISTOGRAM_SIZE - 1)]++;
+	}
+
+	/**
+	 * Empties the cache and clears every count
+	 */
+	public synchronized void reset() {
+		cache.clear();
+		accesses = 0;
+		transfers = 0;
+		for (int i = 0; i < operations.length; i++) {
+			operations[i] = 0;
+			operationTransfers[i] = 0;
+			Arrays.fill(histograms[i], 0);
+		}
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public long getCacheSize() {
+		return cacheBlocks * blockSize;
+	}
+
+	/**
+	 * Returns the number of blocks accessed, a block accessed twice counting
+	 * twice
+	 */
+	public synchronized long getAccesses() {
+		return accesses;
+	}
+
+	/**
+	 * Returns the number of blocks transferred into the cache
+	 */
+	public synchronized long getTransfers() {
+		return transfers;
+	}
+
+	public synchronized long getOperations(Operation operation) {
+		return operations[operation.ordinal()];
+	}
+
+	/**
+	 * Returns the mean number of transfers of the given kind of operation
+	 */
+	public synchronized double getMeanTransfers(Operation operation) {
+		long count = operations[operation.ordinal()];
+		return count == 0 ? 0
+				: (double) operationTransfers[operation.ordinal()] / count;
+	}
+
+	/**
+	 * Returns the number of operations of the given kind that made each
+	 * number of transfers. The last entry counts every operation that made
+	 * HISTOGRAM_SIZE - 1 transfers or more.
+	 */
+	public synchronized long[] getHistogram(Operation operation) {
+		return histograms[operation.ordinal()].clone();
+	}
+
+	/**
+	 * Writes the histograms as comma separated lines of operation, transfers
+	 * and count, leaving out empty buckets
+	 *
+	 * @param out
+	 */
+	public synchronized void exportHistograms(Appendable out)
+			throws IOException {
+		out.append("operation,transfers,count\n");
+		for (Operation operation : Operation.values()) {
+			long[] histogram = histograms[operation.ordinal()];
+			for (int i = 0; i < histogram.length; i++) {
+				if (histogram[i] != 0)
+					out.append(operation.name().toLowerCase()).append(',')
+							.append(Integer.toString(i)).append(',')
+							.append(Long.toString(histogram[i]))
+							.append('\n');
+			}
+		}
+	}
+
+	public synchronized String toString() {
+		StringBuilder result = new StringBuilder();
+		result.append("Block size = " + blockSize);
+		result.append("\tCache size = " + getCacheSize());
+		result.append("\tAccesses = " + accesses);
+		result.append("\tTransfers = " + transfers);
+		for (Operation operation : Operation.values()) {
+			if (operations[operation.ordinal()] > 0)
+				result.append("\t" + operation.name().toLowerCase() + " = "
+						+ String.format("%.2f", getMeanTransfers(operation))
+						+ " per op");
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,475 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.management.JMException;
+
+/**
+ * Clusters values with one tree per range of values. A cluster only ever
+ * absorbs values close to it, so values in different ranges are clustered
+ * independently and inserts into different ranges run without touching a
+ * common lock. Queries visit every tree whose bounds could hold a result
+ * and merge what they find, so results are the same as those of a single
+ * tree holding the clusters of all of them.
+ *
+ * The ranges are fixed when the forest is created and can be rebalanced so
+ * each holds about the same number of points.
+ *
+ * @author Brian
+ *
+ */
+public class ContextForest {
+	private final int branchingFactor;
+	private final int closenessThreshold;
+	private final Layout layout;
+
+	// Replaced as a whole when the forest is rebalanced
+	private volatile Shards shards;
+
+	// Buffers of kNearest of each thread, kept so queries do not allocate
+	private final ThreadLocal<int[][]> nearestBuffers;
+
+	/**
+	 * The trees of the forest and the ranges they hold
+	 */
+	private static final class Shards {
+		final int[] bounds; // Tree i holds values from bounds[i-1] up to,
+							// but not including, bounds[i]
+		final ContextTree[] trees;
+
+		// Taken shared by inserts into a tree and exclusively while the
+		// forest is rebalanced
+		final StampedLock[] gates;
+
+		Shards(int[] bounds, ContextTree[] trees) {
+			this.bounds = bounds;
+			this.trees = trees;
+			gates = new StampedLock[trees.length];
+			for (int i = 0; i < gates.length; i++)
+				gates[i] = new StampedLock();
+		}
+
+		int shardOf(int value) {
+			int i = Arrays.binarySearch(bounds, value);
+			if (i >= 0) {
+				// The first tree starting at value, bounds may repeat
+				while (i + 1 < bounds.length && bounds[i + 1] == value)
+					i++;
+				return i + 1;
+			}
+			return -i - 1;
+		}
+	}
+
+	/**
+	 * Creates a forest of trees that split the values evenly
+	 *
+	 * @param numTrees
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @param layout
+	 */
+	public ContextForest(int numTrees, int branchingFactor,
+			int closenessThreshold, Layout layout) {
+		this(evenBounds(numTrees), branchingFactor, closenessThreshold, layout);
+	}
+
+	/**
+	 * Creates a forest of trees over the given ranges
+	 *
+	 * @param bounds
+	 *            Values at which each tree after the first starts, in
+	 *            ascending order. There is one more tree than bounds.
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @param layout
+	 */
+	public ContextForest(int[] bounds, int branchingFactor,
+			int closenessThreshold, Layout layout) {
+		for (int i = 1; i < bounds.length; i++) {
+			if (bounds[i] < bounds[i - 1])
+				throw new IllegalArgumentException("Bounds are not sorted");
+		}
+		this.branchingFactor = branchingFactor;
+		this.closenessThreshold = closenessThreshold;
+		this.layout = layout;
+		nearestBuffers = new ThreadLocal<int[][]>();
+
+		ContextTree[] trees = new ContextTree[bounds.length + 1];
+		for (int i = 0; i < trees.length; i++)
+			trees[i] = new ContextTree(branchingFactor, closenessThreshold,
+					layout);
+		shards = new Shards(bounds.clone(), trees);
+	}
+
+	private static int[] evenBounds(int numTrees) {
+		if (numTrees < 1)
+			throw new IllegalArgumentException("A forest needs a tree");
+		int[] bounds = new int[numTrees - 1];
+		long span = 1L << 32;
+		for (int i = 0; i < bounds.length; i++)
+			bounds[i] = (int) (Integer.MIN_VALUE + span * (i + 1) / numTrees);
+		return bounds;
+	}
+
+	/**
+	 * Inserts a single data point into the tree of its range. Safe to call
+	 * from multiple threads.
+	 *
+	 * @param value
+	 */
+	public void insert(int value) {
+		insert(value, 1);
+	}
+
+	/**
+	 * Inserts a value into the tree of its range. Safe to call from multiple
+	 * threads.
+	 *
+	 * @param value
+	 * @param points
+	 */
+	public void insert(int value, int points) {
+		while (true) {
+			Shards s = shards;
+			int i = s.shardOf(value);
+			long stamp = s.gates[i].readLock();
+			try {
+				// A rebalance replaced the trees while this waited
+				if (s != shards)
+					continue;
+				s.trees[i].insert(value, points);
+				return;
+			} finally {
+				s.gates[i].unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * Inserts a batch of single data points, each range of the batch into
+	 * its own tree with ContextTree.insertBatch. Safe to call from multiple
+	 * threads.
+	 *
+	 * @param values
+	 * @param count
+	 *            Number of values to take from the start of values
+	 */
+	public void insertBatch(int[] values, int count) {
+		int[] sorted = Arrays.copyOf(values, count);
+		Arrays.sort(sorted);
+
+		int from = 0;
+		while (from < count) {
+			Shards s = shards;
+			int i = s.shardOf(sorted[from]);
+			int to = i < s.bounds.length ? lowerBound(sorted, from, count,
+					s.bounds[i]) : count;
+
+			long stamp = s.gates[i].readLock();
+			try {
+				if (s != shards)
+					continue;
+				s.trees[i].insertBatch(Arrays.copyOfRange(sorted, from, to),
+						to - from);
+				from = to;
+			} finally {
+				s.gates[i].unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * Returns the first index in [from, to) of a sorted array whose value is
+	 * at least value, or to if there is none
+	 */
+	private static int lowerBound(int[] sorted, int from, int to, int value) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (sorted[mid] < value)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+	/**
+	 * Returns the value of the cluster closest to the given value, see
+	 * ContextTree.nearestCluster. Safe to call from multiple threads.
+	 *
+	 * @param value
+	 * @throws NoSuchElementException
+	 *             If the forest holds no values
+	 */
+	public int nearestCluster(int value) {
+		Shards s = shards;
+		int home = s.shardOf(value);
+		int best = 0;
+		long bestDist = ContextTree.FARTHEST;
+
+		for (int n = 0; n < s.trees.length; n++) {
+			// Start with the tree of the value's range, then visit the trees
+			// whose bounds are closer than the closest cluster found
+			int i = n == 0 ? home : n <= home ? n - 1 : n;
+			ContextTree tree = s.trees[i];
+			if (boundsDist(tree, value) >= bestDist)
+				continue;
+
+			int v = tree.nearestCluster(value);
+			long dist = Math.abs((long) v - value);
+			if (dist < bestDist) {
+				best = v;
+				bestDist = dist;
+			}
+		}
+
+		if (bestDist == ContextTree.FARTHEST)
+			throw new NoSuchElementException("Forest holds no values");
+		return best;
+	}
+
+	/**
+	 * Finds the clusters whose values lie in [lo, hi], see
+	 * ContextTree.clustersInRange. Safe to call from multiple threads.
+	 *
+	 * @param lo
+	 * @param hi
+	 * @param values
+	 *            Receives the values of the clusters
+	 * @param points
+	 *            Receives the number of points in each cluster, or null
+	 * @return The number of clusters in the range. A result larger than
+	 *         values.length, or points.length, means only some of them were
+	 *         written.
+	 */
+	public int clustersInRange(int lo, int hi, int[] values, int[] points) {
+		Shards s = shards;
+		int room = points == null ? values.length : Math.min(values.length,
+				points.length);
+		int found = 0;
+		for (ContextTree tree : s.trees) {
+			if (tree.getMaxValue() < lo || tree.getMinValue() > hi)
+				continue;
+			found += tree.clustersInRange(lo, hi, values, points,
+					Math.min(found, room));
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the k clusters closest to the given value, see
+	 * ContextTree.kNearest. Does not allocate once the calling thread has
+	 * made a query of k results. Safe to call from multiple threads.
+	 *
+	 * @param value
+	 * @param k
+	 * @param values
+	 *            Receives the values of the clusters, closest first
+	 * @param points
+	 *            Receives the number of points in each cluster, or null
+	 * @return The number of clusters found
+	 */
+	public int kNearest(int value, int k, int[] values, int[] points) {
+		k = Math.min(k, values.length);
+		if (points != null)
+			k = Math.min(k, points.length);
+		if (k <= 0)
+			return 0;
+
+		int[][] buffers = nearestBuffers.get();
+		if (buffers == null || buffers[0].length < k) {
+			buffers = new int[4][k];
+			nearestBuffers.set(buffers);
+		}
+		int[] treeValues = buffers[0];
+		int[] treePoints = buffers[1];
+		int[] mergedValues = buffers[2];
+		int[] mergedPoints = buffers[3];
+
+		Shards s = shards;
+		int home = s.shardOf(value);
+		int found = 0;
+		for (int n = 0; n < s.trees.length; n++) {
+			int i = n == 0 ? home : n <= home ? n - 1 : n;
+			ContextTree tree = s.trees[i];
+			long kthDist = found < k ? ContextTree.FARTHEST : Math
+					.abs((long) values[k - 1] - value);
+			if (boundsDist(tree, value) >= kthDist)
+				continue;
+
+			int treeFound = tree.kNearest(value, k, treeValues, treePoints);
+
+			// Merge the two lists, both closest first
+			int a = 0;
+			int b = 0;
+			int m = 0;
+			while (m < k && (a < found || b < treeFound)) {
+				if (b == treeFound || (a < found && Math.abs((long) values[a]
+						- value) <= Math.abs((long) treeValues[b] - value))) {
+					mergedValues[m] = values[a];
+					mergedPoints[m] = points != null ? points[a] : 0;
+					a++;
+				} else {
+					mergedValues[m] = treeValues[b];
+					mergedPoints[m] = treePoints[b];
+					b++;
+				}
+				m++;
+			}
+			System.arraycopy(mergedValues, 0, values, 0, m);
+			if (points != null)
+				System.arraycopy(mergedPoints, 0, points, 0, m);
+			found = m;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the distance from value to the bounds of a tree, FARTHEST if
+	 * it holds no values
+	 */
+	private static long boundsDist(ContextTree tree, int value) {
+		int min = tree.getMinValue();
+		int max = tree.getMaxValue();
+		if (min > max)
+			return ContextTree.FARTHEST;
+		return Math.max(0, Math.max((long) min - value, (long) value - max));
+	}
+
+	/**
+	 * Moves the ranges so each tree holds about the same number of points.
+	 * The clusters of every tree are collected, the new bounds are taken at
+	 * the quantiles of their points and each tree is bulk loaded with the
+	 * clusters of its new range. Each new tree keeps the settings of the
+	 * tree it replaces. Inserts wait until the new trees are in place.
+	 * Queries keep reading the old trees until then.
+	 */
+	public synchronized void rebalance() {
+		Shards s = shards;
+		long[] stamps = new long[s.gates.length];
+		for (int i = 0; i < stamps.length; i++)
+			stamps[i] = s.gates[i].writeLock();
+		try {
+			int numClusters = 0;
+			for (ContextTree tree : s.trees) {
+				tree.awaitRebuild();
+				numClusters += tree.clustersInRange(Integer.MIN_VALUE,
+						Integer.MAX_VALUE, new int[0], null);
+			}
+
+			// Sort the clusters by value, packed with their points
+			int[] values = new int[numClusters];
+			int[] points = new int[numClusters];
+			int n = 0;
+			for (ContextTree tree : s.trees)
+				n += tree.clustersInRange(Integer.MIN_VALUE,
+						Integer.MAX_VALUE, values, points, n);
+			long[] clusters = new long[numClusters];
+			long totalPoints = 0;
+			for (int i = 0; i < numClusters; i++) {
+				clusters[i] = ((long) values[i] << 32) | points[i];
+				totalPoints += points[i];
+			}
+			Arrays.sort(clusters);
+			for (int i = 0; i < numClusters; i++) {
+				values[i] = (int) (clusters[i] >> 32);
+				points[i] = (int) clusters[i];
+			}
+
+			// Tree i starts at the first cluster past i / trees of the points
+			int numTrees = s.trees.length;
+			int[] bounds = new int[numTrees - 1];
+			int[] firsts = new int[numTrees + 1];
+			firsts[numTrees] = numClusters;
+			long seen = 0;
+			int c = 0;
+			for (int i = 1; i < numTrees; i++) {
+				long target = totalPoints * i / numTrees;
+				while (c < numClusters && seen + points[c] <= target)
+					seen += points[c++];
+				// Clusters of the same value stay in the same tree
+				while (c > 0 && c < numClusters && values[c] == values[c - 1])
+					seen += points[c++];
+				firsts[i] = c;
+				bounds[i - 1] = c < numClusters ? values[c] : Integer.MAX_VALUE;
+			}
+
+			ContextTree[] trees = new ContextTree[numTrees];
+			for (int i = 0; i < numTrees; i++) {
+				trees[i] = ContextTree.bulkLoadClusters(
+						Arrays.copyOfRange(values, firsts[i], firsts[i + 1]),
+						Arrays.copyOfRange(points, firsts[i], firsts[i + 1]),
+						firsts[i + 1] - firsts[i], s.trees[i].getConfig());
+				takeSettings(s.trees[i], trees[i]);
+			}
+			shards = new Shards(bounds, trees);
+		} finally {
+			for (int i = 0; i < stamps.length; i++)
+				s.gates[i].unlockWrite(stamps[i]);
+		}
+	}
+
+	/**
+	 * Gives a tree that replaces another in a rebalance the settings made on
+	 * the other after it was created. Background rebuilds and the store are
+	 * set by its configuration. The metrics of the new tree count from zero
+	 * and are registered under the name of the old ones, which are
+	 * unregistered.
+	 */
+	private static void takeSettings(ContextTree old, ContextTree tree) {
+		if (old.getCacheSimulator() != null)
+			tree.setCacheSimulator(old.getCacheSimulator());
+
+		TreeMetrics metrics = old.getMetrics();
+		if (metrics == null)
+			return;
+		String name = metrics.getTreeName();
+		old.disableMetrics();
+		TreeMetrics moved = tree.enableMetrics();
+		if (name != null) {
+			try {
+				moved.register(name);
+			} catch (JMException e) {
+				throw new IllegalStateException("Metrics of " + name
+						+ " can not be registered again", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the values at which each tree after the first starts
+	 */
+	public int[] getBounds() {
+		return shards.bounds.clone();
+	}
+
+	/**
+	 * Returns the trees of the forest, first range first. Inserts should go
+	 * through the forest, which keeps them out of the way of a rebalance.
+	 */
+	public ContextTree[] getTrees() {
+		return shards.trees.clone();
+	}
+
+	/**
+	 * Selects whether the trees rebuild on background threads, see
+	 * ContextTree.setBackgroundRebuild
+	 *
+	 * @param background
+	 */
+	public void setBackgroundRebuild(boolean background) {
+		for (ContextTree tree : shards.trees)
+			tree.setBackgroundRebuild(background);
+	}
+
+	/**
+	 * Blocks until no tree is rebuilding, see ContextTree.awaitRebuild
+	 */
+	public void awaitRebuild() {
+		for (ContextTree tree : shards.trees)
+			tree.awaitRebuild();
+	}
+}
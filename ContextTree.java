@@ -2,42 +2,274 @@ package com.stack.gt.cse.c6140;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Stack;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class ContextTree
 {
-	private static Node[] T; // Array of nodes to store the tree
-	private static Stack<Integer> parentStack; // Stores which parent is entered
-	private static Stack<Integer> childStack; // Stores which child is entered
-	private static int height; // Stores height of the tree
+	static final int NODE_LOCK_STRIPES = 64; // Must be a power of two
+	static final int PENDING_CAPACITY = 8192; // Inserts held during a rebuild
+	static final long FARTHEST = 1L << 32; // Farther than any two ints
+	static final double DECAY_STEP = 0.5; // Decay applied at least this much
+	// Rebuilds place subtrees of fewer nodes than this in a single task
+	static final int PARALLEL_REBUILD_NODES = 4096;
+	// Attempts a query makes without locks before it takes the structure 
+	// lock shared, which splits and rebuilds then wait for
+	static final int OPTIMISTIC_READS = 4;
+	static final int VERSION_STRIDE = 8; // Longs between versions of stripes
+	static final long REBUILDER_IDLE_SECONDS = 60; // Before its thread ends
 	
-	static int depth = 0; // Current depth while inserting
-	static Boolean rootSplitOccurred; // The root split
-	static Boolean noNodeUpdate; // Do not update nodes
+	// Makes the threads of rebuilders. It is static so an idle thread does
+	// not keep the tree it rebuilt from being collected.
+	private static final ThreadFactory REBUILD_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "ContextTree rebuild");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	
+	private final int branchingFactor;
+	private final int closenessThreshold;
+	private final Layout layout; // Order of the nodes in T
+	private final LayoutTable layoutTable; // Locations of nodes in layout
+	
+	private NodeStore T; // Array of nodes to store the tree
+	private int height; // Stores height of the tree
+	private boolean sparse; // Stores on the heap allocate pages as written
+	
+	// Guards the layout of the tree. Inserts that only change values in place
+	// share it, inserts that split nodes or rebuild the tree hold it alone.
+	// It is not reentrant. Unlike a ReentrantReadWriteLock it keeps no per 
+	// thread read counts, so taking it shared does not allocate.
+	private final StampedLock structureLock;
+	
+	// Guards the contents of nodes while the structure lock is shared. Node
+	// locations are spread over a fixed number of stripes.
+	private final ReentrantLock[] nodeLocks;
+	
+	// Version of the leaves of each node lock stripe, odd while one of them
+	// is changed in place. Queries are optimistic reads with a locking 
+	// fallback: they first run without locks, checking the version of the 
+	// structure lock when they end and of each leaf as they copy it, and 
+	// retry if either changed. A query that failed OPTIMISTIC_READS times, 
+	// or is counted by a simulator, takes the structure lock shared, so a 
+	// split or rebuild then waits for it. Versions are a cache line apart.
+	// Queries do not read one version of the tree. Each leaf is copied as 
+	// of one moment, but different leaves, and the bounds and points that 
+	// parents keep for their children, which an insert updates in place 
+	// after its leaf with no version, are read at different moments. While
+	// values are inserted in place a query may so miss some of them, or 
+	// count part of an insert. A split, rebuild, removal or decay always 
+	// makes the query run again. Each count of rank, cdf, quantile and 
+	// histogram is still consistent with the total it is divided by.
+	private final AtomicLongArray leafVersions;
+	
+	// The following are only used with the structure lock held exclusively
+	private final InsertPath insertPath; // Path of the insert
+	private int[] splitPath = new int[0]; // Child ids to a node being split
+	private final Node splitFirst; // Nodes a node is split into, reused
+	private final Node splitSecond;
+	private boolean noNodeUpdate; // Do not update nodes
+	private int splitDepth; // Depth of the highest node split while inserting
+	private double pendingDecay = 1; // Decay not yet applied to the points
 	
-	static Node[] T_new; // New tree
-	static int[] childIdHistory; // Stores child id in new tree during rebuild
+	// Path of the last insert of each thread made with the structure lock 
+	// shared, kept so inserts do not allocate
+	private final ThreadLocal<InsertPath> sharedInsertPath;
+	
+	// While the tree is rebuilt the old tree is left as it is so it can still
+	// be read. Inserts are held in the pending arrays until the new tree is
+	// in place, inserting threads wait when they are full. Background 
+	// rebuilds run one at a time on the rebuilder's thread, which ends when
+	// it has been idle for a while. A rebuild that fails leaves the old tree,
+	// whose root is over full, so no more values can be inserted.
+	private volatile boolean rebuilding;
+	private boolean backgroundRebuild = true;
+	private ThreadPoolExecutor rebuilder; // Created by the first rebuild
+	private volatile Throwable rebuildFailure; // Of the failed rebuild
+	private int droppedInserts; // Held inserts lost to the failed rebuild
+	private final Object rebuildMonitor; // Guards the pending arrays
+	private final int[] pendingValues;
+	private final int[] pendingPoints;
+	private int pendingCount;
+	
+	// Trees opened from a file keep their nodes in a mapping of it, or read
+	// them through a buffer pool. Changes made in place may reach the file 
+	// at path at any time and are durable once the tree is committed. A 
+	// rebuilt tree is kept in a scratch file next to it until then, so only
+	// the move to a rebuilt tree is atomic.
+	private Path path; // File the tree is committed to, null if none
+	private TreeFile file; // File T is mapped from, null if T is on the heap
+	private boolean readOnly;
+	private BufferPool pool; // Pool the files are read through, or null
+	
+	// Only used by the rebuild
+	private NodeStore T_new; // New tree
+	private TreeFile T_newFile; // File T_new is mapped from
+	
+	// Walk of the tree made by the last query of each thread, kept so 
+	// queries do not allocate
+	private final ThreadLocal<QueryState> queryState;
+	
+	// Replays the accesses made to the nodes, null unless the tree is 
+	// instrumented
+	private volatile CacheSimulator simulator;
+	
+	// Counts inserts, splits and rebuilds, null unless metrics are enabled
+	private volatile TreeMetrics metrics;
 	
 	static boolean DEBUG = false;
 	
-	public static void main(String[] args) 
+	/**
+	 * Nodes an insert descended through. nodes[d] is the node at depth d and
+	 * childIds[d] the index of the child taken from it.
+	 */
+	private static class InsertPath
+	{
+		int[] nodes = new int[0];
+		int[] childIds = new int[0];
+		int length; // Number of nodes left on the path above the current one
+		Node node; // Views of nodes on the path, see NodeStore.get(int, Node)
+		Node child;
+		
+		/**
+		 * Makes room for the path to a leaf of a tree of the given height
+		 * @param height
+		 */
+		void reserve(int height)
+		{
+			if(nodes.length < height)
+			{
+				nodes = new int[height];
+				childIds = new int[height];
+			}
+		}
+		
+		/**
+		 * Lets go of the store the views point at, so a tree that has been
+		 * replaced by a rebuild is not kept alive by them
+		 */
+		void release()
+		{
+			if(node != null)
+				node.unbind();
+			if(child != null)
+				child.unbind();
+		}
+	}
+	
+	/**
+	 * Position of a query in the tree
+	 */
+	private static class QueryState
+	{
+		int[] locs = new int[0]; // Node entered at each depth
+		int[] next = new int[0]; // Children visited at each depth
+		int[] first = new int[0]; // Child visited first at each depth
+		int depth;
+		boolean ordered; // Visit children closest to target first
+		int target;
+		int[] values = new int[0]; // Copy of the leaf last read
+		int[] points = new int[0];
+		int[] children = new int[0]; // Children of the node last read
+		long total; // Points seen by the last count
+		long rank; // Estimated rank of the value of the last quantile
+	}
+	
+	/**
+	 * Creates a tree holding a single empty leaf, laid out in van Emde Boas
+	 * order
+	 * @param branchingFactor Maximum number of children or values in a node
+	 * @param closenessThreshold Values closer than this to a cluster are
+	 * absorbed by the cluster
+	 */
+	public ContextTree(int branchingFactor, int closenessThreshold)
+	{
+		this(branchingFactor, closenessThreshold, Layout.VAN_EMDE_BOAS);
+	}
+	
+	/**
+	 * Creates a tree holding a single empty leaf with the given settings
+	 * @param config
+	 */
+	public ContextTree(TreeConfig config)
 	{
-		// Set the branching factor for the tree
-		Node.setBranchingFactor(2);
+		this(config.getBranchingFactor(), config.getClosenessThreshold(), 
+														config.getLayout());
+		backgroundRebuild = config.isBackgroundRebuild();
+		sparse = config.isSparse();
+		if(sparse)
+		{
+			T = heapStore(1);
+			T.create(0);
+		}
+	}
+	
+	/**
+	 * Creates a tree holding a single empty leaf
+	 * @param branchingFactor Maximum number of children or values in a node
+	 * @param closenessThreshold Values closer than this to a cluster are
+	 * absorbed by the cluster
+	 * @param layout Order of the nodes in memory
+	 */
+	public ContextTree(int branchingFactor, int closenessThreshold, 
+															Layout layout)
+	{
+		this.branchingFactor = branchingFactor;
+		this.closenessThreshold = closenessThreshold;
+		this.layout = layout;
+		this.layoutTable = new LayoutTable(layout, branchingFactor + 1);
+		
+		structureLock = new StampedLock();
+		nodeLocks = new ReentrantLock[NODE_LOCK_STRIPES];
+		for(int i = 0; i < nodeLocks.length; i++)
+		{
+			nodeLocks[i] = new ReentrantLock();
+		}
+		leafVersions = new AtomicLongArray(NODE_LOCK_STRIPES * VERSION_STRIDE);
 		
-		// Set the threshold for the tree
-		Node.setClosenessThreshold(2);
+		insertPath = new InsertPath();
+		sharedInsertPath = new ThreadLocal<InsertPath>();
+		NodeStore splitStore = new NodeStore(2, branchingFactor, 
+															closenessThreshold);
+		splitFirst = splitStore.create(0);
+		splitSecond = splitStore.create(1);
 		
-		parentStack = new Stack<Integer>();
-		childStack  = new Stack<Integer>();
+		rebuildMonitor = new Object();
+		pendingValues = new int[PENDING_CAPACITY];
+		pendingPoints = new int[PENDING_CAPACITY];
+		
+		queryState = new ThreadLocal<QueryState>();
 		
 		// Initialize the tree to a single node
-		T = new Node[1];
-		T[0] = new Node();
+		T = new NodeStore(1, branchingFactor, closenessThreshold);
+		T.create(0);
 		height = 1;
+	}
+	
+	public static void main(String[] args) 
+	{
+		// Set the branching factor and the threshold for the tree
+		ContextTree tree = new ContextTree(2, 2);
 		
 		// Vary the number of elements to insert to tree
 		int size = 100; 
@@ -49,23 +281,16 @@ public class ContextTree
 		{
 			for(int i = 0; i < size; i++)
 			{
-				// Clear our global members
-				parentStack.clear();
-				childStack.clear();
-				depth = -1;
-				rootSplitOccurred = false;
-				noNodeUpdate = false;
-				
 				// Generate a random value
 				int value = (int)(Math.random()*100);	
 				seq.add(value);
 				println("Inserting: " + value);
 				
 				// Insert the point to the tree
-				insertToTree(0, value, 1);		
+				tree.insert(value);		
 				
 				// Display the tree structure
-				printTree(0, 0); 
+				tree.printTree(0, 0); 
 			}
 		}
 		catch(Exception e)
@@ -76,443 +301,3188 @@ public class ContextTree
 			
 			println("Input values: ");
 			println(seq.toString());
-			println("Tree height = " + height);
-			println(Arrays.toString(T));
+			println("Tree height = " + tree.getHeight());
+			println(tree.T.toString());
 		}
 		
 	}
 	
 	/**
-	 * Inserts a new element to the tree rooted at nodeId
-	 * @param nodeId
+	 * Inserts a single data point into the tree. Safe to call from multiple
+	 * threads.
 	 * @param value
-	 * @param points
 	 */
-	public static void insertToTree(int nodeId, int value, int points)
+	public void insert(int value)
 	{
-		Node node = T[nodeId];
-		depth++;
-		
-		if(node.isLeaf())
-		{
-			int closestVal = node.getClosestValue(value);
-			if(node.isCloseEnough(closestVal, value))
-			{
-				node.addValueToLoc(closestVal, value);				
-			}
-			else
-			{
-				insertToNode(nodeId, value, points);
-			}
-		}
-		else
-		{					
-			int cci = node.getClosestChild(value); // index of closest child in 
-												   // the node
-			int cc = node.getChild(cci); // location of closest child in tree
-			
-			parentStack.push(nodeId); // Add current node to parent stack			
-			childStack.push(cci); // Add the new child
-			insertToTree(cc, value, points);
-
-			// A rebuild occurred, this means the indices have changed and nodes
-			// have already been updated. Do not update now.
-			if(!noNodeUpdate)
-			{
-				node.updateValue(cci, T[cc].getValue());
-				node.setPointsInValue(cci, T[cc].getNumPoints());
-			}	
-		}
+		insert(value, 1);
 	}
 	
 	/**
-	 * Inserts a value into a given node
-	 * @param nodeId
+	 * Inserts a value into the tree. Safe to call from multiple threads.
+	 * Inserts that do not split a node run concurrently, an insert into a 
+	 * full leaf waits until it has the tree to itself. While the tree is 
+	 * being rebuilt the value is held back and inserted once the rebuild is 
+	 * done.
 	 * @param value
 	 * @param points
+	 * @throws IllegalStateException If a rebuild of the tree failed, the 
+	 * failure is the cause
 	 */
-	public static void insertToNode(int nodeId, int value, int points)
+	public void insert(int value, int points)
 	{
-		Node node = T[nodeId];
+		checkWritable();
+		checkRebuilt();
 		
-		// Add the value to the node
-		node.insertValue(value, points);
-		
-		// Split the node into two new nodes if required
-		if(node.splitRequired())
+		TreeMetrics m = metrics;
+		boolean timed = m != null && m.sampleInsert();
+		long start = timed ? System.nanoTime() : 0;
+		CacheSimulator sim = startOperation();
+		try
 		{
-			splitNode(nodeId, depth);			
-		}		
+			insertOne(value, points);
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.INSERT);
+			if(m != null)
+				m.recordInsert(timed ? System.nanoTime() - start : -1);
+		}
 	}
 	
 	/**
-	 * Splits the given node into two new nodes and updates the tree. Will
-	 * recursively ascend the tree until no more nodes require splitting.
-	 * @param nodeId
-	 * @param nodeDepth
+	 * Inserts a value into the tree, see insert
+	 * @param value
+	 * @param points
 	 */
-	public static void splitNode(int nodeId, int nodeDepth)
+	private void insertOne(int value, int points)
 	{
-		int n1Loc = -1;
-		int n2Loc = -1;
-		int parent = 0;
-		int childLoc = 1;
-		
-		Node node = T[nodeId];
-		
-		// The new nodes after the split
-		Node n1 = new Node();
-		Node n2 = new Node();
-		
-		// Farthest pair of points in the node act as seeds
-		int[] farthestPair = node.getFarthestPair();
-		
-		T[nodeId] = node;
-		int[] children = node.getChildrenLocs();		
-		int[] values = node.getValues();
-
-		if(!node.isLeaf())
+		while(true)
 		{
-			// Assign each child to the closest of the two seed nodes
-			int numChildren = node.getNumChildren();
-			for(int i = 0; i < numChildren; i++)
+			checkRebuilt();
+			structureLock.asReadLock().lock();
+			try
 			{
-				int d1 = T[children[i]].getDist(
-								T[children[farthestPair[0]]].getValue());
-				int d2 = T[children[i]].getDist(
-								T[children[farthestPair[1]]].getValue());
-				
-				if(d1 < d2)
+				if(rebuilding)
 				{
-					n1.insertChild(children[i], T[children[i]].getValue());		
-					n1.setPointsInValue(n1.getNumChildren()-1, 
-											T[children[i]].getNumPoints());
+					if(addPending(value, points))
+						return;
 				}
-				else
+				else if(insertInPlace(value, points))
 				{
-					n2.insertChild(children[i], T[children[i]].getValue());
-					n2.setPointsInValue(n2.getNumChildren()-1, 
-											T[children[i]].getNumPoints());
+					return;
 				}
 			}
-		}
-		else
-		{
-			// Assign each value to the closest of the two seed nodes
-			int numValues = node.getNumValues();
-			int[] pointsInVal = node.getPointsInVal();
-			for(int i = 0; i < numValues; i++)
+			finally
 			{
-				int d1 = (int)Math.abs(values[i] - values[farthestPair[0]]);
-				int d2 = (int)Math.abs(values[i] - values[farthestPair[1]]);
-				
-				if(d1 < d2)
-				{
-					n1.insertValue(values[i], pointsInVal[i]);
-				}
-				else
+				structureLock.asReadLock().unlock();
+			}
+			
+			// Wait for the rebuild to finish if the pending inserts are full
+			if(rebuilding)
+			{
+				awaitRebuild();
+				continue;
+			}
+			
+			structureLock.asWriteLock().lock();
+			try
+			{
+				if(!rebuilding)
 				{
-					n2.insertValue(values[i], pointsInVal[i]);
+					insertExclusive(value, points);
+					return;
 				}
 			}
+			finally
+			{
+				structureLock.asWriteLock().unlock();
+			}
 		}
-				
+	}
+	
+	/**
+	 * Inserts a batch of single data points. The batch is sorted and routed
+	 * down the tree together, so each node on the way is visited once for 
+	 * all of the values that pass through it and each parent is updated 
+	 * once per batch. Equal values are inserted together. Safe to call from
+	 * multiple threads.
+	 * @param values
+	 * @param count Number of values to take from the start of values
+	 */
+	public void insertBatch(int[] values, int count)
+	{
+		checkWritable();
+		checkRebuilt();
 		
-		if(!parentStack.isEmpty()) // Split non-root
+		TreeMetrics m = metrics;
+		long start = m != null ? System.nanoTime() : 0;
+		int[] batchValues = Arrays.copyOf(values, count);
+		Arrays.sort(batchValues);
+		
+		// Combine equal values into a single value with more points
+		int[] batchPoints = new int[count];
+		int n = 0;
+		for(int i = 0; i < count; i++)
 		{
-			// Get the parent location and the child node id
-			parent = parentStack.pop();
-			childLoc = childStack.pop();
+			if(n > 0 && batchValues[n-1] == batchValues[i])
+			{
+				batchPoints[n-1]++;
+			}
+			else
+			{
+				batchValues[n] = batchValues[i];
+				batchPoints[n] = 1;
+				n++;
+			}
 		}
 		
-		// If the node is node 0, the root must be split and the tree rebuilt	
-		if(nodeId == 0)
+		CacheSimulator sim = startOperation();
+		try
 		{
-			rebuildTree(n1, n2);
-			height++;
+			insertSorted(batchValues, batchPoints, n);
 		}
-		else
+		finally
 		{
-			n1Loc = nodeId; // Keep the first node in the same location
-			
-			// Update the parameters
-			T[parent].updateChild(childLoc, n1Loc, n1.getValue());
-			T[parent].setPointsInValue(childLoc, n1.getNumPoints());
-			T[n1Loc] = n1;
-
-			// Determine the location of the new node in the tree
-			n2Loc = n1Loc + (1 + nodesBelow(nodeDepth+1, height))*
-							(T[parent].getNumChildren() - childLoc);
-			
-			// Insert the new node into the tree
-			T[parent].insertChild(n2Loc, n2.getValue());				
-			T[parent].setPointsInValue(T[parent].getNumValues()-1, 
-														n2.getNumPoints());		
-
-			// Move the children into the correct locations after the split							
-			int[] childLocs = n2.getChildrenLocs();
-			for(int i = 0; i < n2.getNumChildren(); i++)
+			endOperation(sim, CacheSimulator.Operation.BATCH);
+			if(m != null)
+				m.recordBatch(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Inserts the values of a batch, see insertBatch
+	 * @param batchValues Distinct values in ascending order
+	 * @param batchPoints Points of each value
+	 * @param n Number of values
+	 */
+	private void insertSorted(int[] batchValues, int[] batchPoints, int n)
+	{
+		while(n > 0)
+		{
+			checkRebuilt();
+			structureLock.asReadLock().lock();
+			try
 			{
-				int newLoc = n2Loc + 1 + i;					
-				T[newLoc] = T[childLocs[i]];	
-				T[childLocs[i]] = null;
-				childLocs[i] = newLoc;				
+				if(!rebuilding)
+				{
+					routeBatch(0, batchValues, batchPoints, 0, n);
+					sharedPath().release();
+				}
+			}
+			finally
+			{
+				structureLock.asReadLock().unlock();
 			}
 			
-			// Update the new nodes children to point to the correct locations
-			n2.setChildrenLocs(childLocs);
-			T[n2Loc] = n2;
-		
-			
-			// Fill in any holes that exist in node 1 since we removed
-			// children and put them into node2
-			if(!node.isLeaf())
+			// Values that reached a full leaf are left in the batch. The first
+			// one for each leaf, marked with negative points, is inserted on 
+			// its own to split the leaf and the rest are routed again. While 
+			// the tree is rebuilt all of them are inserted on their own.
+			boolean single = rebuilding;
+			int kept = 0;
+			for(int i = 0; i < n; i++)
 			{
-				int[] n1Vals = n1.getValues();
-				int[] n1Child = n1.getChildrenLocs();
-				int i = 0;
-				for(i = 0; i < n1.getNumChildren(); i++)
+				if(batchPoints[i] < 0 || (single && batchPoints[i] > 0))
 				{
-					T[n1Loc+1+i] = T[n1Child[i]];
-					n1.updateChild(i, n1Loc+1+i, n1Vals[i]);					
+					insertOne(batchValues[i], Math.abs(batchPoints[i]));
 				}
-				while(i < Node.getBranchingFactor())
+				else if(batchPoints[i] > 0)
 				{
-					T[n1Loc+1+i] = null;
-					i++;
+					batchValues[kept] = batchValues[i];
+					batchPoints[kept] = batchPoints[i];
+					kept++;
 				}
 			}
-		
-			// Check if the parent requires a split
-			if(T[parent].splitRequired())
-			{
-				splitNode(parent, nodeDepth-1);
-			}
+			n = kept;
 		}
 	}
 	
 	/**
-	 * Returns the given nodes depth within a subtree
-	 * @param subtreeHeight
-	 * @param nodeDepth
-	 * @return
+	 * Routes a sorted range of a batch to the leaves below the given node 
+	 * and inserts the values that fit without a split. Must be called with
+	 * the structure lock shared. Inserted values have their points set to 
+	 * zero. Of the values that reach a full leaf, the first has its points 
+	 * negated and the rest are left unchanged.
+	 * @param nodeId
+	 * @param values Values of the batch in ascending order
+	 * @param points Points of each value
+	 * @param lo First entry of the range
+	 * @param hi One past the last entry of the range
 	 */
-	public static int getDepthInSubtree(int subtreeHeight, int nodeDepth)
+	private void routeBatch(int nodeId, int[] values, int[] points, int lo, 
+																		int hi)
 	{
-		if(nodeDepth > subtreeHeight)
-			return -1;
+		Node node = T.get(nodeId);
 		
-		if( subtreeHeight <= 2)
-		{
-			return nodeDepth;
-		}
-		else
+		if(node.isLeaf())
 		{
-			int ht = (int) Math.floor(subtreeHeight/2);
-			if(nodeDepth > ht)
-				return getDepthInSubtree(subtreeHeight - ht, nodeDepth - ht);
-			else
-				return getDepthInSubtree(ht, nodeDepth);
+			ReentrantLock leafLock = nodeLocks[nodeId & (NODE_LOCK_STRIPES-1)];
+			leafLock.lock();
+			startLeafWrite(nodeId);
+			int absorbed = 0;
+			int created = 0;
+			try
+			{
+				boolean full = false;
+				for(int i = lo; i < hi; i++)
+				{
+					int closestVal = node.getClosestValue(values[i]);
+					if(node.isCloseEnough(closestVal, values[i]))
+					{
+						node.addValueToLoc(closestVal, values[i], points[i]);
+						points[i] = 0;
+						absorbed++;
+					}
+					else if(node.hasRoom())
+					{
+						node.insertValue(values[i], points[i]);
+						points[i] = 0;
+						created++;
+					}
+					else if(!full)
+					{
+						points[i] = -points[i];
+						full = true;
+					}
+				}
+			}
+			finally
+			{
+				endLeafWrite(nodeId);
+				leafLock.unlock();
+			}
+			TreeMetrics m = metrics;
+			if(m != null)
+				m.recordValues(absorbed, created);
+			return;
 		}
-	}
-	
-	/**
-	 * Calculates the number of nodes below a given node for a tree of a given 
-	 * height
-	 * @param depth
-	 * @param treeHeight
-	 * @return
-	 */
-	public static int nodesBelow(int depth, int treeHeight)
-	{
-		int width = 0;
 		
-		for(int i = depth; i < treeHeight; i++)
+		// The values closest to each child form a run of the sorted range. 
+		// Each run is routed to its child with a single descent, after which
+		// the parent is updated once.
+		int i = lo;
+		while(i < hi)
 		{
-			width += (int)Math.pow(Node.getBranchingFactor()+1,treeHeight-i);
+			int cci = node.getClosestChild(values[i]);
+			
+			// Find the end of the run by doubling the step until a value 
+			// closer to another child is found, then bisecting
+			int in = i; // Last entry known to be in the run
+			int out = hi; // First entry known not to be in the run
+			int step = 1;
+			while(in + step < hi)
+			{
+				if(node.getClosestChild(values[in + step]) != cci)
+				{
+					out = in + step;
+					break;
+				}
+				in += step;
+				step *= 2;
+			}
+			while(out - in > 1)
+			{
+				int mid = (in + out) >>> 1;
+				if(node.getClosestChild(values[mid]) == cci)
+					in = mid;
+				else
+					out = mid;
+			}
+			int j = out;
+			
+			int cc = node.getChild(cci);
+			routeBatch(cc, values, points, i, j);
+			updateParent(sharedPath(), nodeId, cci, cc);
+			i = j;
 		}
-		return width;
 	}
 	
 	/**
-	 * Calculates the number of nodes between startDepth and endDepth, 
-	 * inclusively.
-	 * @param startDepth
-	 * @param endDepth
-	 * @return
+	 * Removes a single data point, see remove(int, int)
+	 * @param value
+	 * @return 1 if the point was removed, 0 if the tree holds no values
 	 */
-	public static int nodesBetween(int startDepth, int endDepth)
+	public int remove(int value)
 	{
-		return nodesAbove(endDepth+1) - nodesAbove(startDepth);	
+		return remove(value, 1);
 	}
 	
 	/**
-	 * Calculates the number of nodes above a given depth of the tree
-	 * @param depth
-	 * @return
+	 * Takes data points with the given value out of the cluster closest to 
+	 * it, the reverse of insert. Points are removed from a single cluster. A
+	 * cluster left without points is dropped, and nodes left with fewer than
+	 * half of branchingFactor entries are merged with a sibling they fit in,
+	 * so a tree that values are removed from as they leave a sliding window
+	 * keeps to the size of the window. Waits for a running rebuild to finish.
+	 * @param value
+	 * @param points
+	 * @return The number of points removed, fewer than points if the cluster
+	 * held fewer, 0 if the tree holds no values
 	 */
-	public static int nodesAbove(int depth)
+	public int remove(int value, int points)
 	{
-		int nodesAbove = 0;
+		checkWritable();
+		if(points <= 0)
+			return 0;
 		
-		for(int i = 1; i < depth; i++)
+		CacheSimulator sim = startOperation();
+		lockSettled();
+		try
+		{
+			if(T.getNumValues(0) == 0)
+				return 0;
+			
+			int cluster = findNearest(value);
+			int removed = removeBelow(0, new int[height], 0, cluster, value, 
+																		points);
+			collapseRoot();
+			return removed;
+		}
+		finally
 		{
-			nodesAbove += (int)Math.pow(Node.getBranchingFactor()+1, i-1);
+			structureLock.asWriteLock().unlock();
+			endOperation(sim, CacheSimulator.Operation.REMOVE);
 		}
-		return nodesAbove;
 	}
 	
 	/**
-	 * Determines the start and end location of a nodes parent tree
-	 * @param start This should be set to zero
-	 * @param end This should be set to the height of the tree
-	 * @param nodeDepth The depth of the node within the tree
-	 * @return The first element of the array is the start depth, the second 
-	 * element is the end depth
+	 * Decays the points of every cluster by the given factor, so recent 
+	 * inserts outweigh old ones. Points are whole numbers and are rounded 
+	 * down, clusters left without points are dropped and underfull nodes are
+	 * merged as by remove. Factors are multiplied together until their 
+	 * product is at most DECAY_STEP and only then applied, so decaying often
+	 * by a factor close to 1 does not round every cluster of a single point
+	 * away at once. For a half life of h, decay by Math.pow(0.5, elapsed / h).
+	 * Waits for a running rebuild to finish.
+	 * @param factor Between 0 and 1
 	 */
-	public static int[] locOfParentTree(int start, int end, int nodeDepth)
-	{		
-		if(end - start < 4)
-			return new int[]{start, end};
-		else
+	public void decay(double factor)
+	{
+		checkWritable();
+		if(!(factor >= 0 && factor <= 1))
+			throw new IllegalArgumentException("Decay factor " + factor + 
+													" is not between 0 and 1");
+		
+		CacheSimulator sim = startOperation();
+		lockSettled();
+		try
 		{
-			int mid = (end + start - 1) / 2;
+			pendingDecay *= factor;
+			if(pendingDecay > DECAY_STEP)
+				return;
 			
-			if(nodeDepth <= mid) 
-				return locOfParentTree(start, mid, nodeDepth);
-			else
-				return locOfParentTree(mid+1, end, nodeDepth);
+			decayBelow(0, new int[height], 0, pendingDecay);
+			pendingDecay = 1;
+			collapseRoot();
+		}
+		finally
+		{
+			structureLock.asWriteLock().unlock();
+			endOperation(sim, CacheSimulator.Operation.DECAY);
 		}
 	}
-
+	
 	/**
-	 * Rebuilds the tree whenever the root node is split
-	 * @param node1
-	 * @param node2
+	 * Merges the clusters of another tree into this one, for trees built 
+	 * apart on other threads or from other parts of the input. The clusters
+	 * of both trees are taken in value order, a cluster closer than the 
+	 * closeness threshold to the one before it is coalesced with it, its
+	 * value weighted by their points, and the tree is rebuilt from them as
+	 * by bulkLoadSorted, each node written once at its place in the layout.
+	 * The tree keeps its own settings. The other tree is not changed and may
+	 * be used meanwhile. Waits for a running rebuild to finish.
+	 * @param other
 	 */
-	public static void rebuildTree(Node node1, Node node2)
+	public void merge(ContextTree other)
 	{
-		println("\n***** Rebuild started...");
-		int newSize = 0;
-		rootSplitOccurred = true;
-		noNodeUpdate = true;
-		
-		childIdHistory = new int[height+1];
-		
-		// Determine the size of the new tree and initialize the new tree
-		newSize = nodesBelow(1, height+1) + 1;
-		T_new = new Node[newSize];	
-		T_new[0] = new Node();
-		
-		// Insert the two seed nodes to the tree
-		childIdHistory[0] = 0;
-		buildNew(node1, 0, 2, 0);
-		childIdHistory[0] = 1;
-		buildNew(node2, 1, 2, 0);
-		
-		// Update the original tree to be the new tree
-		T = T_new; 
-		
-		printTree(0, 0);
-		println("***** Rebuild complete\n\n");
-	}
-
-	/**
-	 * Rebuilds a tree rooted at the given node
-	 * @param node
-	 * @param childId
-	 * @param nodeDepth
-	 * @param parentLoc
-	 */
-	public static void buildNew(
-			Node node, int childId, int nodeDepth, int parentLoc)
-	{		 
-		// Store the children of the current node in the old tree
-		int[] children = node.getChildrenLocs();		
-		
-		// The new tree height is one greater than the old height
-		int newHeight = height + 1;
+		checkWritable();
+		if(other == this)
+			throw new IllegalArgumentException("A tree can not be merged " + 
+																"with itself");
 		
-		// Determine the nodes depth in its subtree. Possible values are 1 or 2
-		int sh = getDepthInSubtree(newHeight, nodeDepth);
-		int loc;
+		// Read the other tree before locking this one, so two trees merged 
+		// into each other at once can not deadlock
+		int[] values = new int[0];
+		int[] points = new int[0];
+		int numTheirs;
+		while((numTheirs = other.clustersInRange(Integer.MIN_VALUE, 
+							Integer.MAX_VALUE, values, points)) > values.length)
+		{
+			values = new int[numTheirs + numTheirs / 8 + 16];
+			points = new int[values.length];
+		}
+		long[] theirs = packClusters(values, points, numTheirs);
 		
-		// The node is on the lower level of the subtree
-		if(sh == 2)
-			// Children come immediately after the parent
-			loc = parentLoc + 1 + childId;
-		else
+		CacheSimulator sim = startOperation();
+		lockSettled();
+		try
 		{
-			// Check to see the depth of the node above this subtree
-			if(getDepthInSubtree(newHeight, nodeDepth-1) == 2)
+			int numOurs = findInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, 
+													new int[0], null, 0);
+			values = new int[numOurs + numTheirs];
+			points = new int[numOurs + numTheirs];
+			findInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, values, points, 0);
+			long[] ours = packClusters(values, points, numOurs);
+			
+			// Merge the two sorted runs, coalescing close clusters
+			int n = 0;
+			for(int i = 0, j = 0; i < numOurs || j < numTheirs; )
 			{
-				// Store where this subtree's parent tree starts and ends
-				int[] treeLocs = locOfParentTree(0, newHeight, nodeDepth);
-				
-				// Get all of the nodes above this node
-				int nodesUp = nodesAbove(nodeDepth);
-				
-				// Get all of the nodes to the left of this node
-				int nodesBn = nodesBetween(treeLocs[0], treeLocs[1]);
-				float fracBefore = 0;
-				for(int i = 1; i <= nodeDepth; i++)
+				long cluster = j == numTheirs || (i < numOurs && ours[i] <= theirs[j])
+											? ours[i++] : theirs[j++];
+				int value = (int)(cluster >> 32);
+				int p = (int)cluster;
+				if(n > 0 && Math.abs((long)values[n-1] - value) < 
+														closenessThreshold)
 				{
-					fracBefore += (float)childIdHistory[i-1] / 
-							Math.pow(Node.getBranchingFactor(), i);
+					long total = (long)points[n-1] + p;
+					values[n-1] = (int)Math.round(((double)values[n-1] * 
+								points[n-1] + (double)value * p) / total);
+					points[n-1] = (int)Math.min(Integer.MAX_VALUE, total);
+				}
+				else
+				{
+					values[n] = value;
+					points[n] = p;
+					n++;
 				}
-				
-				// Set the location of this node in the new tree
-				loc = nodesUp + (int)(nodesBn * fracBefore);				
-			}	
-			else // sh_parent == 1
-			{
-				loc = parentLoc + 1 + 
-						childId*(1+nodesBelow(nodeDepth, newHeight));
 			}
-		}
 			
-		// Put the current node into the new tree
-		T_new[loc] = node;
-		
-		// Get this nodes parent
-		Node parent = T_new[parentLoc];
-						
-		parent.insertChild(loc, node.getValue());
-		parent.setPointsInValue(childId, node.getNumPoints());
-		
-		if(!node.isLeaf()) // non-leaf nodes have children that need to be 
-			               // placed in the new tree
+			placeClusters(values, points, n);
+		}
+		finally
 		{
-			// Save the children of the current node and then clear them
-			int[] childrenCopy = new int[children.length]; 
-			System.arraycopy(children, 0, childrenCopy, 0, children.length);						
-			int numChildren = node.getNumChildren();
-			node.clearChildren();
-
-			for(int i = 0; i < numChildren; i++)
-			{			
-				// Pass the child from the old tree into the buildNew
-				childIdHistory[nodeDepth - 1] = i;
-				buildNew(T[childrenCopy[i]],i,nodeDepth+1, loc);				
+			structureLock.asWriteLock().unlock();
+			endOperation(sim, CacheSimulator.Operation.MERGE);
+		}
+	}
+	
+	/**
+	 * Returns clusters packed with the value in the high half and the points
+	 * in the low half, in ascending order of value
+	 * @param values
+	 * @param points
+	 * @param numClusters Number of clusters packed, the first ones
+	 */
+	private static long[] packClusters(int[] values, int[] points, 
+															int numClusters)
+	{
+		long[] clusters = new long[numClusters];
+		for(int i = 0; i < numClusters; i++)
+		{
+			clusters[i] = ((long)values[i] << 32) | points[i];
+		}
+		Arrays.sort(clusters);
+		return clusters;
+	}
+	
+	/**
+	 * Selects whether a root split rebuilds the tree on a background thread,
+	 * the default, or inside the insert that split the root
+	 * @param background
+	 */
+	public void setBackgroundRebuild(boolean background)
+	{
+		structureLock.asWriteLock().lock();
+		try
+		{
+			backgroundRebuild = background;
+		}
+		finally
+		{
+			structureLock.asWriteLock().unlock();
+		}
+	}
+	
+	/**
+	 * Blocks until no rebuild is in progress and every insert made during 
+	 * the last rebuild has been applied to the tree, or the rebuild failed,
+	 * after which inserts throw IllegalStateException
+	 */
+	public void awaitRebuild()
+	{
+		boolean interrupted = false;
+		boolean done = false;
+		while(!done)
+		{
+			synchronized(rebuildMonitor)
+			{
+				while(rebuilding)
+				{
+					try
+					{
+						rebuildMonitor.wait();
+					}
+					catch(InterruptedException e)
+					{
+						interrupted = true;
+					}
+				}
+			}
+			
+			// The held inserts are applied with the structure lock held, and
+			// one of them may have started another rebuild
+			structureLock.asReadLock().lock();
+			try
+			{
+				done = !rebuilding;
+			}
+			finally
+			{
+				structureLock.asReadLock().unlock();
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Opens a tree saved with save. The nodes are used straight from a 
+	 * mapping of the file, so only the parts of the tree that are visited 
+	 * are read. Changes made to a writable tree are durable once the tree is
+	 * committed, but the operating system may write those made in place to
+	 * the file before that, see commit.
+	 * @param path
+	 * @param writable False to open the tree read only
+	 * @return The tree held in the file
+	 * @throws IOException If the file cannot be mapped or is not a tree file
+	 */
+	public static ContextTree open(Path path, boolean writable) 
+														throws IOException
+	{
+		return open(path, writable, null);
+	}
+	
+	/**
+	 * Opens a tree saved with save, see open. With a pool the nodes are not
+	 * mapped but read and written through the pool a block at a time, so the
+	 * tree may be larger than memory. The files of rebuilt trees are read
+	 * through the same pool.
+	 * @param path
+	 * @param writable False to open the tree read only
+	 * @param pool The pool, or null to map the file
+	 * @return The tree held in the file
+	 * @throws IOException If the file cannot be read or is not a tree file
+	 */
+	public static ContextTree open(Path path, boolean writable, 
+										BufferPool pool) throws IOException
+	{
+		TreeFile file = TreeFile.open(path, writable, pool);
+		
+		ContextTree tree = new ContextTree(file.getBranchingFactor(), 
+						file.getClosenessThreshold(), file.getLayout());
+		tree.T = file.getStore();
+		tree.height = file.getHeight();
+		tree.path = path;
+		tree.file = file;
+		tree.readOnly = !writable;
+		tree.pool = pool;
+		
+		return tree;
+	}
+	
+	/**
+	 * Creates an empty tree kept in a new file, as if a tree made with the 
+	 * configuration had been saved to path and opened writable with the 
+	 * pool. An existing file at path is replaced.
+	 * @param path
+	 * @param config
+	 * @param pool The pool, or null to map the file
+	 * @return The tree
+	 * @throws IOException If the file cannot be created
+	 */
+	public static ContextTree create(Path path, TreeConfig config, 
+										BufferPool pool) throws IOException
+	{
+		ContextTree tree = new ContextTree(config);
+		tree.pool = pool;
+		tree.file = tree.writeFile(path);
+		tree.file.force();
+		tree.T = tree.file.getStore();
+		tree.path = path;
+		
+		return tree;
+	}
+	
+	/**
+	 * Writes the tree to a file that can be opened with open. The file is 
+	 * written next to path first and then moved over it, so path holds 
+	 * either the old file or the complete new one. Waits for a running 
+	 * rebuild to finish.
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(Path path) throws IOException
+	{
+		if(this.path != null && !readOnly && 
+				this.path.toAbsolutePath().normalize().equals(
+								path.toAbsolutePath().normalize()))
+		{
+			commit();
+			return;
+		}
+		
+		lockSettled();
+		try
+		{
+			TreeFile out = writeFile(TreeFile.scratchPath(path));
+			out.force();
+			out.moveTo(path).release();
+		}
+		finally
+		{
+			structureLock.asWriteLock().unlock();
+		}
+	}
+	
+	/**
+	 * Makes every change to a tree opened with open durable. Once this 
+	 * returns the file holds the tree as it is now, including a rebuilt tree
+	 * that was kept in a scratch file. Waits for a running rebuild to finish.
+	 * 
+	 * Only the move to a rebuilt tree is atomic, the scratch file replaces 
+	 * the file in a single rename. Values inserted or removed in place are 
+	 * written to the nodes in the file, and the operating system, or the
+	 * buffer pool when it evicts a block, may write them out before commit.
+	 * After a crash between commits the file can hold some of the changes 
+	 * made since the last commit, and a node may be written only in part.
+	 * @throws IOException
+	 */
+	public void commit() throws IOException
+	{
+		checkWritable();
+		if(path == null)
+			throw new IllegalStateException("Tree is not kept in a file");
+		
+		lockSettled();
+		try
+		{
+			// The scratch file for a rebuild could not be created, so the
+			// tree was rebuilt on the heap
+			if(file == null)
+			{
+				file = writeFile(TreeFile.scratchPath(path));
+				T = file.getStore();
+				T.setSimulator(simulator);
+			}
+			
+			file.force();
+			if(!file.getPath().equals(path))
+				file = file.moveTo(path);
+		}
+		finally
+		{
+			structureLock.asWriteLock().unlock();
+		}
+	}
+	
+	/**
+	 * Writes a compact snapshot of the tree that can be read back with 
+	 * restore, see TreeSnapshot. Only occupied nodes are written. Waits for 
+	 * a running rebuild to finish and holds back inserts until the snapshot
+	 * is written, so it is the tree at a single point in time.
+	 * @param out Stream the snapshot is written to, which is left open
+	 * @throws IOException
+	 */
+	public void snapshot(OutputStream out) throws IOException
+	{
+		lockSettled();
+		try
+		{
+			TreeSnapshot.write(out, T, layout, height);
+		}
+		finally
+		{
+			structureLock.asWriteLock().unlock();
+		}
+	}
+	
+	/**
+	 * Reads a tree written by snapshot. The nodes are decoded straight into
+	 * their locations in a single pass over the snapshot, nothing is 
+	 * inserted. The tree is kept on the heap, save writes it to a file.
+	 * @param in Stream positioned at the snapshot, which is left open
+	 * @return The tree as it was when the snapshot was taken
+	 * @throws IOException If the snapshot is truncated or corrupt
+	 */
+	public static ContextTree restore(InputStream in) throws IOException
+	{
+		return restore(in, false);
+	}
+	
+	/**
+	 * Restores a tree from a snapshot, see restore
+	 * @param in Stream positioned at the snapshot, which is left open
+	 * @param sparse True to keep the nodes in a sparse store, see NodeStore
+	 * @return The tree as it was when the snapshot was taken
+	 * @throws IOException If the snapshot is truncated or corrupt
+	 */
+	public static ContextTree restore(InputStream in, boolean sparse) 
+															throws IOException
+	{
+		TreeSnapshot.Decoder decoder = new TreeSnapshot.Decoder(in);
+		TreeSnapshot.Header header = TreeSnapshot.readHeader(decoder);
+		
+		ContextTree tree = new ContextTree(header.branchingFactor, 
+						header.closenessThreshold, header.layout);
+		if(header.height > tree.layoutTable.getMaxHeight() || 
+				header.capacity < tree.nodesBelow(1, header.height) + 1)
+			throw new IOException("Snapshot has a corrupt header");
+		
+		tree.sparse = sparse;
+		tree.T = tree.heapStore(header.capacity);
+		tree.height = header.height;
+		TreeSnapshot.readNodes(decoder, header, tree.T);
+		return tree;
+	}
+	
+	/**
+	 * Copies the nodes of the tree into a new file. Must be called with the
+	 * structure lock held exclusively.
+	 * @param target
+	 * @return The new file
+	 * @throws IOException
+	 */
+	private TreeFile writeFile(Path target) throws IOException
+	{
+		TreeFile out = TreeFile.create(target, branchingFactor, 
+				closenessThreshold, layout, height, T.getCapacity(), pool);
+		
+		NodeStore store = out.getStore();
+		for(int i = T.nextWritten(0); i < T.getCapacity(); 
+												i = T.nextWritten(i + 1))
+		{
+			if(T.isOccupied(i))
+				store.set(i, T.get(i));
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Takes the structure lock exclusively once no rebuild is in progress
+	 */
+	private void lockSettled()
+	{
+		while(true)
+		{
+			awaitRebuild();
+			structureLock.asWriteLock().lock();
+			if(!rebuilding)
+				return;
+			structureLock.asWriteLock().unlock();
+		}
+	}
+	
+	private void checkWritable()
+	{
+		if(readOnly)
+			throw new UnsupportedOperationException("Tree is open read only");
+	}
+	
+	/**
+	 * Throws if a rebuild failed, after which values can not be inserted
+	 */
+	private void checkRebuilt()
+	{
+		Throwable failure = rebuildFailure;
+		if(failure != null)
+			throw new IllegalStateException("The tree could not be rebuilt, "
+					+ "it can be read but not inserted into. " + droppedInserts
+					+ " held inserts were dropped.", failure);
+	}
+	
+	/**
+	 * Instruments the tree. Every access made to a node from then on, 
+	 * including those of rebuilds, is replayed through the given simulator
+	 * and the block transfers of each insert, batch, query, rebuild, removal 
+	 * and decay are counted. Waits for a running rebuild to finish.
+	 * @param simulator The simulator, or null to stop instrumenting the tree
+	 */
+	public void setCacheSimulator(CacheSimulator simulator)
+	{
+		lockSettled();
+		try
+		{
+			this.simulator = simulator;
+			T.setSimulator(simulator);
+		}
+		finally
+		{
+			structureLock.asWriteLock().unlock();
+		}
+	}
+	
+	public CacheSimulator getCacheSimulator()
+	{
+		return simulator;
+	}
+	
+	/**
+	 * Starts counting inserts, splits and rebuilds of the tree. The metrics 
+	 * can be registered with JMX, see TreeMetrics.register.
+	 * @return The metrics of the tree, the same ones if they are already 
+	 * enabled
+	 */
+	public synchronized TreeMetrics enableMetrics()
+	{
+		if(metrics == null)
+			metrics = new TreeMetrics(this);
+		return metrics;
+	}
+	
+	/**
+	 * Stops counting and unregisters the metrics from JMX
+	 */
+	public synchronized void disableMetrics()
+	{
+		if(metrics != null)
+			metrics.unregister();
+		metrics = null;
+	}
+	
+	/**
+	 * Returns the metrics of the tree, null if they are not enabled
+	 */
+	public TreeMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Returns the number of locations of T that hold a node, which the store
+	 * keeps as nodes are written and cleared. A tree opened from a file has 
+	 * its locations visited the first time, with the structure lock shared 
+	 * so no node is split or moved meanwhile.
+	 */
+	int getOccupiedSlots()
+	{
+		NodeStore store = currentStore();
+		if(!store.isCounted())
+		{
+			structureLock.asReadLock().lock();
+			try
+			{
+				store.countOccupied();
+			}
+			finally
+			{
+				structureLock.asReadLock().unlock();
+			}
+		}
+		return store.countOccupied();
+	}
+	
+	/**
+	 * Returns the number of locations of T
+	 */
+	int getAllocatedSlots()
+	{
+		return currentStore().getCapacity();
+	}
+	
+	/**
+	 * Returns the bytes taken by the nodes of T
+	 */
+	long getNodeBytes()
+	{
+		return currentStore().getAllocatedBytes();
+	}
+	
+	/**
+	 * Returns the store holding the nodes of the tree, T
+	 */
+	NodeStore currentStore()
+	{
+		for(int attempt = 0; ; attempt++)
+		{
+			long stamp = startRead(null, attempt);
+			NodeStore store = T;
+			if(endRead(stamp))
+				return store;
+		}
+	}
+	
+	/**
+	 * Starts counting the block transfers of an operation if the tree is 
+	 * instrumented
+	 * @return The simulator to pass to endOperation
+	 */
+	private CacheSimulator startOperation()
+	{
+		CacheSimulator sim = simulator;
+		if(sim != null)
+			sim.beginOperation();
+		return sim;
+	}
+	
+	private static void endOperation(CacheSimulator sim, 
+										CacheSimulator.Operation operation)
+	{
+		if(sim != null)
+			sim.endOperation(operation);
+	}
+	
+	/**
+	 * Inserts a value with the structure lock held exclusively
+	 * @param value
+	 * @param points
+	 */
+	private void insertExclusive(int value, int points)
+	{
+		// Clear the members used by the insert
+		noNodeUpdate = false;
+		splitDepth = Integer.MAX_VALUE;
+		
+		insertToTree(value, points);
+		insertPath.release();
+	}
+	
+	/**
+	 * Holds an insert until the running rebuild is done
+	 * @param value
+	 * @param points
+	 * @return False if there is no room left to hold the insert
+	 */
+	private boolean addPending(int value, int points)
+	{
+		synchronized(rebuildMonitor)
+		{
+			if(pendingCount == PENDING_CAPACITY)
+				return false;
+			
+			pendingValues[pendingCount] = value;
+			pendingPoints[pendingCount] = points;
+			pendingCount++;
+			return true;
+		}
+	}
+	
+	public int getHeight()
+	{
+		for(int attempt = 0; ; attempt++)
+		{
+			long stamp = startRead(null, attempt);
+			int h = height;
+			if(endRead(stamp))
+				return h;
+		}
+	}
+	
+	/**
+	 * Returns the value of the cluster closest to the given value. Does not
+	 * allocate. Safe to call from multiple threads.
+	 * @param value
+	 * @return Value of the closest cluster, the first one found on a tie
+	 * @throws NoSuchElementException If the tree holds no values
+	 */
+	public int nearestCluster(int value)
+	{
+		CacheSimulator sim = startOperation();
+		try
+		{
+			for(int attempt = 0; ; attempt++)
+			{
+				long stamp = startRead(sim, attempt);
+				try
+				{
+					int nearest = findNearest(value);
+					if(endRead(stamp))
+						return nearest;
+				}
+				catch(RuntimeException e)
+				{
+					if(endRead(stamp))
+						throw e;
+				}
+			}
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.QUERY);
+		}
+	}
+	
+	/**
+	 * Returns the value of the cluster closest to the given value, see 
+	 * nearestCluster. Must be called with the structure lock held or read 
+	 * started.
+	 * @param value
+	 * @throws NoSuchElementException If the tree holds no values
+	 */
+	private int findNearest(int value)
+	{
+		// Start from the cluster an insert would join, then search the 
+		// subtrees whose bounds could hold a closer one
+		int seed = closestLeaf(value);
+		int best = 0;
+		long bestDist = FARTHEST;
+		
+		QueryState q = startQuery(true, value);
+		for(int leaf = seed; leaf >= 0; 
+				leaf = nextLeaf(q, value - bestDist + 1, 
+											value + bestDist - 1, seed))
+		{
+			int numValues = readLeaf(q, leaf);
+			for(int i = 0; i < numValues; i++)
+			{
+				int v = q.values[i];
+				long dist = Math.abs((long)v - value);
+				if(dist < bestDist)
+				{
+					best = v;
+					bestDist = dist;
+				}
+			}
+		}
+		
+		if(bestDist == FARTHEST)
+			throw new NoSuchElementException("Tree holds no values");
+		return best;
+	}
+	
+	/**
+	 * Finds the clusters whose values lie in [lo, hi], in no particular 
+	 * order. Does not allocate. Safe to call from multiple threads.
+	 * @param lo
+	 * @param hi
+	 * @param values Receives the values of the clusters
+	 * @param points Receives the number of points in each cluster, or null
+	 * @return The number of clusters in the range. Only as many as fit in 
+	 * values, and in points unless it is null, are written, so a result 
+	 * larger than that means the query has to be repeated with larger 
+	 * buffers to see all of them.
+	 */
+	public int clustersInRange(int lo, int hi, int[] values, int[] points)
+	{
+		return clustersInRange(lo, hi, values, points, 0);
+	}
+	
+	/**
+	 * Finds the clusters whose values lie in [lo, hi], see clustersInRange
+	 * @param lo
+	 * @param hi
+	 * @param values Receives the values of the clusters from offset on
+	 * @param points Receives the number of points in each cluster, or null
+	 * @param offset First entry of values and points written
+	 * @return The number of clusters in the range, see clustersInRange
+	 */
+	int clustersInRange(int lo, int hi, int[] values, int[] points, 
+																	int offset)
+	{
+		CacheSimulator sim = startOperation();
+		try
+		{
+			for(int attempt = 0; ; attempt++)
+			{
+				long stamp = startRead(sim, attempt);
+				try
+				{
+					int found = findInRange(lo, hi, values, points, offset);
+					if(endRead(stamp))
+						return found;
+				}
+				catch(RuntimeException e)
+				{
+					if(endRead(stamp))
+						throw e;
+				}
+			}
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.QUERY);
+		}
+	}
+	
+	/**
+	 * Finds the clusters whose values lie in [lo, hi], see clustersInRange.
+	 * Must be called with the structure lock held or read started.
+	 */
+	private int findInRange(int lo, int hi, int[] values, int[] points, 
+																	int offset)
+	{
+		int found = 0;
+		int room = points == null ? values.length : 
+									Math.min(values.length, points.length);
+		
+		QueryState q = startQuery(false, 0);
+		for(int leaf = nextLeaf(q, lo, hi, -1); leaf >= 0; 
+										leaf = nextLeaf(q, lo, hi, -1))
+		{
+			int numValues = readLeaf(q, leaf);
+			for(int i = 0; i < numValues; i++)
+			{
+				int v = q.values[i];
+				if(v < lo || v > hi)
+					continue;
+				
+				if(offset + found < room)
+				{
+					values[offset + found] = v;
+					if(points != null)
+						points[offset + found] = q.points[i];
+				}
+				found++;
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Finds the k clusters closest to the given value. Does not allocate. 
+	 * Safe to call from multiple threads.
+	 * @param value
+	 * @param k
+	 * @param values Receives the values of the clusters, closest first. At 
+	 * most values.length clusters are returned.
+	 * @param points Receives the number of points in each cluster, or null
+	 * @return The number of clusters found, less than k if the tree holds 
+	 * fewer clusters
+	 */
+	public int kNearest(int value, int k, int[] values, int[] points)
+	{
+		k = Math.min(k, values.length);
+		if(points != null)
+			k = Math.min(k, points.length);
+		if(k <= 0)
+			return 0;
+		
+		CacheSimulator sim = startOperation();
+		try
+		{
+			for(int attempt = 0; ; attempt++)
+			{
+				long stamp = startRead(sim, attempt);
+				try
+				{
+					int found = findKNearest(value, k, values, points);
+					if(endRead(stamp))
+						return found;
+				}
+				catch(RuntimeException e)
+				{
+					if(endRead(stamp))
+						throw e;
+				}
+			}
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.QUERY);
+		}
+	}
+	
+	/**
+	 * Finds the k clusters closest to the given value, see kNearest. Must be
+	 * called with the structure lock held or read started.
+	 * @param k At most the length of values and points
+	 */
+	private int findKNearest(int value, int k, int[] values, int[] points)
+	{
+		int found = 0;
+		long kthDist = FARTHEST; // Distance of the kth cluster found
+		
+		int seed = closestLeaf(value);
+		QueryState q = startQuery(true, value);
+		for(int leaf = seed; leaf >= 0; 
+				leaf = nextLeaf(q, value - kthDist + 1, 
+											value + kthDist - 1, seed))
+		{
+			int numValues = readLeaf(q, leaf);
+			for(int i = 0; i < numValues; i++)
+			{
+				int v = q.values[i];
+				long dist = Math.abs((long)v - value);
+				if(dist >= kthDist)
+					continue;
+				
+				// Insert into the results, which are kept in order of 
+				// distance, dropping the farthest if they are full
+				int j = found < k ? found++ : k - 1;
+				while(j > 0 && Math.abs((long)values[j-1] - value) > dist)
+				{
+					values[j] = values[j-1];
+					if(points != null)
+						points[j] = points[j-1];
+					j--;
+				}
+				values[j] = v;
+				if(points != null)
+					points[j] = q.points[i];
+				
+				if(found == k)
+					kthDist = Math.abs((long)values[k-1] - value);
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Returns the number of points in clusters whose values are at most the
+	 * given value. Subtrees whose bounds lie below the value are counted 
+	 * from the points their parent keeps for them, so only subtrees whose 
+	 * bounds straddle the value are entered, usually a single path. Does not
+	 * allocate. Safe to call from multiple threads, but exact only when no 
+	 * insert runs at the same time, the points of one that does may be 
+	 * partly counted.
+	 * @param value
+	 */
+	public long rank(int value)
+	{
+		CacheSimulator sim = startOperation();
+		try
+		{
+			for(int attempt = 0; ; attempt++)
+			{
+				long stamp = startRead(sim, attempt);
+				try
+				{
+					long rank = countInRange(Integer.MIN_VALUE, value);
+					if(endRead(stamp))
+						return rank;
+				}
+				catch(RuntimeException e)
+				{
+					if(endRead(stamp))
+						throw e;
+				}
+			}
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.QUERY);
+		}
+	}
+	
+	/**
+	 * Returns the share of the points that are in clusters whose values lie
+	 * in [from, to], see rank. The points in the range and in the tree are
+	 * counted in the same walk, so the share is in [0, 1] even while inserts
+	 * run at the same time.
+	 * @param from
+	 * @param to
+	 * @return The share, 0 if the tree holds no points
+	 */
+	public double cdf(int from, int to)
+	{
+		if(from > to)
+			return 0;
+		
+		CacheSimulator sim = startOperation();
+		try
+		{
+			for(int attempt = 0; ; attempt++)
+			{
+				long stamp = startRead(sim, attempt);
+				try
+				{
+					long in = countInRange(from, to);
+					long total = queryState.get().total;
+					if(endRead(stamp))
+						return total == 0 ? 0 : (double)in / total;
+				}
+				catch(RuntimeException e)
+				{
+					if(endRead(stamp))
+						throw e;
+				}
+			}
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.QUERY);
+		}
+	}
+	
+	/**
+	 * Returns the value of the cluster holding the point whose rank is q 
+	 * times the points in the tree, found in a single descent. Each node 
+	 * takes the children, or values of a leaf, in the order of their values
+	 * and enters the one whose points reach the rank, see findQuantile. The 
+	 * value is exact where the bounds of the children on the way do not 
+	 * overlap. Where they do, the points of a child are taken as all before
+	 * those of the next, so the rank of the value found may be off by up to
+	 * the points of the overlapping siblings. Does not allocate. Safe to 
+	 * call from multiple threads, see rank for inserts running at the same 
+	 * time.
+	 * @param q Between 0, for the first point, and 1, for the last
+	 * @throws NoSuchElementException If the tree holds no values
+	 */
+	public int quantile(double q)
+	{
+		if(!(q >= 0 && q <= 1))
+			throw new IllegalArgumentException("Quantile " + q + 
+													" is not in [0, 1]");
+		
+		CacheSimulator sim = startOperation();
+		try
+		{
+			for(int attempt = 0; ; attempt++)
+			{
+				long stamp = startRead(sim, attempt);
+				try
+				{
+					int quantile = findQuantile(q);
+					if(endRead(stamp))
+						return quantile;
+				}
+				catch(RuntimeException e)
+				{
+					if(endRead(stamp))
+						throw e;
+				}
+			}
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.QUERY);
+		}
+	}
+	
+	/**
+	 * Divides the values of the clusters into buckets holding about as many
+	 * points each. Bucket i holds the clusters whose values lie in 
+	 * (bounds[i], bounds[i+1]], the first one also bounds[0]. Each bound is
+	 * found by a descent of quantile, which also counts the points up to 
+	 * it, so a histogram of k buckets takes k + 1 descents. The points are 
+	 * exact where the bounds are, see quantile. Does not allocate. Safe to 
+	 * call from multiple threads, see rank for inserts running at the same 
+	 * time.
+	 * @param bounds Receives the bounds of the buckets, one more than there 
+	 * are buckets, the quantiles 0, 1/k and so on up to 1
+	 * @param points Receives the number of points in each bucket, or null.
+	 * They add up to the points in the tree.
+	 * @throws NoSuchElementException If the tree holds no values
+	 */
+	public void histogram(int[] bounds, long[] points)
+	{
+		int buckets = bounds.length - 1;
+		if(buckets < 1)
+			throw new IllegalArgumentException("No room for a bucket");
+		if(points != null && points.length < buckets)
+			throw new IllegalArgumentException("Room for " + points.length + 
+										" bucket sizes, " + buckets + " needed");
+		
+		CacheSimulator sim = startOperation();
+		try
+		{
+			for(int attempt = 0; ; attempt++)
+			{
+				long stamp = startRead(sim, attempt);
+				try
+				{
+					long below = 0;
+					for(int i = 0; i <= buckets; i++)
+					{
+						bounds[i] = findQuantile((double)i / buckets);
+						if(points == null || i == 0)
+							continue;
+						// Counts of separate descents may disagree while 
+						// values are inserted, no bucket is left negative
+						long rank = queryState.get().rank;
+						points[i-1] = Math.max(0, rank - below);
+						below = Math.max(below, rank);
+					}
+					if(endRead(stamp))
+						return;
+				}
+				catch(RuntimeException e)
+				{
+					if(endRead(stamp))
+						throw e;
+				}
+			}
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.QUERY);
+		}
+	}
+	
+	/**
+	 * Returns the number of points in clusters whose values lie in [from, 
+	 * to], see rank. The points the walk sees in the whole tree are left in 
+	 * the total of the query state of the calling thread, counted from the 
+	 * same nodes, so the count never exceeds it. Must be called with the 
+	 * structure lock held or read started.
+	 * @param from
+	 * @param to
+	 */
+	private long countInRange(long from, long to)
+	{
+		long count = 0;
+		long total = 0;
+		
+		QueryState q = startQuery(false, 0);
+		while(q.depth >= 0)
+		{
+			int loc = q.locs[q.depth];
+			if(T.isLeaf(loc))
+			{
+				int numValues = readLeaf(q, loc);
+				for(int i = 0; i < numValues; i++)
+				{
+					if(q.values[i] >= from && q.values[i] <= to)
+						count += q.points[i];
+					total += q.points[i];
+				}
+				q.depth--;
+				continue;
+			}
+			
+			int n = q.next[q.depth];
+			if(n == T.getNumValues(loc))
+			{
+				q.depth--;
+				continue;
+			}
+			q.next[q.depth] = n + 1;
+			
+			// Whole subtrees inside or outside the range are counted without
+			// entering them. A read that was started may see nodes being 
+			// moved, the walk stops at the depth of the leaves whatever it 
+			// finds.
+			int child = T.getChild(loc, n);
+			int min = T.getMinValue(child);
+			int max = T.getMaxValue(child);
+			if(max < from || min > to || q.depth + 1 >= height)
+				total += T.getPoints(loc, n);
+			else if(min >= from && max <= to)
+			{
+				long points = T.getPoints(loc, n);
+				count += points;
+				total += points;
+			}
+			else
+			{
+				q.depth++;
+				q.locs[q.depth] = child;
+				q.next[q.depth] = 0;
+			}
+		}
+		q.total = total;
+		return count;
+	}
+	
+	/**
+	 * Returns the value of the given quantile, see quantile. The target rank
+	 * is taken from the points the root keeps for its children. Each node on
+	 * the way down is copied into the query state and put in value order, 
+	 * and the points of the children before the one holding the target are 
+	 * taken off it. The points before the value found and those of its 
+	 * value in the leaf are left in the rank of the query state of the 
+	 * calling thread. Must be called with the structure lock held or read 
+	 * started.
+	 * @param q In [0, 1]
+	 * @throws NoSuchElementException If the tree holds no values
+	 */
+	private int findQuantile(double q)
+	{
+		QueryState s = startQuery(false, 0);
+		int loc = 0;
+		long target = 0;
+		long before = 0; // Points of the clusters before the node entered
+		for(int depth = 0; ; depth++)
+		{
+			// A read that was started may see nodes being moved, the descent
+			// stops at the depth of the leaves whatever it finds
+			boolean leaf = T.isLeaf(loc) || depth + 1 >= height;
+			int count = leaf ? readLeaf(s, loc) : readChildren(s, loc);
+			long points = sortByValue(s, count);
+			if(depth == 0)
+			{
+				if(points <= 0)
+					throw new NoSuchElementException("Tree holds no values");
+				target = Math.max(1, (long)Math.ceil(q * points));
+			}
+			if(count == 0)
+				throw new NoSuchElementException("Tree holds no values");
+			
+			// Counts kept by parents may be behind those of their children 
+			// while values are inserted, the last entry takes what is left
+			int i = 0;
+			while(i < count - 1 && target > s.points[i])
+			{
+				target -= s.points[i];
+				before += s.points[i];
+				i++;
+			}
+			if(!leaf)
+			{
+				loc = s.children[i];
+				continue;
+			}
+			
+			// Equal values of a leaf are counted together
+			long rank = before + s.points[i];
+			while(i < count - 1 && s.values[i+1] == s.values[i])
+				rank += s.points[++i];
+			s.rank = rank;
+			return s.values[i];
+		}
+	}
+	
+	/**
+	 * Copies the values, points and locations of the children of a node 
+	 * into the query state. Inserts that change values in place may update
+	 * the node while it is read.
+	 * @param q
+	 * @param loc
+	 * @return The number of children
+	 */
+	private int readChildren(QueryState q, int loc)
+	{
+		int numValues = Math.min(T.getNumValues(loc), q.values.length);
+		for(int i = 0; i < numValues; i++)
+		{
+			q.values[i] = T.getValue(loc, i);
+			q.points[i] = T.getPoints(loc, i);
+			q.children[i] = T.getChild(loc, i);
+		}
+		return numValues;
+	}
+	
+	/**
+	 * Sorts the entries copied into the query state by value, keeping the 
+	 * points and children with them. Nodes are small, so an insertion sort
+	 * is used.
+	 * @param q
+	 * @param count Number of entries
+	 * @return The sum of their points
+	 */
+	private static long sortByValue(QueryState q, int count)
+	{
+		long sum = 0;
+		for(int i = 0; i < count; i++)
+		{
+			int value = q.values[i];
+			int points = q.points[i];
+			int child = q.children[i];
+			sum += points;
+			
+			int j = i - 1;
+			for(; j >= 0 && q.values[j] > value; j--)
+			{
+				q.values[j+1] = q.values[j];
+				q.points[j+1] = q.points[j];
+				q.children[j+1] = q.children[j];
+			}
+			q.values[j+1] = value;
+			q.points[j+1] = points;
+			q.children[j+1] = child;
+		}
+		return sum;
+	}
+	
+	/**
+	 * Returns a lower bound of the values of the clusters in the tree, 
+	 * Integer.MAX_VALUE if it holds none
+	 */
+	public int getMinValue()
+	{
+		for(int attempt = 0; ; attempt++)
+		{
+			long stamp = startRead(null, attempt);
+			int bound = T.getMinValue(0);
+			if(endRead(stamp))
+				return bound;
+		}
+	}
+	
+	/**
+	 * Returns an upper bound of the values of the clusters in the tree, 
+	 * Integer.MIN_VALUE if it holds none
+	 */
+	public int getMaxValue()
+	{
+		for(int attempt = 0; ; attempt++)
+		{
+			long stamp = startRead(null, attempt);
+			int bound = T.getMaxValue(0);
+			if(endRead(stamp))
+				return bound;
+		}
+	}
+	
+	/**
+	 * Returns the location of the leaf an insert of value descends to. Must 
+	 * be called with the structure lock shared or read started.
+	 * @param value
+	 */
+	private int closestLeaf(int value)
+	{
+		// A read that was started may see nodes being moved, the descent 
+		// stops at the depth of the leaves whatever it finds
+		int loc = 0;
+		for(int depth = 1; depth < height && !T.isLeaf(loc); depth++)
+		{
+			loc = T.getChild(loc, T.getClosestValue(loc, value));
+		}
+		return loc;
+	}
+	
+	/**
+	 * Starts a walk of the tree for a query made by the calling thread
+	 * @param ordered True to visit the children of each node starting with 
+	 * the one whose bounds are closest to target
+	 * @param target
+	 * @return The state of the walk, positioned at the root
+	 */
+	private QueryState startQuery(boolean ordered, int target)
+	{
+		QueryState q = queryState.get();
+		if(q == null)
+		{
+			q = new QueryState();
+			queryState.set(q);
+		}
+		if(q.locs.length < height)
+		{
+			q.locs = new int[height];
+			q.next = new int[height];
+			q.first = new int[height];
+		}
+		if(q.values.length < T.getWidth())
+		{
+			q.values = new int[T.getWidth()];
+			q.points = new int[T.getWidth()];
+			q.children = new int[T.getWidth()];
+		}
+		
+		q.depth = 0;
+		q.locs[0] = 0;
+		q.next[0] = 0;
+		q.ordered = ordered;
+		q.target = target;
+		return q;
+	}
+	
+	/**
+	 * Continues a walk of the tree to the next leaf whose bounds overlap 
+	 * [lo, hi]. Subtrees whose bounds do not overlap it are skipped. The 
+	 * range may shrink between calls. Must be called with the structure 
+	 * lock shared or read started.
+	 * @param q State of the walk
+	 * @param lo
+	 * @param hi
+	 * @param skip Location of a leaf that was already visited, or -1
+	 * @return Location of the leaf, or -1 if the walk is done
+	 */
+	private int nextLeaf(QueryState q, long lo, long hi, int skip)
+	{
+		while(q.depth >= 0)
+		{
+			int loc = q.locs[q.depth];
+			if(T.isLeaf(loc))
+			{
+				q.depth--;
+				if(loc != skip && T.getMaxValue(loc) >= lo && 
+												T.getMinValue(loc) <= hi)
+					return loc;
+				continue;
+			}
+			
+			int numChildren = T.getNumValues(loc);
+			int n = q.next[q.depth];
+			if(n == numChildren)
+			{
+				q.depth--;
+				continue;
+			}
+			if(n == 0)
+				q.first[q.depth] = q.ordered ? closestBounds(loc, q.target) : 0;
+			q.next[q.depth] = n + 1;
+			
+			int c = q.first[q.depth] + n;
+			int child = T.getChild(loc, c < numChildren ? c : c - numChildren);
+			if(T.getMaxValue(child) < lo || T.getMinValue(child) > hi)
+				continue;
+			
+			q.depth++;
+			q.locs[q.depth] = child;
+			q.next[q.depth] = 0;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the index of the child of a node whose bounds are closest to 
+	 * the given value
+	 * @param loc Location of the node
+	 * @param value
+	 */
+	private int closestBounds(int loc, int value)
+	{
+		int closest = 0;
+		long closestDist = FARTHEST;
+		for(int i = 0; i < T.getNumValues(loc); i++)
+		{
+			int child = T.getChild(loc, i);
+			long dist = Math.max(0, Math.max(
+					(long)T.getMinValue(child) - value, 
+					(long)value - T.getMaxValue(child)));
+			if(dist < closestDist)
+			{
+				closest = i;
+				closestDist = dist;
+			}
+		}
+		return closest;
+	}
+	
+	/**
+	 * Inserts a value if that can be done without splitting a node. Must be
+	 * called with the structure lock shared.
+	 * @param value
+	 * @param points
+	 * @return False if the leaf the value belongs in is full. The tree is 
+	 * not changed in that case.
+	 */
+	private boolean insertInPlace(int value, int points)
+	{
+		InsertPath path = sharedPath();
+		path.reserve(height);
+		int[] parents = path.nodes; // Parent entered at each depth
+		int[] childIds = path.childIds; // Child entered at each depth
+		int nodeDepth = 0;
+		int nodeId = 0;
+		Node node = path.node = T.get(nodeId, path.node);
+		
+		// Descend without locking. Node locations can not change while the 
+		// structure lock is shared, a value that is being updated at the same
+		// time can at worst change which child is chosen.
+		while(!node.isLeaf())
+		{
+			int cci = node.getClosestChild(value);
+			parents[nodeDepth] = nodeId;
+			childIds[nodeDepth] = cci;
+			
+			nodeId = node.getChild(cci);
+			T.get(nodeId, node);
+			nodeDepth++;
+		}
+		
+		boolean inserted = true;
+		boolean absorbed = false;
+		ReentrantLock leafLock = nodeLocks[nodeId & (NODE_LOCK_STRIPES - 1)];
+		leafLock.lock();
+		startLeafWrite(nodeId);
+		try
+		{
+			int closestVal = node.getClosestValue(value);
+			if(node.isCloseEnough(closestVal, value))
+			{
+				node.addValueToLoc(closestVal, value, points);
+				absorbed = true;
+			}
+			else if(node.hasRoom())
+			{
+				node.insertValue(value, points);
+			}
+			else
+			{
+				inserted = false;
+			}
+		}
+		finally
+		{
+			endLeafWrite(nodeId);
+			leafLock.unlock();
+		}
+		
+		// Update the ancestors on the way back up
+		if(inserted)
+		{
+			TreeMetrics m = metrics;
+			if(m != null)
+				m.recordValues(absorbed ? 1 : 0, absorbed ? 0 : 1);
+			
+			int childId = nodeId;
+			for(int d = nodeDepth - 1; d >= 0; d--)
+			{
+				updateParent(path, parents[d], childIds[d], childId);
+				childId = parents[d];
+			}
+		}
+		path.release();
+		return inserted;
+	}
+	
+	/**
+	 * Copies the value and number of points of a child into its parent. Both
+	 * nodes are locked, in stripe order, so the parent always sees a complete
+	 * update of the child.
+	 * @param path Insert path of the calling thread, whose views are used
+	 * @param parentId
+	 * @param cci Index of the child in the parent
+	 * @param childId
+	 */
+	private void updateParent(InsertPath path, int parentId, int cci, 
+																int childId)
+	{
+		int s1 = parentId & (NODE_LOCK_STRIPES - 1);
+		int s2 = childId & (NODE_LOCK_STRIPES - 1);
+		ReentrantLock first = nodeLocks[Math.min(s1, s2)];
+		ReentrantLock second = nodeLocks[Math.max(s1, s2)];
+		
+		first.lock();
+		second.lock();
+		try
+		{
+			Node parent = path.node = T.get(parentId, path.node);
+			Node child = path.child = T.get(childId, path.child);
+			parent.updateValue(cci, child.getValue());
+			parent.setPointsInValue(cci, child.getNumPoints());
+			parent.includeBounds(child);
+		}
+		finally
+		{
+			second.unlock();
+			first.unlock();
+		}
+	}
+	
+	/**
+	 * Starts a read of the tree without locks, see endRead. A read that has 
+	 * failed the given number of times, or is counted by a simulator, takes 
+	 * the structure lock shared instead, which blocks writers that need it 
+	 * exclusively until the read ends.
+	 * @param sim Simulator counting the read, or null
+	 * @param attempt Number of times the read has failed
+	 * @return Stamp to pass to endRead
+	 */
+	private long startRead(CacheSimulator sim, int attempt)
+	{
+		if(sim == null && attempt < OPTIMISTIC_READS)
+		{
+			// Zero while the tree is held exclusively, the attempt then fails
+			long stamp = structureLock.tryOptimisticRead();
+			if(stamp == 0)
+				Thread.onSpinWait();
+			return stamp;
+		}
+		return structureLock.readLock();
+	}
+	
+	/**
+	 * Ends a read started with startRead. What was read has to be thrown 
+	 * away if the layout of the tree was changed while it was read.
+	 * @param stamp
+	 * @return False if the read has to be made again
+	 */
+	private boolean endRead(long stamp)
+	{
+		if(StampedLock.isOptimisticReadStamp(stamp))
+			return structureLock.validate(stamp);
+		if(stamp == 0)
+			return false;
+		structureLock.unlockRead(stamp);
+		return true;
+	}
+	
+	/**
+	 * Copies the values and points of a leaf into the query state. Inserts 
+	 * may change the leaf in place while it is read, in which case it is 
+	 * copied again.
+	 * @param q
+	 * @param leaf
+	 * @return The number of values of the leaf
+	 */
+	private int readLeaf(QueryState q, int leaf)
+	{
+		int v = (leaf & (NODE_LOCK_STRIPES - 1)) * VERSION_STRIDE;
+		while(true)
+		{
+			long version = leafVersions.get(v);
+			if((version & 1) == 0)
+			{
+				int numValues = Math.min(T.getNumValues(leaf), q.values.length);
+				for(int i = 0; i < numValues; i++)
+				{
+					q.values[i] = T.getValue(leaf, i);
+					q.points[i] = T.getPoints(leaf, i);
+				}
+				
+				// The copy must be complete before the version is checked
+				VarHandle.acquireFence();
+				if(leafVersions.get(v) == version)
+					return numValues;
+			}
+			Thread.onSpinWait();
+		}
+	}
+	
+	/**
+	 * Marks a leaf as being changed in place. Must be called with its node 
+	 * lock held, and followed by endLeafWrite.
+	 * @param leaf
+	 */
+	private void startLeafWrite(int leaf)
+	{
+		leafVersions.incrementAndGet(
+						(leaf & (NODE_LOCK_STRIPES - 1)) * VERSION_STRIDE);
+	}
+	
+	private void endLeafWrite(int leaf)
+	{
+		leafVersions.incrementAndGet(
+						(leaf & (NODE_LOCK_STRIPES - 1)) * VERSION_STRIDE);
+	}
+	
+	/**
+	 * Returns the path used by inserts of the calling thread made with the
+	 * structure lock shared
+	 */
+	private InsertPath sharedPath()
+	{
+		InsertPath path = sharedInsertPath.get();
+		if(path == null)
+		{
+			path = new InsertPath();
+			sharedInsertPath.set(path);
+		}
+		return path;
+	}
+	
+	/**
+	 * Builds a tree from the given values without inserting them one at a 
+	 * time. The values are sorted first, see bulkLoadSorted.
+	 * @param values
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @return The new tree
+	 */
+	public static ContextTree bulkLoad(int[] values, int branchingFactor, 
+											int closenessThreshold)
+	{
+		return bulkLoad(values, branchingFactor, closenessThreshold, 
+														Layout.VAN_EMDE_BOAS);
+	}
+	
+	/**
+	 * Builds a tree from the given values without inserting them one at a 
+	 * time. The values are sorted first, see bulkLoadSorted.
+	 * @param values
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @param layout
+	 * @return The new tree
+	 */
+	public static ContextTree bulkLoad(int[] values, int branchingFactor, 
+								int closenessThreshold, Layout layout)
+	{
+		int[] sorted = Arrays.copyOf(values, values.length);
+		Arrays.sort(sorted);
+		
+		return bulkLoadSorted(Arrays.stream(sorted).iterator(), 
+								branchingFactor, closenessThreshold, layout);
+	}
+	
+	/**
+	 * Builds a tree from values given in ascending order. Each value is 
+	 * absorbed by the cluster before it when it is close enough, the same 
+	 * way an insert absorbs it into the closest value of a leaf. The clusters
+	 * are then spread evenly over as few leaves as possible, the leaves over
+	 * as few parents as possible and so on up to the root, and every node is
+	 * written to its final location in the tree once its children are in 
+	 * place. No node is split and the tree is never rebuilt.
+	 * @param values Values in ascending order
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @return The new tree
+	 */
+	public static ContextTree bulkLoadSorted(PrimitiveIterator.OfInt values, 
+							int branchingFactor, int closenessThreshold)
+	{
+		return bulkLoadSorted(values, branchingFactor, closenessThreshold, 
+														Layout.VAN_EMDE_BOAS);
+	}
+	
+	/**
+	 * Builds a tree from values given in ascending order, see 
+	 * bulkLoadSorted
+	 * @param values Values in ascending order
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @param layout
+	 * @return The new tree
+	 */
+	public static ContextTree bulkLoadSorted(PrimitiveIterator.OfInt values, 
+				int branchingFactor, int closenessThreshold, Layout layout)
+	{
+		// Form the leaf clusters
+		int[] clusterValues = new int[16];
+		int[] clusterPoints = new int[16];
+		int numClusters = 0;
+		int previous = Integer.MIN_VALUE;
+		
+		while(values.hasNext())
+		{
+			int value = values.nextInt();
+			int last = numClusters - 1;
+			
+			if(value < previous)
+				throw new IllegalArgumentException("Values are not sorted");
+			previous = value;
+			
+			if(numClusters > 0 && 
+					Math.abs(clusterValues[last] - value) < closenessThreshold)
+			{
+				// Same as Node.addValueToLoc
+				int points = clusterPoints[last];
+				clusterValues[last] = (int)Math.round(
+						(double)((long)clusterValues[last] * points + value) /
+						(double)(points + 1));
+				clusterPoints[last]++;
+			}
+			else
+			{
+				if(numClusters == clusterValues.length)
+				{
+					clusterValues = Arrays.copyOf(clusterValues, 2*numClusters);
+					clusterPoints = Arrays.copyOf(clusterPoints, 2*numClusters);
+				}
+				clusterValues[numClusters] = value;
+				clusterPoints[numClusters] = 1;
+				numClusters++;
+			}
+		}
+		
+		return bulkLoadClusters(clusterValues, clusterPoints, numClusters, 
+							branchingFactor, closenessThreshold, layout);
+	}
+	
+	/**
+	 * Builds a tree holding the given clusters, see bulkLoadSorted
+	 * @param clusterValues Values of the clusters in ascending order
+	 * @param clusterPoints Points of each cluster
+	 * @param numClusters Number of clusters
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @param layout
+	 * @return The new tree
+	 */
+	static ContextTree bulkLoadClusters(int[] clusterValues, 
+			int[] clusterPoints, int numClusters, int branchingFactor, 
+			int closenessThreshold, Layout layout)
+	{
+		ContextTree tree = new ContextTree(branchingFactor, closenessThreshold,
+																		layout);
+		if(numClusters > 0)
+			tree.placeClusters(clusterValues, clusterPoints, numClusters);
+		return tree;
+	}
+	
+	/**
+	 * Builds a tree with the given settings holding the given clusters, see
+	 * bulkLoadSorted
+	 * @param clusterValues Values of the clusters in ascending order
+	 * @param clusterPoints Points of each cluster
+	 * @param numClusters Number of clusters
+	 * @param config
+	 * @return The new tree
+	 */
+	static ContextTree bulkLoadClusters(int[] clusterValues, 
+			int[] clusterPoints, int numClusters, TreeConfig config)
+	{
+		ContextTree tree = new ContextTree(config);
+		if(numClusters > 0)
+			tree.placeClusters(clusterValues, clusterPoints, numClusters);
+		return tree;
+	}
+	
+	/**
+	 * Replaces the nodes of the tree with a tree holding the given clusters,
+	 * built as by bulkLoadSorted. Must be called with the structure lock 
+	 * held exclusively or before the tree is shared.
+	 * @param clusterValues Values of the clusters in ascending order
+	 * @param clusterPoints Points of each cluster
+	 * @param numClusters Number of clusters
+	 */
+	private void placeClusters(int[] clusterValues, int[] clusterPoints, 
+															int numClusters)
+	{
+		if(numClusters == 0)
+		{
+			T = newStore(1, 1);
+			T.create(0);
+			installFile();
+			height = 1;
+			return;
+		}
+		
+		// Number of entries at each level, starting with the clusters and 
+		// ending with the root
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		sizes.add(numClusters);
+		do
+		{
+			int below = sizes.get(sizes.size() - 1);
+			sizes.add((below + branchingFactor - 1) / branchingFactor);
+		}
+		while(sizes.get(sizes.size() - 1) > 1);
+		
+		int[] levelSizes = new int[sizes.size()];
+		for(int i = 0; i < levelSizes.length; i++)
+		{
+			levelSizes[i] = sizes.get(i);
+		}
+		
+		height = levelSizes.length - 1;
+		T = newStore(nodesBelow(1, height) + 1, height);
+		installFile();
+		bulkPlace(levelSizes, height, 0, new int[height], 0, clusterValues, 
+																clusterPoints);
+	}
+	
+	/**
+	 * Writes a node built by bulkLoadSorted, after writing its children
+	 * @param levelSizes Number of entries at each level, level 0 being the 
+	 * clusters
+	 * @param level Level of the node, 1 for leaves
+	 * @param index Index of the node within its level
+	 * @param path Child ids from the root to the node
+	 * @param pathLen Number of entries in path
+	 * @param clusterValues
+	 * @param clusterPoints
+	 * @return Location of the node in the tree
+	 */
+	private int bulkPlace(int[] levelSizes, int level, int index, int[] path, 
+			int pathLen, int[] clusterValues, int[] clusterPoints)
+	{
+		int loc = getTreeIndex(path, pathLen, height);
+		
+		// The entries below are spread evenly over the nodes of this level,
+		// which leaves each node at most branchingFactor of them
+		long below = levelSizes[level - 1];
+		long nodes = levelSizes[level];
+		int first = (int)(index * below / nodes);
+		int last = (int)((index + 1) * below / nodes);
+		
+		if(level == 1)
+		{
+			Node node = T.create(loc);
+			for(int i = first; i < last; i++)
+			{
+				node.insertValue(clusterValues[i], clusterPoints[i]);
+			}
+			return loc;
+		}
+		
+		int[] childLocs = new int[last - first];
+		for(int i = first; i < last; i++)
+		{
+			path[pathLen] = i - first;
+			childLocs[i - first] = bulkPlace(levelSizes, level - 1, i, path, 
+							pathLen + 1, clusterValues, clusterPoints);
+		}
+		
+		Node node = T.create(loc);
+		for(int i = 0; i < childLocs.length; i++)
+		{
+			Node child = T.get(childLocs[i]);
+			node.insertChild(childLocs[i], child.getValue());
+			node.setPointsInValue(i, child.getNumPoints());
+			node.includeBounds(child);
+		}
+		return loc;
+	}
+	
+	/**
+	 * Inserts a new element to the tree. The path taken down the tree is 
+	 * kept in insertPath, which splitNode consumes as it ascends.
+	 * @param value
+	 * @param points
+	 */
+	private void insertToTree(int value, int points)
+	{
+		InsertPath path = insertPath;
+		path.reserve(height);
+		path.length = 0;
+		
+		int nodeId = 0;
+		Node node = path.node = T.get(nodeId, path.node);
+		while(!node.isLeaf())
+		{
+			path.nodes[path.length] = nodeId;
+			path.childIds[path.length] = node.getClosestChild(value);
+			
+			nodeId = node.getChild(path.childIds[path.length]);
+			T.get(nodeId, node);
+			path.length++;
+		}
+		int leafDepth = path.length;
+		path.nodes[leafDepth] = nodeId;
+		
+		TreeMetrics m = metrics;
+		int closestVal = node.getClosestValue(value);
+		if(node.isCloseEnough(closestVal, value))
+		{
+			node.addValueToLoc(closestVal, value, points);
+			if(m != null)
+				m.recordValues(1, 0);
+		}
+		else
+		{
+			node.insertValue(value, points);
+			if(m != null)
+				m.recordValues(0, 1);
+			
+			// Split the node into two new nodes if required
+			if(node.splitRequired())
+				splitNode(nodeId, leafDepth);
+		}
+		
+		// A rebuild occurred, this means the indices have changed and nodes
+		// have already been updated. Do not update now. The same holds for 
+		// nodes that were split, they have been replaced.
+		if(noNodeUpdate)
+			return;
+		for(int d = Math.min(leafDepth, splitDepth) - 1; d >= 0; d--)
+		{
+			Node parent = T.get(path.nodes[d], path.node);
+			Node child = path.child = T.get(path.nodes[d+1], path.child);
+			parent.updateValue(path.childIds[d], child.getValue());
+			parent.setPointsInValue(path.childIds[d], child.getNumPoints());
+			parent.includeBounds(child);
+		}
+	}
+	
+	/**
+	 * Splits the given node into two new nodes and updates the tree. Will
+	 * recursively ascend the tree until no more nodes require splitting. The
+	 * node's parent is taken off the end of insertPath.
+	 * @param nodeId
+	 * @param nodeDepth
+	 */
+	private void splitNode(int nodeId, int nodeDepth)
+	{
+		int n1Loc = -1;
+		int n2Loc = -1;
+		int parent = 0;
+		int childLoc = 1;
+		
+		InsertPath insert = insertPath;
+		Node node = insert.node = T.get(nodeId, insert.node);
+		
+		// The new nodes after the split. They are only written to the tree, 
+		// or read by the rebuild they start, so the same two are reused.
+		Node n1 = splitFirst;
+		Node n2 = splitSecond;
+		n1.clearChildren();
+		n2.clearChildren();
+		
+		// Farthest pair of points in the node act as seeds
+		int farthestFirst = node.getFarthestFirst();
+		int farthestSecond = node.getFarthestSecond();
+		
+		boolean isLeaf = node.isLeaf();
+		
+		TreeMetrics m = metrics;
+		if(m != null)
+			m.recordSplit(nodeDepth);
+		if(TreeEvents.SPLIT.isEnabled())
+		{
+			TreeEvents.SplitEvent event = new TreeEvents.SplitEvent();
+			event.depth = nodeDepth;
+			event.height = height;
+			event.leaf = isLeaf;
+			event.commit();
+		}
+
+		if(!isLeaf)
+		{
+			// Assign each child to the closest of the two seed nodes
+			int numChildren = node.getNumChildren();
+			Node child = insert.child = T.get(node.getChild(farthestFirst), 
+																insert.child);
+			int seed1 = child.getValue();
+			int seed2 = T.get(node.getChild(farthestSecond), child).getValue();
+			for(int i = 0; i < numChildren; i++)
+			{
+				int childId = node.getChild(i);
+				T.get(childId, child);
+				int d1 = child.getDist(seed1);
+				int d2 = child.getDist(seed2);
+				
+				// Ties go to the smaller node so neither node is left empty
+				// when the seeds have drifted to the same value
+				if(d1 < d2 || (d1 == d2 && 
+								n1.getNumChildren() < n2.getNumChildren()))
+				{
+					n1.insertChild(childId, child.getValue());		
+					n1.setPointsInValue(n1.getNumChildren()-1, 
+											child.getNumPoints());
+					n1.includeBounds(child);
+				}
+				else
+				{
+					n2.insertChild(childId, child.getValue());
+					n2.setPointsInValue(n2.getNumChildren()-1, 
+											child.getNumPoints());
+					n2.includeBounds(child);
+				}
+			}
+		}
+		else
+		{
+			// Assign each value to the closest of the two seed nodes
+			int numValues = node.getNumValues();
+			int seed1 = node.getValueAt(farthestFirst);
+			int seed2 = node.getValueAt(farthestSecond);
+			for(int i = 0; i < numValues; i++)
+			{
+				int value = node.getValueAt(i);
+				int d1 = Math.abs(value - seed1);
+				int d2 = Math.abs(value - seed2);
+				
+				// With no threshold a leaf can hold a single value many times,
+				// which leaves no farthest pair. The values then split evenly.
+				if(d1 < d2 || (seed1 == seed2 && 
+								n1.getNumValues() < n2.getNumValues()))
+				{
+					n1.insertValue(value, node.getPointsAt(i));
+				}
+				else
+				{
+					n2.insertValue(value, node.getPointsAt(i));
+				}
+			}
+		}
+				
+		
+		if(insert.length > 0) // Split non-root
+		{
+			// Get the parent location and the child node id
+			insert.length--;
+			parent = insert.nodes[insert.length];
+			childLoc = insert.childIds[insert.length];
+		}
+		
+		// Nodes at this depth and below have been replaced and must not be
+		// updated when the insert returns up the tree
+		splitDepth = nodeDepth;
+		
+		// If the node is node 0, the root must be split and the tree rebuilt	
+		if(nodeId == 0)
+		{
+			rebuildTree(n1, n2);
+		}
+		else
+		{
+			n1Loc = nodeId; // Keep the first node in the same location
+			Node parentNode = T.get(parent, node);
+			
+			// Update the parameters
+			parentNode.updateChild(childLoc, n1Loc, n1.getValue());
+			parentNode.setPointsInValue(childLoc, n1.getNumPoints());
+
+			// The new node becomes the last child of the parent. Its location
+			// follows from the child ids on the path from the root.
+			if(splitPath.length < height)
+				splitPath = new int[height];
+			int[] path = splitPath;
+			int pathLen = insert.length;
+			System.arraycopy(insert.childIds, 0, path, 0, pathLen);
+			int n2Id = parentNode.getNumChildren();
+			path[pathLen] = n2Id;
+			n2Loc = getTreeIndex(path, pathLen + 1, height);
+			
+			// Insert the new node into the tree
+			parentNode.insertChild(n2Loc, n2.getValue());				
+			parentNode.setPointsInValue(parentNode.getNumValues()-1, 
+														n2.getNumPoints());		
+			parentNode.includeBounds(n1);
+			parentNode.includeBounds(n2);
+
+			T.set(n1Loc, n1);
+			T.set(n2Loc, n2);
+			
+			// Move the children of both nodes into the locations that match
+			// their new child ids. The subtree of the new node is filled
+			// first, which frees the locations node 1 is compacted into.
+			if(!isLeaf)
+			{
+				relocateChildren(n2Loc, path, pathLen + 1);
+				path[pathLen] = childLoc;
+				relocateChildren(n1Loc, path, pathLen + 1);
+			}
+		
+			// Check if the parent requires a split
+			if(parentNode.splitRequired())
+			{
+				splitNode(parent, nodeDepth-1);
+			}
+		}
+	}
+	
+	/**
+	 * Moves every child subtree of the given node whose location does not
+	 * match its child id to the location that does
+	 * @param nodeLoc Location of the node in the tree
+	 * @param path Child ids from the root to the node
+	 * @param pathLen Number of entries in path
+	 */
+	private void relocateChildren(int nodeLoc, int[] path, int pathLen)
+	{
+		for(int i = 0; i < T.getNumChildren(nodeLoc); i++)
+		{
+			path[pathLen] = i;
+			if(T.getChild(nodeLoc, i) != getTreeIndex(path, pathLen + 1, height))
+			{
+				T.setChild(nodeLoc, i, moveSubtree(T.getChild(nodeLoc, i), 
+														path, pathLen + 1));
+			}
+		}
+	}
+	
+	/**
+	 * Moves the subtree rooted at the given location to the locations given by
+	 * the path and clears the old locations
+	 * @param loc Current location of the subtree root
+	 * @param path Child ids from the root to the new subtree root
+	 * @param pathLen Number of entries in path
+	 * @return The new location of the subtree root
+	 */
+	private int moveSubtree(int loc, int[] path, int pathLen)
+	{
+		int newLoc = getTreeIndex(path, pathLen, height);
+		T.move(loc, newLoc);
+		
+		for(int i = 0; i < T.getNumChildren(newLoc); i++)
+		{
+			path[pathLen] = i;
+			T.setChild(newLoc, i, moveSubtree(T.getChild(newLoc, i), path, 
+																pathLen + 1));
+		}
+		return newLoc;
+	}
+	
+	/**
+	 * Takes points out of the cluster with the given value below the node at
+	 * loc and settles the nodes on the way back up. Must be called with the 
+	 * structure lock held exclusively.
+	 * @param loc
+	 * @param path Child ids from the root to the node
+	 * @param pathLen Number of entries in path
+	 * @param cluster Value of the cluster
+	 * @param value Value of the points
+	 * @param points
+	 * @return The points removed, or -1 if no cluster below the node has the
+	 * value
+	 */
+	private int removeBelow(int loc, int[] path, int pathLen, int cluster, 
+														int value, int points)
+	{
+		Node node = T.get(loc);
+		if(node.isLeaf())
+		{
+			for(int i = 0; i < node.getNumValues(); i++)
+			{
+				if(node.getValueAt(i) == cluster)
+				{
+					int removed = Math.min(points, node.getPointsAt(i));
+					node.removeValueFromLoc(i, value, removed);
+					return removed;
+				}
+			}
+			return -1;
+		}
+		
+		// The bounds of every node on the way to the cluster hold its value
+		for(int i = 0; i < node.getNumChildren(); i++)
+		{
+			int child = node.getChild(i);
+			if(T.getMinValue(child) > cluster || T.getMaxValue(child) < cluster)
+				continue;
+			
+			path[pathLen] = i;
+			int removed = removeBelow(child, path, pathLen + 1, cluster, value,
+																		points);
+			if(removed >= 0)
+			{
+				settleChild(loc, path, pathLen, i);
+				refreshBounds(loc);
+				return removed;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decays the points of every cluster below the node at loc and settles 
+	 * its descendants. Must be called with the structure lock held 
+	 * exclusively.
+	 * @param loc
+	 * @param path Child ids from the root to the node
+	 * @param pathLen Number of entries in path
+	 * @param factor
+	 */
+	private void decayBelow(int loc, int[] path, int pathLen, double factor)
+	{
+		if(T.isLeaf(loc))
+		{
+			T.get(loc).scalePoints(factor);
+			return;
+		}
+		
+		for(int i = 0; i < T.getNumChildren(loc); i++)
+		{
+			path[pathLen] = i;
+			decayBelow(T.getChild(loc, i), path, pathLen + 1, factor);
+		}
+		
+		// Settling a child can only remove it or the ones after it
+		for(int i = T.getNumChildren(loc) - 1; i >= 0; i--)
+		{
+			settleChild(loc, path, pathLen, i);
+		}
+		refreshBounds(loc);
+	}
+	
+	/**
+	 * Brings the entry of a child up to date after points below it were 
+	 * removed. A child left empty is removed, and one left with fewer than 
+	 * half of branchingFactor entries is merged into the sibling closest to 
+	 * it in value that has room for its entries.
+	 * @param loc Location of the parent
+	 * @param path Child ids from the root to the parent
+	 * @param pathLen Number of entries in path
+	 * @param i Index of the child in the parent
+	 */
+	private void settleChild(int loc, int[] path, int pathLen, int i)
+	{
+		Node node = T.get(loc);
+		Node child = T.get(node.getChild(i));
+		int entries = child.getNumValues();
+		if(entries == 0)
+		{
+			removeChild(loc, path, pathLen, i);
+			return;
+		}
+		
+		node.updateValue(i, child.getValue());
+		node.setPointsInValue(i, child.getNumPoints());
+		if(entries >= branchingFactor / 2)
+			return;
+		
+		int sibling = -1;
+		long siblingDist = FARTHEST;
+		for(int j = 0; j < node.getNumChildren(); j++)
+		{
+			int siblingEntries = T.getNumValues(node.getChild(j));
+			if(j == i || siblingEntries == 0 || 
+								siblingEntries + entries > branchingFactor)
+				continue;
+			
+			long dist = Math.abs((long)node.getValueAt(j) - node.getValueAt(i));
+			if(dist < siblingDist)
+			{
+				sibling = j;
+				siblingDist = dist;
+			}
+		}
+		if(sibling >= 0)
+			mergeChild(loc, path, pathLen, i, sibling);
+	}
+	
+	/**
+	 * Moves the entries of a child into a sibling and removes the child
+	 * @param loc Location of the parent
+	 * @param path Child ids from the root to the parent
+	 * @param pathLen Number of entries in path
+	 * @param from Index of the child in the parent
+	 * @param into Index of the sibling, which has room for the entries
+	 */
+	private void mergeChild(int loc, int[] path, int pathLen, int from, 
+																	int into)
+	{
+		Node node = T.get(loc);
+		Node source = T.get(node.getChild(from));
+		Node target = T.get(node.getChild(into));
+		
+		if(source.isLeaf())
+		{
+			for(int k = 0; k < source.getNumValues(); k++)
+			{
+				target.insertValue(source.getValueAt(k), source.getPointsAt(k));
+			}
+		}
+		else
+		{
+			// The children become the last children of the sibling, whose 
+			// locations follow from their new child ids and are still free
+			path[pathLen] = into;
+			for(int k = 0; k < source.getNumChildren(); k++)
+			{
+				int childLoc = source.getChild(k);
+				Node grandchild = T.get(childLoc);
+				int id = target.getNumChildren();
+				target.insertChild(childLoc, grandchild.getValue());
+				target.setPointsInValue(id, grandchild.getNumPoints());
+				target.includeBounds(grandchild);
+				
+				path[pathLen + 1] = id;
+				target.setChild(id, moveSubtree(childLoc, path, pathLen + 2));
+			}
+		}
+		
+		node.updateValue(into, target.getValue());
+		node.setPointsInValue(into, target.getNumPoints());
+		removeChild(loc, path, pathLen, from);
+	}
+	
+	/**
+	 * Removes a child that holds no entries, or whose entries were moved, 
+	 * and moves the children after it into the locations that match their 
+	 * new child ids
+	 * @param loc Location of the parent
+	 * @param path Child ids from the root to the parent
+	 * @param pathLen Number of entries in path
+	 * @param i Index of the child in the parent
+	 */
+	private void removeChild(int loc, int[] path, int pathLen, int i)
+	{
+		T.clear(T.getChild(loc, i));
+		T.get(loc).removeEntry(i);
+		relocateChildren(loc, path, pathLen);
+	}
+	
+	/**
+	 * Narrows the bounds of a node that is not a leaf to those of its 
+	 * children
+	 * @param loc
+	 */
+	private void refreshBounds(int loc)
+	{
+		Node node = T.get(loc);
+		if(node.isLeaf())
+			return;
+		
+		node.clearBounds();
+		for(int i = 0; i < node.getNumChildren(); i++)
+		{
+			node.includeBounds(T.get(node.getChild(i)));
+		}
+	}
+	
+	/**
+	 * Lowers the tree while its root has a single child, making that child
+	 * the root of a tree one level lower that is copied into a smaller store.
+	 * A root left without children becomes an empty leaf. Must be called with
+	 * the structure lock held exclusively.
+	 */
+	private void collapseRoot()
+	{
+		while(height > 1 && T.getNumChildren(0) <= 1)
+		{
+			int newHeight = T.getNumChildren(0) == 0 ? 1 : height - 1;
+			NodeStore store = newStore(nodesBelow(1, newHeight) + 1, 
+																	newHeight);
+			if(newHeight == 1 && T.getNumChildren(0) == 0)
+				store.create(0);
+			else
+				copySubtree(T.getChild(0, 0), store, new int[newHeight], 0, 
+																	newHeight);
+			
+			T = store;
+			installFile();
+			height = newHeight;
+		}
+	}
+	
+	/**
+	 * Copies the subtree rooted at the given location into another store, 
+	 * where it is placed at the locations given by the path
+	 * @param loc Location of the subtree root in T
+	 * @param store
+	 * @param path Child ids from the root of store to the new subtree root
+	 * @param pathLen Number of entries in path
+	 * @param treeHeight Height of the tree held by store
+	 * @return The location of the subtree root in store
+	 */
+	private int copySubtree(int loc, NodeStore store, int[] path, int pathLen,
+																int treeHeight)
+	{
+		int newLoc = getTreeIndex(path, pathLen, treeHeight);
+		store.set(newLoc, T.get(loc));
+		
+		for(int i = 0; i < T.getNumChildren(loc); i++)
+		{
+			path[pathLen] = i;
+			store.setChild(newLoc, i, copySubtree(T.getChild(loc, i), store, 
+											path, pathLen + 1, treeHeight));
+		}
+		return newLoc;
+	}
+	
+	/**
+	 * Calculates the number of nodes below a given node for a tree of a given 
+	 * height
+	 * @param depth
+	 * @param treeHeight
+	 * @return
+	 */
+	public int nodesBelow(int depth, int treeHeight)
+	{
+		// A node at depth - 1 roots a complete subtree of height 
+		// treeHeight - depth + 1, all of which but the node is below it
+		return layoutTable.size(treeHeight - depth + 1) - 1;
+	}
+	
+	/**
+	 * Returns the location of a node in a complete tree of the given height 
+	 * laid out in the order of this tree
+	 * @param path The child id taken at each depth on the way from the root
+	 * to the node
+	 * @param pathLen Number of entries in path, zero for the root
+	 * @param treeHeight
+	 * @return
+	 */
+	public int getTreeIndex(int[] path, int pathLen, int treeHeight)
+	{
+		return layoutTable.getIndex(path, pathLen, treeHeight);
+	}
+	
+	/**
+	 * Returns the settings of the tree
+	 */
+	public TreeConfig getConfig()
+	{
+		boolean background;
+		structureLock.asReadLock().lock();
+		try
+		{
+			background = backgroundRebuild;
+		}
+		finally
+		{
+			structureLock.asReadLock().unlock();
+		}
+		return TreeConfig.builder().branchingFactor(branchingFactor)
+				.closenessThreshold(closenessThreshold).layout(layout)
+				.backgroundRebuild(background).sparse(sparse).build();
+	}
+	
+	public Layout getLayout()
+	{
+		return layout;
+	}
+	
+	/**
+	 * Returns the pool the nodes are read through, null if the tree is on
+	 * the heap or mapped
+	 */
+	public BufferPool getBufferPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Rebuilds the tree whenever the root node is split. The old tree is 
+	 * left unchanged until the new one replaces it, so with background 
+	 * rebuilds enabled it can still be read while the new tree is built.
+	 * @param node1
+	 * @param node2
+	 */
+	private void rebuildTree(final Node node1, final Node node2)
+	{
+		noNodeUpdate = true;
+		
+		if(!backgroundRebuild)
+		{
+			try
+			{
+				buildTree(node1, node2);
+			}
+			catch(RuntimeException | Error e)
+			{
+				abandonRebuild(e);
+				throw e;
+			}
+			installNewTree();
+			return;
+		}
+		
+		rebuilding = true;
+		
+		if(rebuilder == null)
+		{
+			rebuilder = new ThreadPoolExecutor(1, 1, REBUILDER_IDLE_SECONDS, 
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+					REBUILD_THREADS);
+			rebuilder.allowCoreThreadTimeOut(true);
+		}
+		rebuilder.execute(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					buildTree(node1, node2);
+				}
+				catch(Throwable e)
+				{
+					failRebuild(e);
+					return;
+				}
+				finishRebuild();
+			}
+		});
+	}
+	
+	/**
+	 * Gives up a background rebuild that failed and wakes the threads 
+	 * waiting for it, see abandonRebuild
+	 * @param cause
+	 */
+	private void failRebuild(Throwable cause)
+	{
+		structureLock.asWriteLock().lock();
+		try
+		{
+			abandonRebuild(cause);
+		}
+		finally
+		{
+			structureLock.asWriteLock().unlock();
+			synchronized(rebuildMonitor)
+			{
+				rebuildMonitor.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Drops the new tree of a rebuild that failed, its scratch file and the
+	 * inserts held for it. The old tree is kept, it can still be read, saved
+	 * and values removed from it, but inserts throw. Must be called with the
+	 * structure lock held exclusively.
+	 * @param cause
+	 */
+	private void abandonRebuild(Throwable cause)
+	{
+		T_new = null;
+		if(T_newFile != null)
+		{
+			// Deleted so a commit can not move the partial tree over the file
+			discard(T_newFile, true);
+			T_newFile = null;
+		}
+		synchronized(rebuildMonitor)
+		{
+			droppedInserts += pendingCount;
+			pendingCount = 0;
+		}
+		rebuildFailure = cause;
+		rebuilding = false;
+	}
+	
+	/**
+	 * Builds the new tree, one level higher than the current tree, from the
+	 * two nodes the root was split into
+	 * @param node1
+	 * @param node2
+	 */
+	private void buildTree(Node node1, Node node2)
+	{
+		TreeEvents.RebuildEvent event = new TreeEvents.RebuildEvent();
+		event.begin();
+		long start = System.nanoTime();
+		CacheSimulator sim = startOperation();
+		try
+		{
+			buildNewTree(node1, node2);
+		}
+		finally
+		{
+			endOperation(sim, CacheSimulator.Operation.REBUILD);
+		}
+		
+		TreeMetrics m = metrics;
+		if(m != null)
+			m.recordRebuild(System.nanoTime() - start);
+		if(event.shouldCommit())
+		{
+			event.height = height + 1;
+			event.slots = T_new.getCapacity();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Builds the new tree, see buildTree
+	 * @param node1
+	 * @param node2
+	 */
+	private void buildNewTree(Node node1, Node node2)
+	{
+		println("\n***** Rebuild started...");
+		int newHeight = height + 1;
+		
+		// Determine the size of the new tree and initialize the new tree
+		int newSize = nodesBelow(1, newHeight) + 1;
+		T_new = newStore(newSize, newHeight);	
+		Node root = T_new.create(0);
+		
+		// Place the two seed nodes and their subtrees. The subtrees of 
+		// siblings occupy different locations, so they are built on the 
+		// common fork join pool, unless the accesses are being simulated.
+		boolean parallel = simulator == null;
+		final BuildTask[] seeds = new BuildTask[] {
+				new BuildTask(node1, new int[] {0}, 1, newHeight, parallel),
+				new BuildTask(node2, new int[] {1}, 1, newHeight, parallel)};
+		if(parallel)
+		{
+			ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+				protected void compute()
+				{
+					invokeAll(seeds);
+				}
+			});
+		}
+		else
+		{
+			seeds[0].compute();
+			seeds[1].compute();
+		}
+		linkChildren(root, seeds);
+		
+		println("***** Rebuild complete\n\n");
+	}
+	
+	/**
+	 * Replaces the tree with the one built in the background and applies the
+	 * inserts that were held during the rebuild. The pause this causes is
+	 * bounded by the number of inserts that can be held.
+	 */
+	private void finishRebuild()
+	{
+		structureLock.asWriteLock().lock();
+		try
+		{
+			installNewTree();
+			rebuilding = false;
+			
+			// If one of the held inserts splits the root again, a new rebuild
+			// is started and the remaining inserts stay pending
+			int applied = 0;
+			while(applied < pendingCount && !rebuilding)
+			{
+				insertExclusive(pendingValues[applied], pendingPoints[applied]);
+				applied++;
+			}
+			
+			pendingCount -= applied;
+			System.arraycopy(pendingValues, applied, pendingValues, 0, 
+																pendingCount);
+			System.arraycopy(pendingPoints, applied, pendingPoints, 0, 
+																pendingCount);
+			
+			if(DEBUG) 
+				printTree(0, 0);
+		}
+		finally
+		{
+			structureLock.asWriteLock().unlock();
+			synchronized(rebuildMonitor)
+			{
+				rebuildMonitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Allocates the store for a rebuilt tree. The tree of a writable file is
+	 * rebuilt in the scratch file next to it.
+	 * @param capacity
+	 * @param newHeight
+	 * @return The new store
+	 */
+	private NodeStore newStore(int capacity, int newHeight)
+	{
+		T_newFile = null;
+		if(path != null)
+		{
+			// The tree may still be in the scratch file of the last rebuild,
+			// which is not committed, the other scratch file is then used
+			Path scratch = TreeFile.scratchPath(path);
+			if(file != null && file.getPath().equals(scratch))
+				scratch = TreeFile.scratchPath(scratch);
+			try
+			{
+				T_newFile = TreeFile.create(scratch, branchingFactor, 
+						closenessThreshold, layout, newHeight, capacity, pool);
+				T_newFile.getStore().setSimulator(simulator);
+				return T_newFile.getStore();
+			}
+			catch(IOException e)
+			{
+				// Keep the tree on the heap, the next commit writes it out
+				// or reports the error
+			}
+		}
+		NodeStore store = heapStore(capacity);
+		store.setSimulator(simulator);
+		return store;
+	}
+	
+	/**
+	 * Moves the tree to the file T_new was allocated in, if any. The file the
+	 * tree was in is released, a pooled one is no longer read, and deleted 
+	 * if it was a scratch file.
+	 */
+	private void installFile()
+	{
+		TreeFile old = file;
+		file = T_newFile;
+		T_newFile = null;
+		if(old != null)
+			discard(old, !old.getPath().equals(path));
+	}
+	
+	/**
+	 * Releases a file the tree is no longer in
+	 * @param old
+	 * @param delete Whether to also delete it
+	 */
+	private static void discard(TreeFile old, boolean delete)
+	{
+		try
+		{
+			old.release();
+			if(delete)
+				Files.deleteIfExists(old.getPath());
+		}
+		catch(IOException e)
+		{
+			// Only closing or deleting the file failed, the next rebuild 
+			// replaces a scratch file that was left
+		}
+	}
+	
+	/**
+	 * Allocates a store on the heap, sparse if the tree is or if a dense 
+	 * store of the capacity could not be addressed
+	 * @param capacity
+	 */
+	private NodeStore heapStore(int capacity)
+	{
+		boolean tooLarge = (long)capacity * 
+				NodeStore.recordSize(branchingFactor) > Integer.MAX_VALUE - 8;
+		return new NodeStore(capacity, branchingFactor, closenessThreshold, 
+														sparse || tooLarge);
+	}
+	
+	/**
+	 * Replaces the tree with the rebuilt one. Must be called with the 
+	 * structure lock held exclusively.
+	 */
+	private void installNewTree()
+	{
+		T = T_new;
+		T_new = null;
+		installFile();
+		height++;
+	}
+	
+	/**
+	 * Copies a node of the old tree, or one of the nodes the root was split 
+	 * into, and its subtree into the new tree. The children are placed 
+	 * before the node is linked to them, by tasks of their own when their 
+	 * subtrees are large enough. Each task carries the child ids of its node,
+	 * so tasks share nothing but the two stores.
+	 */
+	private class BuildTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final Node node; // The node in the old tree
+		private final int[] path; // Child ids from the root to the node
+		private final int pathLen;
+		private final int treeHeight; // Height of the new tree
+		private final boolean parallel; // Build the children in their own tasks
+		int loc; // Location of the node in the new tree, once it is placed
+		
+		BuildTask(Node node, int[] path, int pathLen, int treeHeight, 
+															boolean parallel)
+		{
+			this.node = node;
+			this.path = path;
+			this.pathLen = pathLen;
+			this.treeHeight = treeHeight;
+			this.parallel = parallel && 
+				layoutTable.size(treeHeight - pathLen) >= PARALLEL_REBUILD_NODES;
+		}
+		
+		protected void compute()
+		{
+			loc = getTreeIndex(path, pathLen, treeHeight);
+			
+			// Put the current node into the new tree
+			T_new.set(loc, node);
+			if(node.isLeaf())
+				return;
+			
+			// Place the children, then link the node to them
+			BuildTask[] children = new BuildTask[node.getNumChildren()];
+			for(int i = 0; i < children.length; i++)
+			{
+				int[] childPath = Arrays.copyOf(path, pathLen + 1);
+				childPath[pathLen] = i;
+				children[i] = new BuildTask(T.get(node.getChild(i)), childPath, 
+								pathLen + 1, treeHeight, parallel);
+			}
+			if(parallel)
+			{
+				invokeAll(children);
+			}
+			else
+			{
+				for(BuildTask child : children)
+				{
+					child.compute();
+				}
 			}
 			
+			Node newNode = T_new.get(loc);
+			newNode.clearChildren();
+			linkChildren(newNode, children);
+		}
+	}
+	
+	/**
+	 * Adds the children placed in the new tree to their parent, in order
+	 * @param parent The parent in the new tree
+	 * @param children
+	 */
+	private void linkChildren(Node parent, BuildTask[] children)
+	{
+		for(int i = 0; i < children.length; i++)
+		{
+			parent.insertChild(children[i].loc, children[i].node.getValue());
+			parent.setPointsInValue(i, children[i].node.getNumPoints());
+			
+			// The bounds of the child are exact once its children are placed
+			parent.includeBounds(T_new.get(children[i].loc));
 		}
 	}
 	
 	/////////////////////////////////////////////////////////////////////////
 	//                SUPPORT FUNCTIONS                                   ///
 	/////////////////////////////////////////////////////////////////////////
-	public static void printTree(int id, int depth)
+	public void printTree(int id, int depth)
 	{		
-		int[] values = T[id].getValues();
-		int[] points = T[id].getPointsInVal();
+		Node node = T.get(id);
+		int[] values = node.getValues();
+		int[] points = node.getPointsInVal();
 		
-		System.out.println(genTab(depth) + id + ": " + T[id].getValue()+ " - " 
+		System.out.println(genTab(depth) + id + ": " + node.getValue()+ " - " 
 					+ Arrays.toString(values) + " " + Arrays.toString(points));
 		
-		for(int j = 0; j < T[id].getNumChildren(); j++)
+		for(int j = 0; j < node.getNumChildren(); j++)
 		{
-			printTree(T[id].getChild(j),depth+1);
+			printTree(node.getChild(j),depth+1);
 		}
 	}
 	
@@ -535,13 +3505,16 @@ public class ContextTree
 			System.out.print(line);
 	}
 	
-	public static String readLine()
+	// Kept between calls, a reader made per call loses the input it buffered
+	private static BufferedReader stdin;
+	
+	public static synchronized String readLine()
 	{
 		String s = "";
 		try{
-		    BufferedReader bufferRead = 
-		    		new BufferedReader(new InputStreamReader(System.in));
-		    s = bufferRead.readLine();
+		    if(stdin == null)
+		    	stdin = new BufferedReader(new InputStreamReader(System.in));
+		    s = stdin.readLine();
 		}
 		catch(IOException e)
 		{
@@ -0,0 +1,173 @@
+package com.stack.gt.cse.c6140;
+
+/**
+ * Chooses the frame of a BufferPool whose block is evicted to make room for
+ * another. The pool tells the policy which frames are loaded, accessed and
+ * emptied, and asks it for a victim only when every frame holds a block.
+ *
+ * @author Brian
+ *
+ */
+public enum Eviction {
+	/**
+	 * The least recently accessed block is evicted, kept in a list of the
+	 * frames in order of access
+	 */
+	LRU("lru") {
+		Policy newPolicy(int frames) {
+			return new Lru(frames);
+		}
+	},
+
+	/**
+	 * The frames are visited in a circle and the first whose block was not
+	 * accessed since the last visit is evicted. Accesses only set a bit, so
+	 * it costs less than LRU per access and approximates it.
+	 */
+	CLOCK("clock") {
+		Policy newPolicy(int frames) {
+			return new Clock(frames);
+		}
+	};
+
+	/**
+	 * State of a policy for the frames of one pool. Called with the pool
+	 * locked.
+	 */
+	interface Policy {
+		/**
+		 * A block was read into the frame
+		 */
+		void loaded(int frame);
+
+		/**
+		 * The block in the frame was accessed
+		 */
+		void accessed(int frame);
+
+		/**
+		 * The frame was emptied without being chosen as a victim
+		 */
+		void removed(int frame);
+
+		/**
+		 * Returns the frame whose block is to be evicted. Every frame holds
+		 * a block.
+		 */
+		int victim();
+	}
+
+	private final String shortName;
+
+	private Eviction(String shortName) {
+		this.shortName = shortName;
+	}
+
+	/**
+	 * Returns a new policy for a pool of the given number of frames
+	 *
+	 * @param frames
+	 */
+	abstract Policy newPolicy(int frames);
+
+	/**
+	 * Returns the short name of the policy, as accepted by forName
+	 */
+	public String getShortName() {
+		return shortName;
+	}
+
+	/**
+	 * Returns the policy with the given short name or constant name
+	 *
+	 * @param name
+	 */
+	public static Eviction forName(String name) {
+		for (Eviction eviction : values())
+			if (eviction.shortName.equalsIgnoreCase(name)
+					|| eviction.name().equalsIgnoreCase(name))
+				return eviction;
+		throw new IllegalArgumentException("Unknown eviction policy " + name);
+	}
+
+	/**
+	 * Doubly linked list of the loaded frames, most recently accessed first
+	 */
+	private static class Lru implements Policy {
+		private final int[] prev;
+		private final int[] next;
+		private int head = -1;
+		private int tail = -1;
+
+		Lru(int frames) {
+			prev = new int[frames];
+			next = new int[frames];
+		}
+
+		public void loaded(int frame) {
+			prev[frame] = -1;
+			next[frame] = head;
+			if (head >= 0)
+				prev[head] = frame;
+			head = frame;
+			if (tail < 0)
+				tail = frame;
+		}
+
+		public void accessed(int frame) {
+			if (frame == head)
+				return;
+			removed(frame);
+			loaded(frame);
+		}
+
+		public void removed(int frame) {
+			if (prev[frame] >= 0)
+				next[prev[frame]] = next[frame];
+			else
+				head = next[frame];
+			if (next[frame] >= 0)
+				prev[next[frame]] = prev[frame];
+			else
+				tail = prev[frame];
+		}
+
+		public int victim() {
+			return tail;
+		}
+	}
+
+	/**
+	 * A reference bit per frame and a hand going round them
+	 */
+	private static class Clock implements Policy {
+		private final boolean[] referenced;
+		private int hand;
+
+		Clock(int frames) {
+			referenced = new boolean[frames];
+		}
+
+		public void loaded(int frame) {
+			referenced[frame] = true;
+		}
+
+		public void accessed(int frame) {
+			referenced[frame] = true;
+		}
+
+		public void removed(int frame) {
+			referenced[frame] = false;
+		}
+
+		public int victim() {
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) % referenced.length;
+			}
+			int frame = hand;
+			hand = (hand + 1) % referenced.length;
+			return frame;
+		}
+	}
+}
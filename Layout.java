@@ -0,0 +1,115 @@
+package com.stack.gt.cse.c6140;
+
+/**
+ * Order in which the nodes of a complete tree are placed in a NodeStore. A
+ * node is identified by its path, the child id taken at each depth on the way
+ * from the root, and every layout places the root at location 0 and the
+ * nodes of a tree of height h in the first sizes[h] locations.
+ *
+ * @author Brian
+ *
+ */
+public enum Layout {
+	/**
+	 * The tree is split into a top subtree of half the height followed by the
+	 * bottom subtrees in order, and each of those is laid out the same way.
+	 * Any path from the root crosses few blocks of memory whatever their
+	 * size.
+	 */
+	VAN_EMDE_BOAS("veb") {
+		int getIndex(int[] path, int pathLen, int height, LayoutTable table) {
+			LayoutTable.Splits splits = table.getSplits(height);
+			int width = table.getWidth();
+
+			// The node at each step on the way is the root of a bottom
+			// subtree, placed after the top subtree and the bottom subtrees
+			// before it, counted from the root of the subtree they were split
+			// from, the node at the step before. The child ids between the
+			// two steps number the bottom subtree.
+			int loc = 0;
+			int top = 0;
+			for (int steps = splits.steps[pathLen]; steps != 0;
+					steps &= steps - 1) {
+				int depth = Integer.numberOfTrailingZeros(steps);
+				int bottom = 0;
+				for (int i = top; i < depth; i++)
+					bottom = bottom * width + path[i];
+				loc += splits.topSize[depth] + bottom
+						* splits.bottomSize[depth];
+				top = depth;
+			}
+			return loc;
+		}
+	},
+
+	/**
+	 * Level by level from the root, the children of the node at location i
+	 * being at i * width + 1 onwards
+	 */
+	BREADTH_FIRST("bfs") {
+		int getIndex(int[] path, int pathLen, int height, LayoutTable table) {
+			int width = table.getWidth();
+			int loc = 0;
+			for (int i = 0; i < pathLen; i++)
+				loc = loc * width + 1 + path[i];
+			return loc;
+		}
+	},
+
+	/**
+	 * Depth first, each node followed by the subtrees of its children in
+	 * order
+	 */
+	PRE_ORDER("preorder") {
+		int getIndex(int[] path, int pathLen, int height, LayoutTable table) {
+			int loc = 0;
+			for (int i = 0; i < pathLen; i++)
+				loc += 1 + path[i] * table.size(height - 1 - i);
+			return loc;
+		}
+	};
+
+	private final String shortName;
+
+	private Layout(String shortName) {
+		this.shortName = shortName;
+	}
+
+	/**
+	 * Returns the location of a node in a complete tree
+	 *
+	 * @param path
+	 *            The child id taken at each depth on the way from the root to
+	 *            the node
+	 * @param pathLen
+	 *            Number of entries in path, zero for the root
+	 * @param height
+	 *            Height of the tree, at most table.getMaxHeight()
+	 * @param table
+	 *            Sizes and splits of complete trees with the number of
+	 *            children per node of the tree
+	 * @return The location of the node
+	 */
+	abstract int getIndex(int[] path, int pathLen, int height,
+			LayoutTable table);
+
+	/**
+	 * Returns the short name of the layout, as accepted by forName
+	 */
+	public String getShortName() {
+		return shortName;
+	}
+
+	/**
+	 * Returns the layout with the given short name or constant name
+	 *
+	 * @param name
+	 */
+	public static Layout forName(String name) {
+		for (Layout layout : values())
+			if (layout.shortName.equalsIgnoreCase(name)
+					|| layout.name().equalsIgnoreCase(name))
+				return layout;
+		throw new IllegalArgumentException("Unknown layout " + name);
+	}
+}
@@ -0,0 +1,163 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Locates nodes in the complete trees of a Layout with a given number of
+ * children per node. The number of nodes in a complete tree of every height
+ * whose nodes can be counted in an int is computed once, so locating a node
+ * takes only integer arithmetic and table lookups. For van Emde Boas order
+ * the splits of a tree into top and bottom subtrees are also computed once
+ * for each number of children and height, see Splits, and shared by all
+ * tables. A node is then located in O(log h) steps for a tree of height h,
+ * O(log log n) for n nodes, plus one multiply-add per child id on the path
+ * to number the bottom subtrees the node is in.
+ *
+ * @author Brian
+ *
+ */
+final class LayoutTable {
+	// Splits of each number of children and height, the key holding both
+	private static final ConcurrentHashMap<Long, Splits> SPLITS =
+			new ConcurrentHashMap<Long, Splits>();
+
+	private final Layout layout;
+	private final int width;
+	private final int[] sizes; // Nodes in a complete tree of each height
+	private final Splits[] splits; // Of each height, taken from SPLITS
+
+	/**
+	 * The splits of a complete tree of one height into top and bottom
+	 * subtrees, made again in each of those down to single levels. Every
+	 * depth below the root is the depth of the roots of the bottom subtrees
+	 * of exactly one of those splits. For depth d, topDepth[d] is the depth
+	 * of the root of the subtree that split was made in, topSize[d] the
+	 * nodes of its top subtree and bottomSize[d] the nodes of each of its
+	 * bottom subtrees. steps[d] has a bit set for d, for topDepth[d], for
+	 * its topDepth and so on up to the root, which is left out. Those are
+	 * the depths at which the way to a node at depth d enters a bottom
+	 * subtree.
+	 */
+	static final class Splits {
+		final int[] topDepth;
+		final int[] topSize;
+		final int[] bottomSize;
+		final int[] steps;
+
+		private Splits(int height, int[] sizes) {
+			topDepth = new int[height];
+			topSize = new int[height];
+			bottomSize = new int[height];
+			steps = new int[height];
+			split(0, height, sizes);
+			for (int d = 1; d < height; d++)
+				steps[d] = steps[topDepth[d]] | 1 << d;
+		}
+
+		/**
+		 * Records the split of the subtree whose root is at the given depth,
+		 * then those of its top and bottom subtrees
+		 */
+		private void split(int root, int height, int[] sizes) {
+			if (height < 2)
+				return;
+			int top = height / 2;
+			topDepth[root + top] = root;
+			topSize[root + top] = sizes[top];
+			bottomSize[root + top] = sizes[height - top];
+			split(root, top, sizes);
+			split(root + top, height - top, sizes);
+		}
+	}
+
+	/**
+	 * @param layout
+	 * @param width
+	 *            Number of children of each node
+	 */
+	LayoutTable(Layout layout, int width) {
+		this.layout = layout;
+		this.width = width;
+
+		int[] table = new int[Integer.SIZE + 1];
+		int height = 1;
+		long size = 1;
+		while (size <= Integer.MAX_VALUE && height < table.length) {
+			table[height] = (int) size;
+			size = size * width + 1;
+			height++;
+		}
+		sizes = Arrays.copyOf(table, height);
+		splits = new Splits[height];
+	}
+
+	/**
+	 * Returns the location of a node in a complete tree
+	 *
+	 * @param path
+	 *            The child id taken at each depth on the way from the root to
+	 *            the node
+	 * @param pathLen
+	 *            Number of entries in path, zero for the root
+	 * @param height
+	 *            Height of the tree, at most getMaxHeight()
+	 * @return The location of the node
+	 */
+	int getIndex(int[] path, int pathLen, int height) {
+		return layout.getIndex(path, pathLen, height, this);
+	}
+
+	/**
+	 * Returns the number of nodes in a complete tree
+	 *
+	 * @param height
+	 * @throws IllegalArgumentException
+	 *             If the tree has more nodes than an int can count
+	 */
+	int size(int height) {
+		if (height >= sizes.length)
+			throw new IllegalArgumentException("Tree of height " + height
+					+ " has too many nodes");
+		return sizes[height];
+	}
+
+	/**
+	 * Returns the splits of a complete tree into top and bottom subtrees.
+	 * They are made the first time a height is asked for with a number of
+	 * children, and kept for every table after that.
+	 *
+	 * @param height
+	 *            At most getMaxHeight()
+	 */
+	Splits getSplits(int height) {
+		Splits s = splits[height];
+		if (s == null) {
+			// Splits holds only final fields, so it can be shared through
+			// the array without a fence
+			s = SPLITS.computeIfAbsent((long) width << Integer.SIZE | height,
+					key -> new Splits(height, sizes));
+			splits[height] = s;
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the number of children of each node
+	 */
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the height of the largest complete tree whose nodes can be
+	 * counted in an int
+	 */
+	int getMaxHeight() {
+		return sizes.length - 1;
+	}
+
+	Layout getLayout() {
+		return layout;
+	}
+}
@@ -1,5 +1,6 @@
 package com.stack.gt.cse.c6140;
 
+import java.nio.IntBuffer;
 import java.util.Arrays;
 
 /**
@@ -7,8 +8,18 @@ import java.util.Arrays;
  * 
  */
 public class Node {
+	// Defaults for nodes that are created without a branching factor and
+	// threshold of their own. Trees take theirs from their TreeConfig and do
+	// not read these.
 	private static int BranchingFactor = 5;
 
+	/**
+	 * Sets the branching factor of nodes created with no store of their own
+	 *
+	 * @deprecated Trees do not use it, give the branching factor to the tree
+	 *             with TreeConfig instead
+	 */
+	@Deprecated
 	public static void setBranchingFactor(int bFactor) {
 		Node.BranchingFactor = bFactor;
 	}
@@ -19,6 +30,13 @@ public class Node {
 
 	private static int ClosenessThreshold = 10;
 
+	/**
+	 * Sets the threshold of nodes created with no store of their own
+	 *
+	 * @deprecated Trees do not use it, give the threshold to the tree with
+	 *             TreeConfig instead
+	 */
+	@Deprecated
 	public static void setClosenessThreshold(int closenessThreshold) {
 		Node.ClosenessThreshold = closenessThreshold;
 	}
@@ -30,35 +48,155 @@ public class Node {
 	// Note that the node does not point to its parent. This would require for
 	// every node to be updated/touched whenever the tree is restructured which
 	// is not feasible. Instead, the insert/update routines will manage parents
-	private int[] childrenLocs; // array of children indexes
-	private int[] values;
-	private int valsTot; // stores the sum of values
-	private int pointsTot; // stores the sum of data points
-	private int[] pointsInVal;
-	private int numChildren;
-	private int numValues;
-	private Boolean isLeaf;
-
-	private int[] farthestPair;
-	private int farthestDist;
+
+	// The fields of the node live in a record of a NodeStore, see NodeStore
+	// for the layout of the record. The node can be pointed at another
+	// record, see NodeStore.get(int, Node).
+	private IntBuffer data;
+	private int[] array; // data's array for stores on the heap, or null
+	private int base; // start of this node's record in data
+	private NodeStore pooled; // Store of a record in a BufferPool, or null
+	private int record; // Location of the record in pooled
+	private int branchingFactor;
+	private int closenessThreshold;
+	private int width; // entries in each of the per node arrays
+	private int childrenLocs; // array of children indexes
+	private int values;
+	private int pointsInVal;
 
 	public Node() {
+		this(new NodeStore(1), 0);
 		init();
 	}
 
+	public Node(int branchingFactor, int closenessThreshold) {
+		this(new NodeStore(1, branchingFactor, closenessThreshold), 0);
+		init();
+	}
+
+	Node(NodeStore store, int index) {
+		bind(store, index);
+	}
+
+	/**
+	 * Makes this node a view of the record at index in store
+	 */
+	void bind(NodeStore store, int index) {
+		branchingFactor = store.getBranchingFactor();
+		closenessThreshold = store.getClosenessThreshold();
+		data = store.bufferOf(index);
+		array = store.arrayOf(index);
+		base = data == null ? 0 : store.baseOf(index);
+		pooled = data == null ? store : null;
+		record = index;
+		width = store.getWidth();
+		childrenLocs = base + NodeStore.HEADER_SIZE;
+		values = childrenLocs + width;
+		pointsInVal = values + width;
+	}
+
+	/**
+	 * Drops the references to the store, leaving the node unusable until it
+	 * is bound again
+	 */
+	void unbind() {
+		data = null;
+		array = null;
+		pooled = null;
+	}
+
 	private void init() {
-		childrenLocs = new int[Node.BranchingFactor + 1];
-		values = new int[Node.BranchingFactor + 1];
-		pointsInVal = new int[Node.BranchingFactor + 1];
+		fill(base, pointsInVal + width);
 
-		isLeaf = true;
-		numChildren = 0;
-		numValues = 0;
+		set(NodeStore.FLAGS, NodeStore.FLAG_OCCUPIED | NodeStore.FLAG_LEAF);
+		clearBounds();
+	}
+
+	/**
+	 * Empties the bounds, so they can be rebuilt with includeBounds
+	 */
+	void clearBounds() {
+		set(NodeStore.MIN_VALUE, Integer.MAX_VALUE);
+		set(NodeStore.MAX_VALUE, Integer.MIN_VALUE);
+	}
+
+	// Records on the heap are accessed through the array directly, which
+	// avoids the checks of the buffer on the insert path. Records in a pool
+	// start at 0, so i is the field.
+	private int read(int i) {
+		if (array != null)
+			return array[i];
+		return data != null ? data.get(i) : pooled.readPooled(record, i);
+	}
+
+	private void write(int i, int value) {
+		if (array != null)
+			array[i] = value;
+		else if (data != null)
+			data.put(i, value);
+		else
+			pooled.writePooled(record, i, value);
+	}
+
+	/**
+	 * Returns the vectorized scan if it is available and worth using for
+	 * this node, or null to use the scalar loops
+	 */
+	private ValueScan scanFor(int numValues) {
+		return array != null && numValues >= ValueScan.MIN_WIDTH ? ValueScan.VECTOR
+				: null;
+	}
+
+	private int get(int field) {
+		return read(base + field);
+	}
+
+	private void set(int field, int value) {
+		write(base + field, value);
+	}
 
-		farthestPair = new int[] { 0, 0 };
-		farthestDist = 0;
-		valsTot = 0;
-		pointsTot = 0;
+	// The total of the values times their points overflows an int
+	private long getValsTot() {
+		return ((long) get(NodeStore.VALS_TOT_HIGH) << 32)
+				| (get(NodeStore.VALS_TOT) & 0xffffffffL);
+	}
+
+	private void setValsTot(long valsTot) {
+		set(NodeStore.VALS_TOT, (int) valsTot);
+		set(NodeStore.VALS_TOT_HIGH, (int) (valsTot >>> 32));
+	}
+
+	private void fill(int from, int to) {
+		for (int i = from; i < to; i++)
+			write(i, 0);
+	}
+
+	private int[] copyOf(int from) {
+		int[] result = new int[width];
+		if (pooled == null) {
+			data.get(from, result);
+			return result;
+		}
+		for (int i = 0; i < width; i++)
+			result[i] = read(from + i);
+		return result;
+	}
+
+	/**
+	 * Copies the record of this node into another store
+	 * 
+	 * @param dest
+	 *            Data buffer of the store to copy to
+	 * @param destBase
+	 *            Start of the record to copy to
+	 */
+	void copyTo(IntBuffer dest, int destBase) {
+		if (pooled != null) {
+			for (int i = 0; i < pointsInVal + width; i++)
+				dest.put(destBase + i, read(i));
+			return;
+		}
+		dest.put(destBase, data, base, pointsInVal + width - base);
 	}
 
 	// Adds a new child id to the children array and inserts the child's value
@@ -73,31 +211,36 @@ public class Node {
 	 * @return True if the child was inserted, False if the node requires a
 	 *         split
 	 */
-	public Boolean insertChild(int childLoc, int value) {
+	public boolean insertChild(int childLoc, int value) {
 		if (splitRequired())
 			return false;
 
-		if (isLeaf == true) {
+		if (isLeaf()) {
 			// reset the counters since we are no longer a leaf
-			numValues = 0;
-			numChildren = 0;
-			valsTot = 0;
-			pointsTot = 0;
-			pointsInVal = new int[Node.BranchingFactor + 1];
+			set(NodeStore.NUM_VALUES, 0);
+			set(NodeStore.NUM_CHILDREN, 0);
+			setValsTot(0);
+			set(NodeStore.POINTS_TOT, 0);
+			fill(pointsInVal, pointsInVal + width);
+			clearBounds();
 		}
 
-		childrenLocs[numChildren] = childLoc;
-		values[numValues] = value;
+		int numChildren = getNumChildren();
+		int numValues = getNumValues();
 
-		pointsTot++;
-		pointsInVal[numChildren]++;
-		valsTot += value;
-		isLeaf = false;
+		write(childrenLocs + numChildren, childLoc);
+		write(values + numValues, value);
+
+		set(NodeStore.POINTS_TOT, get(NodeStore.POINTS_TOT) + 1);
+		write(pointsInVal + numChildren,
+				read(pointsInVal + numChildren) + 1);
+		setValsTot(getValsTot() + value);
+		set(NodeStore.FLAGS, NodeStore.FLAG_OCCUPIED);
 
 		updateFurthestPair();
 
-		numChildren++;
-		numValues++;
+		set(NodeStore.NUM_CHILDREN, numChildren + 1);
+		set(NodeStore.NUM_VALUES, numValues + 1);
 
 		return true;
 	}
@@ -107,17 +250,19 @@ public class Node {
 	}
 
 	public void insertValue(int value, int points) {
-		
-		values[numValues] = value;
-		pointsInVal[numValues] = points;
+		int numValues = getNumValues();
+
+		write(values + numValues, value);
+		write(pointsInVal + numValues, points);
 
 		// Keep track of total number of values
-		valsTot += value*points;
-		pointsTot += points;
+		setValsTot(getValsTot() + (long) value * points);
+		set(NodeStore.POINTS_TOT, get(NodeStore.POINTS_TOT) + points);
 
 		updateFurthestPair();
 
-		numValues++;
+		set(NodeStore.NUM_VALUES, numValues + 1);
+		updateLeafBounds();
 	}
 
 	public void insertValue(int value) {
@@ -127,12 +272,25 @@ public class Node {
 	public void updateFurthestPair() {
 		// Check all previous children to see if this new point is part of
 		// the farthest pair
+		int numValues = getNumValues();
+		ValueScan scan = scanFor(numValues);
+		if (scan != null) {
+			int i = scan.farthest(array, values, numValues,
+					array[values + numValues]);
+			int dist = Math.abs(array[values + i] - array[values + numValues]);
+			if (numValues > 0 && dist > get(NodeStore.FARTHEST_DIST)) {
+				set(NodeStore.FARTHEST_DIST, dist);
+				set(NodeStore.FARTHEST_FIRST, i);
+				set(NodeStore.FARTHEST_SECOND, numValues);
+			}
+			return;
+		}
 		for (int i = 0; i < numValues; i++) {
-			int dist = Math.abs(values[i] - values[numValues]);
-			if (dist > farthestDist) {
-				farthestDist = dist;
-				farthestPair[0] = i;
-				farthestPair[1] = numValues;
+			int dist = Math.abs(read(values + i) - read(values + numValues));
+			if (dist > get(NodeStore.FARTHEST_DIST)) {
+				set(NodeStore.FARTHEST_DIST, dist);
+				set(NodeStore.FARTHEST_FIRST, i);
+				set(NodeStore.FARTHEST_SECOND, numValues);
 			}
 		}
 	}
@@ -144,13 +302,19 @@ public class Node {
 	 *            The value to set the element's value to after the update
 	 */
 	public void updateValue(int locInValues, int value) {
-		valsTot -= values[locInValues]*pointsInVal[locInValues];
+		long valsTot = getValsTot();
+		valsTot -= (long) read(values + locInValues)
+				* read(pointsInVal + locInValues);
 		valsTot += value;
-		values[locInValues] = value;
+		setValsTot(valsTot);
+		write(values + locInValues, value);
 		
-		pointsTot -= pointsInVal[locInValues];
-		pointsInVal[locInValues] = 1;
-		pointsTot++;		
+		int pointsTot = get(NodeStore.POINTS_TOT);
+		pointsTot -= read(pointsInVal + locInValues);
+		write(pointsInVal + locInValues, 1);
+		pointsTot++;
+		set(NodeStore.POINTS_TOT, pointsTot);
+		updateLeafBounds();
 	}
 
 	/**
@@ -161,21 +325,212 @@ public class Node {
 	 * @param value
 	 */
 	public void addValueToLoc(int locInValues, int value) {
+		addValueToLoc(locInValues, value, 1);
+	}
+
+	/**
+	 * Adds a number of data points with the same value to the current value
+	 * at locInValues.
+	 * 
+	 * @param locInValues
+	 * @param value
+	 * @param newPoints
+	 */
+	public void addValueToLoc(int locInValues, int value, int newPoints) {
+		int points = read(pointsInVal + locInValues);
+
 		// Occurs when the first value is entered into the node
-		if (pointsInVal[locInValues] == 0)
-			numValues++;
+		if (points == 0)
+			set(NodeStore.NUM_VALUES, getNumValues() + 1);
 
-		int newVal = (int)Math.round((double)(values[locInValues] * 
-							pointsInVal[locInValues] + value)
-				/ (double)(pointsInVal[locInValues] + 1));
+		int oldVal = read(values + locInValues);
+		int newVal = (int)Math.round((double)((long) oldVal * points + 
+				(long) value * newPoints) / (double)(points + newPoints));
 		
 		
-		valsTot -= values[locInValues]*pointsInVal[locInValues];
-		values[locInValues] = newVal;
+		long valsTot = getValsTot() - (long) oldVal * points;
+		write(values + locInValues, newVal);
 
-		pointsInVal[locInValues]++;
-		valsTot += newVal*pointsInVal[locInValues];
-		pointsTot++;
+		write(pointsInVal + locInValues, points + newPoints);
+		valsTot += (long) newVal * (points + newPoints);
+		setValsTot(valsTot);
+		set(NodeStore.POINTS_TOT, get(NodeStore.POINTS_TOT) + newPoints);
+		updateLeafBounds();
+	}
+
+	/**
+	 * Takes a number of data points with the given value out of the value at
+	 * locInValues, the reverse of addValueToLoc. A value left without points
+	 * is removed from the node.
+	 *
+	 * @param locInValues
+	 * @param value
+	 * @param oldPoints
+	 *            Points to take out, at most the points of the value
+	 */
+	public void removeValueFromLoc(int locInValues, int value, int oldPoints) {
+		int points = read(pointsInVal + locInValues);
+		if (oldPoints >= points) {
+			removeEntry(locInValues);
+			return;
+		}
+
+		int oldVal = read(values + locInValues);
+		long newVal = Math.round((double) ((long) oldVal * points -
+				(long) value * oldPoints) / (double) (points - oldPoints));
+		newVal = Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, newVal));
+
+		long valsTot = getValsTot() - (long) oldVal * points;
+		write(values + locInValues, (int) newVal);
+		write(pointsInVal + locInValues, points - oldPoints);
+		valsTot += newVal * (points - oldPoints);
+		setValsTot(valsTot);
+		set(NodeStore.POINTS_TOT, get(NodeStore.POINTS_TOT) - oldPoints);
+		updateLeafBounds();
+	}
+
+	/**
+	 * Multiplies the points of every value of a leaf by factor, rounding
+	 * down, and removes the values left without points
+	 *
+	 * @param factor
+	 *            Between 0 and 1
+	 */
+	public void scalePoints(double factor) {
+		int numValues = getNumValues();
+		int kept = 0;
+		long valsTot = 0;
+		int pointsTot = 0;
+		for (int i = 0; i < numValues; i++) {
+			int points = (int) (read(pointsInVal + i) * factor);
+			if (points == 0)
+				continue;
+			int value = read(values + i);
+			write(values + kept, value);
+			write(pointsInVal + kept, points);
+			valsTot += (long) value * points;
+			pointsTot += points;
+			kept++;
+		}
+		fill(values + kept, values + numValues);
+		fill(pointsInVal + kept, pointsInVal + numValues);
+
+		setValsTot(valsTot);
+		set(NodeStore.POINTS_TOT, pointsTot);
+		set(NodeStore.NUM_VALUES, kept);
+		if (kept < numValues)
+			recomputeFurthestPair();
+		updateLeafBounds();
+	}
+
+	/**
+	 * Removes the value, and the child of a node that is not a leaf, at the
+	 * given index. The entries after it move down by one.
+	 *
+	 * @param n
+	 */
+	public void removeEntry(int n) {
+		int numValues = getNumValues();
+		int numChildren = getNumChildren();
+
+		setValsTot(getValsTot() - (long) read(values + n)
+				* read(pointsInVal + n));
+		set(NodeStore.POINTS_TOT, get(NodeStore.POINTS_TOT)
+				- read(pointsInVal + n));
+
+		for (int i = n; i < numValues - 1; i++) {
+			write(values + i, read(values + i + 1));
+			write(pointsInVal + i, read(pointsInVal + i + 1));
+		}
+		write(values + numValues - 1, 0);
+		write(pointsInVal + numValues - 1, 0);
+		if (n < numChildren) {
+			for (int i = n; i < numChildren - 1; i++)
+				write(childrenLocs + i, read(childrenLocs + i + 1));
+			write(childrenLocs + numChildren - 1, 0);
+			set(NodeStore.NUM_CHILDREN, numChildren - 1);
+		}
+		set(NodeStore.NUM_VALUES, numValues - 1);
+
+		recomputeFurthestPair();
+		updateLeafBounds();
+	}
+
+	/**
+	 * Finds the farthest pair of values again after values were removed
+	 */
+	private void recomputeFurthestPair() {
+		int numValues = getNumValues();
+		set(NodeStore.FARTHEST_DIST, 0);
+		set(NodeStore.FARTHEST_FIRST, 0);
+		set(NodeStore.FARTHEST_SECOND, 0);
+		for (int j = 1; j < numValues; j++) {
+			for (int i = 0; i < j; i++) {
+				int dist = Math.abs(read(values + i) - read(values + j));
+				if (dist > get(NodeStore.FARTHEST_DIST)) {
+					set(NodeStore.FARTHEST_DIST, dist);
+					set(NodeStore.FARTHEST_FIRST, i);
+					set(NodeStore.FARTHEST_SECOND, j);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the bounds of a leaf from its values. The bounds of other
+	 * nodes are widened by includeBounds as children are added or change.
+	 */
+	private void updateLeafBounds() {
+		if (!isLeaf())
+			return;
+
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		int numValues = getNumValues();
+		ValueScan scan = scanFor(numValues);
+		if (scan != null) {
+			long extent = scan.extent(array, values, numValues);
+			min = ValueScan.extentMin(extent);
+			max = ValueScan.extentMax(extent);
+		} else {
+			for (int i = 0; i < numValues; i++) {
+				int value = read(values + i);
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+		}
+		set(NodeStore.MIN_VALUE, min);
+		set(NodeStore.MAX_VALUE, max);
+	}
+
+	/**
+	 * Widens the bounds of this node to cover those of a child. The bounds
+	 * of a node are only narrowed when it is rebuilt, so they can be wider
+	 * than the values below it but never narrower.
+	 * 
+	 * @param child
+	 */
+	public void includeBounds(Node child) {
+		set(NodeStore.MIN_VALUE,
+				Math.min(get(NodeStore.MIN_VALUE), child.getMinValue()));
+		set(NodeStore.MAX_VALUE,
+				Math.max(get(NodeStore.MAX_VALUE), child.getMaxValue()));
+	}
+
+	/**
+	 * Returns a lower bound of the values of the clusters below this node,
+	 * Integer.MAX_VALUE if there are none
+	 */
+	public int getMinValue() {
+		return get(NodeStore.MIN_VALUE);
+	}
+
+	/**
+	 * Returns an upper bound of the values of the clusters below this node,
+	 * Integer.MIN_VALUE if there are none
+	 */
+	public int getMaxValue() {
+		return get(NodeStore.MAX_VALUE);
 	}
 
 	/**
@@ -186,15 +541,15 @@ public class Node {
 	 * @param value
 	 * @return
 	 */
-	public Boolean isCloseEnough(int locInValues, int value) {
-		if (getDistance(locInValues, value) < Node.ClosenessThreshold)
+	public boolean isCloseEnough(int locInValues, int value) {
+		if (getDistance(locInValues, value) < closenessThreshold)
 			return true;
 		else
 			return false;
 	}
 
 	private int getDistance(int locInValues, int value) {
-		return Math.abs(values[locInValues] - value);
+		return Math.abs(read(values + locInValues) - value);
 	}
 
 	/**
@@ -207,41 +562,52 @@ public class Node {
 	 */
 	public void updateChild(int locInChildren, int newChildLoc, int value) {
 		// Update the value tracker
-		valsTot -= values[locInChildren]*pointsInVal[locInChildren];
+		long valsTot = getValsTot();
+		valsTot -= (long) read(values + locInChildren)
+				* read(pointsInVal + locInChildren);
 		valsTot += value;
+		setValsTot(valsTot);
 
-		values[locInChildren] = value;
+		write(values + locInChildren, value);
 
-		childrenLocs[locInChildren] = newChildLoc;
+		write(childrenLocs + locInChildren, newChildLoc);
 
 	}
 
-	public Boolean splitRequired() {
-		return ((numChildren > Node.BranchingFactor) || 
-				(numValues > Node.BranchingFactor));
+	public boolean splitRequired() {
+		return ((getNumChildren() > branchingFactor) || 
+				(getNumValues() > branchingFactor));
 	}
 
-	public Boolean hasRoom() {
+	public boolean hasRoom() {
 		if (isLeaf())
-			return (numValues < Node.BranchingFactor);
+			return (getNumValues() < branchingFactor);
 		else
-			return (numChildren < Node.BranchingFactor);
+			return (getNumChildren() < branchingFactor);
 	}
 
 	public int getNumChildren() {
-		return numChildren;
+		return get(NodeStore.NUM_CHILDREN);
 	}
 
 	public int getNumValues() {
-		return numValues;
+		return get(NodeStore.NUM_VALUES);
 	}
 
+	/**
+	 * Returns a copy of the children array
+	 */
 	public int[] getChildrenLocs() {
-		return childrenLocs;
+		return copyOf(childrenLocs);
 	}
 
 	public void setChildrenLocs(int[] childrenLocs) {
-		this.childrenLocs = childrenLocs;
+		if (pooled == null) {
+			data.put(this.childrenLocs, childrenLocs, 0, width);
+			return;
+		}
+		for (int i = 0; i < width; i++)
+			write(this.childrenLocs + i, childrenLocs[i]);
 	}
 
 	/**
@@ -256,8 +622,12 @@ public class Node {
 		int mL = 0;
 		int dist = 0;
 
+		int numValues = getNumValues();
+		ValueScan scan = scanFor(numValues);
+		if (scan != null)
+			return scan.closest(array, values, numValues, value);
 		for (int i = 0; i < numValues; i++) {
-			dist = (int) Math.abs(value - values[i]);
+			dist = Math.abs(value - read(values + i));
 			if (dist < mD) {
 				mD = dist;
 				mL = i;
@@ -281,22 +651,44 @@ public class Node {
 		return getClosestChild(value);
 	}
 
+	/**
+	 * Returns a copy of the values array
+	 */
 	public int[] getValues() {
-		return values;
+		return copyOf(values);
 	}
 
-	public Boolean isLeaf() {
-		return isLeaf;
+	public int getValueAt(int n) {
+		return read(values + n);
+	}
+
+	public boolean isLeaf() {
+		return (get(NodeStore.FLAGS) & NodeStore.FLAG_LEAF) != 0;
 	}
 
 	public int[] getFarthestPair() {
-		return farthestPair;
+		return new int[] { get(NodeStore.FARTHEST_FIRST),
+				get(NodeStore.FARTHEST_SECOND) };
+	}
+
+	/**
+	 * Returns the index of the first of the farthest pair, without the array
+	 * getFarthestPair allocates
+	 */
+	public int getFarthestFirst() {
+		return get(NodeStore.FARTHEST_FIRST);
+	}
+
+	public int getFarthestSecond() {
+		return get(NodeStore.FARTHEST_SECOND);
 	}
 
 	public int getValue() {
+		int pointsTot = get(NodeStore.POINTS_TOT);
 		if (pointsTot == 0)
 			return 0;
-		return (int)(Math.round((double)valsTot / (double)pointsTot));
+		return (int)(Math.round((double)getValsTot() / 
+				(double)pointsTot));
 	}
 
 	/**
@@ -307,28 +699,48 @@ public class Node {
 	 * @return The tree index of this child
 	 */
 	public int getChild(int n) {
-		return childrenLocs[n];
+		return read(childrenLocs + n);
+	}
+
+	/**
+	 * Sets the tree index of the nth child in this node
+	 * 
+	 * @param n
+	 *            The nth child of this node
+	 * @param childLoc
+	 *            The new tree index of this child
+	 */
+	public void setChild(int n, int childLoc) {
+		write(childrenLocs + n, childLoc);
 	}
 
 	public int getNextChildId() {
-		return childrenLocs[numChildren - 1] + 1;
+		return read(childrenLocs + getNumChildren() - 1) + 1;
 	}
 
+	/**
+	 * Returns a copy of the points array
+	 */
 	public int[] getPointsInVal() {
-		return pointsInVal;
+		return copyOf(pointsInVal);
+	}
+
+	public int getPointsAt(int n) {
+		return read(pointsInVal + n);
 	}
 
 	public void setPointsInValue(int cIndex, int points) {
-		if (cIndex < numValues) {
-			pointsTot -= pointsInVal[cIndex];
-			pointsTot += points;
-			valsTot += values[cIndex]*(points - 1);
-			pointsInVal[cIndex] = points;
+		if (cIndex < getNumValues()) {
+			set(NodeStore.POINTS_TOT, get(NodeStore.POINTS_TOT) - 
+					read(pointsInVal + cIndex) + points);
+			setValsTot(getValsTot() + 
+					(long) read(values + cIndex) * (points - 1));
+			write(pointsInVal + cIndex, points);
 		}
 	}
 
 	public int getNumPoints() {
-		return pointsTot;
+		return get(NodeStore.POINTS_TOT);
 	}
 
 	public String toString() {
@@ -336,15 +748,15 @@ public class Node {
 
 		result.append("Val = " + getValue());
 		result.append("\t");
-		result.append("Val tot = " + valsTot);
+		result.append("Val tot = " + getValsTot());
 		result.append("\t");
-		result.append("Points tot = " + pointsTot);
+		result.append("Points tot = " + getNumPoints());
 		result.append("\t");
-		result.append("Values = " + Arrays.toString(values));
+		result.append("Values = " + Arrays.toString(getValues()));
 		result.append("\t");
-		result.append("Points in Val = " + Arrays.toString(pointsInVal));
+		result.append("Points in Val = " + Arrays.toString(getPointsInVal()));
 		result.append("\t");
-		result.append("ChildrenLocs = " + Arrays.toString(childrenLocs));
+		result.append("ChildrenLocs = " + Arrays.toString(getChildrenLocs()));
 		
 
 		return result.toString();
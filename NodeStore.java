@@ -0,0 +1,730 @@
+package com.stack.gt.cse.c6140;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the nodes of a tree back to back in int buffers. Every node
+ * occupies a fixed size record that is addressed by the node's location in
+ * the tree, so the order the tree is laid out in is also the order of the
+ * nodes in memory. A dense store keeps every record in a single buffer,
+ * either on the heap or a mapping of a TreeFile.
+ *
+ * A sparse store splits the records into pages of about PAGE_BYTES on the
+ * heap and only allocates a page when a node is first written to it. Empty
+ * locations read as zeros. Splits leave most of a complete tree empty, and
+ * the empty locations of every layout come in long runs, the subtrees
+ * below missing children, so memory follows the number of nodes rather
+ * than the capacity.
+ *
+ * A pooled store keeps its records in a file and reads and writes them
+ * through a BufferPool, a record at a time, for trees larger than memory.
+ * Nodes of a pooled store go through the store for every field.
+ *
+ * @author Brian
+ *
+ */
+public class NodeStore {
+	// Layout of a node record. The header is followed by the children,
+	// values and points arrays, each holding BranchingFactor + 1 entries.
+	static final int FLAGS = 0;
+	static final int NUM_CHILDREN = 1;
+	static final int NUM_VALUES = 2;
+	static final int VALS_TOT = 3; // Low and high halves of a long
+	static final int VALS_TOT_HIGH = 4;
+	static final int POINTS_TOT = 5;
+	static final int FARTHEST_DIST = 6;
+	static final int FARTHEST_FIRST = 7;
+	static final int FARTHEST_SECOND = 8;
+	static final int MIN_VALUE = 9; // Bounds of the values below the node
+	static final int MAX_VALUE = 10;
+	static final int HEADER_SIZE = 11;
+
+	static final int FLAG_OCCUPIED = 1;
+	static final int FLAG_LEAF = 2;
+
+	static final int PAGE_BYTES = 4096; // Target size of a page of records
+
+	private final int branchingFactor;
+	private final int closenessThreshold;
+	private final int width; // entries in each of the per node arrays
+	private final int stride; // ints in a node record
+	private final int capacity;
+	private final IntBuffer data; // Records of a mapped store, or null
+
+	// Records of a heap store. A dense store has a single page holding all
+	// of them, a sparse store allocates its pages when they are written.
+	private final int[][] pages;
+	private final IntBuffer[] pageBuffers; // Wrappers of the pages
+	private final int pageShift; // Location of a record >> pageShift is its
+	private final int pageMask; // page, location & pageMask its slot in it
+	private int allocatedPages;
+	private final int[] array; // The page of a dense heap store, or null
+	private final BufferPool pool; // Pool of a pooled store, or null
+	private final BufferPool.Segment segment; // The records in the pool
+	private CacheSimulator simulator; // Replays accesses when not null
+	private long addressSpace; // Address of the store in the simulator
+
+	// Number of locations holding a node, kept as nodes are written and
+	// cleared. A store over records it did not write starts at -1, they are
+	// counted the first time the number is asked for.
+	private final AtomicInteger occupied;
+
+	/**
+	 * Creates a store with room for the given number of nodes, using the
+	 * default branching factor and closeness threshold
+	 *
+	 * @param capacity
+	 *            Number of nodes the store can hold
+	 */
+	public NodeStore(int capacity) {
+		this(capacity, Node.getBranchingFactor(), Node.getClosenessThreshold());
+	}
+
+	/**
+	 * Creates a store with room for the given number of nodes
+	 *
+	 * @param capacity
+	 *            Number of nodes the store can hold
+	 * @param branchingFactor
+	 *            Branching factor of the nodes in the store
+	 * @param closenessThreshold
+	 *            Closeness threshold of the nodes in the store
+	 */
+	public NodeStore(int capacity, int branchingFactor, int closenessThreshold) {
+		this(null, capacity, branchingFactor, closenessThreshold);
+	}
+
+	/**
+	 * Creates a store on the heap with room for the given number of nodes
+	 *
+	 * @param capacity
+	 *            Number of nodes the store can hold
+	 * @param branchingFactor
+	 *            Branching factor of the nodes in the store
+	 * @param closenessThreshold
+	 *            Closeness threshold of the nodes in the store
+	 * @param sparse
+	 *            True to allocate the pages of the store as nodes are
+	 *            written to them
+	 */
+	public NodeStore(int capacity, int branchingFactor,
+			int closenessThreshold, boolean sparse) {
+		this.branchingFactor = branchingFactor;
+		this.closenessThreshold = closenessThreshold;
+		this.width = branchingFactor + 1;
+		this.stride = recordSize(branchingFactor);
+		this.capacity = capacity;
+		data = null;
+
+		if (sparse) {
+			int records = Integer.highestOneBit(Math.max(1, PAGE_BYTES
+					/ (4 * stride)));
+			pageShift = Integer.numberOfTrailingZeros(records);
+			pageMask = records - 1;
+		} else {
+			checkSize(capacity, stride);
+			pageShift = 31;
+			pageMask = Integer.MAX_VALUE;
+		}
+		int numPages = (int) (((long) capacity + pageMask) >>> pageShift);
+		pages = new int[numPages][];
+		pageBuffers = new IntBuffer[numPages];
+		array = sparse ? null : allocatePage(0);
+		pool = null;
+		segment = null;
+		occupied = new AtomicInteger();
+	}
+
+	/**
+	 * Creates a store over an existing buffer, such as a mapped TreeFile. The
+	 * buffer must hold capacity records of recordSize(branchingFactor) ints.
+	 *
+	 * @param data
+	 *            Buffer holding the records, or null to allocate one on the
+	 *            heap
+	 * @param capacity
+	 *            Number of nodes the store can hold
+	 * @param branchingFactor
+	 *            Branching factor of the nodes in the store
+	 * @param closenessThreshold
+	 *            Closeness threshold of the nodes in the store
+	 */
+	NodeStore(IntBuffer data, int capacity, int branchingFactor,
+			int closenessThreshold) {
+		this.branchingFactor = branchingFactor;
+		this.closenessThreshold = closenessThreshold;
+		this.width = branchingFactor + 1;
+		this.stride = recordSize(branchingFactor);
+		this.capacity = capacity;
+		checkSize(capacity, stride);
+		pageShift = 31;
+		pageMask = Integer.MAX_VALUE;
+		pages = new int[1][];
+		pageBuffers = new IntBuffer[1];
+		pool = null;
+		segment = null;
+		occupied = new AtomicInteger(data == null ? 0 : -1);
+		if (data == null) {
+			this.data = null;
+			array = allocatePage(0);
+		} else if (data.capacity() < capacity * stride) {
+			throw new IllegalArgumentException("Buffer holds "
+					+ data.capacity() + " ints, " + capacity * stride
+					+ " are required");
+		} else {
+			this.data = data;
+			pageBuffers[0] = data;
+			if (data.hasArray() && data.arrayOffset() == 0)
+				pages[0] = data.array();
+			array = pages[0];
+		}
+	}
+
+	/**
+	 * Creates a store whose records are read and written through a pool
+	 *
+	 * @param pool
+	 * @param segment
+	 *            The records, attached to pool
+	 * @param capacity
+	 *            Number of nodes the store can hold
+	 * @param branchingFactor
+	 *            Branching factor of the nodes in the store
+	 * @param closenessThreshold
+	 *            Closeness threshold of the nodes in the store
+	 */
+	NodeStore(BufferPool pool, BufferPool.Segment segment, int capacity,
+			int branchingFactor, int closenessThreshold) {
+		this.branchingFactor = branchingFactor;
+		this.closenessThreshold = closenessThreshold;
+		this.width = branchingFactor + 1;
+		this.stride = recordSize(branchingFactor);
+		this.capacity = capacity;
+		this.pool = pool;
+		this.segment = segment;
+		data = null;
+		array = null;
+		pageShift = 31;
+		pageMask = Integer.MAX_VALUE;
+		pages = new int[1][];
+		pageBuffers = new IntBuffer[1];
+		occupied = new AtomicInteger(-1);
+	}
+
+	/**
+	 * Checks that the records of a dense store can be addressed by an int
+	 */
+	private static void checkSize(int capacity, int stride) {
+		if ((long) capacity * stride > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Dense store of " + capacity
+					+ " records of " + stride + " ints is too large, "
+					+ "use a sparse store");
+	}
+
+	/**
+	 * Returns the page holding the record at index, allocating it if it has
+	 * not been yet. Pages are allocated by whichever thread first writes to
+	 * them, parallel rebuilds among them.
+	 */
+	private synchronized int[] allocatePage(int p) {
+		if (pages[p] == null) {
+			long records = Math.min((long) pageMask + 1, capacity
+					- ((long) p << pageShift));
+			int[] page = new int[(int) (records * stride)];
+			pageBuffers[p] = IntBuffer.wrap(page);
+			pages[p] = page;
+			allocatedPages++;
+		}
+		return pages[p];
+	}
+
+	/**
+	 * Returns the number of ints in a node record
+	 *
+	 * @param branchingFactor
+	 *            Branching factor of the node
+	 */
+	static int recordSize(int branchingFactor) {
+		return HEADER_SIZE + 3 * (branchingFactor + 1);
+	}
+
+	/**
+	 * Initializes an empty leaf at the given location and returns it
+	 *
+	 * @param index
+	 *            Location of the node in the tree
+	 * @return The new node
+	 */
+	public Node create(int index) {
+		boolean was = occupiedAt(index);
+		Node node = get(index);
+		node.clearChildren();
+		countChange(was, true);
+		return node;
+	}
+
+	/**
+	 * Returns the node stored at the given location. The node reads and
+	 * writes its fields directly in this store.
+	 *
+	 * @param index
+	 *            Location of the node in the tree
+	 * @return The node at index
+	 */
+	public Node get(int index) {
+		trace(index, 0, stride);
+		return new Node(this, index);
+	}
+
+	/**
+	 * Returns the node stored at the given location, reusing the given node
+	 * rather than creating a new one
+	 *
+	 * @param index
+	 *            Location of the node in the tree
+	 * @param view
+	 *            A node of any store to point at index, or null
+	 * @return view, or a new node if view is null
+	 */
+	Node get(int index, Node view) {
+		if (view == null)
+			return get(index);
+		trace(index, 0, stride);
+		view.bind(this, index);
+		return view;
+	}
+
+	/**
+	 * Copies the given node into the given location
+	 *
+	 * @param index
+	 *            Location in the tree to write to
+	 * @param node
+	 *            The node to copy, which may belong to another store
+	 */
+	public void set(int index, Node node) {
+		trace(index, 0, stride);
+		boolean was = occupiedAt(index);
+		if (segment != null) {
+			int[] record = new int[stride];
+			node.copyTo(IntBuffer.wrap(record), 0);
+			pool.writeRecord(segment, index, record);
+		} else {
+			node.copyTo(bufferOf(index), baseOf(index));
+		}
+		countChange(was, occupiedAt(index));
+	}
+
+	/**
+	 * Moves the node at from to the location to and clears from
+	 *
+	 * @param from
+	 * @param to
+	 */
+	public void move(int from, int to) {
+		trace(from, 0, stride);
+		trace(to, 0, stride);
+		boolean was = occupiedAt(to);
+		if (segment != null) {
+			int[] record = new int[stride];
+			pool.readRecord(segment, from, record);
+			pool.writeRecord(segment, to, record);
+		} else {
+			bufferOf(to).put(baseOf(to), bufferOf(from), baseOf(from), stride);
+		}
+		countChange(was, occupiedAt(to));
+		clear(from);
+	}
+
+	/**
+	 * Marks the given location as empty
+	 *
+	 * @param index
+	 */
+	public void clear(int index) {
+		trace(index, 0, stride);
+		countChange(occupiedAt(index), false);
+		if (segment != null) {
+			pool.writeRecord(segment, index, new int[stride]);
+			return;
+		}
+		IntBuffer buffer = pageBuffers[index >>> pageShift];
+		if (buffer == null)
+			return; // Never written
+		int base = baseOf(index);
+		for (int i = base; i < base + stride; i++)
+			buffer.put(i, 0);
+	}
+
+	public boolean isOccupied(int index) {
+		return (read(index, FLAGS) & FLAG_OCCUPIED) != 0;
+	}
+
+	/**
+	 * Returns true if the location holds a node, without tracing the read
+	 */
+	private boolean occupiedAt(int index) {
+		return (load(index, FLAGS) & FLAG_OCCUPIED) != 0;
+	}
+
+	/**
+	 * Counts a location that held a node, or was, and holds one now, or not
+	 */
+	private void countChange(boolean was, boolean is) {
+		if (was != is && occupied.get() >= 0)
+			occupied.addAndGet(is ? 1 : -1);
+	}
+
+	// Fields of the node at a location. These let code that visits many
+	// nodes do so without creating a Node for each.
+
+	boolean isLeaf(int index) {
+		return (read(index, FLAGS) & FLAG_LEAF) != 0;
+	}
+
+	int getNumChildren(int index) {
+		return read(index, NUM_CHILDREN);
+	}
+
+	int getNumValues(int index) {
+		return read(index, NUM_VALUES);
+	}
+
+	int getMinValue(int index) {
+		return read(index, MIN_VALUE);
+	}
+
+	int getMaxValue(int index) {
+		return read(index, MAX_VALUE);
+	}
+
+	int getChild(int index, int n) {
+		return read(index, HEADER_SIZE + n);
+	}
+
+	void setChild(int index, int n, int child) {
+		write(index, HEADER_SIZE + n, child);
+	}
+
+	int getValue(int index, int n) {
+		return read(index, HEADER_SIZE + width + n);
+	}
+
+	/**
+	 * Returns the index of the first value of the node at the given location
+	 * that is closest to value, the same as Node.getClosestChild
+	 *
+	 * @param index
+	 * @param value
+	 */
+	int getClosestValue(int index, int value) {
+		int numValues = getNumValues(index);
+		int first = HEADER_SIZE + width;
+		int[] page = pages[index >>> pageShift];
+		if (page != null && numValues >= ValueScan.MIN_WIDTH
+				&& ValueScan.VECTOR != null) {
+			trace(index, first, numValues);
+			return ValueScan.VECTOR.closest(page, baseOf(index) + first,
+					numValues, value);
+		}
+
+		int closest = 0;
+		int closestDist = Integer.MAX_VALUE;
+		for (int i = 0; i < numValues; i++) {
+			int dist = Math.abs(value - read(index, first + i));
+			if (dist < closestDist) {
+				closest = i;
+				closestDist = dist;
+			}
+		}
+		return closest;
+	}
+
+	int getNumPoints(int index) {
+		return read(index, POINTS_TOT);
+	}
+
+	int getPoints(int index, int n) {
+		return read(index, HEADER_SIZE + 2 * width + n);
+	}
+
+	private int read(int index, int field) {
+		trace(index, field, 1);
+		return load(index, field);
+	}
+
+	private int load(int index, int field) {
+		if (array != null)
+			return array[index * stride + field];
+		if (segment != null)
+			return pool.read(segment, index, field);
+		int[] page = pages[index >>> pageShift];
+		if (page != null)
+			return page[baseOf(index) + field];
+		return data != null ? data.get(baseOf(index) + field) : readPage(
+				index, field);
+	}
+
+	/**
+	 * Reads from a page this thread has not seen allocated. Another thread
+	 * of a parallel rebuild may have allocated it.
+	 */
+	private synchronized int readPage(int index, int field) {
+		int[] page = pages[index >>> pageShift];
+		return page != null ? page[baseOf(index) + field] : 0;
+	}
+
+	private void write(int index, int field, int value) {
+		trace(index, field, 1);
+		if (array != null) {
+			array[index * stride + field] = value;
+			return;
+		}
+		if (segment != null) {
+			pool.write(segment, index, field, value);
+			return;
+		}
+		int p = index >>> pageShift;
+		int[] page = pages[p];
+		if (page != null)
+			page[baseOf(index) + field] = value;
+		else if (data != null)
+			data.put(baseOf(index) + field, value);
+		else
+			allocatePage(p)[baseOf(index) + field] = value;
+	}
+
+	/**
+	 * Replays every access to a node record, or to a field read through the
+	 * accessors above, through the given simulator
+	 *
+	 * @param simulator
+	 *            The simulator, or null to stop tracing
+	 */
+	void setSimulator(CacheSimulator simulator) {
+		this.simulator = simulator;
+		if (simulator != null)
+			addressSpace = simulator.newAddressSpace();
+	}
+
+	/**
+	 * Reports an access to the fields of the record at index, at the address
+	 * it would have in a dense store
+	 */
+	private void trace(int index, int field, int length) {
+		if (simulator != null)
+			simulator.access(addressSpace + 4L * ((long) index * stride
+					+ field), 4 * length);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of locations that hold a node. The locations of a
+	 * store over records it did not write are visited the first time, which
+	 * must not run while nodes are written or cleared.
+	 */
+	int countOccupied() {
+		int count = occupied.get();
+		if (count >= 0)
+			return count;
+		synchronized (this) {
+			if (occupied.get() >= 0)
+				return occupied.get();
+			count = 0;
+			for (int i = nextWritten(0); i < capacity; i = nextWritten(i + 1)) {
+				if (occupiedAt(i))
+					count++;
+			}
+			occupied.set(count);
+			return count;
+		}
+	}
+
+	/**
+	 * Marks a store over records it did not write as holding no nodes, so
+	 * they are not counted. For records that are known to be zeros, such as
+	 * those of a new file.
+	 */
+	void assumeEmpty() {
+		occupied.compareAndSet(-1, 0);
+	}
+
+	/**
+	 * Returns true if countOccupied returns without visiting the locations
+	 */
+	boolean isCounted() {
+		return occupied.get() >= 0;
+	}
+
+	/**
+	 * Returns the first location from index on whose page has been written,
+	 * capacity if there is none. Lets scans of the occupied locations of a
+	 * sparse store skip the pages that were never written.
+	 *
+	 * @param index
+	 */
+	int nextWritten(int index) {
+		if (segment != null)
+			return index; // Unwritten records of the file read as zeros
+		while (index < capacity && pageBuffers[index >>> pageShift] == null) {
+			// Not seen by this thread, check under the lock
+			synchronized (this) {
+				if (pageBuffers[index >>> pageShift] != null)
+					break;
+			}
+			index = (int) Math.min(capacity, ((long) index | pageMask) + 1);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns true if the store allocates its pages as they are written
+	 */
+	public boolean isSparse() {
+		return pageShift != 31;
+	}
+
+	/**
+	 * Returns the bytes taken by the records the store has allocated. Those
+	 * of a pooled store are in the frames of its pool.
+	 */
+	long getAllocatedBytes() {
+		if (segment != null)
+			return pool.getAllocatedBytes();
+		if (!isSparse())
+			return 4L * capacity * stride;
+		synchronized (this) {
+			return 4L * stride * ((long) allocatedPages << pageShift);
+		}
+	}
+
+	public int getBranchingFactor() {
+		return branchingFactor;
+	}
+
+	public int getClosenessThreshold() {
+		return closenessThreshold;
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Returns true if the records are kept in a file and accessed through a
+	 * BufferPool
+	 */
+	public boolean isPooled() {
+		return segment != null;
+	}
+
+	BufferPool getPool() {
+		return pool;
+	}
+
+	BufferPool.Segment getSegment() {
+		return segment;
+	}
+
+	/**
+	 * Reads a field of a pooled store for a node bound to it. The access was
+	 * traced when the node was fetched.
+	 */
+	int readPooled(int index, int field) {
+		return pool.read(segment, index, field);
+	}
+
+	void writePooled(int index, int field, int value) {
+		pool.write(segment, index, field, value);
+	}
+
+	/**
+	 * Copies the record at index into an array of getStride() ints. The
+	 * access is not traced.
+	 *
+	 * @param index
+	 * @param record
+	 */
+	void readRecord(int index, int[] record) {
+		if (segment != null)
+			pool.readRecord(segment, index, record);
+		else
+			bufferOf(index).get(baseOf(index), record, 0, stride);
+	}
+
+	/**
+	 * Copies an array of getStride() ints into the record at index
+	 *
+	 * @param index
+	 * @param record
+	 */
+	void writeRecord(int index, int[] record) {
+		boolean was = occupiedAt(index);
+		if (segment != null)
+			pool.writeRecord(segment, index, record);
+		else
+			bufferOf(index).put(baseOf(index), record, 0, stride);
+		countChange(was, (record[FLAGS] & FLAG_OCCUPIED) != 0);
+	}
+
+	/**
+	 * Returns the buffer holding the record at index, allocating its page if
+	 * it has not been yet. The record starts at baseOf(index) in it. A pooled
+	 * store has none.
+	 *
+	 * @param index
+	 */
+	IntBuffer bufferOf(int index) {
+		if (segment != null)
+			return null;
+		int p = index >>> pageShift;
+		IntBuffer buffer = pageBuffers[p];
+		if (buffer != null)
+			return buffer;
+		allocatePage(p);
+		return pageBuffers[p];
+	}
+
+	/**
+	 * Returns the array backing bufferOf(index), null if it has none
+	 *
+	 * @param index
+	 */
+	int[] arrayOf(int index) {
+		return pages[index >>> pageShift];
+	}
+
+	/**
+	 * Returns the offset of the record at index in bufferOf(index)
+	 *
+	 * @param index
+	 */
+	int baseOf(int index) {
+		return (index & pageMask) * stride;
+	}
+
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+
+		result.append("[");
+		for (int i = 0; i < capacity; i++) {
+			if (i > 0)
+				result.append(", ");
+			if (isOccupied(i))
+				result.append(get(i).toString());
+			else
+				result.append("null");
+		}
+		result.append("]");
+
+		return result.toString();
+	}
+}
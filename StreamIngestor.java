@@ -0,0 +1,447 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feeds a stream of little endian ints to a tree. The calling thread reads
+ * the stream and decodes it in bulk into batches, which a second thread
+ * inserts with insertBatch. The two are connected by a ring of batches that
+ * are allocated once. When the tree falls behind the ring fills up and the
+ * reader waits, so memory use does not depend on the length of the stream.
+ * Regular files are mapped, pipes and stdin are read through a direct
+ * buffer.
+ *
+ * Options: -in paths, comma separated, - for stdin, -b branching factor,
+ * auto or calibrate, see TreeConfig, -t closeness threshold, -layout
+ * veb,bfs or preorder, -storage dense or sparse, -batch values per batch,
+ * -ring batches in the ring, -report milliseconds between progress lines, 0
+ * for none, -out path to save the tree to and -pool frames to build the
+ * tree in the -out file, read through a BufferPool of that many blocks
+ * rather than on the heap, 0 for none.
+ *
+ * @author Brian
+ *
+ */
+public class StreamIngestor {
+	static final int DEFAULT_BATCH = 4096; // Values per batch
+	static final int DEFAULT_RING = 16; // Batches in the ring
+	static final int READ_BYTES = 1 << 16; // Read from a channel at a time
+	static final int MAP_BYTES = 1 << 28; // Mapped from a file at a time
+
+	private final ContextTree tree;
+	private final int batchSize;
+
+	// Ring of batches. The reader fills the batch at tail and the inserting
+	// thread empties the one at head. A batch counts as filled until it has
+	// been inserted, so the reader never writes to it while it is read.
+	private final int[][] batches;
+	private final int[] counts;
+	private final ReentrantLock ringLock;
+	private final Condition notFull;
+	private final Condition notEmpty;
+	private int head;
+	private int tail;
+	private int filled;
+	private boolean closed; // No more batches will be added
+	private Throwable failure; // Thrown by the inserting thread
+
+	private volatile long values; // Inserted so far
+	private volatile long startNanos;
+	private volatile long endNanos;
+
+	public StreamIngestor(ContextTree tree) {
+		this(tree, DEFAULT_BATCH, DEFAULT_RING);
+	}
+
+	/**
+	 * @param tree
+	 * @param batchSize
+	 *            Values inserted together
+	 * @param ringSize
+	 *            Batches the reader may be ahead of the tree
+	 */
+	public StreamIngestor(ContextTree tree, int batchSize, int ringSize) {
+		if (batchSize < 1 || ringSize < 1)
+			throw new IllegalArgumentException("Batch size " + batchSize
+					+ " and ring size " + ringSize + " must be positive");
+		this.tree = tree;
+		this.batchSize = batchSize;
+		batches = new int[ringSize][batchSize];
+		counts = new int[ringSize];
+		ringLock = new ReentrantLock();
+		notFull = ringLock.newCondition();
+		notEmpty = ringLock.newCondition();
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new TreeMap<String, String>();
+		options.put("-in", "-");
+		options.put("-b", "16");
+		options.put("-t", "16");
+		options.put("-layout", "veb");
+		options.put("-storage", "dense");
+		options.put("-batch", Integer.toString(DEFAULT_BATCH));
+		options.put("-ring", Integer.toString(DEFAULT_RING));
+		options.put("-report", "1000");
+		options.put("-out", "");
+		options.put("-pool", "0");
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!options.containsKey(args[i]))
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			options.put(args[i], args[i + 1]);
+		}
+
+		TreeConfig config = TreeConfig.builder()
+				.branchingFactor(options.get("-b"))
+				.closenessThreshold(Integer.parseInt(options.get("-t")))
+				.layout(Layout.forName(options.get("-layout")))
+				.sparse(options.get("-storage").equals("sparse")).build();
+		int frames = Integer.parseInt(options.get("-pool"));
+		ContextTree tree;
+		if (frames > 0) {
+			if (options.get("-out").isEmpty())
+				throw new IllegalArgumentException("-pool needs -out");
+			tree = ContextTree.create(Paths.get(options.get("-out")), config,
+					new BufferPool(frames, Eviction.LRU));
+		} else {
+			tree = new ContextTree(config);
+		}
+		final StreamIngestor ingestor = new StreamIngestor(tree,
+				Integer.parseInt(options.get("-batch")),
+				Integer.parseInt(options.get("-ring")));
+
+		final long interval = Long.parseLong(options.get("-report"));
+		Thread reporter = null;
+		if (interval > 0) {
+			reporter = new Thread(new Runnable() {
+				public void run() {
+					ingestor.report(interval);
+				}
+			}, "StreamIngestor report");
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+
+		for (String in : options.get("-in").split(",")) {
+			if (in.equals("-"))
+				ingestor.ingest(new FileInputStream(FileDescriptor.in)
+						.getChannel());
+			else
+				ingestor.ingest(Paths.get(in));
+		}
+		if (reporter != null)
+			reporter.interrupt();
+
+		tree.awaitRebuild();
+		System.err.printf("%d values in %.3f s, %.0f values/s, height %d%n",
+				ingestor.getValues(), ingestor.getElapsedNanos() / 1e9,
+				ingestor.getValuesPerSecond(), tree.getHeight());
+
+		// A tree built in the file is committed to it
+		if (!options.get("-out").isEmpty())
+			tree.save(Paths.get(options.get("-out")));
+	}
+
+	/**
+	 * Inserts every value of a file. Regular files are mapped, other files
+	 * such as named pipes are read as a stream. Whatever the tree throws
+	 * while inserting, errors included, is thrown here once reading stops.
+	 *
+	 * @param path
+	 * @return The number of values inserted
+	 * @throws IOException
+	 *             If the file can not be read, or ends part way through a
+	 *             value. The values before that are inserted.
+	 */
+	public long ingest(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			if (!Files.isRegularFile(path))
+				return ingest(channel);
+
+			Producer reader = new Producer() {
+				public void produce() throws IOException,
+						InterruptedException {
+					readMapped(channel);
+				}
+			};
+			return run(reader);
+		}
+	}
+
+	/**
+	 * Inserts every value read from a channel until it reaches the end of
+	 * the stream. The channel is not closed. Whatever the tree throws while
+	 * inserting, errors included, is thrown here once reading stops.
+	 *
+	 * @param channel
+	 * @return The number of values inserted
+	 * @throws IOException
+	 *             If the channel can not be read, or the stream ends part way
+	 *             through a value. The values before that are inserted.
+	 */
+	public long ingest(final ReadableByteChannel channel) throws IOException {
+		return run(new Producer() {
+			public void produce() throws IOException, InterruptedException {
+				readStream(channel);
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of values inserted so far
+	 */
+	public long getValues() {
+		return values;
+	}
+
+	/**
+	 * Returns the time spent ingesting, including a stream that is still
+	 * being ingested
+	 */
+	public long getElapsedNanos() {
+		if (startNanos == 0)
+			return 0;
+		return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+	}
+
+	/**
+	 * Returns the mean number of values inserted per second
+	 */
+	public double getValuesPerSecond() {
+		long elapsed = getElapsedNanos();
+		return elapsed == 0 ? 0 : values * 1e9 / elapsed;
+	}
+
+	/**
+	 * Reads the stream on the calling thread while another thread inserts
+	 * the batches
+	 */
+	private interface Producer {
+		void produce() throws IOException, InterruptedException;
+	}
+
+	private long run(Producer reader) throws IOException {
+		long before = values;
+		if (startNanos == 0)
+			startNanos = System.nanoTime();
+		endNanos = 0;
+
+		head = tail = filled = 0;
+		closed = false;
+		failure = null;
+		Thread inserter = new Thread(new Runnable() {
+			public void run() {
+				consume();
+			}
+		}, "StreamIngestor insert");
+		inserter.setDaemon(true);
+		inserter.start();
+
+		boolean interrupted = false;
+		try {
+			reader.produce();
+		} catch (InterruptedException e) {
+			interrupted = true;
+		} finally {
+			close();
+			while (true) {
+				try {
+					inserter.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			endNanos = System.nanoTime();
+		}
+
+		if (failure != null)
+			throwFailure();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted after "
+					+ (values - before) + " values");
+		}
+		return values - before;
+	}
+
+	/**
+	 * Maps the file a region at a time and copies its values into batches
+	 */
+	private void readMapped(FileChannel channel) throws IOException,
+			InterruptedException {
+		long size = channel.size();
+		for (long position = 0; position + 4 <= size;) {
+			long length = Math.min(MAP_BYTES, (size - position) & ~3L);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+					position, length);
+			fill(map.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+			position += length;
+		}
+		if (size % 4 != 0)
+			throw new IOException("Stream ends part way through a value");
+	}
+
+	/**
+	 * Reads the channel through a direct buffer and copies its values into
+	 * batches. Bytes of a value split between reads are kept for the next.
+	 */
+	private void readStream(ReadableByteChannel channel) throws IOException,
+			InterruptedException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BYTES).order(
+				ByteOrder.LITTLE_ENDIAN);
+		while (channel.read(buffer) >= 0) {
+			buffer.flip();
+			IntBuffer ints = buffer.asIntBuffer();
+			fill(ints);
+			buffer.position(buffer.position() + 4 * ints.position());
+			buffer.compact();
+		}
+		if (buffer.position() != 0)
+			throw new IOException("Stream ends part way through a value");
+	}
+
+	/**
+	 * Copies values into batches, adding each batch to the ring once it is
+	 * full. The last batch is added when it is not empty.
+	 */
+	private void fill(IntBuffer ints) throws InterruptedException {
+		while (ints.hasRemaining()) {
+			int count = Math.min(batchSize, ints.remaining());
+			ints.get(awaitFree(), 0, count);
+			publish(count);
+		}
+	}
+
+	/**
+	 * Returns the batch at the tail once the tree has inserted it
+	 */
+	private int[] awaitFree() throws InterruptedException {
+		ringLock.lock();
+		try {
+			while (filled == batches.length && failure == null)
+				notFull.await();
+			if (failure != null)
+				throwFailure();
+			return batches[tail];
+		} finally {
+			ringLock.unlock();
+		}
+	}
+
+	private void publish(int count) {
+		ringLock.lock();
+		try {
+			counts[tail] = count;
+			tail = (tail + 1) % batches.length;
+			filled++;
+			notEmpty.signal();
+		} finally {
+			ringLock.unlock();
+		}
+	}
+
+	private void close() {
+		ringLock.lock();
+		try {
+			closed = true;
+			notEmpty.signal();
+		} finally {
+			ringLock.unlock();
+		}
+	}
+
+	/**
+	 * Inserts batches from the head of the ring until it is closed and
+	 * empty. A batch is inserted without holding the ring lock.
+	 */
+	private void consume() {
+		try {
+			while (true) {
+				ringLock.lock();
+				try {
+					while (filled == 0 && !closed)
+						notEmpty.awaitUninterruptibly();
+					if (filled == 0)
+						return;
+				} finally {
+					ringLock.unlock();
+				}
+
+				tree.insertBatch(batches[head], counts[head]);
+				values += counts[head];
+
+				ringLock.lock();
+				try {
+					head = (head + 1) % batches.length;
+					filled--;
+					notFull.signal();
+				} finally {
+					ringLock.unlock();
+				}
+			}
+		} catch (Throwable e) {
+			// The reader stops at the next batch it needs
+			ringLock.lock();
+			try {
+				failure = e;
+				notFull.signal();
+			} finally {
+				ringLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Throws what stopped the inserting thread in the reading thread
+	 */
+	private void throwFailure() {
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		throw new IllegalStateException(failure);
+	}
+
+	/**
+	 * Prints the values inserted and the rate since the last line every
+	 * interval milliseconds until the thread is interrupted
+	 */
+	private void report(long interval) {
+		long lastValues = values;
+		long lastNanos = System.nanoTime();
+		while (true) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			long current = values;
+			System.err.printf("%d values, %.0f values/s%n", current,
+					(current - lastValues) * 1e9 / (now - lastNanos));
+			lastValues = current;
+			lastNanos = now;
+		}
+	}
+}
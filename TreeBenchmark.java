@@ -0,0 +1,780 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Measures inserts, lookups, node splits, rebuilds and removals of the tree,
+ * along with a TreeMap and a sorted array in breadth first order as
+ * baselines. Each benchmark runs a number of warmup iterations followed by
+ * measured ones and reports the mean time, the heap allocated by the
+ * measuring thread and the number of collections, per operation. Trees
+ * rebuild inside the insert that splits the root so the rebuild is part of
+ * the measured time. It runs on the common fork join pool, so its
+ * allocations are only counted when the trees are instrumented, which keeps
+ * it on the measuring thread.
+ *
+ * Options taking a comma separated list:
+ * -bench insert,lookup,split,rebuild,window,treemap-insert,treemap-lookup,
+ * bfs-lookup
+ * and scan-scalar,scan-vector, which are not run by default and compare the
+ * scans of the values of a node, see ValueScan, at each branching factor
+ * -n number of values, -b branching factors, -t closeness thresholds,
+ * -layout veb,bfs,preorder and -dist uniform,zipf,sorted. Options taking a
+ * single value: -range of the
+ * values, -warmup and -iterations per benchmark and -seed.
+ *
+ * -cache blockSize,cacheSize instruments the trees with a CacheSimulator and
+ * adds the block transfers per operation of the measured iterations to the
+ * results. Times are then dominated by the simulation. -histogram prefix
+ * writes the transfer histograms of the last iteration of each run to a
+ * file named after the prefix and the settings of the run.
+ *
+ * -pool frames keeps the trees of the insert and lookup benchmarks in a
+ * temporary file read through a BufferPool of that many blocks, evicted as
+ * set by -eviction lru or clock, and adds the blocks read and written per
+ * operation to the results. Each iteration starts from an empty pool.
+ *
+ * @author Brian
+ *
+ */
+public class TreeBenchmark {
+	static final double ZIPF_EXPONENT = 1.1;
+	static final int ZIPF_RANKS = 1 << 20; // Distinct values drawn by zipf
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory
+					.getThreadMXBean();
+
+	// Results are folded into this so the work can not be optimized away
+	static volatile long sink;
+
+	/**
+	 * Settings of a single run of a benchmark
+	 */
+	private static class Params {
+		int n;
+		int branchingFactor;
+		int closenessThreshold;
+		Layout layout;
+		String dist;
+		int range;
+		long seed;
+		CacheSimulator simulator; // Null unless trees are instrumented
+		int poolFrames; // 0 unless trees are read through a pool
+		Eviction eviction;
+		Path file; // Holds the pooled tree
+		BufferPool pool; // Of the current iteration
+	}
+
+	private static abstract class Benchmark {
+		final String name;
+		final boolean usesTree; // Whether B and the threshold apply
+
+		Benchmark(String name, boolean usesTree) {
+			this.name = name;
+			this.usesTree = usesTree;
+		}
+
+		/**
+		 * Prepares an iteration. This is not measured.
+		 */
+		abstract void setup(Params p);
+
+		/**
+		 * Runs an iteration
+		 *
+		 * @return Number of operations run
+		 */
+		abstract int run();
+
+		/**
+		 * Returns a description of the structure after the last iteration
+		 */
+		String describe() {
+			return "";
+		}
+
+		/**
+		 * Returns false if the benchmark can not run in this JVM
+		 */
+		boolean isAvailable() {
+			return true;
+		}
+	}
+
+	public static void main(String[] args) {
+		Map<String, String> options = new TreeMap<String, String>();
+		options.put("-bench", "insert,lookup,split,rebuild,window,"
+				+ "treemap-insert,treemap-lookup,bfs-lookup");
+		options.put("-n", "1000,10000");
+		options.put("-b", "8,16");
+		options.put("-t", "1,16");
+		options.put("-layout", "veb");
+		options.put("-dist", "uniform,zipf,sorted");
+		options.put("-range", "1048576");
+		options.put("-warmup", "3");
+		options.put("-iterations", "5");
+		options.put("-seed", "1");
+		options.put("-cache", "");
+		options.put("-histogram", "");
+		options.put("-pool", "0");
+		options.put("-eviction", "lru");
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!options.containsKey(args[i]))
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			options.put(args[i], args[i + 1]);
+		}
+
+		int warmup = Integer.parseInt(options.get("-warmup"));
+		int iterations = Integer.parseInt(options.get("-iterations"));
+
+		String[] layouts = options.get("-layout").split(",");
+		int[] cache = options.get("-cache").isEmpty() ? null : ints(options
+				.get("-cache"));
+		String histogram = options.get("-histogram");
+		int poolFrames = Integer.parseInt(options.get("-pool"));
+		Eviction eviction = Eviction.forName(options.get("-eviction"));
+		Path file = null;
+		if (poolFrames > 0) {
+			try {
+				file = Files.createTempFile("tree", ".ctr");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			file.toFile().deleteOnExit();
+			TreeFile.scratchPath(file).toFile().deleteOnExit();
+		}
+
+		System.out.printf("%-15s %-8s %-8s %10s %4s %6s %12s %12s %8s  %s%n",
+				"benchmark", "layout", "dist", "n", "B", "th", "ns/op",
+				"bytes/op", "gc/iter", "structure");
+
+		for (String name : options.get("-bench").split(",")) {
+			Benchmark benchmark = create(name);
+			for (String layout : benchmark.usesTree ? layouts
+					: new String[] { null })
+				for (String dist : options.get("-dist").split(","))
+					for (int n : ints(options.get("-n")))
+						for (int b : benchmark.usesTree ? ints(options
+								.get("-b")) : new int[] { 0 })
+							for (int t : benchmark.usesTree ? ints(options
+									.get("-t")) : new int[] { 0 }) {
+								Params p = new Params();
+								p.n = n;
+								p.branchingFactor = b;
+								p.closenessThreshold = t;
+								p.layout = layout == null ? null : Layout
+										.forName(layout);
+								p.dist = dist;
+								p.range = Integer.parseInt(options
+										.get("-range"));
+								p.seed = Long.parseLong(options.get("-seed"));
+								if (cache != null && benchmark.usesTree)
+									p.simulator = new CacheSimulator(
+											cache[0], cache[1]);
+								p.poolFrames = poolFrames;
+								p.eviction = eviction;
+								p.file = file;
+
+								measure(benchmark, p, warmup, iterations);
+								if (p.simulator != null
+										&& !histogram.isEmpty())
+									writeHistograms(histogram, benchmark, p);
+							}
+		}
+	}
+
+	/**
+	 * Runs a benchmark and prints one line of results
+	 */
+	private static void measure(Benchmark benchmark, Params p, int warmup,
+			int iterations) {
+		String prefix = String.format("%-15s %-8s %-8s %10d %4d %6d",
+				benchmark.name, p.layout == null ? "-" : p.layout
+						.getShortName(), p.dist, p.n, p.branchingFactor,
+				p.closenessThreshold);
+
+		long time = 0;
+		long bytes = 0;
+		long collections = 0;
+		long ops = 0;
+		long transfers = 0;
+		long blockReads = 0;
+		long blockWrites = 0;
+		if (!benchmark.isAvailable()) {
+			System.out.println(prefix + "  unavailable");
+			return;
+		}
+		try {
+			for (int i = 0; i < warmup + iterations; i++) {
+				benchmark.setup(p);
+
+				long gcBefore = collections();
+				long bytesBefore = THREADS.getCurrentThreadAllocatedBytes();
+				long start = System.nanoTime();
+				int done = benchmark.run();
+				long elapsed = System.nanoTime() - start;
+				long allocated = THREADS.getCurrentThreadAllocatedBytes()
+						- bytesBefore;
+				long gcs = collections() - gcBefore;
+
+				if (i >= warmup) {
+					time += elapsed;
+					bytes += allocated;
+					collections += gcs;
+					ops += done;
+					if (p.simulator != null)
+						transfers += p.simulator.getTransfers();
+					if (p.pool != null) {
+						blockReads += p.pool.getBlockReads();
+						blockWrites += p.pool.getBlockWrites();
+					}
+				}
+				p.pool = null;
+			}
+		} catch (OutOfMemoryError e) {
+			benchmark.setup(null);
+			System.out.println(prefix + "  out of memory");
+			return;
+		}
+
+		String structure = benchmark.describe();
+		if (p.simulator != null)
+			structure += String.format(", %.2f transfers/op",
+					(double) transfers / ops);
+		if (p.poolFrames > 0 && blockReads + blockWrites > 0)
+			structure += String.format(
+					", %.2f block reads/op, %.2f block writes/op",
+					(double) blockReads / ops, (double) blockWrites / ops);
+		System.out.printf("%s %12.1f %12.1f %8.1f  %s%n", prefix, (double) time
+				/ ops, (double) bytes / ops, (double) collections / iterations,
+				structure);
+	}
+
+	/**
+	 * Instruments a tree set up for an iteration, from an empty cache
+	 */
+	private static void instrument(ContextTree tree, Params p) {
+		if (p.simulator != null) {
+			p.simulator.reset();
+			tree.setCacheSimulator(p.simulator);
+		}
+	}
+
+	/**
+	 * Moves a tree set up for an iteration into the file of the run, read
+	 * through a new pool, if the run asks for one. The pool counts from the
+	 * tree being opened.
+	 */
+	private static ContextTree pool(ContextTree tree, Params p) {
+		if (p.poolFrames == 0)
+			return tree;
+		try {
+			tree.save(p.file);
+			p.pool = new BufferPool(p.poolFrames, p.eviction);
+			return ContextTree.open(p.file, true, p.pool);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the transfer histograms of the last iteration of a run to a file
+	 * named after prefix and the settings of the run
+	 */
+	private static void writeHistograms(String prefix, Benchmark benchmark,
+			Params p) {
+		String name = String.format("%s-%s-%s-%s-%d-%d-%d.csv", prefix,
+				benchmark.name, p.layout.getShortName(), p.dist, p.n,
+				p.branchingFactor, p.closenessThreshold);
+		try (Writer out = Files.newBufferedWriter(Paths.get(name))) {
+			p.simulator.exportHistograms(out);
+		} catch (IOException e) {
+			System.err.println("Can not write " + name + ": " + e);
+		}
+	}
+
+	private static long collections() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private static int[] ints(String list) {
+		return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt)
+				.toArray();
+	}
+
+	/**
+	 * Draws values from the given distribution
+	 *
+	 * @param dist
+	 *            uniform, zipf or sorted, which is uniform in ascending order
+	 * @param n
+	 *            Number of values
+	 * @param range
+	 *            Values are drawn from [0, range)
+	 * @param seed
+	 */
+	static int[] generate(String dist, int n, int range, long seed) {
+		Random random = new Random(seed);
+		int[] values = new int[n];
+
+		if (dist.equals("uniform") || dist.equals("sorted")) {
+			for (int i = 0; i < n; i++)
+				values[i] = random.nextInt(range);
+			if (dist.equals("sorted"))
+				Arrays.sort(values);
+		} else if (dist.equals("zipf")) {
+			// Rank r is drawn with probability proportional to 1/r^s. Ranks
+			// are scattered over the range so hot values are not adjacent.
+			int ranks = Math.min(range, ZIPF_RANKS);
+			double[] cdf = new double[ranks];
+			double total = 0;
+			for (int r = 0; r < ranks; r++) {
+				total += 1.0 / Math.pow(r + 1, ZIPF_EXPONENT);
+				cdf[r] = total;
+			}
+			for (int i = 0; i < n; i++) {
+				int r = Arrays.binarySearch(cdf, random.nextDouble() * total);
+				if (r < 0)
+					r = -r - 1;
+				values[i] = (int) ((r + 1) * 0x9E3779B1L % range);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown distribution " + dist);
+		}
+		return values;
+	}
+
+	private static Benchmark create(String name) {
+		switch (name) {
+		case "insert":
+			return new TreeInsert();
+		case "lookup":
+			return new TreeLookup();
+		case "split":
+			return new TreeSplit();
+		case "rebuild":
+			return new TreeRebuild();
+		case "window":
+			return new TreeWindow();
+		case "treemap-insert":
+			return new TreeMapInsert();
+		case "treemap-lookup":
+			return new TreeMapLookup();
+		case "bfs-lookup":
+			return new BfsLookup();
+		case "scan-scalar":
+			return new Scan("scan-scalar", ValueScan.SCALAR);
+		case "scan-vector":
+			return new Scan("scan-vector", ValueScan.VECTOR);
+		default:
+			throw new IllegalArgumentException("Unknown benchmark " + name);
+		}
+	}
+
+	private static String heightOf(ContextTree tree) {
+		return tree == null ? "" : "height " + tree.getHeight();
+	}
+
+	/**
+	 * Inserts the values one at a time into an empty tree, including every
+	 * split and rebuild this causes
+	 */
+	private static class TreeInsert extends Benchmark {
+		private int[] values;
+		private ContextTree tree;
+
+		TreeInsert() {
+			super("insert", true);
+		}
+
+		void setup(Params p) {
+			tree = null;
+			if (p == null)
+				return;
+			values = generate(p.dist, p.n, p.range, p.seed);
+			tree = new ContextTree(p.branchingFactor, p.closenessThreshold,
+					p.layout);
+			tree.setBackgroundRebuild(false);
+			tree = pool(tree, p);
+			tree.setBackgroundRebuild(false);
+			instrument(tree, p);
+		}
+
+		int run() {
+			for (int value : values)
+				tree.insert(value);
+			return values.length;
+		}
+
+		String describe() {
+			return heightOf(tree);
+		}
+	}
+
+	/**
+	 * Finds the cluster closest to each of a set of queries in a bulk loaded
+	 * tree
+	 */
+	private static class TreeLookup extends Benchmark {
+		private int[] queries;
+		private ContextTree tree;
+
+		TreeLookup() {
+			super("lookup", true);
+		}
+
+		void setup(Params p) {
+			tree = null;
+			if (p == null)
+				return;
+			tree = ContextTree.bulkLoad(generate(p.dist, p.n, p.range, p.seed),
+					p.branchingFactor, p.closenessThreshold, p.layout);
+			tree = pool(tree, p);
+			queries = generate("uniform", p.n, p.range, p.seed + 1);
+			instrument(tree, p);
+		}
+
+		int run() {
+			long sum = 0;
+			for (int query : queries)
+				sum += tree.nearestCluster(query);
+			sink += sum;
+			return queries.length;
+		}
+
+		String describe() {
+			return heightOf(tree);
+		}
+	}
+
+	/**
+	 * Inserts new values into a bulk loaded tree, whose nodes are full, so
+	 * most of the inserts split a leaf and the splits cascade up the tree
+	 */
+	private static class TreeSplit extends Benchmark {
+		private int[] values;
+		private ContextTree tree;
+
+		TreeSplit() {
+			super("split", true);
+		}
+
+		void setup(Params p) {
+			tree = null;
+			if (p == null)
+				return;
+			tree = ContextTree.bulkLoad(generate(p.dist, p.n, p.range, p.seed),
+					p.branchingFactor, p.closenessThreshold, p.layout);
+			tree.setBackgroundRebuild(false);
+			values = generate(p.dist, Math.max(1, p.n / 10), p.range,
+					p.seed + 2);
+			instrument(tree, p);
+		}
+
+		int run() {
+			for (int value : values)
+				tree.insert(value);
+			return values.length;
+		}
+
+		String describe() {
+			return heightOf(tree);
+		}
+	}
+
+	/**
+	 * Splits the root of a tree in which every node is full. The one insert
+	 * that is measured splits a node at every depth and rebuilds the tree.
+	 * The tree holds the largest power of B clusters that is at most n.
+	 */
+	private static class TreeRebuild extends Benchmark {
+		private ContextTree tree;
+		private int value;
+		private int height;
+
+		TreeRebuild() {
+			super("rebuild", true);
+		}
+
+		void setup(Params p) {
+			tree = null;
+			if (p == null)
+				return;
+			int clusters = p.branchingFactor;
+			while ((long) clusters * p.branchingFactor <= p.n)
+				clusters *= p.branchingFactor;
+
+			// Values far enough apart to each form their own cluster
+			int spacing = p.closenessThreshold + 1;
+			int[] values = new int[clusters];
+			for (int i = 0; i < clusters; i++)
+				values[i] = i * spacing;
+
+			tree = ContextTree.bulkLoadSorted(
+					Arrays.stream(values).iterator(), p.branchingFactor,
+					p.closenessThreshold, p.layout);
+			tree.setBackgroundRebuild(false);
+			value = clusters * spacing;
+			height = tree.getHeight();
+			instrument(tree, p);
+		}
+
+		int run() {
+			tree.insert(value);
+			return 1;
+		}
+
+		String describe() {
+			return tree == null ? "" : "height " + height + " to "
+					+ tree.getHeight();
+		}
+	}
+
+	/**
+	 * Slides a window of n values over a stream that drifts by the range of
+	 * the values every n values. Each new value is inserted and the value
+	 * that leaves the window removed, which merges the nodes the window 
+	 * leaves behind, so the tree stays the size of the window. An operation
+	 * is an insert or a removal.
+	 */
+	private static class TreeWindow extends Benchmark {
+		private int[] stream;
+		private int n;
+		private ContextTree tree;
+		private int height;
+
+		TreeWindow() {
+			super("window", true);
+		}
+
+		void setup(Params p) {
+			tree = null;
+			if (p == null)
+				return;
+			n = p.n;
+			stream = generate(p.dist, 3 * n, p.range, p.seed);
+			for (int i = 0; i < stream.length; i++)
+				stream[i] += (int) ((long) i * p.range / n);
+
+			tree = new ContextTree(p.branchingFactor, p.closenessThreshold,
+					p.layout);
+			tree.setBackgroundRebuild(false);
+			for (int i = 0; i < n; i++)
+				tree.insert(stream[i]);
+			height = tree.getHeight();
+			instrument(tree, p);
+		}
+
+		int run() {
+			for (int i = n; i < stream.length; i++) {
+				tree.insert(stream[i]);
+				tree.remove(stream[i - n]);
+			}
+			return 2 * (stream.length - n);
+		}
+
+		String describe() {
+			return tree == null ? "" : "height " + height + " to "
+					+ tree.getHeight();
+		}
+	}
+
+	/**
+	 * Counts the values in a TreeMap keyed by value
+	 */
+	private static class TreeMapInsert extends Benchmark {
+		private int[] values;
+		private TreeMap<Integer, Integer> map;
+
+		TreeMapInsert() {
+			super("treemap-insert", false);
+		}
+
+		void setup(Params p) {
+			map = null;
+			if (p == null)
+				return;
+			values = generate(p.dist, p.n, p.range, p.seed);
+			map = new TreeMap<Integer, Integer>();
+		}
+
+		int run() {
+			for (int value : values)
+				map.merge(value, 1, Integer::sum);
+			return values.length;
+		}
+
+		String describe() {
+			return map == null ? "" : map.size() + " keys";
+		}
+	}
+
+	/**
+	 * Finds the key closest to each of a set of queries in a TreeMap
+	 */
+	private static class TreeMapLookup extends Benchmark {
+		private int[] queries;
+		private TreeMap<Integer, Integer> map;
+
+		TreeMapLookup() {
+			super("treemap-lookup", false);
+		}
+
+		void setup(Params p) {
+			map = null;
+			if (p == null)
+				return;
+			map = new TreeMap<Integer, Integer>();
+			for (int value : generate(p.dist, p.n, p.range, p.seed))
+				map.merge(value, 1, Integer::sum);
+			queries = generate("uniform", p.n, p.range, p.seed + 1);
+		}
+
+		int run() {
+			long sum = 0;
+			for (int query : queries) {
+				Integer floor = map.floorKey(query);
+				Integer ceiling = map.ceilingKey(query);
+				if (floor == null || (ceiling != null
+						&& ceiling - query < query - floor))
+					sum += ceiling;
+				else
+					sum += floor;
+			}
+			sink += sum;
+			return queries.length;
+		}
+
+		String describe() {
+			return map == null ? "" : map.size() + " keys";
+		}
+	}
+
+	/**
+	 * Finds the value closest to each of a set of queries in a sorted array
+	 * laid out in breadth first order, where the children of entry k are at
+	 * 2k and 2k + 1. The floor and ceiling of a query are both on its search
+	 * path.
+	 */
+	private static class BfsLookup extends Benchmark {
+		private int[] queries;
+		private int[] tree; // Entry 0 is unused
+		private int size;
+
+		BfsLookup() {
+			super("bfs-lookup", false);
+		}
+
+		void setup(Params p) {
+			tree = null;
+			if (p == null)
+				return;
+			int[] sorted = generate(p.dist, p.n, p.range, p.seed);
+			Arrays.sort(sorted);
+			size = 0;
+			for (int i = 0; i < sorted.length; i++)
+				if (size == 0 || sorted[size - 1] != sorted[i])
+					sorted[size++] = sorted[i];
+
+			tree = new int[size + 1];
+			fill(sorted, 0, 1);
+			queries = generate("uniform", p.n, p.range, p.seed + 1);
+		}
+
+		// Writes the sorted values in order of an in-order walk of the tree
+		private int fill(int[] sorted, int next, int k) {
+			if (k > size)
+				return next;
+			next = fill(sorted, next, 2 * k);
+			tree[k] = sorted[next++];
+			return fill(sorted, next, 2 * k + 1);
+		}
+
+		int run() {
+			long sum = 0;
+			for (int query : queries) {
+				int best = tree[1];
+				int k = 1;
+				while (k <= size) {
+					int value = tree[k];
+					if (Math.abs(value - query) < Math.abs(best - query))
+						best = value;
+					k = 2 * k + (value < query ? 1 : 0);
+				}
+				sum += best;
+			}
+			sink += sum;
+			return queries.length;
+		}
+
+		String describe() {
+			return tree == null ? "" : size + " keys";
+		}
+	}
+
+	/**
+	 * Scans nodes of B values the way an insert does at each node it visits:
+	 * finds the value closest to a query, the value farthest from it and the
+	 * extent of the values. The nodes are spread over n values.
+	 */
+	private static class Scan extends Benchmark {
+		private final ValueScan scan;
+		private int width;
+		private int count;
+		private int[] values;
+		private int[] queries;
+
+		Scan(String name, ValueScan scan) {
+			super(name, true);
+			this.scan = scan;
+		}
+
+		void setup(Params p) {
+			values = null;
+			if (p == null)
+				return;
+			count = p.branchingFactor;
+			width = count + 1; // As in a node record
+			int nodes = Math.max(1, p.n / count);
+			values = new int[nodes * width];
+			int[] drawn = generate(p.dist, nodes * count, p.range, p.seed);
+			for (int i = 0; i < drawn.length; i++)
+				values[i / count * width + i % count] = drawn[i];
+			queries = generate("uniform", p.n, p.range, p.seed + 1);
+		}
+
+		int run() {
+			int nodes = values.length / width;
+			long sum = 0;
+			for (int i = 0; i < queries.length; i++) {
+				int from = i % nodes * width;
+				sum += scan.closest(values, from, count, queries[i]);
+				sum += scan.farthest(values, from, count, queries[i]);
+				sum += ValueScan.extentMax(scan.extent(values, from, count));
+			}
+			sink += sum;
+			return queries.length;
+		}
+
+		boolean isAvailable() {
+			return scan != null;
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Settings of a tree, fixed when the tree is created. Made with a Builder.
+ *
+ * The branching factor can be given, derived from the cache geometry of the
+ * host or calibrated on it. The derived one is the largest whose node
+ * record fills whole cache lines and takes at most an eighth of a page, so
+ * a page holds a few levels of a van Emde Boas subtree. In a tree kept in
+ * a mapped file the records start on a line, after the header, so a line
+ * fetched for a node holds nothing of its neighbours. Java arrays are not
+ * aligned to lines, so in a tree on the heap a record may still straddle
+ * two of them. Calibration times inserts
+ * and queries at each branching factor whose record fills whole lines, up
+ * to a quarter of a page, and keeps the fastest. It runs once per threshold
+ * and layout in a JVM.
+ *
+ * @author Brian
+ *
+ */
+public final class TreeConfig {
+	static final int DEFAULT_LINE_SIZE = 64; // Bytes, if it can not be found
+	static final int DEFAULT_PAGE_SIZE = 4096;
+	static final int CALIBRATION_VALUES = 10000; // Inserted per round
+	static final int CALIBRATION_QUERIES = 10000;
+	static final int CALIBRATION_ROUNDS = 3; // Fastest round is kept
+	static final int CALIBRATION_RANGE = 1 << 24; // Values are drawn below
+
+	private static final Map<String, Integer> calibrated =
+			new ConcurrentHashMap<String, Integer>();
+
+	// Calibration queries are folded into this so they can not be optimized
+	// away
+	private static volatile long sink;
+
+	private final int branchingFactor;
+	private final int closenessThreshold;
+	private final Layout layout;
+	private final boolean backgroundRebuild;
+	private final boolean sparse;
+
+	private TreeConfig(Builder builder, int branchingFactor) {
+		this.branchingFactor = branchingFactor;
+		closenessThreshold = builder.closenessThreshold;
+		layout = builder.layout;
+		backgroundRebuild = builder.backgroundRebuild;
+		sparse = builder.sparse;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Collects the settings of a tree. By default the branching factor is
+	 * derived from the host, the threshold is 16, nodes are in van Emde Boas
+	 * order in a dense store and the tree is rebuilt in the background.
+	 */
+	public static final class Builder {
+		private int branchingFactor; // 0 to derive, -1 to calibrate
+		private int closenessThreshold = 16;
+		private Layout layout = Layout.VAN_EMDE_BOAS;
+		private boolean backgroundRebuild = true;
+		private boolean sparse;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param branchingFactor
+		 *            Maximum number of children or values in a node, at
+		 *            least 2
+		 */
+		public Builder branchingFactor(int branchingFactor) {
+			if (branchingFactor < 2)
+				throw new IllegalArgumentException("Branching factor "
+						+ branchingFactor + " is below 2");
+			this.branchingFactor = branchingFactor;
+			return this;
+		}
+
+		/**
+		 * Derives the branching factor from the cache line and page size of
+		 * the host, see TreeConfig.autoBranchingFactor
+		 */
+		public Builder autoBranchingFactor() {
+			branchingFactor = 0;
+			return this;
+		}
+
+		/**
+		 * Picks the branching factor that is fastest on the host when the
+		 * configuration is built, see TreeConfig.calibrateBranchingFactor
+		 */
+		public Builder calibratedBranchingFactor() {
+			branchingFactor = -1;
+			return this;
+		}
+
+		/**
+		 * Sets the branching factor from a number, auto or calibrate
+		 *
+		 * @param branchingFactor
+		 */
+		public Builder branchingFactor(String branchingFactor) {
+			if (branchingFactor.equals("auto"))
+				return autoBranchingFactor();
+			if (branchingFactor.equals("calibrate"))
+				return calibratedBranchingFactor();
+			return branchingFactor(Integer.parseInt(branchingFactor));
+		}
+
+		/**
+		 * @param closenessThreshold
+		 *            Values closer than this to a cluster are absorbed by
+		 *            the cluster
+		 */
+		public Builder closenessThreshold(int closenessThreshold) {
+			if (closenessThreshold < 0)
+				throw new IllegalArgumentException("Closeness threshold "
+						+ closenessThreshold + " is negative");
+			this.closenessThreshold = closenessThreshold;
+			return this;
+		}
+
+		/**
+		 * @param layout
+		 *            Order of the nodes in memory
+		 */
+		public Builder layout(Layout layout) {
+			if (layout == null)
+				throw new NullPointerException("Layout is null");
+			this.layout = layout;
+			return this;
+		}
+
+		/**
+		 * @param backgroundRebuild
+		 *            See ContextTree.setBackgroundRebuild
+		 */
+		public Builder backgroundRebuild(boolean backgroundRebuild) {
+			this.backgroundRebuild = backgroundRebuild;
+			return this;
+		}
+
+		/**
+		 * @param sparse
+		 *            True to allocate node storage as nodes are written
+		 *            rather than for every slot, see NodeStore
+		 */
+		public Builder sparse(boolean sparse) {
+			this.sparse = sparse;
+			return this;
+		}
+
+		/**
+		 * Returns the configuration, calibrating the branching factor first
+		 * if that was asked for
+		 */
+		public TreeConfig build() {
+			int b = branchingFactor;
+			if (b == 0)
+				b = TreeConfig.autoBranchingFactor();
+			else if (b < 0)
+				b = calibrateBranchingFactor(closenessThreshold, layout);
+			return new TreeConfig(this, b);
+		}
+	}
+
+	public int getBranchingFactor() {
+		return branchingFactor;
+	}
+
+	public int getClosenessThreshold() {
+		return closenessThreshold;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	public boolean isBackgroundRebuild() {
+		return backgroundRebuild;
+	}
+
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	public String toString() {
+		return "TreeConfig[b=" + branchingFactor + ", t=" + closenessThreshold
+				+ ", layout=" + layout.getShortName() + ", backgroundRebuild="
+				+ backgroundRebuild + ", sparse=" + sparse + "]";
+	}
+
+	/**
+	 * Returns the largest branching factor whose node record fills whole
+	 * cache lines of the host and takes at most an eighth of a page
+	 */
+	public static int autoBranchingFactor() {
+		int[] candidates = lineFillingFactors(cacheLineSize(), pageSize() / 8);
+		return candidates[candidates.length - 1];
+	}
+
+	/**
+	 * Times inserts and nearest cluster queries of random values at each
+	 * branching factor whose node record fills whole cache lines, up to a
+	 * quarter of a page, and returns the fastest. The result is kept for
+	 * later trees of the same threshold and layout.
+	 *
+	 * @param closenessThreshold
+	 * @param layout
+	 */
+	public static int calibrateBranchingFactor(int closenessThreshold,
+			Layout layout) {
+		String key = closenessThreshold + "/" + layout.getShortName();
+		Integer known = calibrated.get(key);
+		if (known != null)
+			return known;
+
+		int[] candidates = lineFillingFactors(cacheLineSize(), pageSize() / 4);
+		long[] best = new long[candidates.length];
+		for (int round = 0; round <= CALIBRATION_ROUNDS; round++) {
+			for (int i = 0; i < candidates.length; i++) {
+				long nanos = timeRound(candidates[i], closenessThreshold,
+						layout);
+				// The first round only warms up the code
+				if (round == 1 || (round > 1 && nanos < best[i]))
+					best[i] = nanos;
+			}
+		}
+
+		int fastest = 0;
+		for (int i = 1; i < candidates.length; i++) {
+			if (best[i] < best[fastest])
+				fastest = i;
+		}
+		calibrated.put(key, candidates[fastest]);
+		return candidates[fastest];
+	}
+
+	/**
+	 * Returns the time taken to insert and query random values in a new
+	 * tree of the given branching factor
+	 */
+	private static long timeRound(int branchingFactor, int closenessThreshold,
+			Layout layout) {
+		Random random = new Random(1);
+		long start = System.nanoTime();
+		ContextTree tree = new ContextTree(branchingFactor,
+				closenessThreshold, layout);
+		tree.setBackgroundRebuild(false);
+		for (int i = 0; i < CALIBRATION_VALUES; i++)
+			tree.insert(random.nextInt(CALIBRATION_RANGE));
+		long sum = 0;
+		for (int i = 0; i < CALIBRATION_QUERIES; i++)
+			sum += tree.nearestCluster(random.nextInt(CALIBRATION_RANGE));
+		sink += sum;
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns the branching factors, in ascending order, whose node record
+	 * is a whole number of cache lines of at most maxBytes. A record holds
+	 * the header and three arrays of branchingFactor + 1 ints, see NodeStore.
+	 * If no record fits, the smallest whole line record is returned.
+	 *
+	 * @param lineSize
+	 * @param maxBytes
+	 */
+	static int[] lineFillingFactors(int lineSize, int maxBytes) {
+		int lineInts = lineSize / 4;
+		int[] factors = new int[0];
+		for (int lines = 1; lines * lineSize <= maxBytes
+				|| factors.length == 0; lines++) {
+			int rest = lines * lineInts - NodeStore.HEADER_SIZE - 3; // 3 * b
+			if (rest >= 6 && rest % 3 == 0) {
+				factors = Arrays.copyOf(factors, factors.length + 1);
+				factors[factors.length - 1] = rest / 3;
+			}
+		}
+		return factors;
+	}
+
+	/**
+	 * Returns the size of a cache line of the host in bytes, read from sysfs
+	 * where there is one
+	 */
+	public static int cacheLineSize() {
+		Path path = Paths.get("/sys/devices/system/cpu/cpu0/cache/index0/"
+				+ "coherency_line_size");
+		try {
+			int size = Integer.parseInt(new String(Files.readAllBytes(path))
+					.trim());
+			if (size >= 16 && Integer.bitCount(size) == 1)
+				return size;
+		} catch (IOException | NumberFormatException e) {
+			// Not Linux, or no cache information
+		}
+		return DEFAULT_LINE_SIZE;
+	}
+
+	/**
+	 * Returns the size of a memory page of the host in bytes, the kernel
+	 * page size of the first mapping in /proc/self/smaps where there is one
+	 */
+	public static int pageSize() {
+		Path path = Paths.get("/proc/self/smaps");
+		try (BufferedReader reader = Files.newBufferedReader(path)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("KernelPageSize:"))
+					continue;
+				// As in "KernelPageSize:        4 kB"
+				String[] fields = line.trim().split("\\s+");
+				int size = Integer.parseInt(fields[1]) * 1024;
+				if (fields[2].equals("kB") && Integer.bitCount(size) == 1)
+					return size;
+				break;
+			}
+		} catch (IOException | RuntimeException e) {
+			// Not Linux, or no page information
+		}
+		return DEFAULT_PAGE_SIZE;
+	}
+}
@@ -0,0 +1,96 @@
+package com.stack.gt.cse.c6140;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events of trees. They cost a check of a flag while no
+ * recording has them enabled.
+ *
+ * @author Brian
+ *
+ */
+final class TreeEvents {
+	private TreeEvents() {
+	}
+
+	@Name("com.stack.gt.cse.c6140.Split")
+	@Label("Node Split")
+	@Category("Context Tree")
+	@Description("A full node was split in two")
+	@StackTrace(false)
+	static class SplitEvent extends Event {
+		@Label("Depth")
+		@Description("Depth of the node, 0 for the root")
+		int depth;
+
+		@Label("Height")
+		int height;
+
+		@Label("Leaf")
+		boolean leaf;
+	}
+
+	// Checked before a split event is created, splits are frequent enough
+	// that creating one that is not recorded would show in allocations
+	static final EventType SPLIT = EventType.getEventType(SplitEvent.class);
+
+	@Name("com.stack.gt.cse.c6140.Rebuild")
+	@Label("Tree Rebuild")
+	@Category("Context Tree")
+	@Description("The tree was rebuilt one level higher after its root split")
+	@StackTrace(false)
+	static class RebuildEvent extends Event {
+		@Label("Height")
+		@Description("Height of the new tree")
+		int height;
+
+		@Label("Slots")
+		@Description("Node slots of the new tree")
+		int slots;
+	}
+
+	@Name("com.stack.gt.cse.c6140.Statistics")
+	@Label("Tree Statistics")
+	@Category("Context Tree")
+	@Period("1 s")
+	@StackTrace(false)
+	static class StatisticsEvent extends Event {
+		@Label("Tree")
+		String tree;
+
+		@Label("Height")
+		int height;
+
+		@Label("Occupied Slots")
+		int occupiedSlots;
+
+		@Label("Allocated Slots")
+		int allocatedSlots;
+
+		@Label("Node Memory")
+		@DataAmount
+		long nodeBytes;
+
+		@Label("Inserts")
+		long inserts;
+
+		@Label("Absorption Rate")
+		@Percentage
+		double absorptionRate;
+
+		@Label("Splits")
+		long splits;
+
+		@Label("Rebuilds")
+		long rebuilds;
+	}
+}
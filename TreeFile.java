@@ -0,0 +1,354 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A tree kept in a file. The file starts with a fixed size header followed
+ * by the node records of a NodeStore in the order the tree is laid out in,
+ * so the records are used straight from a mapping of the file and opening it
+ * reads nothing but the header. All ints are little endian.
+ *
+ * A file can instead be read and written through a BufferPool, a block of
+ * records at a time, which holds only the blocks in its frames in memory
+ * and has no limit on the size of the file.
+ *
+ * @author Brian
+ *
+ */
+class TreeFile {
+	static final int MAGIC = 0x45525443; // "CTRE"
+	static final int VERSION = 2;
+	static final int HEADER_BYTES = 64;
+
+	// Layout of the header, in ints
+	private static final int MAGIC_FIELD = 0;
+	private static final int VERSION_FIELD = 1;
+	private static final int BRANCHING_FACTOR = 2;
+	private static final int CLOSENESS_THRESHOLD = 3;
+	private static final int HEIGHT = 4;
+	private static final int CAPACITY = 5;
+	private static final int RECORD_SIZE = 6;
+	private static final int LAYOUT = 7; // Ordinal of the Layout
+
+	private final Path path;
+	private final MappedByteBuffer buffer; // Null if the file is pooled
+	private final FileChannel channel; // Open while the file is pooled
+	private final IntBuffer header;
+	private final NodeStore store;
+	private final boolean readOnly;
+
+	private TreeFile(Path path, MappedByteBuffer buffer, boolean readOnly) {
+		this.path = path;
+		this.buffer = buffer;
+		this.readOnly = readOnly;
+		channel = null;
+
+		header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+				.asIntBuffer();
+		IntBuffer records = buffer.duplicate().position(HEADER_BYTES)
+				.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		store = new NodeStore(records, header.get(CAPACITY),
+				header.get(BRANCHING_FACTOR), header.get(CLOSENESS_THRESHOLD));
+	}
+
+	private TreeFile(Path path, FileChannel channel, IntBuffer header,
+			BufferPool pool, boolean readOnly) {
+		this.path = path;
+		this.channel = channel;
+		this.header = header;
+		this.readOnly = readOnly;
+		buffer = null;
+
+		int capacity = header.get(CAPACITY);
+		BufferPool.Segment segment = pool.attach(channel, HEADER_BYTES,
+				header.get(RECORD_SIZE), capacity);
+		store = new NodeStore(pool, segment, capacity,
+				header.get(BRANCHING_FACTOR), header.get(CLOSENESS_THRESHOLD));
+	}
+
+	private TreeFile(Path path, TreeFile file) {
+		this.path = path;
+		this.buffer = file.buffer;
+		this.channel = file.channel;
+		this.header = file.header;
+		this.store = file.store;
+		this.readOnly = file.readOnly;
+	}
+
+	/**
+	 * Creates a file holding an empty tree and maps it for reading and
+	 * writing. An existing file at path is unlinked rather than truncated, so
+	 * a tree still mapped from it is not disturbed.
+	 *
+	 * @param path
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @param layout
+	 * @param height
+	 *            Height of the tree the file will hold
+	 * @param capacity
+	 *            Number of node records in the file
+	 * @return The mapped file
+	 */
+	static TreeFile create(Path path, int branchingFactor,
+			int closenessThreshold, Layout layout, int height, int capacity)
+			throws IOException {
+		return create(path, branchingFactor, closenessThreshold, layout,
+				height, capacity, null);
+	}
+
+	/**
+	 * Creates a file holding an empty tree, see create. The file is mapped,
+	 * or read and written through pool if there is one.
+	 *
+	 * @param path
+	 * @param branchingFactor
+	 * @param closenessThreshold
+	 * @param layout
+	 * @param height
+	 *            Height of the tree the file will hold
+	 * @param capacity
+	 *            Number of node records in the file
+	 * @param pool
+	 *            The pool, or null to map the file
+	 * @return The new file
+	 */
+	static TreeFile create(Path path, int branchingFactor,
+			int closenessThreshold, Layout layout, int height, int capacity,
+			BufferPool pool) throws IOException {
+		long size = fileSize(capacity, NodeStore.recordSize(branchingFactor));
+		if (pool == null && size > Integer.MAX_VALUE)
+			throw new IOException("Tree of " + capacity
+					+ " nodes is too large to map");
+
+		Files.deleteIfExists(path);
+		FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		ByteBuffer bytes;
+		MappedByteBuffer buffer = null;
+		try {
+			if (pool == null) {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				bytes = buffer;
+			} else {
+				bytes = ByteBuffer.allocate(HEADER_BYTES);
+			}
+
+			IntBuffer header = bytes.duplicate()
+					.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			header.put(MAGIC_FIELD, MAGIC);
+			header.put(VERSION_FIELD, VERSION);
+			header.put(BRANCHING_FACTOR, branchingFactor);
+			header.put(CLOSENESS_THRESHOLD, closenessThreshold);
+			header.put(HEIGHT, height);
+			header.put(CAPACITY, capacity);
+			header.put(RECORD_SIZE, NodeStore.recordSize(branchingFactor));
+			header.put(LAYOUT, layout.ordinal());
+			TreeFile file;
+			if (pool == null) {
+				channel.close();
+				file = new TreeFile(path, buffer, false);
+			} else {
+				// The records are left as a hole that reads as zeros
+				writeFully(channel, bytes, 0);
+				writeFully(channel, ByteBuffer.allocate(1), size - 1);
+				file = new TreeFile(path, channel, header, pool, false);
+			}
+			file.store.assumeEmpty();
+			return file;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps an existing tree file after checking its header
+	 *
+	 * @param path
+	 * @param writable
+	 *            False to map the file read only
+	 * @return The mapped file
+	 */
+	static TreeFile open(Path path, boolean writable) throws IOException {
+		return open(path, writable, null);
+	}
+
+	/**
+	 * Opens an existing tree file after checking its header, see open. The
+	 * file is mapped, or read and written through pool if there is one.
+	 *
+	 * @param path
+	 * @param writable
+	 *            False to open the file read only
+	 * @param pool
+	 *            The pool, or null to map the file
+	 * @return The open file
+	 */
+	static TreeFile open(Path path, boolean writable, BufferPool pool)
+			throws IOException {
+		MappedByteBuffer buffer;
+		FileChannel channel = writable ? FileChannel.open(path,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long fileSize = channel.size();
+			if (fileSize < HEADER_BYTES)
+				throw new IOException(path + " is not a tree file");
+
+			ByteBuffer bytes = ByteBuffer.allocate(HEADER_BYTES);
+			while (bytes.hasRemaining())
+				channel.read(bytes, bytes.position());
+			IntBuffer header = bytes.flip().order(ByteOrder.LITTLE_ENDIAN)
+					.asIntBuffer();
+			if (header.get(MAGIC_FIELD) != MAGIC)
+				throw new IOException(path + " is not a tree file");
+			if (header.get(VERSION_FIELD) != VERSION)
+				throw new IOException(path + " has unsupported version "
+						+ header.get(VERSION_FIELD));
+
+			int branchingFactor = header.get(BRANCHING_FACTOR);
+			int capacity = header.get(CAPACITY);
+			int recordSize = header.get(RECORD_SIZE);
+			if (branchingFactor < 1 || capacity < 1
+					|| recordSize != NodeStore.recordSize(branchingFactor)
+					|| header.get(HEIGHT) < 1 || header.get(LAYOUT) < 0
+					|| header.get(LAYOUT) >= Layout.values().length)
+				throw new IOException(path + " has a corrupt header");
+
+			long size = fileSize(capacity, recordSize);
+			if (fileSize < size)
+				throw new IOException(path + " is truncated");
+			if (pool != null)
+				return new TreeFile(path, channel, header, pool, !writable);
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(path + " is too large to map");
+
+			buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE
+					: FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		channel.close();
+
+		return new TreeFile(path, buffer, !writable);
+	}
+
+	/**
+	 * Returns the path a new version of the file at path is written to
+	 * before it replaces it
+	 *
+	 * @param path
+	 */
+	static Path scratchPath(Path path) {
+		return path.resolveSibling(path.getFileName() + ".new");
+	}
+
+	private static long fileSize(int capacity, int recordSize) {
+		return HEADER_BYTES + 4L * capacity * recordSize;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer bytes,
+			long position) throws IOException {
+		while (bytes.hasRemaining())
+			channel.write(bytes, position + bytes.position());
+	}
+
+	/**
+	 * Atomically renames the file to target, replacing any file there, and
+	 * forces the directory so the rename survives a crash. The mapping or
+	 * the blocks in the pool are kept.
+	 *
+	 * @param target
+	 * @return The file at its new path
+	 */
+	TreeFile moveTo(Path target) throws IOException {
+		Files.move(path, target, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory(target.toAbsolutePath().getParent());
+		return new TreeFile(target, this);
+	}
+
+	/**
+	 * Writes the entries of a directory to the storage device
+	 *
+	 * @param dir
+	 */
+	private static void forceDirectory(Path dir) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir, StandardOpenOption.READ);
+		} catch (IOException e) {
+			// Directories can not be opened on some systems, such as Windows,
+			// which are left to make the rename durable
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes every change made through the mapping or held in the pool to
+	 * the storage device
+	 */
+	void force() {
+		if (buffer != null)
+			buffer.force();
+		else
+			store.getPool().flush(store.getSegment());
+	}
+
+	/**
+	 * Stops using a pooled file once the tree has moved to another. Changes
+	 * not yet forced are dropped and the file is closed. A mapped file is
+	 * left to be unmapped once it is no longer reachable.
+	 */
+	void release() throws IOException {
+		if (channel == null)
+			return;
+		store.getPool().detach(store.getSegment());
+		channel.close();
+	}
+
+	NodeStore getStore() {
+		return store;
+	}
+
+	Path getPath() {
+		return path;
+	}
+
+	boolean isReadOnly() {
+		return readOnly;
+	}
+
+	int getBranchingFactor() {
+		return header.get(BRANCHING_FACTOR);
+	}
+
+	int getClosenessThreshold() {
+		return header.get(CLOSENESS_THRESHOLD);
+	}
+
+	Layout getLayout() {
+		return Layout.values()[header.get(LAYOUT)];
+	}
+
+	int getHeight() {
+		return header.get(HEIGHT);
+	}
+}
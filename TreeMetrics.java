@@ -0,0 +1,342 @@
+package com.stack.gt.cse.c6140;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Metrics of a tree that are cheap enough to leave on. Counters are striped
+ * so inserting threads do not contend on them, and insert latencies are
+ * kept in histograms with a bucket per power of two nanoseconds. Reading the
+ * clock costs about as much as a tenth of an insert, so only a random
+ * sample of single inserts is timed. Every batch is timed. Gauges such
+ * as the height and the slots in use are read from the tree when asked for.
+ *
+ * The metrics can be registered with the platform MBean server, which also
+ * adds a periodic flight recorder event of the tree's statistics. Splits and
+ * rebuilds are recorded as flight recorder events whether or not metrics
+ * are enabled, see TreeEvents.
+ *
+ * @author Brian
+ *
+ */
+public class TreeMetrics implements TreeMetricsMXBean {
+	static final int MAX_LEVELS = 64; // Deeper splits share the last level
+	static final String DOMAIN = "com.stack.gt.cse.c6140";
+	static final int LATENCY_SAMPLE = 16; // One in this many inserts is timed
+
+	private final ContextTree tree;
+
+	private final LongAdder inserts;
+	private final Histogram insertLatency; // Of the sampled inserts
+	private final Histogram batchLatency;
+	private final LongAdder absorbed;
+	private final LongAdder created;
+
+	// Splits and rebuilds happen with the tree held exclusively
+	private final AtomicLongArray splits;
+	private final LongAdder rebuilds;
+	private final LongAdder rebuildNanos;
+	private volatile long lastRebuildNanos;
+
+	private ObjectName name; // Name registered under, null if none
+	private String treeName; // Name of the tree given to register
+	private Runnable statistics; // Emits the periodic event
+
+	/**
+	 * Counts of durations in buckets of powers of two nanoseconds
+	 */
+	static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			buckets[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))]
+					.increment();
+		}
+
+		long count() {
+			long count = 0;
+			for (LongAdder bucket : buckets)
+				count += bucket.sum();
+			return count;
+		}
+
+		long[] counts() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = buckets[i].sum();
+			return counts;
+		}
+
+		/**
+		 * Returns the upper end of the bucket holding the given quantile, 0
+		 * if nothing was recorded
+		 */
+		long quantile(double q) {
+			long[] counts = counts();
+			long total = 0;
+			for (long count : counts)
+				total += count;
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen > 0 && seen >= q * total)
+					return i < 62 ? 1L << (i + 1) : Long.MAX_VALUE;
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Creates the metrics of a tree, see ContextTree.enableMetrics
+	 *
+	 * @param tree
+	 */
+	TreeMetrics(ContextTree tree) {
+		this.tree = tree;
+		inserts = new LongAdder();
+		insertLatency = new Histogram();
+		batchLatency = new Histogram();
+		absorbed = new LongAdder();
+		created = new LongAdder();
+		splits = new AtomicLongArray(MAX_LEVELS);
+		rebuilds = new LongAdder();
+		rebuildNanos = new LongAdder();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server under
+	 * com.stack.gt.cse.c6140:type=ContextTree,name=name, and starts emitting
+	 * a statistics event to flight recordings once a second
+	 *
+	 * @param name
+	 *            Name of the tree
+	 * @return The name the metrics are registered under
+	 * @throws JMException
+	 *             If the name is taken or can not be registered
+	 */
+	public synchronized ObjectName register(final String name)
+			throws JMException {
+		if (this.name != null)
+			throw new IllegalStateException("Metrics are registered as "
+					+ this.name);
+
+		ObjectName objectName = new ObjectName(DOMAIN
+				+ ":type=ContextTree,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				objectName);
+		this.name = objectName;
+		treeName = name;
+
+		statistics = new Runnable() {
+			public void run() {
+				emitStatistics(name);
+			}
+		};
+		FlightRecorder.addPeriodicEvent(TreeEvents.StatisticsEvent.class,
+				statistics);
+		return objectName;
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server and stops the
+	 * statistics event. Does nothing if they are not registered.
+	 */
+	public synchronized void unregister() {
+		if (name == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(name);
+		} catch (JMException e) {
+			// Already unregistered through the server
+		}
+		FlightRecorder.removePeriodicEvent(statistics);
+		name = null;
+		treeName = null;
+		statistics = null;
+	}
+
+	/**
+	 * Returns the name of the tree the metrics are registered under, null if
+	 * they are not registered
+	 */
+	synchronized String getTreeName() {
+		return treeName;
+	}
+
+	private void emitStatistics(String treeName) {
+		TreeEvents.StatisticsEvent event = new TreeEvents.StatisticsEvent();
+		if (!event.isEnabled())
+			return;
+		event.tree = treeName;
+		event.height = getHeight();
+		event.occupiedSlots = getOccupiedSlots();
+		event.allocatedSlots = getAllocatedSlots();
+		event.nodeBytes = tree.getNodeBytes();
+		event.inserts = getInserts();
+		event.absorptionRate = getAbsorptionRate();
+		event.splits = getSplits();
+		event.rebuilds = getRebuilds();
+		event.commit();
+	}
+
+	/**
+	 * Returns true if the next insert of the calling thread is to be timed
+	 */
+	boolean sampleInsert() {
+		return ThreadLocalRandom.current().nextInt(LATENCY_SAMPLE) == 0;
+	}
+
+	/**
+	 * Counts an insert
+	 *
+	 * @param nanos
+	 *            Time the insert took, negative if it was not timed
+	 */
+	void recordInsert(long nanos) {
+		inserts.increment();
+		if (nanos >= 0)
+			insertLatency.record(nanos);
+	}
+
+	void recordBatch(long nanos) {
+		batchLatency.record(nanos);
+	}
+
+	/**
+	 * Counts values placed in a leaf
+	 *
+	 * @param absorbedValues
+	 *            Values absorbed by a cluster
+	 * @param newClusters
+	 *            Values that started a cluster
+	 */
+	void recordValues(int absorbedValues, int newClusters) {
+		if (absorbedValues > 0)
+			absorbed.add(absorbedValues);
+		if (newClusters > 0)
+			created.add(newClusters);
+	}
+
+	void recordSplit(int depth) {
+		splits.incrementAndGet(Math.min(depth, MAX_LEVELS - 1));
+	}
+
+	void recordRebuild(long nanos) {
+		rebuilds.increment();
+		rebuildNanos.add(nanos);
+		lastRebuildNanos = nanos;
+	}
+
+	public long getInserts() {
+		return inserts.sum();
+	}
+
+	public long getBatches() {
+		return batchLatency.count();
+	}
+
+	public long[] getInsertLatencyHistogram() {
+		return insertLatency.counts();
+	}
+
+	public long[] getBatchLatencyHistogram() {
+		return batchLatency.counts();
+	}
+
+	public long getInsertLatencyMedianNanos() {
+		return insertLatency.quantile(0.5);
+	}
+
+	public long getInsertLatency99Nanos() {
+		return insertLatency.quantile(0.99);
+	}
+
+	public long getAbsorbedValues() {
+		return absorbed.sum();
+	}
+
+	public long getNewClusters() {
+		return created.sum();
+	}
+
+	public double getAbsorptionRate() {
+		long a = absorbed.sum();
+		long total = a + created.sum();
+		return total == 0 ? 0 : (double) a / total;
+	}
+
+	public long[] getSplitsPerLevel() {
+		int levels = 0;
+		for (int i = 0; i < MAX_LEVELS; i++) {
+			if (splits.get(i) != 0)
+				levels = i + 1;
+		}
+		long[] counts = new long[levels];
+		for (int i = 0; i < levels; i++)
+			counts[i] = splits.get(i);
+		return counts;
+	}
+
+	public long getSplits() {
+		long total = 0;
+		for (int i = 0; i < MAX_LEVELS; i++)
+			total += splits.get(i);
+		return total;
+	}
+
+	public long getRebuilds() {
+		return rebuilds.sum();
+	}
+
+	public long getRebuildNanos() {
+		return rebuildNanos.sum();
+	}
+
+	public long getLastRebuildNanos() {
+		return lastRebuildNanos;
+	}
+
+	public int getHeight() {
+		return tree.getHeight();
+	}
+
+	/**
+	 * Kept by the store of the tree, only the first call on a tree opened
+	 * from a file visits its slots
+	 */
+	public int getOccupiedSlots() {
+		return tree.getOccupiedSlots();
+	}
+
+	public int getAllocatedSlots() {
+		return tree.getAllocatedSlots();
+	}
+
+	/**
+	 * Counts the blocks of the whole pool, which may be shared with other
+	 * trees
+	 */
+	public long getBlockReads() {
+		BufferPool pool = tree.getBufferPool();
+		return pool == null ? 0 : pool.getBlockReads();
+	}
+
+	public long getBlockWrites() {
+		BufferPool pool = tree.getBufferPool();
+		return pool == null ? 0 : pool.getBlockWrites();
+	}
+}
@@ -0,0 +1,107 @@
+package com.stack.gt.cse.c6140;
+
+/**
+ * Metrics of a tree as seen through JMX, see TreeMetrics
+ *
+ * @author Brian
+ *
+ */
+public interface TreeMetricsMXBean {
+	/**
+	 * Returns the number of single inserts made
+	 */
+	long getInserts();
+
+	/**
+	 * Returns the number of batches inserted
+	 */
+	long getBatches();
+
+	/**
+	 * Returns counts of insert latencies of a sample of the inserts. Entry i
+	 * counts the inserts that took from 2^i up to 2^(i+1) nanoseconds.
+	 */
+	long[] getInsertLatencyHistogram();
+
+	/**
+	 * Returns counts of batch latencies, see getInsertLatencyHistogram
+	 */
+	long[] getBatchLatencyHistogram();
+
+	/**
+	 * Returns an upper bound of the median insert latency in nanoseconds
+	 */
+	long getInsertLatencyMedianNanos();
+
+	/**
+	 * Returns an upper bound of the 99th percentile of insert latency in
+	 * nanoseconds
+	 */
+	long getInsertLatency99Nanos();
+
+	/**
+	 * Returns the number of values absorbed by an existing cluster
+	 */
+	long getAbsorbedValues();
+
+	/**
+	 * Returns the number of values that started a new cluster
+	 */
+	long getNewClusters();
+
+	/**
+	 * Returns the share of values absorbed by an existing cluster
+	 */
+	double getAbsorptionRate();
+
+	/**
+	 * Returns the number of nodes split at each depth, the root first
+	 */
+	long[] getSplitsPerLevel();
+
+	/**
+	 * Returns the number of nodes split
+	 */
+	long getSplits();
+
+	/**
+	 * Returns the number of rebuilds
+	 */
+	long getRebuilds();
+
+	/**
+	 * Returns the time spent building new trees in nanoseconds
+	 */
+	long getRebuildNanos();
+
+	/**
+	 * Returns the time the last rebuild took in nanoseconds
+	 */
+	long getLastRebuildNanos();
+
+	/**
+	 * Returns the height of the tree
+	 */
+	int getHeight();
+
+	/**
+	 * Returns the number of node slots that hold a node
+	 */
+	int getOccupiedSlots();
+
+	/**
+	 * Returns the number of node slots of the tree
+	 */
+	int getAllocatedSlots();
+
+	/**
+	 * Returns the number of blocks read by the buffer pool of the tree, 0 if
+	 * its nodes are not read through a pool
+	 */
+	long getBlockReads();
+
+	/**
+	 * Returns the number of blocks the buffer pool of the tree wrote back
+	 */
+	long getBlockWrites();
+}
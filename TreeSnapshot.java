@@ -0,0 +1,328 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of the nodes of a tree. Only occupied locations
+ * are written, in order of location, each as the gap from the one before.
+ * Every count and field of a node is a varint, and values are written as
+ * the difference from the value before them, zigzag encoded so small
+ * negative differences stay short. Children are written as their offset
+ * from the node. A CRC32 of everything before it ends the snapshot.
+ *
+ * Restoring decodes the records straight into a new store in one
+ * sequential pass, leaving the tree exactly as it was.
+ *
+ * @author Brian
+ *
+ */
+final class TreeSnapshot {
+	static final int MAGIC = 0x4E535443; // "CTSN"
+	static final int VERSION = 1;
+	static final int BUFFER_BYTES = 1 << 16;
+
+	/**
+	 * Header of a snapshot
+	 */
+	static class Header {
+		int branchingFactor;
+		int closenessThreshold;
+		Layout layout;
+		int height;
+		int capacity;
+		int nodes; // Occupied locations
+	}
+
+	private TreeSnapshot() {
+	}
+
+	/**
+	 * Writes the nodes of a store
+	 *
+	 * @param out
+	 * @param store
+	 * @param layout
+	 * @param height
+	 *            Height of the tree held by the store
+	 */
+	static void write(OutputStream out, NodeStore store, Layout layout,
+			int height) throws IOException {
+		int width = store.getWidth();
+		int nodes = store.countOccupied();
+
+		Encoder encoder = new Encoder(out);
+		encoder.writeFixed(MAGIC);
+		encoder.writeInt(VERSION);
+		encoder.writeInt(store.getBranchingFactor());
+		encoder.writeInt(store.getClosenessThreshold());
+		encoder.writeInt(layout.ordinal());
+		encoder.writeInt(height);
+		encoder.writeInt(store.getCapacity());
+		encoder.writeInt(nodes);
+
+		int[] record = new int[store.getStride()];
+		int previous = -1;
+		for (int loc = store.nextWritten(0); loc < store.getCapacity(); loc = store
+				.nextWritten(loc + 1)) {
+			if (!store.isOccupied(loc))
+				continue;
+			encoder.writeInt(loc - previous - 1);
+			previous = loc;
+
+			store.readRecord(loc, record);
+			int numChildren = record[NodeStore.NUM_CHILDREN];
+			int numValues = record[NodeStore.NUM_VALUES];
+			int min = record[NodeStore.MIN_VALUE];
+			encoder.writeInt(record[NodeStore.FLAGS]);
+			encoder.writeInt(numChildren);
+			encoder.writeInt(numValues);
+			encoder.writeSigned(((long) record[NodeStore.VALS_TOT_HIGH] << 32)
+					| (record[NodeStore.VALS_TOT] & 0xffffffffL));
+			encoder.writeInt(record[NodeStore.POINTS_TOT]);
+			encoder.writeSigned(record[NodeStore.FARTHEST_DIST]);
+			encoder.writeInt(record[NodeStore.FARTHEST_FIRST]);
+			encoder.writeInt(record[NodeStore.FARTHEST_SECOND]);
+			encoder.writeSigned(min);
+			encoder.writeSigned((long) record[NodeStore.MAX_VALUE] - min);
+
+			int children = NodeStore.HEADER_SIZE;
+			int values = children + width;
+			int points = values + width;
+			long value = min;
+			for (int i = 0; i < numValues; i++) {
+				encoder.writeSigned(record[values + i] - value);
+				value = record[values + i];
+				encoder.writeInt(record[points + i]);
+			}
+			for (int i = 0; i < numChildren; i++)
+				encoder.writeSigned((long) record[children + i] - loc);
+		}
+		encoder.finish();
+	}
+
+	/**
+	 * Reads the header of a snapshot, leaving the decoder at the first node
+	 */
+	static Header readHeader(Decoder decoder) throws IOException {
+		if (decoder.readFixed() != MAGIC)
+			throw new IOException("Not a tree snapshot");
+		int version = decoder.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version);
+
+		Header header = new Header();
+		header.branchingFactor = decoder.readInt();
+		header.closenessThreshold = decoder.readInt();
+		int layout = decoder.readInt();
+		header.height = decoder.readInt();
+		header.capacity = decoder.readInt();
+		header.nodes = decoder.readInt();
+		if (header.branchingFactor < 1 || layout < 0
+				|| layout >= Layout.values().length || header.height < 1
+				|| header.capacity < 1 || header.nodes < 1
+				|| header.nodes > header.capacity)
+			throw new IOException("Snapshot has a corrupt header");
+		header.layout = Layout.values()[layout];
+		return header;
+	}
+
+	/**
+	 * Reads the nodes of a snapshot into an empty store of the capacity and
+	 * branching factor given by the header, then checks the CRC
+	 */
+	static void readNodes(Decoder decoder, Header header, NodeStore store)
+			throws IOException {
+		int width = store.getWidth();
+		int[] record = new int[store.getStride()];
+
+		int loc = -1;
+		for (int n = 0; n < header.nodes; n++) {
+			loc += decoder.readInt() + 1;
+			if (loc < 0 || loc >= header.capacity)
+				throw new IOException("Snapshot has a node outside the tree");
+
+			Arrays.fill(record, 0);
+			int flags = decoder.readInt();
+			int numChildren = decoder.readInt();
+			int numValues = decoder.readInt();
+			if ((flags & NodeStore.FLAG_OCCUPIED) == 0 || numChildren > width
+					|| numValues > width)
+				throw new IOException("Snapshot has a corrupt node");
+			record[NodeStore.FLAGS] = flags;
+			record[NodeStore.NUM_CHILDREN] = numChildren;
+			record[NodeStore.NUM_VALUES] = numValues;
+			long valsTot = decoder.readSigned();
+			record[NodeStore.VALS_TOT] = (int) valsTot;
+			record[NodeStore.VALS_TOT_HIGH] = (int) (valsTot >>> 32);
+			record[NodeStore.POINTS_TOT] = decoder.readInt();
+			record[NodeStore.FARTHEST_DIST] = (int) decoder.readSigned();
+			record[NodeStore.FARTHEST_FIRST] = decoder.readInt();
+			record[NodeStore.FARTHEST_SECOND] = decoder.readInt();
+			long min = decoder.readSigned();
+			record[NodeStore.MIN_VALUE] = (int) min;
+			record[NodeStore.MAX_VALUE] = (int) (min + decoder.readSigned());
+
+			int children = NodeStore.HEADER_SIZE;
+			int values = children + width;
+			int points = values + width;
+			long value = min;
+			for (int i = 0; i < numValues; i++) {
+				value += decoder.readSigned();
+				record[values + i] = (int) value;
+				record[points + i] = decoder.readInt();
+			}
+			for (int i = 0; i < numChildren; i++) {
+				long child = loc + decoder.readSigned();
+				if (child <= 0 || child >= header.capacity)
+					throw new IOException("Snapshot has a child outside the tree");
+				record[children + i] = (int) child;
+			}
+			store.writeRecord(loc, record);
+		}
+		decoder.finish();
+	}
+
+	/**
+	 * Writes varints through a buffer, keeping a CRC of everything written
+	 */
+	static class Encoder {
+		private final OutputStream out;
+		private final byte[] buffer = new byte[BUFFER_BYTES];
+		private final CRC32 crc = new CRC32();
+		private int length;
+
+		Encoder(OutputStream out) {
+			this.out = out;
+		}
+
+		void writeFixed(int value) throws IOException {
+			for (int i = 0; i < 4; i++)
+				writeByte(value >>> (8 * i));
+		}
+
+		/**
+		 * Writes an int that is not negative in the fewest bytes. Negative
+		 * ints take five.
+		 */
+		void writeInt(int value) throws IOException {
+			writeUnsigned(value & 0xffffffffL);
+		}
+
+		/**
+		 * Writes a long whose magnitude is small in few bytes
+		 */
+		void writeSigned(long value) throws IOException {
+			writeUnsigned((value << 1) ^ (value >> 63));
+		}
+
+		private void writeUnsigned(long value) throws IOException {
+			if (length > buffer.length - 10)
+				flush();
+			while ((value & ~0x7fL) != 0) {
+				buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buffer[length++] = (byte) value;
+		}
+
+		private void writeByte(int value) throws IOException {
+			if (length == buffer.length)
+				flush();
+			buffer[length++] = (byte) value;
+		}
+
+		private void flush() throws IOException {
+			crc.update(buffer, 0, length);
+			out.write(buffer, 0, length);
+			length = 0;
+		}
+
+		/**
+		 * Writes the CRC and flushes the stream
+		 */
+		void finish() throws IOException {
+			flush();
+			writeFixed((int) crc.getValue());
+			out.write(buffer, 0, length);
+			length = 0;
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads what an Encoder wrote, checking the CRC at the end
+	 */
+	static class Decoder {
+		private final InputStream in;
+		private final byte[] buffer = new byte[BUFFER_BYTES];
+		private final CRC32 crc = new CRC32();
+		private int position;
+		private int limit;
+
+		Decoder(InputStream in) {
+			this.in = in;
+		}
+
+		int readFixed() throws IOException {
+			int value = 0;
+			for (int i = 0; i < 4; i++)
+				value |= readByte() << (8 * i);
+			return value;
+		}
+
+		int readInt() throws IOException {
+			long value = readUnsigned();
+			if (value >>> 32 != 0)
+				throw new IOException("Snapshot has a corrupt varint");
+			return (int) value;
+		}
+
+		long readSigned() throws IOException {
+			long value = readUnsigned();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readUnsigned() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Snapshot has a corrupt varint");
+		}
+
+		private int readByte() throws IOException {
+			if (position == limit) {
+				crc.update(buffer, 0, limit);
+				limit = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					throw new EOFException("Snapshot is truncated");
+				}
+			}
+			return buffer[position++] & 0xff;
+		}
+
+		/**
+		 * Checks the CRC that follows the nodes
+		 */
+		void finish() throws IOException {
+			crc.update(buffer, 0, position);
+			long expected = crc.getValue();
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+			crc.reset(); // The CRC is not part of what it covers
+			if ((readFixed() & 0xffffffffL) != expected)
+				throw new IOException("Snapshot is corrupt, its CRC does not match");
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.stack.gt.cse.c6140;
+
+/**
+ * Scans over the values of a node held in an int array: the value closest to
+ * or farthest from a given value, and the smallest and largest values. Nodes
+ * on the heap use the vectorized scan in vector/VectorScan.java for nodes of
+ * at least MIN_WIDTH values when it is available, and their own scalar loops
+ * otherwise.
+ *
+ * VectorScan uses the incubating jdk.incubator.vector module, so it is kept
+ * out of the main sources and compiled on its own:
+ *
+ * javac --add-modules jdk.incubator.vector -cp classes -d classes
+ * vector/VectorScan.java
+ *
+ * and used when the JVM runs with --add-modules jdk.incubator.vector. It is
+ * turned off with -Dcontexttree.vector=false, and the width it starts at is
+ * set with -Dcontexttree.vector.minWidth.
+ *
+ * @author Brian
+ *
+ */
+abstract class ValueScan {
+	/**
+	 * Fewest values a node must hold for the vectorized scan to be used. Below
+	 * this the scalar loops are faster, see the scan benchmark of
+	 * TreeBenchmark.
+	 */
+	static final int MIN_WIDTH = Integer.getInteger(
+			"contexttree.vector.minWidth", 32);
+
+	/**
+	 * The scalar loops, the same as those of Node
+	 */
+	static final ValueScan SCALAR = new Scalar();
+
+	/**
+	 * The vectorized scan, or null if it is not available
+	 */
+	static final ValueScan VECTOR = loadVector();
+
+	/**
+	 * Returns the index, from from, of the first of count values whose
+	 * distance to value is smallest, or 0 if count is 0. Distances are
+	 * computed in int arithmetic, as Node does.
+	 */
+	abstract int closest(int[] a, int from, int count, int value);
+
+	/**
+	 * Returns the index, from from, of the first of count values whose
+	 * distance to value is largest, or 0 if count is 0
+	 */
+	abstract int farthest(int[] a, int from, int count, int value);
+
+	/**
+	 * Returns the smallest of count values in the high half and the largest in
+	 * the low half, Integer.MAX_VALUE and Integer.MIN_VALUE if count is 0
+	 */
+	abstract long extent(int[] a, int from, int count);
+
+	static int extentMin(long extent) {
+		return (int) (extent >> 32);
+	}
+
+	static int extentMax(long extent) {
+		return (int) extent;
+	}
+
+	static long extentOf(int min, int max) {
+		return ((long) min << 32) | (max & 0xffffffffL);
+	}
+
+	private static ValueScan loadVector() {
+		if (!Boolean.parseBoolean(System.getProperty("contexttree.vector",
+				"true")))
+			return null;
+		try {
+			return (ValueScan) Class.forName(
+					ValueScan.class.getPackage().getName() + ".VectorScan")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Not compiled, or the module was not added to the JVM
+			return null;
+		}
+	}
+
+	private static class Scalar extends ValueScan {
+		int closest(int[] a, int from, int count, int value) {
+			int closest = 0;
+			int closestDist = Integer.MAX_VALUE;
+			for (int i = 0; i < count; i++) {
+				int dist = Math.abs(value - a[from + i]);
+				if (dist < closestDist) {
+					closestDist = dist;
+					closest = i;
+				}
+			}
+			return closest;
+		}
+
+		int farthest(int[] a, int from, int count, int value) {
+			int farthest = 0;
+			int farthestDist = Integer.MIN_VALUE;
+			for (int i = 0; i < count; i++) {
+				int dist = Math.abs(value - a[from + i]);
+				if (dist > farthestDist) {
+					farthestDist = dist;
+					farthest = i;
+				}
+			}
+			return farthest;
+		}
+
+		long extent(int[] a, int from, int count) {
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (int i = from; i < from + count; i++) {
+				min = Math.min(min, a[i]);
+				max = Math.max(max, a[i]);
+			}
+			return extentOf(min, max);
+		}
+	}
+}
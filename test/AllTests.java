@@ -0,0 +1,40 @@
+package com.stack.gt.cse.c6140;
+
+/**
+ * Runs every test, see Check for how to build and run them
+ *
+ * @author Brian
+ *
+ */
+final class AllTests {
+	private AllTests() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		InsertTest.run();
+		ConcurrentInsertTest.run();
+		RebuildTest.run();
+		BulkLoadTest.run();
+		BatchInsertTest.run();
+		FileTest.run();
+		BenchmarkTest.run();
+		QueryTest.run();
+		LayoutTest.run();
+		CacheSimulatorTest.run();
+		LayoutTableTest.run();
+		ValueScanTest.run();
+		RemoveDecayTest.run();
+		IngestTest.run();
+		SnapshotTest.run();
+		ParallelRebuildTest.run();
+		ForestTest.run();
+		ConcurrentReadTest.run();
+		MetricsTest.run();
+		TreeConfigTest.run();
+		SparseTest.run();
+		StatsTest.run();
+		MergeTest.run();
+		PoolTest.run();
+		Check.exit();
+	}
+}
@@ -0,0 +1,126 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of batch inserts, which must keep every point of a batch however
+ * its values are routed
+ *
+ * @author Brian
+ *
+ */
+final class BatchInsertTest {
+	private BatchInsertTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws Exception {
+		distinctValues();
+		absorbedValues();
+		equalValues();
+		concurrentBatches();
+	}
+
+	/**
+	 * With no threshold every distinct value is a cluster of its own, so
+	 * the clusters are the values whatever node they were routed to
+	 */
+	private static void distinctValues() {
+		for (int b : new int[] { 4, 8, 33 }) {
+			ContextTree tree = new ContextTree(b, 0);
+			tree.setBackgroundRebuild(false);
+			Random random = new Random(b);
+			int[] all = random.ints(0, 1 << 30).distinct().limit(20000)
+					.toArray();
+			int inserted = 0;
+			while (inserted < all.length) {
+				int count = Math.min(all.length - inserted,
+						1 + random.nextInt(3000));
+				int[] batch = Arrays.copyOfRange(all, inserted, inserted
+						+ count + 10);
+				int[] copy = batch.clone();
+				tree.insertBatch(batch, count);
+				Check.isTrue("B=" + b + " batch left as it was",
+						Arrays.equals(copy, batch));
+				inserted += count;
+			}
+
+			long[] expected = new long[all.length];
+			for (int i = 0; i < all.length; i++)
+				expected[i] = (long) all[i] << 32 | 1;
+			Arrays.sort(expected);
+			String what = "distinct B=" + b;
+			Check.equal(what + " clusters", expected,
+					TreeChecks.clusters(tree));
+			Check.equal(what + " points", all.length,
+					TreeChecks.checkStructure(what, tree));
+		}
+	}
+
+	private static void absorbedValues() {
+		for (int b : new int[] { 4, 16 }) {
+			for (int threshold : new int[] { 5, 500 }) {
+				String what = "absorbed B=" + b + " threshold=" + threshold;
+				ContextTree tree = new ContextTree(b, threshold);
+				Random random = new Random(threshold);
+				long total = 0;
+				for (int k = 0; k < 20; k++) {
+					int[] batch = new int[1 + random.nextInt(3000)];
+					for (int i = 0; i < batch.length; i++)
+						batch[i] = random.nextInt(1 << 20);
+					tree.insertBatch(batch, batch.length);
+					tree.insert(random.nextInt(1 << 20));
+					total += batch.length + 1;
+				}
+				tree.awaitRebuild();
+				long[] clusters = TreeChecks.clusters(tree);
+				Check.equal(what + " cluster points", total,
+						TreeChecks.totalPoints(clusters));
+				Check.equal(what + " points", total,
+						TreeChecks.checkStructure(what, tree));
+			}
+		}
+	}
+
+	/**
+	 * Equal values of a batch go to the same cluster
+	 */
+	private static void equalValues() {
+		ContextTree tree = new ContextTree(8, 0);
+		int[] batch = new int[500];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = i % 5 * 1000;
+		tree.insertBatch(batch, batch.length);
+		Check.equal("equal values", new long[] { 100, 1000L << 32 | 100,
+				2000L << 32 | 100, 3000L << 32 | 100, 4000L << 32 | 100 },
+				TreeChecks.clusters(tree));
+	}
+
+	private static void concurrentBatches() throws InterruptedException {
+		final ContextTree tree = new ContextTree(8, 3);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread(() -> {
+				Random random = new Random(seed);
+				int[] batch = new int[500];
+				for (int k = 0; k < 40; k++) {
+					for (int i = 0; i < batch.length; i++)
+						batch[i] = random.nextInt(1 << 22);
+					tree.insertBatch(batch, batch.length);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		tree.awaitRebuild();
+		Check.equal("concurrent batches points", 4 * 40 * 500,
+				TreeChecks.checkStructure("concurrent batches", tree));
+	}
+}
@@ -0,0 +1,101 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Tests of the benchmark driver: its value distributions, and a short run
+ * of every benchmark that must print a line of results for each
+ *
+ * @author Brian
+ *
+ */
+final class BenchmarkTest {
+	private static final String ALL = "insert,lookup,split,rebuild,window,"
+			+ "treemap-insert,treemap-lookup,bfs-lookup,scan-scalar,"
+			+ "scan-vector";
+
+	private BenchmarkTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		distributions();
+		runs("plain");
+		runs("cache", "-cache", "64,32768");
+		runs("pool", "-bench", "insert,lookup", "-pool", "8", "-eviction",
+				"clock");
+		Check.fails("unknown option", IllegalArgumentException.class,
+				() -> TreeBenchmark.main(new String[] { "-x", "1" }));
+		Check.fails("unknown benchmark", IllegalArgumentException.class,
+				() -> quietly(() -> TreeBenchmark.main(new String[] {
+						"-bench", "x" })));
+	}
+
+	private static void distributions() {
+		for (String dist : new String[] { "uniform", "zipf", "sorted" }) {
+			int[] values = TreeBenchmark.generate(dist, 10000, 1000, 5);
+			Check.equal(dist + " count", 10000, values.length);
+			Check.isTrue(dist + " in range", Arrays.stream(values).allMatch(
+					v -> v >= 0 && v < 1000));
+			Check.isTrue(dist + " repeatable", Arrays.equals(values,
+					TreeBenchmark.generate(dist, 10000, 1000, 5)));
+		}
+		int[] sorted = TreeBenchmark.generate("sorted", 10000, 1000, 5);
+		int[] uniform = TreeBenchmark.generate("uniform", 10000, 1000, 5);
+		Arrays.sort(uniform);
+		Check.isTrue("sorted is uniform in order", Arrays.equals(sorted,
+				uniform));
+
+		// A few values of a zipf distribution take most of the draws
+		int[] zipf = TreeBenchmark.generate("zipf", 10000, 1 << 20, 5);
+		long distinct = Arrays.stream(zipf).distinct().count();
+		Check.isTrue("zipf is skewed, " + distinct + " distinct",
+				distinct < 5000);
+		Check.fails("unknown distribution", IllegalArgumentException.class,
+				() -> TreeBenchmark.generate("x", 1, 1, 1));
+	}
+
+	/**
+	 * Runs the benchmarks on a few values and checks that each printed its
+	 * results
+	 */
+	private static void runs(String what, String... options) {
+		String[] args = { "-bench", ALL, "-n", "300", "-b", "8", "-t", "2",
+				"-dist", "uniform", "-warmup", "1", "-iterations", "1" };
+		args = Arrays.copyOf(args, args.length + options.length);
+		System.arraycopy(options, 0, args, args.length - options.length,
+				options.length);
+		final String[] all = args;
+
+		String out = quietly(() -> TreeBenchmark.main(all));
+		String bench = ALL;
+		for (int i = 0; i + 1 < options.length; i += 2) {
+			if (options[i].equals("-bench"))
+				bench = options[i + 1];
+		}
+		for (String name : bench.split(","))
+			Check.isTrue(what + " printed " + name, out.contains("\n" + name
+					+ " "));
+	}
+
+	/**
+	 * Runs the action with its output captured and returns the output
+	 */
+	private static String quietly(Runnable action) {
+		PrintStream out = System.out;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true));
+		try {
+			action.run();
+		} finally {
+			System.setOut(out);
+		}
+		return captured.toString();
+	}
+}
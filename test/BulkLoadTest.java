@@ -0,0 +1,113 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Tests of bulk loading against clusters formed by a plain scan of the
+ * sorted values
+ *
+ * @author Brian
+ *
+ */
+final class BulkLoadTest {
+	private BulkLoadTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		Random random = new Random(4);
+		for (Layout layout : Layout.values()) {
+			for (int b : new int[] { 4, 8, 33 }) {
+				for (int threshold : new int[] { 0, 1, 64 }) {
+					int[] values = new int[1 + random.nextInt(30000)];
+					for (int i = 0; i < values.length; i++)
+						values[i] = random.nextInt(1 << 20) - (1 << 19);
+					loads(layout, b, threshold, values);
+				}
+			}
+		}
+		singleValues();
+		rejects();
+	}
+
+	private static void loads(Layout layout, int b, int threshold,
+			int[] values) {
+		String what = layout + " B=" + b + " threshold=" + threshold + " "
+				+ values.length + " values";
+		ContextTree tree = ContextTree.bulkLoad(values, b, threshold, layout);
+		long[] expected = expectedClusters(values, threshold);
+		Check.equal(what + " clusters", expected, TreeChecks.clusters(tree));
+		Check.equal(what + " points", values.length,
+				TreeChecks.checkStructure(what, tree));
+
+		// As few levels as hold the clusters
+		int height = 1;
+		for (long leaves = b; leaves < expected.length; leaves *= b)
+			height++;
+		Check.equal(what + " height", height, tree.getHeight());
+
+		// The tree takes inserts like any other
+		tree.setBackgroundRebuild(false);
+		for (int i = 0; i < 1000; i++)
+			tree.insert(values[i % values.length] + i);
+		Check.equal(what + " points after inserts", values.length + 1000,
+				TreeChecks.checkStructure(what + " after inserts", tree));
+	}
+
+	private static void singleValues() {
+		ContextTree empty = ContextTree.bulkLoad(new int[0], 8, 0);
+		Check.equal("empty load clusters", 0, TreeChecks.clusters(empty).length);
+		Check.fails("empty load nearest", NoSuchElementException.class,
+				() -> empty.nearestCluster(0));
+		empty.insert(5);
+		Check.equal("empty load takes inserts", 5, empty.nearestCluster(0));
+
+		int[] same = new int[1000];
+		Arrays.fill(same, Integer.MIN_VALUE);
+		ContextTree one = ContextTree.bulkLoad(same, 8, 1);
+		Check.equal("equal values form one cluster",
+				new long[] { (long) Integer.MIN_VALUE << 32 | 1000 },
+				TreeChecks.clusters(one));
+	}
+
+	private static void rejects() {
+		Check.fails("unsorted values", IllegalArgumentException.class,
+				() -> ContextTree.bulkLoadSorted(Arrays.stream(
+						new int[] { 1, 3, 2 }).iterator(), 8, 0));
+	}
+
+	/**
+	 * Forms the clusters of sorted values the way an insert absorbs a value
+	 * into the closest value of a leaf, each value joining the cluster
+	 * before it when it is closer than the threshold
+	 */
+	private static long[] expectedClusters(int[] values, int threshold) {
+		int[] sorted = values.clone();
+		Arrays.sort(sorted);
+		long[] clusters = new long[sorted.length];
+		int count = 0;
+		long mean = 0;
+		long points = 0;
+		for (int value : sorted) {
+			if (points > 0 && Math.abs(mean - value) < threshold) {
+				mean = Math.round((double) (mean * points + value)
+						/ (points + 1));
+				points++;
+			} else {
+				if (points > 0)
+					clusters[count++] = mean << 32 | points;
+				mean = value;
+				points = 1;
+			}
+		}
+		if (points > 0)
+			clusters[count++] = mean << 32 | points;
+		return Arrays.copyOf(clusters, count);
+	}
+}
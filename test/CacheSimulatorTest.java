@@ -0,0 +1,136 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of the cache simulator against a list kept in LRU order, and of the
+ * operations it counts for an instrumented tree
+ *
+ * @author Brian
+ *
+ */
+final class CacheSimulatorTest {
+	private CacheSimulatorTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		for (int blockSize : new int[] { 1, 64, 4096 }) {
+			for (int blocks : new int[] { 1, 4, 100 })
+				againstList(blockSize, blocks);
+		}
+		operations();
+		Check.fails("cache smaller than a block",
+				IllegalArgumentException.class,
+				() -> new CacheSimulator(64, 63));
+	}
+
+	private static void againstList(int blockSize, int blocks) {
+		String what = "block " + blockSize + " cache " + blocks;
+		CacheSimulator simulator = new CacheSimulator(blockSize,
+				(long) blockSize * blocks + blockSize / 2);
+		Check.equal(what + " size", (long) blockSize * blocks, simulator
+				.getCacheSize());
+		List<Long> lru = new ArrayList<Long>(); // Most recent last
+		long accesses = 0;
+		long transfers = 0;
+		Random random = new Random(blockSize * 31 + blocks);
+		long base = simulator.newAddressSpace();
+		for (int i = 0; i < 20000; i++) {
+			long address = base + random.nextInt(blockSize * blocks * 3);
+			int length = 1 + random.nextInt(2 * blockSize);
+			simulator.access(address, length);
+			for (long block = address / blockSize; block <= (address
+					+ length - 1)
+					/ blockSize; block++) {
+				accesses++;
+				if (!lru.remove(block)) {
+					transfers++;
+					if (lru.size() == blocks)
+						lru.remove(0);
+				}
+				lru.add(block);
+			}
+		}
+		Check.equal(what + " accesses", accesses, simulator.getAccesses());
+		Check.equal(what + " transfers", transfers, simulator
+				.getTransfers());
+
+		simulator.reset();
+		Check.equal(what + " reset", 0, simulator.getAccesses()
+				+ simulator.getTransfers());
+		simulator.access(base, 1);
+		Check.equal(what + " empty after reset", 1, simulator
+				.getTransfers());
+	}
+
+	/**
+	 * An instrumented tree counts each operation once, and holds what an
+	 * uninstrumented one does
+	 */
+	private static void operations() {
+		CacheSimulator simulator = new CacheSimulator(64, 1 << 16);
+		ContextTree tree = new ContextTree(8, 2);
+		ContextTree plain = new ContextTree(8, 2);
+		tree.setBackgroundRebuild(false);
+		plain.setBackgroundRebuild(false);
+		tree.setCacheSimulator(simulator);
+		Check.isTrue("simulator set", tree.getCacheSimulator() == simulator);
+
+		Random random = new Random(10);
+		for (int i = 0; i < 5000; i++) {
+			int value = random.nextInt(1 << 20);
+			tree.insert(value);
+			plain.insert(value);
+		}
+		int[] batch = random.ints(1000, 0, 1 << 20).toArray();
+		tree.insertBatch(batch, batch.length);
+		plain.insertBatch(batch, batch.length);
+		for (int i = 0; i < 300; i++)
+			tree.nearestCluster(random.nextInt(1 << 20));
+		for (int i = 0; i < 100; i++) {
+			int value = batch[i];
+			tree.remove(value);
+			plain.remove(value);
+		}
+		tree.decay(0.4);
+		plain.decay(0.4);
+
+		Check.equal("inserts", 5000, simulator
+				.getOperations(CacheSimulator.Operation.INSERT));
+		Check.equal("batches", 1, simulator
+				.getOperations(CacheSimulator.Operation.BATCH));
+		Check.equal("queries", 300, simulator
+				.getOperations(CacheSimulator.Operation.QUERY));
+		Check.equal("removals", 100, simulator
+				.getOperations(CacheSimulator.Operation.REMOVE));
+		Check.equal("decays", 1, simulator
+				.getOperations(CacheSimulator.Operation.DECAY));
+		Check.isTrue("rebuilds", simulator
+				.getOperations(CacheSimulator.Operation.REBUILD) > 0);
+		for (CacheSimulator.Operation operation : CacheSimulator.Operation
+				.values()) {
+			long counted = 0;
+			for (long count : simulator.getHistogram(operation))
+				counted += count;
+			Check.equal(operation + " histogram", simulator
+					.getOperations(operation), counted);
+		}
+		Check.isTrue("inserts made transfers", simulator
+				.getMeanTransfers(CacheSimulator.Operation.INSERT) > 0);
+
+		Check.equal("instrumented clusters", TreeChecks.clusters(plain),
+				TreeChecks.clusters(tree));
+
+		tree.setCacheSimulator(null);
+		tree.insert(1);
+		Check.equal("not counted once removed", 5000, simulator
+				.getOperations(CacheSimulator.Operation.INSERT));
+	}
+}
@@ -0,0 +1,85 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Arrays;
+
+/**
+ * Assertions of the tests. Each test is a plain program in this directory
+ * that can be run on its own, AllTests runs all of them:
+ *
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -d out *.java vector/*.java test/*.java
+ * java --add-modules jdk.incubator.vector -cp out com.stack.gt.cse.c6140.AllTests
+ * </pre>
+ *
+ * A check that fails is reported and counted, and the test goes on with
+ * the next one. The program exits with status 1 if any failed.
+ *
+ * @author Brian
+ *
+ */
+final class Check {
+	private static int checks;
+	private static int failures;
+
+	private Check() {
+	}
+
+	static void isTrue(String what, boolean ok) {
+		checks++;
+		if (!ok) {
+			failures++;
+			System.out.println("FAILED " + what);
+		}
+	}
+
+	static void equal(String what, long expected, long actual) {
+		isTrue(what + ": expected " + expected + ", was " + actual,
+				expected == actual);
+	}
+
+	static void equal(String what, double expected, double actual,
+			double tolerance) {
+		isTrue(what + ": expected " + expected + ", was " + actual,
+				Math.abs(expected - actual) <= tolerance);
+	}
+
+	static void equal(String what, long[] expected, long[] actual) {
+		isTrue(what + ": expected " + describe(expected) + ", was "
+				+ describe(actual), Arrays.equals(expected, actual));
+	}
+
+	/**
+	 * Checks that running the action throws the given type of exception,
+	 * which is returned, or null if it was not thrown
+	 */
+	static <T extends Throwable> T fails(String what, Class<T> type,
+			Action action) {
+		try {
+			action.run();
+		} catch (Throwable e) {
+			isTrue(what + ": threw " + e, type.isInstance(e));
+			return type.isInstance(e) ? type.cast(e) : null;
+		}
+		isTrue(what + ": threw nothing", false);
+		return null;
+	}
+
+	private static String describe(long[] array) {
+		if (array.length <= 16)
+			return Arrays.toString(array);
+		return array.length + " entries starting "
+				+ Arrays.toString(Arrays.copyOf(array, 8));
+	}
+
+	/**
+	 * Reports the checks made so far and exits, with status 1 if any failed
+	 */
+	static void exit() {
+		System.out.println(checks + " checks, " + failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	interface Action {
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,174 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tests of trees as instances with their own settings, and of inserts made
+ * from many threads at once
+ *
+ * @author Brian
+ *
+ */
+final class ConcurrentInsertTest {
+	private ConcurrentInsertTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws Exception {
+		sideBySide();
+		distinct();
+		absorbed();
+	}
+
+	/**
+	 * Trees with different settings fed in turn each end up as the tree
+	 * built alone with the same values
+	 */
+	private static void sideBySide() {
+		int[][] settings = { { 4, 3 }, { 16, 0 }, { 33, 100 } };
+		ContextTree[] trees = new ContextTree[settings.length];
+		ContextTree[] alone = new ContextTree[settings.length];
+		for (int t = 0; t < trees.length; t++) {
+			trees[t] = new ContextTree(settings[t][0], settings[t][1]);
+			trees[t].setBackgroundRebuild(false);
+		}
+		Random random = new Random(2);
+		int[] values = new int[5000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt(1 << 20);
+			for (ContextTree tree : trees)
+				tree.insert(values[i]);
+		}
+		for (int t = 0; t < trees.length; t++) {
+			alone[t] = new ContextTree(settings[t][0], settings[t][1]);
+			alone[t].setBackgroundRebuild(false);
+			for (int value : values)
+				alone[t].insert(value);
+
+			String what = "side by side B=" + settings[t][0];
+			Check.equal(what + " height", alone[t].getHeight(),
+					trees[t].getHeight());
+			Check.equal(what, TreeChecks.clusters(alone[t]),
+					TreeChecks.clusters(trees[t]));
+			Check.equal(what + " points", values.length, TreeChecks
+					.checkStructure(what, trees[t]));
+		}
+	}
+
+	/**
+	 * Threads inserting values of their own with no threshold leave every
+	 * value as a cluster of one point, whether splits rebuild the tree in
+	 * the insert or in the background
+	 */
+	private static void distinct() throws InterruptedException {
+		for (boolean background : new boolean[] { false, true }) {
+			for (int b : new int[] { 4, 16 }) {
+				final ContextTree tree = new ContextTree(b, 0);
+				tree.setBackgroundRebuild(background);
+				final int threads = 4;
+				final int each = 10000;
+				run(threads, t -> {
+					for (int i = 0; i < each; i++)
+						tree.insert((i * 7919 % each) * threads + t);
+				});
+				tree.awaitRebuild();
+
+				long[] expected = new long[threads * each];
+				for (int i = 0; i < expected.length; i++)
+					expected[i] = (long) i << 32 | 1;
+				String what = "distinct B=" + b + " background="
+						+ background;
+				Check.equal(what + " points", expected.length, TreeChecks
+						.checkStructure(what, tree));
+				Check.equal(what, expected, sumByValue(TreeChecks.clusters(
+					tree)));
+			}
+		}
+	}
+
+	/**
+	 * Weighted inserts from many threads of values already held add up
+	 * exactly. A value is absorbed by the closest cluster of the leaf it
+	 * is routed to, which need not be the cluster of the same value, so
+	 * the points are compared summed by value.
+	 */
+	private static void absorbed() throws InterruptedException {
+		final int clusters = 2000;
+		int[] initial = new int[clusters];
+		for (int c = 0; c < clusters; c++)
+			initial[c] = c * 1000;
+		for (int b : new int[] { 4, 8, 33 }) {
+			final ContextTree tree = ContextTree.bulkLoad(initial, b, 10);
+			final AtomicLongArray points = new AtomicLongArray(clusters);
+			run(4, t -> {
+				Random random = new Random(t);
+				for (int i = 0; i < 50000; i++) {
+					int c = random.nextInt(clusters);
+					int weight = 1 + random.nextInt(3);
+					tree.insert(c * 1000, weight);
+					points.addAndGet(c, weight);
+				}
+			});
+
+			String what = "absorbed B=" + b;
+			long[] expected = new long[clusters];
+			long total = 0;
+			for (int c = 0; c < clusters; c++) {
+				expected[c] = (long) initial[c] << 32 | 1 + points.get(c);
+				total += 1 + points.get(c);
+			}
+			Check.equal(what, expected, sumByValue(TreeChecks.clusters(
+					tree)));
+			Check.equal(what + " points", total, TreeChecks.checkStructure(
+					what, tree));
+		}
+	}
+
+	/**
+	 * @param clusters Sorted clusters, see TreeChecks.clusters
+	 * @return Clusters of equal value merged into one
+	 */
+	private static long[] sumByValue(long[] clusters) {
+		long[] sums = new long[clusters.length];
+		int n = 0;
+		for (long cluster : clusters) {
+			if (n > 0 && TreeChecks.valueOf(sums[n - 1]) == TreeChecks
+					.valueOf(cluster))
+				sums[n - 1] += TreeChecks.pointsOf(cluster);
+			else
+				sums[n++] = cluster;
+		}
+		return Arrays.copyOf(sums, n);
+	}
+
+	private interface Inserts {
+		void run(int thread);
+	}
+
+	private static void run(int count, Inserts inserts)
+			throws InterruptedException {
+		Thread[] threads = new Thread[count];
+		Throwable[] thrown = new Throwable[count];
+		for (int t = 0; t < count; t++) {
+			final int thread = t;
+			threads[t] = new Thread(() -> {
+				try {
+					inserts.run(thread);
+				} catch (Throwable e) {
+					thrown[thread] = e;
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		Check.isTrue("inserting threads threw " + Arrays.toString(thrown),
+				Arrays.stream(thrown).allMatch(e -> e == null));
+	}
+}
@@ -0,0 +1,156 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests queries made while other threads insert, remove and decay. Every
+ * value inserted lies in [0, RANGE), so every result must as well, and
+ * while points are only added a reader must never see fewer of them than
+ * it saw before. Once the writers stop, the queries are checked against a
+ * linear scan.
+ *
+ * @author Brian
+ *
+ */
+final class ConcurrentReadTest {
+	private static final int RANGE = 1 << 20;
+
+	private ConcurrentReadTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws InterruptedException {
+		for (Layout layout : Layout.values()) {
+			race(layout, false);
+			race(layout, true);
+		}
+	}
+
+	private static void race(Layout layout, final boolean removing)
+			throws InterruptedException {
+		String what = layout + (removing ? " removing" : " inserting");
+		final ContextTree tree = new ContextTree(8, 4, layout);
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++)
+			tree.insert(random.nextInt(RANGE));
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final Queue<String> failures = new ConcurrentLinkedQueue<>();
+		final long[] queries = new long[2];
+		Thread[] readers = new Thread[queries.length];
+		for (int r = 0; r < readers.length; r++) {
+			final int reader = r;
+			readers[r] = new Thread(() -> {
+				try {
+					queries[reader] = read(tree, !removing, stop, reader,
+							failures);
+				} catch (RuntimeException e) {
+					failures.add("threw " + e);
+				}
+			});
+			readers[r].start();
+		}
+
+		Thread[] writers = new Thread[2];
+		for (int w = 0; w < writers.length; w++) {
+			final int seed = 10 + w;
+			writers[w] = new Thread(() -> {
+				Random values = new Random(seed);
+				for (int i = 0; i < 60000; i++) {
+					tree.insert(values.nextInt(RANGE));
+					if (removing && i % 3 == 0)
+						tree.remove(values.nextInt(RANGE));
+					if (removing && i % 20000 == 0)
+						tree.decay(0.75);
+				}
+			});
+			writers[w].start();
+		}
+		for (Thread writer : writers)
+			writer.join();
+		stop.set(true);
+		for (Thread reader : readers)
+			reader.join();
+		tree.awaitRebuild();
+
+		for (String failure : failures)
+			Check.isTrue(what + " " + failure, false);
+		Check.isTrue(what + " queries ran", queries[0] > 0 && queries[1] > 0);
+
+		long[] clusters = TreeChecks.clusters(tree);
+		Check.equal(what + " points", TreeChecks.totalPoints(clusters),
+				TreeChecks.checkStructure(what, tree));
+		TreeChecks.checkQueries(what, tree, clusters, random);
+		Check.equal(what + " cdf of all", 1.0, tree.cdf(Integer.MIN_VALUE,
+				Integer.MAX_VALUE), 0);
+	}
+
+	/**
+	 * Queries the tree until told to stop, adding what it finds wrong to
+	 * failures
+	 *
+	 * @return The number of rounds of queries made
+	 */
+	private static long read(ContextTree tree, boolean growing,
+			AtomicBoolean stop, int seed, Queue<String> failures) {
+		Random random = new Random(seed);
+		int[] values = new int[1 << 16];
+		int[] points = new int[1 << 16];
+		long seen = 0;
+		long rounds = 0;
+		while (!stop.get() && failures.size() < 10) {
+			rounds++;
+			int value = random.nextInt(RANGE);
+			int nearest = tree.nearestCluster(value);
+			if (nearest < 0 || nearest >= RANGE)
+				failures.add("nearest of " + value + " is " + nearest);
+
+			int k = 1 + random.nextInt(16);
+			int found = tree.kNearest(value, k, values, points);
+			if (found != k)
+				failures.add(k + " nearest of " + value + " found " + found);
+			for (int i = 1; i < found; i++) {
+				if (Math.abs(values[i] - value) < Math.abs(values[i - 1]
+						- value))
+					failures.add(k + " nearest of " + value
+							+ " out of order");
+			}
+
+			int to = value + random.nextInt(RANGE / 8);
+			found = tree.clustersInRange(value, to, values, points);
+			for (int i = 0; i < Math.min(found, values.length); i++) {
+				if (values[i] < value || values[i] > to || points[i] < 1)
+					failures.add("range [" + value + ", " + to + "] holds "
+							+ values[i] + " of " + points[i] + " points");
+			}
+
+			double cdf = tree.cdf(value, to);
+			if (!(cdf >= 0 && cdf <= 1))
+				failures.add("cdf of [" + value + ", " + to + "] is " + cdf);
+			int quantile = tree.quantile(random.nextDouble());
+			if (quantile < 0 || quantile >= RANGE)
+				failures.add("quantile " + quantile);
+
+			// Points are only added, so a later walk never finds fewer
+			if (growing && rounds % 16 == 0) {
+				found = tree.clustersInRange(0, RANGE, values, points);
+				if (found > values.length)
+					continue;
+				long total = 0;
+				for (int i = 0; i < found; i++)
+					total += points[i];
+				if (total < seen)
+					failures.add("points fell from " + seen + " to " + total);
+				seen = total;
+			}
+		}
+		return rounds;
+	}
+}
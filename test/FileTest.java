@@ -0,0 +1,218 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Tests of trees kept in mapped files: save, open, commit and reopen, and
+ * files that are not trees
+ *
+ * @author Brian
+ *
+ */
+final class FileTest {
+	private FileTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws IOException {
+		Path dir = Files.createTempDirectory("filetest");
+		try {
+			for (Layout layout : Layout.values())
+				saveOpenCommit(dir.resolve(layout + ".ctr"), layout);
+			readOnly(dir.resolve("readonly.ctr"));
+			badFiles(dir);
+			scratchBlocked(dir.resolve("blocked.ctr"));
+			failedInScratch(dir.resolve("failed.ctr"));
+		} finally {
+			TreeChecks.deleteAll(dir);
+		}
+	}
+
+	private static void saveOpenCommit(Path file, Layout layout)
+			throws IOException {
+		String what = layout.toString();
+		ContextTree heap = new ContextTree(8, 3, layout);
+		Random random = new Random(layout.ordinal());
+		for (int i = 0; i < 5000; i++)
+			heap.insert(random.nextInt(1 << 20));
+		heap.awaitRebuild();
+		heap.save(file);
+		Check.isTrue(what + " no scratch file after save",
+				!Files.exists(TreeFile.scratchPath(file)));
+
+		ContextTree opened = ContextTree.open(file, false);
+		Check.equal(what + " opened clusters", TreeChecks.clusters(heap),
+				TreeChecks.clusters(opened));
+		Check.equal(what + " opened height", heap.getHeight(),
+				opened.getHeight());
+		Check.isTrue(what + " opened settings", opened.getLayout() == layout
+				&& opened.getConfig().getBranchingFactor() == 8
+				&& opened.getConfig().getClosenessThreshold() == 3);
+
+		// Enough inserts to rebuild the tree in the scratch file
+		ContextTree writable = ContextTree.open(file, true);
+		for (int i = 0; i < 30000; i++) {
+			int value = random.nextInt(1 << 22);
+			heap.insert(value);
+			writable.insert(value);
+		}
+		writable.remove(heap.nearestCluster(0));
+		heap.remove(heap.nearestCluster(0));
+		heap.awaitRebuild();
+		writable.awaitRebuild();
+		Check.isTrue(what + " rebuilt", writable.getHeight() > opened
+				.getHeight());
+		writable.commit();
+		Check.isTrue(what + " no scratch file after commit",
+				!Files.exists(TreeFile.scratchPath(file)));
+
+		ContextTree reopened = ContextTree.open(file, false);
+		Check.equal(what + " reopened clusters", TreeChecks.clusters(heap),
+				TreeChecks.clusters(reopened));
+		Check.equal(what + " reopened points", 34999,
+				TreeChecks.checkStructure(what + " reopened", reopened));
+
+		// Saving a tree to its own file commits it
+		writable.insert(7);
+		writable.save(file);
+		heap.insert(7);
+		Check.equal(what + " saved over itself", TreeChecks.clusters(heap),
+				TreeChecks.clusters(ContextTree.open(file, false)));
+	}
+
+	private static void readOnly(Path file) throws IOException {
+		ContextTree.bulkLoad(new int[] { 1, 2, 3 }, 8, 0).save(file);
+		ContextTree tree = ContextTree.open(file, false);
+		Check.fails("read only insert", UnsupportedOperationException.class,
+				() -> tree.insert(4));
+		Check.fails("read only remove", UnsupportedOperationException.class,
+				() -> tree.remove(1));
+		Check.fails("read only commit", UnsupportedOperationException.class,
+				() -> tree.commit());
+		Check.equal("read only nearest", 3, tree.nearestCluster(10));
+		Check.fails("heap commit", IllegalStateException.class,
+				() -> new ContextTree(8, 0).commit());
+	}
+
+	private static void badFiles(Path dir) throws IOException {
+		Path good = dir.resolve("good.ctr");
+		ContextTree.bulkLoad(new int[] { 1, 2, 3 }, 8, 0).save(good);
+		byte[] bytes = Files.readAllBytes(good);
+
+		Path bad = dir.resolve("bad.ctr");
+		Files.write(bad, new byte[0]);
+		notATree("empty file", bad);
+		Files.write(bad, new byte[200]);
+		notATree("zeros", bad);
+
+		// Magic, version, branching factor and capacity of the header
+		for (int field : new int[] { 0, 1, 2, 5 }) {
+			Files.write(bad, bytes);
+			try (FileChannel channel = FileChannel.open(bad,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer value = ByteBuffer.allocate(4)
+						.order(ByteOrder.LITTLE_ENDIAN).putInt(-1);
+				channel.write(value.flip(), 4 * field);
+			}
+			notATree("header field " + field, bad);
+		}
+
+		try (FileChannel channel = FileChannel.open(bad,
+				StandardOpenOption.WRITE)) {
+			channel.truncate(0);
+			channel.write(ByteBuffer.wrap(bytes, 0, bytes.length - 4));
+		}
+		notATree("truncated", bad);
+		notATree("missing", dir.resolve("missing.ctr"));
+	}
+
+	private static void notATree(String what, Path file) {
+		Check.fails(what, IOException.class,
+				() -> ContextTree.open(file, false));
+		Check.fails(what + " writable", IOException.class,
+				() -> ContextTree.open(file, true));
+	}
+
+	/**
+	 * A rebuild whose scratch file can not be created keeps the tree on the
+	 * heap, and commit reports the error until the file can be written
+	 */
+	private static void scratchBlocked(Path file) throws IOException {
+		ContextTree.bulkLoad(new int[] { 1, 2, 3 }, 4, 0).save(file);
+		Path scratch = TreeFile.scratchPath(file);
+		Files.createDirectory(scratch);
+		Files.write(scratch.resolve("blocker"), new byte[1]);
+
+		ContextTree tree = ContextTree.open(file, true);
+		tree.setBackgroundRebuild(false);
+		ContextTree heap = ContextTree.bulkLoad(new int[] { 1, 2, 3 }, 4, 0);
+		heap.setBackgroundRebuild(false);
+		Random random = new Random(3);
+		for (int i = 0; i < 2000; i++) {
+			int value = random.nextInt(1 << 20);
+			tree.insert(value);
+			heap.insert(value);
+		}
+		Check.equal("blocked scratch clusters", TreeChecks.clusters(heap),
+				TreeChecks.clusters(tree));
+		Check.fails("blocked scratch commit", IOException.class,
+				() -> tree.commit());
+
+		TreeChecks.deleteAll(scratch);
+		tree.commit();
+		Check.equal("unblocked scratch reopened", TreeChecks.clusters(heap),
+				TreeChecks.clusters(ContextTree.open(file, false)));
+	}
+
+	/**
+	 * A rebuild that fails while the tree is still in the scratch file of
+	 * the last one leaves that file alone and no partial tree behind, so a
+	 * commit keeps the tree as it was
+	 */
+	private static void failedInScratch(Path file) throws IOException {
+		ContextTree.bulkLoad(new int[] { 1, 2, 3 }, 4, 0).save(file);
+		ContextTree tree = ContextTree.open(file, true);
+		tree.setBackgroundRebuild(false);
+		RebuildTest.FailingSimulator simulator =
+				new RebuildTest.FailingSimulator();
+		tree.setCacheSimulator(simulator);
+		Random random = new Random(4);
+		int height = tree.getHeight();
+		while (tree.getHeight() == height)
+			tree.insert(random.nextInt(1 << 20));
+		Path scratch = TreeFile.scratchPath(file);
+		Check.isTrue("tree in the scratch file", Files.exists(scratch));
+
+		simulator.failing = true;
+		Throwable thrown = null;
+		try {
+			for (int i = 0; i < 100000; i++)
+				tree.insert(random.nextInt(1 << 20));
+		} catch (IllegalStateException | OutOfMemoryError e) {
+			thrown = e;
+		}
+		simulator.failing = false;
+		Check.isTrue("failed in scratch reported", thrown != null);
+		Check.isTrue("failed in scratch kept the scratch file",
+				Files.exists(scratch));
+		Check.isTrue("failed in scratch left no partial tree",
+				!Files.exists(TreeFile.scratchPath(scratch)));
+
+		long[] clusters = TreeChecks.clusters(tree);
+		tree.commit();
+		Check.isTrue("failed in scratch committed", !Files.exists(scratch));
+		Check.equal("failed in scratch reopened", clusters,
+				TreeChecks.clusters(ContextTree.open(file, false)));
+	}
+}
@@ -0,0 +1,298 @@
+package com.stack.gt.cse.c6140;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.LongStream;
+
+import javax.management.ObjectName;
+
+/**
+ * Tests that each tree of a forest holds what a single tree of its range
+ * would, that queries across the trees agree with a linear scan, and that
+ * a rebalance keeps the clusters and the settings of the trees
+ *
+ * @author Brian
+ *
+ */
+final class ForestTest {
+	private ForestTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws Exception {
+		for (int numTrees : new int[] { 1, 3, 8 })
+			shards(numTrees);
+		concurrent();
+		settings();
+		edges();
+	}
+
+	/**
+	 * Each tree holds what a tree given only the values of its range holds
+	 */
+	private static void shards(int numTrees) {
+		String what = numTrees + " trees";
+		int range = 1 << 24;
+		int[] bounds = new int[numTrees - 1];
+		for (int i = 0; i < bounds.length; i++)
+			bounds[i] = (int) ((long) range * (i + 1) / numTrees);
+		ContextForest forest = new ContextForest(bounds, 8, 16,
+				Layout.BREADTH_FIRST);
+		forest.setBackgroundRebuild(false);
+		ContextTree[] expected = new ContextTree[numTrees];
+		for (int i = 0; i < numTrees; i++) {
+			expected[i] = new ContextTree(8, 16, Layout.BREADTH_FIRST);
+			expected[i].setBackgroundRebuild(false);
+		}
+
+		Random random = new Random(numTrees);
+		for (int i = 0; i < 30000; i++) {
+			int value = random.nextInt(range);
+			int points = 1 + random.nextInt(3);
+			forest.insert(value, points);
+			expected[shardOf(bounds, value)].insert(value, points);
+		}
+		ContextTree[] trees = forest.getTrees();
+		List<Long> all = new ArrayList<>();
+		for (int i = 0; i < numTrees; i++) {
+			long[] clusters = TreeChecks.clusters(trees[i]);
+			Check.equal(what + " tree " + i, TreeChecks.clusters(expected[i]),
+					clusters);
+			for (long cluster : clusters)
+				all.add(cluster);
+		}
+		checkQueries(what, forest, all.stream().mapToLong(c -> c).sorted()
+				.toArray(), random);
+	}
+
+	private static int shardOf(int[] bounds, int value) {
+		int i = 0;
+		while (i < bounds.length && value >= bounds[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * Inserts and batches from several threads while the forest is
+	 * rebalanced. With no threshold each point is its own cluster, so the
+	 * forest must hold every point inserted.
+	 */
+	private static void concurrent() throws Exception {
+		final ContextForest forest = new ContextForest(4, 8, 0,
+				Layout.VAN_EMDE_BOAS);
+		final int threads = 3;
+		ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int seed = t;
+				futures.add(executor.submit(() -> {
+					Random random = new Random(seed);
+					int[] batch = new int[20];
+					for (int i = 0; i < 500; i++) {
+						if (i % 2 == 0) {
+							forest.insert(gaussian(random));
+						} else {
+							for (int j = 0; j < batch.length; j++)
+								batch[j] = gaussian(random);
+							forest.insertBatch(batch, batch.length);
+						}
+					}
+					return null;
+				}));
+			}
+			futures.add(executor.submit(() -> {
+				for (int i = 0; i < 5; i++) {
+					Thread.sleep(5);
+					forest.rebalance();
+				}
+				return null;
+			}));
+			for (Future<?> future : futures)
+				future.get();
+		} finally {
+			executor.shutdown();
+		}
+		forest.awaitRebuild();
+
+		TreeMap<Integer, Integer> counts = new TreeMap<>();
+		for (int t = 0; t < threads; t++) {
+			Random random = new Random(t);
+			for (int i = 0; i < 500; i++) {
+				for (int j = 0; j < (i % 2 == 0 ? 1 : 20); j++)
+					counts.merge(gaussian(random), 1, Integer::sum);
+			}
+		}
+		long[] expected = counts.entrySet().stream().flatMapToLong(
+				e -> LongStream.generate(() -> (long) e.getKey() << 32 | 1)
+						.limit(e.getValue())).toArray();
+		Check.equal("concurrent clusters", expected, clusters(forest));
+
+		forest.rebalance();
+		Check.equal("rebalanced clusters", expected, clusters(forest));
+		checkQueries("rebalanced", forest, expected, new Random(5));
+
+		// Each tree holds about a quarter of the points
+		long total = TreeChecks.totalPoints(expected);
+		int most = counts.values().stream().mapToInt(c -> c).max().getAsInt();
+		for (ContextTree tree : forest.getTrees()) {
+			long points = TreeChecks.totalPoints(TreeChecks.clusters(tree));
+			Check.isTrue("rebalanced tree of " + points + " points of "
+					+ total, Math.abs(points - total / 4) <= 2 * most);
+		}
+	}
+
+	private static int gaussian(Random random) {
+		return (int) Math.abs(random.nextGaussian() * (1 << 16));
+	}
+
+	/**
+	 * The new trees of a rebalance take the simulator, the metrics and the
+	 * background rebuild setting of the trees they replace
+	 */
+	private static void settings() throws Exception {
+		ContextForest forest = new ContextForest(2, 8, 4, Layout.PRE_ORDER);
+		forest.setBackgroundRebuild(false);
+		CacheSimulator simulator = new CacheSimulator(64, 1 << 16);
+		ContextTree[] trees = forest.getTrees();
+		trees[0].setCacheSimulator(simulator);
+		ObjectName name = trees[1].enableMetrics().register("ForestTest");
+		try {
+			Random random = new Random(3);
+			for (int i = 0; i < 5000; i++)
+				forest.insert(random.nextInt());
+			forest.rebalance();
+
+			ContextTree[] rebalanced = forest.getTrees();
+			Check.isTrue("new trees", rebalanced[0] != trees[0]
+					&& rebalanced[1] != trees[1]);
+			Check.isTrue("simulator kept",
+					rebalanced[0].getCacheSimulator() == simulator);
+			Check.isTrue("no simulator added",
+					rebalanced[1].getCacheSimulator() == null);
+			Check.isTrue("metrics moved", rebalanced[0].getMetrics() == null
+					&& trees[1].getMetrics() == null
+					&& rebalanced[1].getMetrics() != null);
+			Check.isTrue("metrics name kept", "ForestTest".equals(
+					rebalanced[1].getMetrics().getTreeName()));
+			Check.isTrue("metrics registered", ManagementFactory
+					.getPlatformMBeanServer().isRegistered(name));
+			for (ContextTree tree : rebalanced)
+				Check.isTrue("background rebuild kept", !tree.getConfig()
+						.isBackgroundRebuild());
+
+			long accesses = simulator.getAccesses();
+			forest.nearestCluster(Integer.MIN_VALUE);
+			Check.isTrue("simulator counts the new tree",
+					simulator.getAccesses() > accesses);
+			long inserts = rebalanced[1].getMetrics().getInserts();
+			forest.insert(Integer.MAX_VALUE);
+			Check.equal("metrics count the new tree", inserts + 1,
+					rebalanced[1].getMetrics().getInserts());
+		} finally {
+			for (ContextTree tree : forest.getTrees()) {
+				if (tree.getMetrics() != null)
+					tree.getMetrics().unregister();
+			}
+		}
+	}
+
+	private static void edges() {
+		ContextForest forest = new ContextForest(4, 5, 50,
+				Layout.BREADTH_FIRST);
+		Check.fails("nearest in an empty forest",
+				NoSuchElementException.class,
+				() -> forest.nearestCluster(3));
+		forest.rebalance();
+		forest.insert(Integer.MAX_VALUE);
+		forest.insert(Integer.MIN_VALUE);
+		forest.rebalance();
+		forest.awaitRebuild();
+		Check.equal("extremes after rebalance", new long[] {
+				(long) Integer.MIN_VALUE << 32 | 1,
+				(long) Integer.MAX_VALUE << 32 | 1 }, clusters(forest));
+		Check.equal("nearest across empty trees", Integer.MIN_VALUE, forest
+				.nearestCluster(-5));
+		Check.fails("no trees", IllegalArgumentException.class,
+				() -> new ContextForest(0, 5, 50, Layout.BREADTH_FIRST));
+		Check.fails("unsorted bounds", IllegalArgumentException.class,
+				() -> new ContextForest(new int[] { 5, 1 }, 5, 50,
+						Layout.BREADTH_FIRST));
+	}
+
+	/**
+	 * Returns the clusters of the forest, packed and sorted as by
+	 * TreeChecks.clusters
+	 */
+	private static long[] clusters(ContextForest forest) {
+		int n = forest.clustersInRange(Integer.MIN_VALUE, Integer.MAX_VALUE,
+				new int[0], null);
+		int[] values = new int[n];
+		int[] points = new int[n];
+		forest.clustersInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, values,
+				points);
+		long[] clusters = new long[n];
+		for (int i = 0; i < n; i++)
+			clusters[i] = (long) values[i] << 32 | points[i];
+		Arrays.sort(clusters);
+		return clusters;
+	}
+
+	/**
+	 * Checks the queries of the forest against a linear scan, as
+	 * TreeChecks.checkQueries does for a tree
+	 */
+	private static void checkQueries(String what, ContextForest forest,
+			long[] clusters, Random random) {
+		int lo = TreeChecks.valueOf(clusters[0]);
+		int hi = TreeChecks.valueOf(clusters[clusters.length - 1]);
+		long span = (long) hi - lo + 1;
+		int[] values = new int[clusters.length];
+		int[] points = new int[clusters.length];
+		long[] distances = new long[clusters.length];
+		for (int q = 0; q < 200; q++) {
+			int value = (int) (lo - span / 8 + (long) (random.nextDouble()
+					* span * 5 / 4));
+			for (int i = 0; i < clusters.length; i++)
+				distances[i] = Math.abs((long) TreeChecks.valueOf(clusters[i])
+						- value);
+			Arrays.sort(distances);
+
+			Check.equal(what + " distance to nearest of " + value,
+					distances[0], Math.abs((long) forest.nearestCluster(value)
+							- value));
+
+			int from = value;
+			int to = (int) Math.min(Integer.MAX_VALUE, from
+					+ (long) (random.nextDouble() * span / 4));
+			int found = forest.clustersInRange(from, to, values, points);
+			long[] result = new long[found];
+			for (int i = 0; i < found; i++)
+				result[i] = (long) values[i] << 32 | points[i];
+			Arrays.sort(result);
+			Check.equal(what + " range [" + from + ", " + to + "]", Arrays
+					.stream(clusters).filter(c -> TreeChecks.valueOf(c) >= from
+							&& TreeChecks.valueOf(c) <= to).toArray(), result);
+
+			int k = 1 + random.nextInt(Math.min(clusters.length, 20));
+			found = forest.kNearest(value, k, values, points);
+			long[] kDistances = new long[found];
+			for (int i = 0; i < found; i++)
+				kDistances[i] = Math.abs((long) values[i] - value);
+			Check.equal(what + " " + k + " nearest of " + value, Arrays
+					.copyOf(distances, k), kDistances);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of ingesting streams of ints from files and channels, of streams
+ * that end part way through a value, and that what the tree throws while
+ * inserting reaches the caller
+ *
+ * @author Brian
+ *
+ */
+final class IngestTest {
+	private IngestTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws IOException {
+		Path dir = Files.createTempDirectory("ingesttest");
+		try {
+			for (int batch : new int[] { 1, 100, 4096 }) {
+				for (int ring : new int[] { 1, 16 }) {
+					distinct(dir.resolve("values"), batch, ring);
+					inBatches(dir.resolve("values"), batch, ring);
+				}
+			}
+			partialValue(dir.resolve("partial"));
+			failures(dir.resolve("values"));
+		} finally {
+			TreeChecks.deleteAll(dir);
+		}
+		Check.fails("empty ring", IllegalArgumentException.class,
+				() -> new StreamIngestor(new ContextTree(8, 0), 16, 0));
+	}
+
+	/**
+	 * With no threshold the clusters are the distinct values, however they
+	 * were batched
+	 */
+	private static void distinct(Path file, int batch, int ring)
+			throws IOException {
+		String what = "batch " + batch + " ring " + ring;
+		int[] values = new Random(batch + ring).ints(-(1 << 30), 1 << 30)
+				.distinct().limit(30000).toArray();
+		Files.write(file, bytes(values));
+		long[] expected = new long[values.length];
+		for (int i = 0; i < values.length; i++)
+			expected[i] = (long) values[i] << 32 | 1;
+		Arrays.sort(expected);
+
+		ContextTree fromFile = new ContextTree(8, 0);
+		StreamIngestor ingestor = new StreamIngestor(fromFile, batch, ring);
+		Check.equal(what + " file values", values.length, ingestor
+				.ingest(file));
+		fromFile.awaitRebuild();
+		Check.equal(what + " file clusters", expected, TreeChecks
+				.clusters(fromFile));
+
+		// A second stream adds to the first
+		ContextTree fromStream = new ContextTree(8, 0);
+		ingestor = new StreamIngestor(fromStream, batch, ring);
+		int half = values.length / 2;
+		Check.equal(what + " stream values", half, ingestor.ingest(Channels
+				.newChannel(new ByteArrayInputStream(bytes(Arrays.copyOf(
+						values, half))))));
+		Check.equal(what + " second stream values", values.length - half,
+				ingestor.ingest(Channels.newChannel(new ByteArrayInputStream(
+						bytes(Arrays.copyOfRange(values, half,
+								values.length))))));
+		Check.equal(what + " ingested", values.length, ingestor.getValues());
+		fromStream.awaitRebuild();
+		Check.equal(what + " stream clusters", expected, TreeChecks
+				.clusters(fromStream));
+	}
+
+	/**
+	 * A mapped file is inserted in batches of the given size, in order
+	 */
+	private static void inBatches(Path file, int batch, int ring)
+			throws IOException {
+		int[] values = new Random(batch * ring).ints(20000, 0, 1 << 20)
+				.toArray();
+		Files.write(file, bytes(values));
+		ContextTree ingested = new ContextTree(8, 16);
+		ingested.setBackgroundRebuild(false);
+		new StreamIngestor(ingested, batch, ring).ingest(file);
+
+		ContextTree expected = new ContextTree(8, 16);
+		expected.setBackgroundRebuild(false);
+		for (int i = 0; i < values.length; i += batch)
+			expected.insertBatch(Arrays.copyOfRange(values, i, Math.min(
+					values.length, i + batch)), Math.min(batch, values.length
+					- i));
+		Check.equal("batch " + batch + " ring " + ring + " batched",
+				TreeChecks.clusters(expected), TreeChecks.clusters(ingested));
+	}
+
+	private static void partialValue(Path file) throws IOException {
+		byte[] bytes = Arrays.copyOf(bytes(new int[] { 5, 6, 7 }), 14);
+		Files.write(file, bytes);
+		ContextTree fromFile = new ContextTree(8, 0);
+		Check.fails("file ends in a value", IOException.class,
+				() -> new StreamIngestor(fromFile).ingest(file));
+		ContextTree fromStream = new ContextTree(8, 0);
+		Check.fails("stream ends in a value", IOException.class,
+				() -> new StreamIngestor(fromStream).ingest(Channels
+						.newChannel(new ByteArrayInputStream(bytes))));
+		for (ContextTree tree : new ContextTree[] { fromFile, fromStream })
+			Check.equal("values before the end", new long[] { 5L << 32 | 1,
+					6L << 32 | 1, 7L << 32 | 1 }, TreeChecks.clusters(tree));
+	}
+
+	/**
+	 * Exceptions and errors of the inserting thread are thrown by ingest
+	 */
+	private static void failures(Path file) throws IOException {
+		Files.write(file, bytes(new Random(1).ints(100000).toArray()));
+
+		Path saved = file.resolveSibling("saved.ctr");
+		new ContextTree(8, 0).save(saved);
+		ContextTree readOnly = ContextTree.open(saved, false);
+		Check.fails("exception of the tree",
+				UnsupportedOperationException.class,
+				() -> new StreamIngestor(readOnly, 100, 2).ingest(file));
+
+		ContextTree failing = new ContextTree(8, 0);
+		failing.setCacheSimulator(new CacheSimulator(64, 1 << 16) {
+			@Override
+			void access(long address, int length) {
+				throw new AssertionError("Injected by the test");
+			}
+		});
+		Check.fails("error of the tree", AssertionError.class,
+				() -> new StreamIngestor(failing, 100, 2).ingest(file));
+	}
+
+	private static byte[] bytes(int[] values) {
+		ByteBuffer bytes = ByteBuffer.allocate(4 * values.length).order(
+				ByteOrder.LITTLE_ENDIAN);
+		bytes.asIntBuffer().put(values);
+		return bytes.array();
+	}
+}
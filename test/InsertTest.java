@@ -0,0 +1,118 @@
+package com.stack.gt.cse.c6140;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of single inserts: weighted points, the mean a cluster moves to,
+ * and that inserts which do not rebuild the tree do not allocate
+ *
+ * @author Brian
+ *
+ */
+final class InsertTest {
+	private InsertTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		means();
+		weighted();
+		repeated();
+		noAllocation();
+	}
+
+	/**
+	 * A value absorbed by a cluster moves it to the mean of their points
+	 */
+	private static void means() {
+		ContextTree tree = new ContextTree(8, 10);
+		tree.insert(100, 3);
+		tree.insert(104);
+		Check.equal("weighted mean", new long[] { 101L << 32 | 4 },
+				TreeChecks.clusters(tree));
+		tree.insert(111);
+		Check.equal("farther than the threshold", new long[] {
+				101L << 32 | 4, 111L << 32 | 1 }, TreeChecks.clusters(tree));
+		tree.insert(-1000, 2);
+		tree.insert(-1008, 2);
+		Check.equal("negative mean", -1004, tree.nearestCluster(-1005));
+	}
+
+	/**
+	 * With no threshold every point is its own cluster, so leaves fill with
+	 * a single value and must still split
+	 */
+	private static void repeated() {
+		for (int b : new int[] { 4, 8 }) {
+			ContextTree tree = new ContextTree(b, 0);
+			tree.setBackgroundRebuild(false);
+			long[] expected = new long[2000];
+			for (int i = 0; i < expected.length; i++) {
+				tree.insert(i % 10);
+				expected[i] = (long) (i % 10) << 32 | 1;
+			}
+			Arrays.sort(expected);
+			String what = "repeated B=" + b;
+			Check.equal(what + " points", expected.length, TreeChecks
+					.checkStructure(what, tree));
+			Check.equal(what, expected, TreeChecks.clusters(tree));
+		}
+	}
+
+	private static void weighted() {
+		for (int b : new int[] { 4, 8, 33 }) {
+			ContextTree tree = new ContextTree(b, 3);
+			tree.setBackgroundRebuild(false);
+			Random random = new Random(b);
+			long total = 0;
+			for (int i = 0; i < 20000; i++) {
+				int points = 1 + random.nextInt(5);
+				tree.insert(random.nextInt(1 << 20), points);
+				total += points;
+			}
+			String what = "weighted B=" + b;
+			Check.equal(what + " points", total, TreeChecks.checkStructure(
+					what, tree));
+			Check.equal(what + " cluster points", total, TreeChecks
+					.totalPoints(TreeChecks.clusters(tree)));
+		}
+	}
+
+	/**
+	 * Inserts absorbed, added to a leaf or splitting nodes below the root
+	 * allocate nothing once warmed up. Rounds in which the root split and
+	 * the tree was rebuilt are left out.
+	 */
+	private static void noAllocation() {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory
+						.getThreadMXBean();
+		for (int b : new int[] { 8, 16 }) {
+			Random random = new Random(b);
+			int[] initial = new int[100000];
+			for (int i = 0; i < initial.length; i++)
+				initial[i] = random.nextInt(1 << 24);
+			ContextTree tree = ContextTree.bulkLoad(initial, b, 1);
+			tree.setBackgroundRebuild(false);
+
+			long least = Long.MAX_VALUE;
+			for (int round = 0; round < 20; round++) {
+				int height = tree.getHeight();
+				long start = threads.getCurrentThreadAllocatedBytes();
+				for (int i = 0; i < 2000; i++)
+					tree.insert(random.nextInt(1 << 24));
+				long bytes = threads.getCurrentThreadAllocatedBytes() - start;
+				if (tree.getHeight() == height)
+					least = Math.min(least, bytes);
+			}
+			Check.isTrue("B=" + b + " inserts allocate, " + least
+					+ " bytes per 2000", least < 2000);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.stack.gt.cse.c6140;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Tests of the precomputed sizes of complete trees against the closed form,
+ * of the van Emde Boas splits against its recursion, and of node locations
+ * in trees too large to list against the same recursions computed with the
+ * closed form
+ *
+ * @author Brian
+ *
+ */
+final class LayoutTableTest {
+	private static final BigInteger MAX_INT = BigInteger
+			.valueOf(Integer.MAX_VALUE);
+
+	private LayoutTableTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		Random random = new Random(12);
+		for (int width : new int[] { 2, 3, 4, 9, 17, 34, 257, 65536 }) {
+			LayoutTable table = new LayoutTable(Layout.VAN_EMDE_BOAS, width);
+			int height = 1;
+			while (size(width, height).compareTo(MAX_INT) <= 0) {
+				Check.equal("width " + width + " size of " + height,
+						size(width, height).longValue(), table.size(height));
+				height++;
+			}
+			final int tooHigh = height;
+			Check.equal("width " + width + " max height", height - 1, table
+					.getMaxHeight());
+			Check.fails("width " + width + " too high",
+					IllegalArgumentException.class,
+					() -> table.size(tooHigh));
+
+			for (Layout layout : Layout.values()) {
+				LayoutTable locations = new LayoutTable(layout, width);
+				for (int i = 0; i < 200; i++) {
+					int h = 1 + random.nextInt(table.getMaxHeight());
+					int[] path = new int[random.nextInt(h)];
+					for (int d = 0; d < path.length; d++)
+						path[d] = random.nextInt(width);
+					Check.equal(layout + " width " + width + " height " + h,
+							index(layout, path, 0, path.length, h, width),
+							locations.getIndex(path, path.length, h));
+				}
+			}
+		}
+		splits();
+		tree();
+	}
+
+	/**
+	 * Each depth of a tree is split from the subtree the recursion of van
+	 * Emde Boas order finds it at the top of a bottom subtree of, and the
+	 * splits of a width and height are shared by every table
+	 */
+	private static void splits() {
+		for (int width : new int[] { 2, 3, 9, 257 }) {
+			LayoutTable table = new LayoutTable(Layout.VAN_EMDE_BOAS, width);
+			LayoutTable other = new LayoutTable(Layout.PRE_ORDER, width);
+			for (int h = 1; h <= table.getMaxHeight(); h++) {
+				LayoutTable.Splits splits = table.getSplits(h);
+				String what = "width " + width + " height " + h;
+				Check.isTrue(what + " splits shared",
+						splits == other.getSplits(h));
+				for (int depth = 1; depth < h; depth++) {
+					// Narrow the subtree until depth is a bottom root of it
+					int root = 0;
+					int height = h;
+					while (depth - root != height / 2) {
+						if (depth - root < height / 2)
+							height /= 2;
+						else {
+							root += height / 2;
+							height -= height / 2;
+						}
+					}
+					Check.equal(what + " depth " + depth + " top", root,
+							splits.topDepth[depth]);
+					Check.equal(what + " depth " + depth + " top size", size(
+							width, height / 2).longValue(),
+							splits.topSize[depth]);
+					Check.equal(what + " depth " + depth + " bottom size",
+							size(width, height - height / 2).longValue(),
+							splits.bottomSize[depth]);
+				}
+			}
+		}
+	}
+
+	private static BigInteger size(int width, int height) {
+		BigInteger w = BigInteger.valueOf(width);
+		return w.pow(height).subtract(BigInteger.ONE).divide(
+				w.subtract(BigInteger.ONE));
+	}
+
+	/**
+	 * Returns the location of the node at the end of path[start, end) in a
+	 * complete subtree of the given height
+	 */
+	private static long index(Layout layout, int[] path, int start, int end,
+			int height, int width) {
+		if (start == end)
+			return 0;
+		switch (layout) {
+		case BREADTH_FIRST: {
+			// Nodes above the level, then those before it on the level
+			int depth = end - start;
+			long before = 0;
+			for (int d = start; d < end; d++)
+				before = before * width + path[d];
+			return size(width, depth).longValue() + before;
+		}
+		case PRE_ORDER:
+			return 1 + path[start] * size(width, height - 1).longValue()
+					+ index(layout, path, start + 1, end, height - 1, width);
+		default: {
+			int top = height / 2;
+			if (end - start < top)
+				return index(layout, path, start, end, top, width);
+			long bottom = 0;
+			for (int d = start; d < start + top; d++)
+				bottom = bottom * width + path[d];
+			return size(width, top).longValue() + bottom
+					* size(width, height - top).longValue()
+					+ index(layout, path, start + top, end, height - top,
+							width);
+		}
+		}
+	}
+
+	/**
+	 * The tree locates nodes with the table of its branching factor, which
+	 * has one more child per node to hold a node while it is split
+	 */
+	private static void tree() {
+		for (Layout layout : Layout.values()) {
+			ContextTree tree = new ContextTree(7, 0, layout);
+			LayoutTable table = new LayoutTable(layout, 8);
+			int[] path = { 3, 0, 7, 2 };
+			for (int h = 5; h <= table.getMaxHeight(); h++) {
+				Check.equal(layout + " tree index", table.getIndex(path, 4,
+						h), tree.getTreeIndex(path, 4, h));
+				Check.equal(layout + " nodes below", table.size(h) - 1, tree
+						.nodesBelow(1, h));
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of the layouts against orders of the nodes of complete trees built
+ * by walking them, and that the layout does not change the clusters of a
+ * tree
+ *
+ * @author Brian
+ *
+ */
+final class LayoutTest {
+	private LayoutTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		for (Layout layout : Layout.values()) {
+			for (int width : new int[] { 2, 3, 5, 9, 34 }) {
+				LayoutTable table = new LayoutTable(layout, width);
+				for (int height = 1; table.size(height) <= 100000; height++) {
+					List<int[]> order = order(layout, new int[0], height,
+							width);
+					String what = layout + " width=" + width + " height="
+							+ height;
+					Check.equal(what + " size", table.size(height),
+							order.size());
+					for (int i = 0; i < order.size(); i++) {
+						int[] path = order.get(i);
+						Check.equal(what + " " + Arrays.toString(path), i,
+								table.getIndex(path, path.length, height));
+					}
+				}
+			}
+		}
+		sameClusters();
+		names();
+	}
+
+	/**
+	 * Returns the paths of the nodes of a complete subtree in the order the
+	 * layout places them
+	 *
+	 * @param root
+	 *            Path of the root of the subtree
+	 */
+	private static List<int[]> order(Layout layout, int[] root, int height,
+			int width) {
+		List<int[]> order = new ArrayList<int[]>();
+		switch (layout) {
+		case BREADTH_FIRST:
+			for (int depth = 0; depth < height; depth++)
+				order.addAll(descendants(root, depth, width));
+			break;
+		case PRE_ORDER:
+			order.add(root);
+			if (height > 1) {
+				for (int[] child : descendants(root, 1, width))
+					order.addAll(order(layout, child, height - 1, width));
+			}
+			break;
+		case VAN_EMDE_BOAS:
+			if (height == 1) {
+				order.add(root);
+				break;
+			}
+			int top = height / 2;
+			order.addAll(order(layout, root, top, width));
+			for (int[] bottom : descendants(root, top, width))
+				order.addAll(order(layout, bottom, height - top, width));
+			break;
+		}
+		return order;
+	}
+
+	/**
+	 * Returns the paths of the nodes the given number of levels below a
+	 * node, in order
+	 */
+	private static List<int[]> descendants(int[] root, int levels, int width) {
+		List<int[]> paths = new ArrayList<int[]>();
+		paths.add(root);
+		for (int level = 0; level < levels; level++) {
+			List<int[]> next = new ArrayList<int[]>();
+			for (int[] path : paths) {
+				for (int child = 0; child < width; child++) {
+					int[] childPath = Arrays.copyOf(path, path.length + 1);
+					childPath[path.length] = child;
+					next.add(childPath);
+				}
+			}
+			paths = next;
+		}
+		return paths;
+	}
+
+	/**
+	 * Where the nodes are placed does not change what the tree holds
+	 */
+	private static void sameClusters() {
+		for (int b : new int[] { 4, 16 }) {
+			ContextTree[] trees = new ContextTree[Layout.values().length];
+			for (Layout layout : Layout.values()) {
+				trees[layout.ordinal()] = new ContextTree(b, 2, layout);
+				trees[layout.ordinal()].setBackgroundRebuild(false);
+			}
+			Random random = new Random(b);
+			for (int i = 0; i < 20000; i++) {
+				int value = random.nextInt(1 << 20);
+				for (ContextTree tree : trees)
+					tree.insert(value);
+			}
+			long[] expected = TreeChecks.clusters(trees[0]);
+			for (ContextTree tree : trees) {
+				String what = tree.getLayout() + " B=" + b;
+				Check.equal(what + " clusters", expected, TreeChecks
+						.clusters(tree));
+				Check.equal(what + " height", trees[0].getHeight(), tree
+						.getHeight());
+				TreeChecks.checkStructure(what, tree);
+			}
+		}
+	}
+
+	private static void names() {
+		for (Layout layout : Layout.values()) {
+			Check.isTrue(layout + " by short name", Layout.forName(layout
+					.getShortName()) == layout);
+			Check.isTrue(layout + " by name", Layout.forName(layout.name()
+					.toLowerCase()) == layout);
+		}
+		Check.fails("unknown layout", IllegalArgumentException.class,
+				() -> Layout.forName("x"));
+	}
+}
@@ -0,0 +1,172 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that merging two trees leaves the clusters of both, in value order
+ * with each cluster closer than the threshold to the one before it
+ * coalesced into it, and a tree that goes on as any other
+ *
+ * @author Brian
+ *
+ */
+final class MergeTest {
+	private MergeTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws Exception {
+		for (Layout layout : Layout.values()) {
+			for (int b : new int[] { 4, 8, 33 }) {
+				for (int threshold : new int[] { 0, 1, 50 })
+					merge(layout, b, threshold);
+			}
+		}
+		builtApart();
+		edges();
+	}
+
+	private static void merge(Layout layout, int b, int threshold) {
+		String what = layout + " B=" + b + " th=" + threshold;
+		ContextTree ours = new ContextTree(TreeConfig.builder()
+				.branchingFactor(b).closenessThreshold(threshold).layout(
+						layout).sparse(b == 33).build());
+		// The other tree's settings do not matter
+		ContextTree theirs = new ContextTree(8, threshold,
+				Layout.BREADTH_FIRST);
+		Random random = new Random(b + threshold);
+		int n = b == 4 ? 2000 : 20000;
+		for (int i = 0; i < n; i++) {
+			ours.insert(random.nextInt(1 << 20));
+			theirs.insert(random.nextInt(1 << 20), 2);
+		}
+		ours.awaitRebuild();
+		theirs.awaitRebuild();
+		long[] before = TreeChecks.clusters(theirs);
+
+		long[] expected = coalesce(TreeChecks.clusters(ours), before,
+				threshold);
+		ours.merge(theirs);
+		long[] merged = TreeChecks.clusters(ours);
+		Check.equal(what, expected, merged);
+		Check.equal(what + " other tree", before, TreeChecks
+				.clusters(theirs));
+		Check.equal(what + " structure", TreeChecks.totalPoints(merged),
+				TreeChecks.checkStructure(what, ours));
+		TreeChecks.checkQueries(what, ours, merged, random);
+		Check.isTrue(what + " settings kept", ours.getLayout() == layout
+				&& ours.getConfig().getBranchingFactor() == b
+				&& ours.currentStore().isSparse() == (b == 33));
+
+		ours.setBackgroundRebuild(false);
+		for (int i = 0; i < 5000; i++)
+			ours.insert(random.nextInt(1 << 20));
+		Check.equal(what + " inserts after", TreeChecks.totalPoints(merged)
+				+ 5000, TreeChecks.checkStructure(what + " inserts after",
+				ours));
+	}
+
+	/**
+	 * Parts of the input loaded on their own threads and merged hold what
+	 * coalescing the clusters of each part gives
+	 */
+	private static void builtApart() throws InterruptedException {
+		Random random = new Random(7);
+		final int[] data = new int[100000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (int) (random.nextGaussian() * 1e6);
+		final ContextTree[] parts = new ContextTree[4];
+		Thread[] threads = new Thread[parts.length];
+		for (int k = 0; k < parts.length; k++) {
+			final int part = k;
+			parts[k] = new ContextTree(16, 4);
+			threads[k] = new Thread(() -> {
+				int size = data.length / parts.length;
+				parts[part].insertBatch(Arrays.copyOfRange(data, part * size,
+						(part + 1) * size), size);
+				parts[part].awaitRebuild();
+			});
+			threads[k].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		long[] expected = TreeChecks.clusters(parts[0]);
+		for (int k = 1; k < parts.length; k++) {
+			expected = coalesce(expected, TreeChecks.clusters(parts[k]), 4);
+			parts[0].merge(parts[k]);
+		}
+		Check.equal("built apart", expected, TreeChecks.clusters(parts[0]));
+		Check.equal("built apart points", data.length, parts[0]
+				.rank(Integer.MAX_VALUE));
+	}
+
+	private static void edges() throws IOException {
+		ContextTree tree = new ContextTree(8, 1);
+		ContextTree other = new ContextTree(8, 1);
+		tree.merge(other);
+		Check.equal("empty into empty", 1, tree.getHeight());
+		Check.equal("empty into empty points", 0, tree.rank(0));
+		other.insert(5);
+		tree.merge(other);
+		Check.equal("into empty", 5, tree.nearestCluster(0));
+		tree.merge(new ContextTree(8, 1));
+		Check.equal("empty into tree", new long[] { 5L << 32 | 1 },
+				TreeChecks.clusters(tree));
+		Check.fails("with itself", IllegalArgumentException.class,
+				() -> tree.merge(tree));
+
+		Path file = Files.createTempFile("mergetest", ".ctr");
+		try {
+			tree.save(file);
+			ContextTree readOnly = ContextTree.open(file, false);
+			Check.fails("into a read only tree",
+					UnsupportedOperationException.class,
+					() -> readOnly.merge(other));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Returns the clusters of both in value order, each closer than the
+	 * threshold to the one before it coalesced into it at the mean of their
+	 * points
+	 */
+	private static long[] coalesce(long[] ours, long[] theirs, int threshold) {
+		long[] all = new long[ours.length + theirs.length];
+		System.arraycopy(ours, 0, all, 0, ours.length);
+		System.arraycopy(theirs, 0, all, ours.length, theirs.length);
+		Arrays.sort(all);
+		long[] values = new long[all.length];
+		long[] points = new long[all.length];
+		int n = 0;
+		for (long cluster : all) {
+			int value = TreeChecks.valueOf(cluster);
+			int p = TreeChecks.pointsOf(cluster);
+			if (n > 0 && Math.abs(values[n - 1] - value) < threshold) {
+				long total = points[n - 1] + p;
+				values[n - 1] = Math.round(((double) values[n - 1]
+						* points[n - 1] + (double) value * p) / total);
+				points[n - 1] = total;
+			} else {
+				values[n] = value;
+				points[n] = p;
+				n++;
+			}
+		}
+		long[] coalesced = new long[n];
+		for (int i = 0; i < n; i++)
+			coalesced[i] = values[i] << 32 | points[i];
+		Arrays.sort(coalesced);
+		return coalesced;
+	}
+}
@@ -0,0 +1,256 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests the counters of the metrics against what was inserted, the count
+ * of occupied slots against a scan of the store, the attributes read
+ * through JMX and the events recorded by flight recordings
+ *
+ * @author Brian
+ *
+ */
+final class MetricsTest {
+	private MetricsTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws Exception {
+		counters();
+		Path dir = Files.createTempDirectory("metricstest");
+		try {
+			for (boolean sparse : new boolean[] { false, true }) {
+				for (Layout layout : Layout.values())
+					occupied(dir, layout, sparse);
+			}
+		} finally {
+			TreeChecks.deleteAll(dir);
+		}
+		jmx();
+		events();
+	}
+
+	private static void counters() {
+		ContextTree tree = new ContextTree(8, 20, Layout.VAN_EMDE_BOAS);
+		tree.setBackgroundRebuild(false);
+		TreeMetrics metrics = tree.enableMetrics();
+		Check.isTrue("enabled once", tree.enableMetrics() == metrics);
+
+		Random random = new Random(3);
+		int inserts = 50000;
+		for (int i = 0; i < inserts; i++)
+			tree.insert(random.nextInt(1 << 24));
+		int batches = 20;
+		int[] batch = new int[1000];
+		for (int k = 0; k < batches; k++) {
+			// Distinct, so every value of the batch is placed on its own
+			for (int j = 0; j < batch.length; j++)
+				batch[j] = (k * batch.length + j) * 16;
+			tree.insertBatch(batch, batch.length);
+		}
+
+		Check.equal("inserts", inserts, metrics.getInserts());
+		Check.equal("batches", batches, metrics.getBatches());
+		Check.equal("values placed", inserts + batches * batch.length,
+				metrics.getAbsorbedValues() + metrics.getNewClusters());
+		Check.equal("clusters", metrics.getNewClusters(),
+				TreeChecks.clusters(tree).length);
+		Check.equal("absorption rate", (double) metrics.getAbsorbedValues()
+				/ (inserts + batches * batch.length), metrics
+				.getAbsorptionRate(), 1e-9);
+		Check.equal("rebuilds", tree.getHeight() - 1, metrics.getRebuilds());
+		long perLevel = 0;
+		for (long splits : metrics.getSplitsPerLevel())
+			perLevel += splits;
+		Check.equal("splits per level", metrics.getSplits(), perLevel);
+		Check.isTrue("splits", metrics.getSplits() >= metrics.getRebuilds());
+		Check.equal("height", tree.getHeight(), metrics.getHeight());
+
+		long timed = 0;
+		for (long count : metrics.getInsertLatencyHistogram())
+			timed += count;
+		Check.isTrue("sampled inserts " + timed, timed > 0
+				&& timed < inserts / 4);
+		long batchesTimed = 0;
+		for (long count : metrics.getBatchLatencyHistogram())
+			batchesTimed += count;
+		Check.equal("timed batches", batches, batchesTimed);
+		Check.isTrue("latency quantiles", metrics.getInsertLatencyMedianNanos()
+				<= metrics.getInsertLatency99Nanos());
+
+		tree.disableMetrics();
+		Check.isTrue("disabled", tree.getMetrics() == null);
+		tree.insert(1);
+		Check.equal("not counted once disabled", inserts, metrics
+				.getInserts());
+	}
+
+	/**
+	 * The count of occupied slots kept as nodes change matches a scan of
+	 * the store, for stores on the heap, mapped and pooled
+	 */
+	private static void occupied(Path dir, Layout layout, boolean sparse)
+			throws IOException {
+		String what = layout + (sparse ? " sparse" : "");
+		Random random = new Random(5);
+		ContextTree tree = new ContextTree(TreeConfig.builder()
+				.branchingFactor(8).closenessThreshold(2).layout(layout)
+				.sparse(sparse).build());
+		int[] values = new int[20000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt(1 << 20);
+			tree.insert(values[i]);
+		}
+		checkOccupied(what + " inserts", tree);
+		tree.insertBatch(values, 5000);
+		checkOccupied(what + " batch", tree);
+		for (int i = 0; i < 15000; i++)
+			tree.remove(values[i]);
+		checkOccupied(what + " removes", tree);
+		tree.decay(0.3);
+		checkOccupied(what + " decay", tree);
+		for (int value : values)
+			tree.remove(value, 1 << 20);
+		checkOccupied(what + " emptied", tree);
+
+		for (int i = 0; i < 3000; i++)
+			tree.insert(random.nextInt());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tree.snapshot(out);
+		checkOccupied(what + " restored", ContextTree.restore(
+				new ByteArrayInputStream(out.toByteArray()), sparse));
+		checkOccupied(what + " bulk loaded", ContextTree.bulkLoad(values, 8,
+				0, layout));
+
+		Path file = dir.resolve("tree.ctr");
+		tree.save(file);
+		ContextTree mapped = ContextTree.open(file, true);
+		checkOccupied(what + " opened", mapped);
+		for (int i = 0; i < 5000; i++)
+			mapped.insert(random.nextInt(1 << 22));
+		checkOccupied(what + " mapped inserts", mapped);
+		mapped.commit();
+
+		ContextTree pooled = ContextTree.open(file, true, new BufferPool(4,
+				Eviction.LRU));
+		checkOccupied(what + " pooled", pooled);
+		for (int i = 0; i < 5000; i++)
+			pooled.insert(random.nextInt(1 << 22));
+		for (int i = 0; i < 1000; i++)
+			pooled.remove(random.nextInt(1 << 22));
+		checkOccupied(what + " pooled changes", pooled);
+		pooled.commit();
+
+		ContextTree created = ContextTree.create(dir.resolve("created.ctr"),
+				TreeConfig.builder().branchingFactor(8).closenessThreshold(4)
+						.layout(layout).build(), new BufferPool(8,
+						Eviction.CLOCK));
+		for (int i = 0; i < 5000; i++)
+			created.insert(random.nextInt(1 << 22));
+		checkOccupied(what + " created", created);
+	}
+
+	private static void checkOccupied(String what, ContextTree tree) {
+		tree.awaitRebuild();
+		NodeStore store = tree.currentStore();
+		int occupied = 0;
+		for (int i = 0; i < store.getCapacity(); i++) {
+			if (store.isOccupied(i))
+				occupied++;
+		}
+		Check.equal(what + " occupied slots", occupied, tree
+				.getOccupiedSlots());
+	}
+
+	private static void jmx() throws JMException {
+		ContextTree tree = new ContextTree(8, 20);
+		tree.setBackgroundRebuild(false);
+		TreeMetrics metrics = tree.enableMetrics();
+		ObjectName name = metrics.register("MetricsTest");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			Random random = new Random(7);
+			for (int i = 0; i < 20000; i++)
+				tree.insert(random.nextInt(1 << 20));
+			Check.isTrue("name", name.toString().equals(TreeMetrics.DOMAIN
+					+ ":type=ContextTree,name=\"MetricsTest\""));
+			Check.equal("inserts attribute", 20000, (Long) server
+					.getAttribute(name, "Inserts"));
+			Check.equal("height attribute", tree.getHeight(), (Integer) server
+					.getAttribute(name, "Height"));
+			Check.equal("occupied attribute", tree.getOccupiedSlots(),
+					(Integer) server.getAttribute(name, "OccupiedSlots"));
+			Check.equal("splits attribute", metrics.getSplits(), (Long) server
+					.getAttribute(name, "Splits"));
+			Check.fails("registered twice", IllegalStateException.class,
+					() -> metrics.register("MetricsTest"));
+			Check.fails("name taken", JMException.class, () -> new ContextTree(
+					8, 20).enableMetrics().register("MetricsTest"));
+		} finally {
+			tree.disableMetrics();
+		}
+		Check.isTrue("unregistered once disabled", !server.isRegistered(name));
+	}
+
+	/**
+	 * Splits and rebuilds are recorded as events, one for each counted
+	 */
+	private static void events() throws IOException {
+		ContextTree tree = new ContextTree(8, 0);
+		tree.setBackgroundRebuild(false);
+		TreeMetrics metrics = tree.enableMetrics();
+		Random random = new Random(1);
+		for (int i = 0; i < 5000; i++)
+			tree.insert(random.nextInt(1 << 20));
+		long splits = metrics.getSplits();
+		long rebuilds = metrics.getRebuilds();
+
+		Path file = Files.createTempFile("metricstest", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(TreeEvents.SplitEvent.class);
+			recording.enable(TreeEvents.RebuildEvent.class).withThreshold(
+					Duration.ZERO);
+			recording.start();
+			for (int i = 0; i < 20000; i++)
+				tree.insert(random.nextInt(1 << 20));
+			recording.stop();
+			recording.dump(file);
+
+			int splitEvents = 0;
+			int rebuildEvents = 0;
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				String type = event.getEventType().getName();
+				if (type.endsWith(".Split"))
+					splitEvents++;
+				else if (type.endsWith(".Rebuild"))
+					rebuildEvents++;
+			}
+			Check.equal("split events", metrics.getSplits() - splits,
+					splitEvents);
+			Check.equal("rebuild events", metrics.getRebuilds() - rebuilds,
+					rebuildEvents);
+			Check.isTrue("rebuilt while recording", rebuildEvents > 0);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Random;
+
+/**
+ * Tests that rebuilding subtrees in parallel places every node where the
+ * sequential rebuild does. Attaching a cache simulator keeps the rebuild
+ * sequential.
+ *
+ * @author Brian
+ *
+ */
+final class ParallelRebuildTest {
+	private ParallelRebuildTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		for (Layout layout : Layout.values()) {
+			for (int b : new int[] { 4, 8, 16 })
+				compare(layout, b, b == 4 ? 1 : 8);
+		}
+	}
+
+	private static void compare(Layout layout, int b, int threshold) {
+		String what = layout + " B=" + b + " th=" + threshold;
+		ContextTree parallel = new ContextTree(b, threshold, layout);
+		parallel.setBackgroundRebuild(false);
+		ContextTree sequential = new ContextTree(b, threshold, layout);
+		sequential.setBackgroundRebuild(false);
+		sequential.setCacheSimulator(new CacheSimulator(64, 1 << 16));
+
+		Random random = new Random(b);
+		int rebuilds = 0;
+		for (int i = 0; i < 60000; i++) {
+			int value = random.nextInt(1 << 26);
+			int height = parallel.getHeight();
+			parallel.insert(value);
+			sequential.insert(value);
+			if (parallel.getHeight() != height) {
+				rebuilds++;
+				TreeChecks.sameNodes(what + " rebuild " + rebuilds, sequential,
+						parallel);
+			}
+		}
+		Check.isTrue(what + " has subtrees built in parallel", parallel
+				.currentStore().getCapacity() >= 2
+				* ContextTree.PARALLEL_REBUILD_NODES);
+		TreeChecks.sameNodes(what, sequential, parallel);
+		TreeChecks.checkStructure(what, parallel);
+	}
+}
@@ -0,0 +1,213 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests trees read through a buffer pool against the same trees on the
+ * heap, under each eviction policy and pools of one frame up, and the
+ * eviction policies against a model of the frames they hold
+ *
+ * @author Brian
+ *
+ */
+final class PoolTest {
+	private PoolTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws IOException {
+		for (int frames : new int[] { 1, 4, 32 }) {
+			lru(frames);
+			clock(frames);
+		}
+		Check.isTrue("policy names", Eviction.forName("clock")
+				== Eviction.CLOCK && Eviction.forName("LRU") == Eviction.LRU);
+		Check.fails("no frames", IllegalArgumentException.class,
+				() -> new BufferPool(0, Eviction.LRU));
+
+		Path dir = Files.createTempDirectory("pooltest");
+		try {
+			for (Layout layout : Layout.values()) {
+				for (int b : new int[] { 4, 16 }) {
+					for (Eviction eviction : Eviction.values()) {
+						for (int frames : new int[] { 1, 3, 64 })
+							reopen(dir, layout, b, eviction, frames);
+					}
+				}
+			}
+			created(dir);
+			readOnly(dir);
+		} finally {
+			TreeChecks.deleteAll(dir);
+		}
+	}
+
+	/**
+	 * The LRU policy evicts the frame a map in access order holds longest
+	 */
+	private static void lru(int frames) {
+		Eviction.Policy policy = Eviction.LRU.newPolicy(frames);
+		LinkedHashMap<Integer, Integer> model = new LinkedHashMap<>(16,
+				0.75f, true);
+		Map<Integer, Integer> frameOf = new LinkedHashMap<>();
+		Random random = new Random(frames);
+		int next = 0;
+		for (int i = 0; i < 5000; i++) {
+			int block = random.nextInt(frames * 2);
+			Integer frame = frameOf.get(block);
+			if (frame != null) {
+				policy.accessed(frame);
+				model.get(block);
+				continue;
+			}
+			if (next < frames) {
+				frame = next++;
+			} else {
+				frame = policy.victim();
+				Iterator<Integer> eldest = model.keySet().iterator();
+				int evicted = eldest.next();
+				eldest.remove();
+				Check.equal("LRU of " + frames + " victim", frameOf
+						.remove(evicted), frame);
+				policy.removed(frame);
+			}
+			policy.loaded(frame);
+			frameOf.put(block, frame);
+			model.put(block, frame);
+		}
+	}
+
+	/**
+	 * The clock policy evicts the first frame the hand finds not accessed
+	 * since it last passed, clearing the bits of those it passes
+	 */
+	private static void clock(int frames) {
+		for (int skipped = 0; skipped < frames; skipped++) {
+			Eviction.Policy policy = Eviction.CLOCK.newPolicy(frames);
+			for (int frame = 0; frame < frames; frame++)
+				policy.loaded(frame);
+			// Every frame was accessed, so the hand clears them all and
+			// comes back to the first
+			Check.equal("clock of " + frames + " full circle", 0, policy
+					.victim());
+			policy.removed(0);
+			policy.loaded(0);
+			for (int frame = 0; frame < frames; frame++) {
+				if (frame != skipped)
+					policy.accessed(frame);
+			}
+			// Frame 0 was referenced when it was loaded again, so skipping it
+			// leaves every frame referenced
+			Check.equal("clock of " + frames + " victim", skipped == 0
+					&& frames > 1 ? 1 : skipped, policy.victim());
+		}
+	}
+
+	/**
+	 * A tree saved from the heap and opened through a pool answers as the
+	 * heap tree does through inserts, and holds them once committed
+	 */
+	private static void reopen(Path dir, Layout layout, int b,
+			Eviction eviction, int frames) throws IOException {
+		String what = layout + " B=" + b + " " + eviction + " " + frames
+				+ " frames";
+		Path file = dir.resolve("tree.ctr");
+		ContextTree heap = new ContextTree(b, 16, layout);
+		heap.setBackgroundRebuild(false);
+		Random random = new Random(b * 31 + frames);
+		for (int i = 0; i < 3000; i++)
+			heap.insert(random.nextInt(1 << 20));
+		heap.save(file);
+
+		BufferPool pool = new BufferPool(frames, eviction);
+		ContextTree pooled = ContextTree.open(file, true, pool);
+		pooled.setBackgroundRebuild(false);
+		Check.isTrue(what + " pool", pooled.getBufferPool() == pool);
+		Check.equal(what + " opened", TreeChecks.clusters(heap), TreeChecks
+				.clusters(pooled));
+		for (int i = 0; i < 200; i++) {
+			int value = random.nextInt(1 << 20);
+			Check.equal(what + " nearest of " + value, heap
+					.nearestCluster(value), pooled.nearestCluster(value));
+		}
+
+		for (int i = 0; i < 2000; i++) {
+			int value = random.nextInt(1 << 20);
+			heap.insert(value);
+			pooled.insert(value);
+		}
+		int[] batch = new int[1000];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = random.nextInt(1 << 20);
+		heap.insertBatch(batch, batch.length);
+		pooled.insertBatch(batch, batch.length);
+		long[] clusters = TreeChecks.clusters(heap);
+		Check.equal(what + " inserts", clusters, TreeChecks.clusters(pooled));
+		Check.equal(what + " height", heap.getHeight(), pooled.getHeight());
+		Check.equal(what + " rank", heap.rank(1 << 19), pooled
+				.rank(1 << 19));
+		Check.isTrue(what + " frames", pool.getAllocatedBytes()
+				<= (long) frames * NodeStore.PAGE_BYTES);
+		Check.isTrue(what + " blocks read", pool.getBlockReads() > 0);
+
+		pooled.commit();
+		Check.isTrue(what + " scratch removed", !Files.exists(TreeFile
+				.scratchPath(file)));
+		Check.equal(what + " reopened", clusters, TreeChecks
+				.clusters(ContextTree.open(file, false)));
+	}
+
+	/**
+	 * A tree created in a pool shared with another, rebuilt in the
+	 * background through the pool, holds what a heap tree does
+	 */
+	private static void created(Path dir) throws IOException {
+		BufferPool shared = new BufferPool(16, Eviction.CLOCK);
+		TreeConfig.Builder config = TreeConfig.builder().branchingFactor(8)
+				.closenessThreshold(4);
+		ContextTree background = ContextTree.create(dir.resolve("a.ctr"),
+				config.build(), shared);
+		ContextTree inline = ContextTree.create(dir.resolve("b.ctr"), config
+				.backgroundRebuild(false).build(), shared);
+		ContextTree heap = new ContextTree(8, 4);
+		heap.setBackgroundRebuild(false);
+		Random random = new Random(3);
+		for (int i = 0; i < 20000; i++) {
+			int value = random.nextInt(1 << 22);
+			background.insert(value);
+			inline.insert(value);
+			heap.insert(value);
+		}
+		background.awaitRebuild();
+		long[] clusters = TreeChecks.clusters(heap);
+		Check.equal("created", clusters, TreeChecks.clusters(background));
+		Check.equal("created inline", clusters, TreeChecks.clusters(inline));
+		TreeChecks.checkStructure("created", inline);
+
+		background.commit();
+		Check.equal("created reopened", clusters, TreeChecks
+				.clusters(ContextTree.open(dir.resolve("a.ctr"), false,
+						new BufferPool(2, Eviction.LRU))));
+	}
+
+	private static void readOnly(Path dir) throws IOException {
+		Path file = dir.resolve("a.ctr");
+		ContextTree tree = ContextTree.open(file, false, new BufferPool(4,
+				Eviction.LRU));
+		Check.fails("insert into read only", UnsupportedOperationException.class,
+				() -> tree.insert(1));
+		Check.fails("commit read only", UnsupportedOperationException.class,
+				() -> tree.commit());
+		Check.isTrue("read only queries", tree.rank(Integer.MAX_VALUE) > 0);
+	}
+}
@@ -0,0 +1,145 @@
+package com.stack.gt.cse.c6140;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Tests of nearest, range and k nearest queries against a linear scan of
+ * the clusters, of results larger than the buffers given, and that the
+ * queries do not allocate
+ *
+ * @author Brian
+ *
+ */
+final class QueryTest {
+	private QueryTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		Random random = new Random(8);
+		for (int b : new int[] { 4, 8, 33 }) {
+			for (int threshold : new int[] { 1, 100 }) {
+				ContextTree inserted = new ContextTree(b, threshold);
+				int[] values = new int[20000];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = random.nextInt(1 << 24) - (1 << 23);
+					inserted.insert(values[i]);
+				}
+				inserted.awaitRebuild();
+				String what = "B=" + b + " threshold=" + threshold;
+				TreeChecks.checkQueries(what + " inserted", inserted,
+						TreeChecks.clusters(inserted), random);
+
+				ContextTree loaded = ContextTree.bulkLoad(values, b,
+						threshold);
+				TreeChecks.checkQueries(what + " loaded", loaded,
+						TreeChecks.clusters(loaded), random);
+			}
+		}
+		extremes();
+		smallBuffers();
+		empty();
+		noAllocation();
+	}
+
+	/**
+	 * Values at both ends of the int range, whose distances overflow an int
+	 */
+	private static void extremes() {
+		ContextTree tree = ContextTree.bulkLoad(new int[] {
+				Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -5, 0, 7,
+				Integer.MAX_VALUE - 1, Integer.MAX_VALUE }, 4, 0);
+		long[] clusters = TreeChecks.clusters(tree);
+		Check.equal("extremes clusters", 7, clusters.length);
+		Check.equal("nearest of max", Integer.MAX_VALUE,
+				tree.nearestCluster(Integer.MAX_VALUE));
+		Check.equal("nearest of min", Integer.MIN_VALUE,
+				tree.nearestCluster(Integer.MIN_VALUE));
+		int[] values = new int[7];
+		Check.equal("whole range", 7, tree.clustersInRange(
+				Integer.MIN_VALUE, Integer.MAX_VALUE, values, null));
+		Check.equal("k nearest of max", 7, tree.kNearest(Integer.MAX_VALUE,
+				7, values, null));
+		Check.equal("farthest of max", Integer.MIN_VALUE, values[6]);
+		TreeChecks.checkQueries("extremes", tree, clusters, new Random(1));
+	}
+
+	private static void smallBuffers() {
+		int[] all = new int[100];
+		for (int i = 0; i < all.length; i++)
+			all[i] = i * 10;
+		ContextTree tree = ContextTree.bulkLoad(all, 4, 0);
+
+		int[] values = new int[10];
+		int[] points = new int[5];
+		Arrays.fill(values, -1);
+		Check.equal("range larger than values", 100, tree.clustersInRange(0,
+				1000, values, null));
+		Check.isTrue("values filled", Arrays.stream(values).allMatch(
+				v -> v >= 0));
+		Arrays.fill(values, -1);
+		Check.equal("range larger than points", 100, tree.clustersInRange(0,
+				1000, values, points));
+		Check.isTrue("values written up to the points", values[4] >= 0
+				&& values[5] == -1);
+
+		Check.equal("k nearest bounded by values", 10, tree.kNearest(500,
+				50, values, null));
+		Check.equal("k nearest bounded by points", 5, tree.kNearest(500,
+				50, values, points));
+		Check.equal("k nearest of all", 100, tree.kNearest(500, 1000,
+				new int[200], null));
+		Check.equal("k of 0", 0, tree.kNearest(500, 0, values, points));
+		Check.equal("empty range", 0, tree.clustersInRange(11, 19, values,
+				points));
+		Check.equal("reversed range", 0, tree.clustersInRange(90, 10,
+				values, points));
+	}
+
+	private static void empty() {
+		ContextTree tree = new ContextTree(8, 0);
+		Check.fails("empty nearest", NoSuchElementException.class,
+				() -> tree.nearestCluster(0));
+		Check.equal("empty range", 0, tree.clustersInRange(
+				Integer.MIN_VALUE, Integer.MAX_VALUE, new int[4], null));
+		Check.equal("empty k nearest", 0, tree.kNearest(0, 4, new int[4],
+				null));
+	}
+
+	private static void noAllocation() {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory
+						.getThreadMXBean();
+		Random random = new Random(2);
+		int[] all = new int[100000];
+		for (int i = 0; i < all.length; i++)
+			all[i] = random.nextInt();
+		ContextTree tree = ContextTree.bulkLoad(all, 16, 0);
+		int[] values = new int[64];
+		int[] points = new int[64];
+
+		long bytes = 0;
+		long sum = 0;
+		for (int round = 0; round < 5; round++) {
+			long start = threads.getCurrentThreadAllocatedBytes();
+			for (int i = 0; i < 10000; i++) {
+				int value = all[i];
+				sum += tree.nearestCluster(value);
+				sum += tree.clustersInRange(value, value + (1 << 16), values,
+						points);
+				sum += tree.kNearest(value, 16, values, points);
+			}
+			bytes = threads.getCurrentThreadAllocatedBytes() - start;
+		}
+		Check.isTrue("queries allocate, " + bytes + " bytes per 30000",
+				bytes < 30000);
+		Check.isTrue("queries ran", sum != 0);
+	}
+}
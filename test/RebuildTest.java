@@ -0,0 +1,149 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Random;
+
+/**
+ * Tests of rebuilds after a root split, on a background thread and inside
+ * the insert, and of a rebuild that fails
+ *
+ * @author Brian
+ *
+ */
+final class RebuildTest {
+	private RebuildTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws Exception {
+		backgroundMatchesInline();
+		concurrentInserts();
+		failedRebuild(false);
+		failedRebuild(true);
+	}
+
+	/**
+	 * Inserts held during a background rebuild are applied in order once
+	 * it is done, so the tree ends up as one rebuilt inside each insert
+	 */
+	private static void backgroundMatchesInline() {
+		for (int b : new int[] { 4, 8, 33 }) {
+			ContextTree background = new ContextTree(b, 4);
+			ContextTree inline = new ContextTree(b, 4);
+			inline.setBackgroundRebuild(false);
+			Random random = new Random(b);
+			for (int i = 0; i < 10000; i++) {
+				int value = random.nextInt(1 << 20);
+				background.insert(value);
+				inline.insert(value);
+			}
+			background.awaitRebuild();
+
+			String what = "B=" + b;
+			Check.equal(what + " height", inline.getHeight(),
+					background.getHeight());
+			Check.equal(what + " clusters", TreeChecks.clusters(inline),
+					TreeChecks.clusters(background));
+			Check.equal(what + " points", 10000,
+					TreeChecks.checkStructure(what, background));
+		}
+	}
+
+	private static void concurrentInserts() throws InterruptedException {
+		final ContextTree tree = new ContextTree(8, 0);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread(() -> {
+				Random random = new Random(seed);
+				for (int i = 0; i < 25000; i++)
+					tree.insert(random.nextInt(1 << 24));
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		tree.awaitRebuild();
+
+		Check.isTrue("concurrent inserts rebuilt the tree",
+				tree.getHeight() > 2);
+		Check.equal("concurrent inserts points", 100000,
+				TreeChecks.checkStructure("concurrent inserts", tree));
+	}
+
+	/**
+	 * A rebuild that fails leaves the old tree readable, inserts then throw
+	 * with the failure as the cause
+	 */
+	private static void failedRebuild(boolean background) {
+		String what = background ? "background" : "inline";
+		ContextTree tree = new ContextTree(4, 0);
+		tree.setBackgroundRebuild(background);
+		FailingSimulator simulator = new FailingSimulator();
+		tree.setCacheSimulator(simulator);
+		Random random = new Random(7);
+		for (int i = 0; i < 200; i++)
+			tree.insert(random.nextInt(1 << 20));
+		// A rebuild started by those inserts would not fail
+		tree.awaitRebuild();
+		int height = tree.getHeight();
+		simulator.failing = true;
+
+		// Insert until the root splits and the rebuild fails
+		Throwable thrown = null;
+		try {
+			for (int i = 0; i < 100000; i++)
+				tree.insert(random.nextInt(1 << 20));
+		} catch (IllegalStateException | OutOfMemoryError e) {
+			thrown = e;
+		}
+		tree.awaitRebuild();
+		simulator.failing = false;
+
+		Check.isTrue(what + " failure reported", thrown != null);
+		Check.equal(what + " height kept", height, tree.getHeight());
+		IllegalStateException failure = Check.fails(what + " insert after",
+				IllegalStateException.class, () -> tree.insert(1));
+		Check.isTrue(what + " failure is the cause", failure != null
+				&& failure.getCause() instanceof OutOfMemoryError);
+		Check.fails(what + " batch after", IllegalStateException.class,
+				() -> tree.insertBatch(new int[] { 1, 2 }, 2));
+
+		long[] clusters = TreeChecks.clusters(tree);
+		Check.isTrue(what + " still readable", clusters.length > 0);
+		int value = TreeChecks.valueOf(clusters[clusters.length / 2]);
+		Check.equal(what + " nearest after", value,
+				tree.nearestCluster(value));
+	}
+
+	/**
+	 * Fails every access to a store created once failing is set, which is
+	 * the store a rebuild builds the new tree in
+	 */
+	static final class FailingSimulator extends CacheSimulator {
+		volatile boolean failing;
+		private volatile long failFrom = Long.MAX_VALUE;
+
+		FailingSimulator() {
+			super(64, 1 << 20);
+		}
+
+		@Override
+		synchronized long newAddressSpace() {
+			long space = super.newAddressSpace();
+			if (failing)
+				failFrom = space;
+			return space;
+		}
+
+		@Override
+		void access(long address, int length) {
+			if (failing && address >= failFrom)
+				throw new OutOfMemoryError("Injected by the test");
+			super.access(address, length);
+		}
+	}
+}
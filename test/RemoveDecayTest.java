@@ -0,0 +1,168 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Tests of point removal and decay against a map of the clusters, down to
+ * an empty tree, and of a sliding window
+ *
+ * @author Brian
+ *
+ */
+final class RemoveDecayTest {
+	private RemoveDecayTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		for (Layout layout : Layout.values()) {
+			for (int b : new int[] { 4, 8, 33 }) {
+				removeToEmpty(layout, b);
+				decayToEmpty(layout, b);
+			}
+		}
+		slidingWindow();
+		Check.fails("decay above 1", IllegalArgumentException.class,
+				() -> new ContextTree(8, 0).decay(1.5));
+		Check.equal("remove no points", 0, ContextTree.bulkLoad(
+				new int[] { 1 }, 8, 0).remove(1, 0));
+	}
+
+	/**
+	 * With no threshold each distinct value is a cluster of its own, and a
+	 * removal at the value of a cluster takes points from that cluster
+	 */
+	private static void removeToEmpty(Layout layout, int b) {
+		String what = "remove " + layout + " B=" + b;
+		ContextTree tree = new ContextTree(b, 0, layout);
+		tree.setBackgroundRebuild(false);
+		Map<Integer, Integer> model = fill(tree, new Random(b));
+
+		Random random = new Random(b + 1);
+		int step = 0;
+		while (!model.isEmpty()) {
+			Integer[] values = model.keySet().toArray(new Integer[0]);
+			int value = values[random.nextInt(values.length)];
+			int points = 1 + random.nextInt(3);
+			int held = model.get(value);
+			Check.equal(what + " removed from " + value, Math.min(points,
+					held), tree.remove(value, points));
+			if (held > points)
+				model.put(value, held - points);
+			else
+				model.remove(value);
+			if (++step % 500 == 0 || model.size() < 20)
+				matches(what + " step " + step, tree, model);
+		}
+		empty(what, tree);
+	}
+
+	private static void decayToEmpty(Layout layout, int b) {
+		String what = "decay " + layout + " B=" + b;
+		ContextTree tree = new ContextTree(b, 0, layout);
+		tree.setBackgroundRebuild(false);
+		Map<Integer, Integer> model = fill(tree, new Random(b));
+
+		// Factors are held until their product reaches DECAY_STEP
+		double[] factors = { 0.9, 0.8, 0.7, 0.3, 0.95, 0.1 };
+		double pending = 1;
+		for (int i = 0; !model.isEmpty(); i++) {
+			double factor = factors[i % factors.length];
+			tree.decay(factor);
+			pending *= factor;
+			if (pending > ContextTree.DECAY_STEP)
+				continue;
+			for (Integer value : model.keySet().toArray(new Integer[0])) {
+				int points = (int) (model.get(value) * pending);
+				if (points == 0)
+					model.remove(value);
+				else
+					model.put(value, points);
+			}
+			pending = 1;
+			matches(what + " decay " + i, tree, model);
+		}
+		empty(what, tree);
+	}
+
+	/**
+	 * Inserts distinct values with a few points each
+	 */
+	private static Map<Integer, Integer> fill(ContextTree tree,
+			Random random) {
+		Map<Integer, Integer> model = new TreeMap<Integer, Integer>();
+		while (model.size() < 3000) {
+			int value = random.nextInt(1 << 20);
+			if (model.containsKey(value))
+				continue;
+			int points = 1 + random.nextInt(40);
+			tree.insert(value, points);
+			model.put(value, points);
+		}
+		return model;
+	}
+
+	private static void matches(String what, ContextTree tree,
+			Map<Integer, Integer> model) {
+		long[] expected = new long[model.size()];
+		int i = 0;
+		long total = 0;
+		for (Map.Entry<Integer, Integer> cluster : model.entrySet()) {
+			expected[i++] = (long) cluster.getKey() << 32
+					| cluster.getValue();
+			total += cluster.getValue();
+		}
+		Check.equal(what + " clusters", expected, TreeChecks.clusters(tree));
+		Check.equal(what + " points", total, TreeChecks.checkStructure(what,
+				tree));
+	}
+
+	/**
+	 * An emptied tree shrinks to a single leaf and takes inserts again
+	 */
+	private static void empty(String what, ContextTree tree) {
+		Check.equal(what + " empty height", 1, tree.getHeight());
+		Check.equal(what + " empty remove", 0, tree.remove(5));
+		Check.fails(what + " empty nearest", NoSuchElementException.class,
+				() -> tree.nearestCluster(0));
+		Check.equal(what + " empty slots", 1, tree.getOccupiedSlots());
+		tree.insert(5);
+		Check.equal(what + " insert after empty", 5, tree.nearestCluster(0));
+	}
+
+	/**
+	 * Values leaving a window are removed as new ones arrive, the tree keeps
+	 * to the size of the window
+	 */
+	private static void slidingWindow() {
+		int window = 5000;
+		ContextTree tree = new ContextTree(8, 4);
+		int[] values = new int[60000];
+		Random random = new Random(14);
+		int largest = 0;
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt(1 << 20);
+			tree.insert(values[i]);
+			if (i >= window) {
+				tree.awaitRebuild();
+				Check.equal("window removal", 1, tree.remove(values[i
+						- window]));
+			}
+			if (i == 2 * window)
+				largest = tree.getOccupiedSlots();
+		}
+		tree.awaitRebuild();
+		Check.equal("window points", window, TreeChecks.checkStructure(
+				"window", tree));
+		Check.isTrue("window nodes " + tree.getOccupiedSlots()
+				+ " stay near " + largest,
+				tree.getOccupiedSlots() <= 2 * largest);
+	}
+}
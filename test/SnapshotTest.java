@@ -0,0 +1,126 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that trees restored from snapshots hold the same nodes as the trees
+ * written, and that truncated and corrupt snapshots are rejected
+ *
+ * @author Brian
+ *
+ */
+final class SnapshotTest {
+	private SnapshotTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() throws IOException {
+		for (Layout layout : Layout.values()) {
+			for (int b : new int[] { 4, 8, 33 }) {
+				for (int threshold : new int[] { 1, 50 }) {
+					for (boolean sparse : new boolean[] { false, true })
+						roundTrip(layout, b, threshold, sparse);
+				}
+			}
+		}
+		rejected();
+		fromFile();
+	}
+
+	private static void roundTrip(Layout layout, int b, int threshold,
+			boolean sparse) throws IOException {
+		String what = layout + " B=" + b + " th=" + threshold
+				+ (sparse ? " sparse" : "");
+		ContextTree tree = new ContextTree(b, threshold, layout);
+		tree.setBackgroundRebuild(false);
+		TreeChecks.sameNodes(what + " empty", tree, restore(snapshot(tree), sparse));
+
+		Random random = new Random(b + threshold);
+		for (int i = 0; i < 8000; i++)
+			tree.insert(random.nextInt(2000000) - 1000000, 1 + random
+					.nextInt(3));
+		for (int i = 0; i < 3000; i++)
+			tree.remove(random.nextInt(2000000) - 1000000);
+		tree.decay(0.5);
+		ContextTree restored = restore(snapshot(tree), sparse);
+		TreeChecks.sameNodes(what, tree, restored);
+		TreeChecks.checkStructure(what + " restored", restored);
+
+		// The restored tree goes on as the original would
+		restored.setBackgroundRebuild(false);
+		for (int i = 0; i < 5000; i++) {
+			int value = random.nextInt(2000000) - 1000000;
+			tree.insert(value);
+			restored.insert(value);
+		}
+		Check.equal(what + " after inserts", TreeChecks.clusters(tree),
+				TreeChecks.clusters(restored));
+		Check.equal(what + " height after inserts", tree.getHeight(),
+				restored.getHeight());
+	}
+
+	private static void rejected() throws IOException {
+		ContextTree tree = ContextTree.bulkLoad(new Random(1).ints(10000, 0,
+				1000000).toArray(), 8, 3);
+		byte[] snapshot = snapshot(tree);
+		Random random = new Random(9);
+		for (int i = 0; i < 100; i++) {
+			byte[] truncated = Arrays.copyOf(snapshot, random
+					.nextInt(snapshot.length));
+			Check.fails("truncated to " + truncated.length, IOException.class,
+					() -> restore(truncated, false));
+		}
+		// A flipped bit must not get past restore as anything but an
+		// IOException, or a tree that is not valid
+		for (int i = 0; i < 300; i++) {
+			byte[] corrupt = snapshot.clone();
+			int at = random.nextInt(corrupt.length);
+			corrupt[at] ^= (byte) (1 << random.nextInt(8));
+			try {
+				TreeChecks.checkStructure("bit flipped at " + at, restore(
+						corrupt, false));
+			} catch (IOException e) {
+				// Expected
+			} catch (RuntimeException e) {
+				Check.isTrue("bit flipped at " + at + " threw " + e, false);
+			}
+		}
+		Check.fails("not a snapshot", IOException.class, () -> restore(
+				new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, false));
+	}
+
+	private static void fromFile() throws IOException {
+		Path dir = Files.createTempDirectory("snapshottest");
+		try {
+			ContextTree tree = ContextTree.bulkLoad(new Random(2).ints(20000,
+					0, 1 << 24).toArray(), 16, 4);
+			Path file = dir.resolve("tree.ctr");
+			tree.save(file);
+			TreeChecks.sameNodes("mapped", tree, restore(snapshot(ContextTree.open(file,
+					false)), false));
+		} finally {
+			TreeChecks.deleteAll(dir);
+		}
+	}
+
+	private static byte[] snapshot(ContextTree tree) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tree.snapshot(out);
+		return out.toByteArray();
+	}
+
+	private static ContextTree restore(byte[] snapshot, boolean sparse)
+			throws IOException {
+		return ContextTree.restore(new ByteArrayInputStream(snapshot), sparse);
+	}
+}
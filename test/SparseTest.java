@@ -0,0 +1,100 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Random;
+
+/**
+ * Tests that a tree in a sparse store places the same nodes as a tree in a
+ * dense store while taking memory for the nodes rather than the capacity
+ *
+ * @author Brian
+ *
+ */
+final class SparseTest {
+	private SparseTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		for (Layout layout : Layout.values()) {
+			for (int b : new int[] { 4, 13, 33 }) {
+				for (int threshold : new int[] { 1, 20 })
+					compare(layout, b, threshold);
+			}
+		}
+		store();
+	}
+
+	private static void compare(Layout layout, int b, int threshold) {
+		String what = layout + " B=" + b + " th=" + threshold;
+		TreeConfig.Builder builder = TreeConfig.builder().branchingFactor(b)
+				.closenessThreshold(threshold).layout(layout)
+				.backgroundRebuild(false);
+		ContextTree dense = new ContextTree(builder.build());
+		ContextTree sparse = new ContextTree(builder.sparse(true).build());
+
+		Random random = new Random(b * 100 + threshold);
+		int n = b == 4 ? 5000 : 30000;
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = random.nextInt(1 << 22);
+			int points = 1 + random.nextInt(3);
+			dense.insert(values[i], points);
+			sparse.insert(values[i], points);
+		}
+		Check.isTrue(what + " sparse", sparse.currentStore().isSparse()
+				&& sparse.getConfig().isSparse());
+		TreeChecks.sameNodes(what, dense, sparse);
+		long[] clusters = TreeChecks.clusters(sparse);
+		TreeChecks.checkQueries(what, sparse, clusters, random);
+
+		// Memory follows the nodes, and pages hold whole records
+		long recordBytes = 4L * NodeStore.recordSize(b);
+		long bytes = sparse.getNodeBytes();
+		Check.isTrue(what + " " + bytes + " bytes hold the nodes", bytes
+				>= sparse.getOccupiedSlots() * recordBytes
+				&& bytes % recordBytes == 0);
+		Check.isTrue(what + " " + bytes + " bytes of " + dense.getNodeBytes(),
+				bytes <= dense.getNodeBytes());
+		if (b > 4)
+			Check.isTrue(what + " " + bytes + " bytes is a fraction of "
+					+ dense.getNodeBytes(), bytes < dense.getNodeBytes() / 4);
+
+		for (int i = 0; i < n / 2; i++) {
+			dense.remove(values[i]);
+			sparse.remove(values[i]);
+		}
+		dense.decay(0.5);
+		sparse.decay(0.5);
+		TreeChecks.sameNodes(what + " after removes", dense, sparse);
+		Check.isTrue(what + " still sparse", sparse.currentStore()
+				.isSparse());
+	}
+
+	/**
+	 * A sparse store can hold more records than a dense one can address,
+	 * and allocates nothing until a node is written
+	 */
+	private static void store() {
+		int capacity = 50000000;
+		Check.fails("dense store too large", IllegalArgumentException.class,
+				() -> new NodeStore(capacity, 33, 1, false));
+		NodeStore store = new NodeStore(capacity, 33, 1, true);
+		Check.equal("nothing allocated", 0, store.getAllocatedBytes());
+		Check.equal("first written", capacity, store.nextWritten(0));
+
+		Node node = store.create(capacity - 1);
+		node.insertValue(5, 2);
+		Check.isTrue("last written", store.isOccupied(capacity - 1)
+				&& !store.isOccupied(capacity - 2) && !store.isOccupied(0));
+		Check.equal("value", 5, store.getValue(capacity - 1, 0));
+		Check.equal("points", 2, store.getPoints(capacity - 1, 0));
+		Check.isTrue("one page", store.getAllocatedBytes() > 0
+				&& store.getAllocatedBytes() <= 2 * NodeStore.PAGE_BYTES);
+		Check.isTrue("pages before are skipped", store.nextWritten(0) > 0
+				&& store.nextWritten(0) <= capacity - 1);
+	}
+}
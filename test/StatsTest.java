@@ -0,0 +1,273 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Tests rank and cdf against sums over the clusters of the tree, and
+ * quantile and histogram against a descent that takes the entries of each
+ * node in value order, which is exact where sibling bounds do not overlap
+ *
+ * @author Brian
+ *
+ */
+final class StatsTest {
+	private StatsTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		for (Layout layout : Layout.values()) {
+			for (int b : new int[] { 4, 8, 33 }) {
+				for (int threshold : new int[] { 0, 1, 20 })
+					stats(layout, b, threshold);
+			}
+		}
+		disjoint();
+		empty();
+	}
+
+	private static void stats(Layout layout, int b, int threshold) {
+		String what = layout + " B=" + b + " th=" + threshold;
+		ContextTree tree = new ContextTree(b, threshold, layout);
+		tree.setBackgroundRebuild(false);
+		Random random = new Random(b * 31 + threshold);
+		int n = b == 4 ? 3000 : 20000;
+		for (int i = 0; i < n; i++) {
+			// Two humps, with values repeated where they are dense
+			int value = (int) (random.nextGaussian() * 100000)
+					+ (random.nextBoolean() ? 0 : 500000);
+			tree.insert(value, 1 + random.nextInt(4));
+		}
+		long[] clusters = TreeChecks.clusters(tree);
+		long total = TreeChecks.totalPoints(clusters);
+		long[] rank = new long[1];
+
+		for (int q = 0; q < 300; q++) {
+			int value = (int) (random.nextGaussian() * 200000) + 250000;
+			Check.equal(what + " rank of " + value, rank(clusters, value),
+					tree.rank(value));
+
+			int to = value + random.nextInt(100000);
+			Check.equal(what + " cdf of [" + value + ", " + to + "]",
+					(double) (rank(clusters, to) - rank(clusters, value - 1))
+							/ total, tree.cdf(value, to), 1e-12);
+
+			double share = random.nextDouble();
+			Check.equal(what + " quantile " + share, descend(tree, share,
+					rank), tree.quantile(share));
+		}
+		Check.equal(what + " first", descend(tree, 0, rank), tree
+				.quantile(0));
+		Check.equal(what + " last", descend(tree, 1, rank), tree
+				.quantile(1));
+		Check.equal(what + " rank of all", total, tree
+				.rank(Integer.MAX_VALUE));
+		Check.equal(what + " rank of none", 0, tree.rank(Integer.MIN_VALUE));
+		Check.equal(what + " cdf of all", 1.0, tree.cdf(Integer.MIN_VALUE,
+				Integer.MAX_VALUE), 0);
+		Check.equal(what + " cdf of an empty range", 0.0, tree.cdf(5, 4), 0);
+
+		for (int buckets : new int[] { 1, 10, 64 })
+			histogram(what, tree, clusters, buckets, false);
+	}
+
+	/**
+	 * Bulk loaded values leave no sibling bounds overlapping, so quantiles
+	 * and histograms are exact
+	 */
+	private static void disjoint() {
+		for (int b : new int[] { 4, 8, 33 }) {
+			String what = "disjoint B=" + b;
+			// Values repeated up to four times make clusters of as many points
+			Random random = new Random(b);
+			int[] values = new int[40000];
+			int count = 0;
+			for (int i = 0; count < values.length - 4; i++) {
+				for (int r = 1 + random.nextInt(4); r > 0; r--)
+					values[count++] = i * 10 + 5;
+			}
+			ContextTree tree = ContextTree.bulkLoad(Arrays.copyOf(values,
+					count), b, 1);
+			Check.isTrue(what + " bounds overlap", disjoint(tree
+					.currentStore(), 0));
+
+			long[] clusters = TreeChecks.clusters(tree);
+			for (int q = 0; q < 300; q++) {
+				double share = random.nextDouble();
+				Check.equal(what + " quantile " + share, quantile(clusters,
+						share), tree.quantile(share));
+			}
+			Check.equal(what + " smallest", TreeChecks.valueOf(clusters[0]),
+					tree.quantile(0));
+			Check.equal(what + " largest", TreeChecks
+					.valueOf(clusters[clusters.length - 1]), tree.quantile(1));
+			for (int buckets : new int[] { 1, 10, 64 })
+				histogram(what, tree, clusters, buckets, true);
+		}
+	}
+
+	private static void histogram(String what, ContextTree tree,
+			long[] clusters, int buckets, boolean exact) {
+		what += " " + buckets + " buckets";
+		int[] bounds = new int[buckets + 1];
+		long[] points = new long[buckets];
+		tree.histogram(bounds, points);
+
+		long total = TreeChecks.totalPoints(clusters);
+		long most = 0;
+		for (long cluster : clusters)
+			most = Math.max(most, TreeChecks.pointsOf(cluster));
+		long sum = 0;
+		long[] rank = new long[1];
+		long below = 0;
+		for (int i = 0; i <= buckets; i++) {
+			double share = (double) i / buckets;
+			int bound = exact ? quantile(clusters, share) : descend(tree,
+					share, rank);
+			Check.equal(what + " bound " + i, bound, bounds[i]);
+			if (exact)
+				rank[0] = rank(clusters, bound);
+			if (i == 0)
+				continue;
+			long expected = rank[0] - below;
+			below = rank[0];
+			Check.equal(what + " bucket " + i, expected, points[i - 1]);
+			// A bucket ends at the first cluster past its share of points
+			Check.isTrue(what + " bucket " + i + " of " + points[i - 1]
+					+ " points", points[i - 1] <= total / buckets + 2 * most);
+			sum += points[i - 1];
+		}
+		Check.equal(what + " points", total, sum);
+
+		int[] only = new int[buckets + 1];
+		tree.histogram(only, null);
+		Check.equal(what + " bounds only", Arrays.stream(bounds)
+				.asLongStream().toArray(), Arrays.stream(only).asLongStream()
+				.toArray());
+	}
+
+	private static void empty() {
+		ContextTree tree = new ContextTree(8, 1);
+		Check.equal("empty rank", 0, tree.rank(5));
+		Check.equal("empty cdf", 0.0, tree.cdf(0, 9), 0);
+		Check.fails("empty quantile", NoSuchElementException.class,
+				() -> tree.quantile(0.5));
+		Check.fails("empty histogram", NoSuchElementException.class,
+				() -> tree.histogram(new int[3], new long[2]));
+		Check.fails("quantile past 1", IllegalArgumentException.class,
+				() -> tree.quantile(1.5));
+		Check.fails("no buckets", IllegalArgumentException.class,
+				() -> tree.histogram(new int[1], null));
+		Check.fails("no room for sizes", IllegalArgumentException.class,
+				() -> tree.histogram(new int[4], new long[2]));
+
+		tree.insert(7, 3);
+		tree.remove(7, 3);
+		Check.equal("emptied rank", 0, tree.rank(Integer.MAX_VALUE));
+		Check.fails("emptied quantile", NoSuchElementException.class,
+				() -> tree.quantile(0));
+	}
+
+	/**
+	 * Returns the value of the point of rank share times the points in the
+	 * tree, descending through the entries of each node in value order.
+	 * The points before the value and those of equal values in its leaf
+	 * are left in rank[0].
+	 */
+	private static int descend(ContextTree tree, double share, long[] rank) {
+		NodeStore store = tree.currentStore();
+		int loc = 0;
+		long target = -1;
+		long before = 0;
+		while (true) {
+			int n = store.getNumValues(loc);
+			long[][] entries = new long[n][];
+			long sum = 0;
+			for (int i = 0; i < n; i++) {
+				entries[i] = new long[] { store.getValue(loc, i),
+						store.getPoints(loc, i),
+						store.isLeaf(loc) ? -1 : store.getChild(loc, i) };
+				sum += entries[i][1];
+			}
+			Arrays.sort(entries, (x, y) -> Long.compare(x[0], y[0]));
+			if (target < 0)
+				target = Math.max(1, (long) Math.ceil(share * sum));
+
+			long start = before;
+			int i = 0;
+			while (i < n - 1 && target > entries[i][1]) {
+				target -= entries[i][1];
+				before += entries[i][1];
+				i++;
+			}
+			if (!store.isLeaf(loc)) {
+				loc = (int) entries[i][2];
+				continue;
+			}
+			rank[0] = start;
+			for (long[] entry : entries) {
+				if (entry[0] <= entries[i][0])
+					rank[0] += entry[1];
+			}
+			return (int) entries[i][0];
+		}
+	}
+
+	/**
+	 * Returns whether the bounds of the children of every node below loc
+	 * are apart
+	 */
+	private static boolean disjoint(NodeStore store, int loc) {
+		if (store.isLeaf(loc))
+			return true;
+		int n = store.getNumValues(loc);
+		long[][] bounds = new long[n][];
+		for (int i = 0; i < n; i++) {
+			int child = store.getChild(loc, i);
+			if (!disjoint(store, child))
+				return false;
+			bounds[i] = new long[] { store.getMinValue(child),
+					store.getMaxValue(child) };
+		}
+		Arrays.sort(bounds, (x, y) -> Long.compare(x[0], y[0]));
+		for (int i = 1; i < n; i++) {
+			if (bounds[i][0] <= bounds[i - 1][1])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the points in clusters of at most the given value
+	 */
+	private static long rank(long[] clusters, long value) {
+		long rank = 0;
+		for (long cluster : clusters) {
+			if (TreeChecks.valueOf(cluster) <= value)
+				rank += TreeChecks.pointsOf(cluster);
+		}
+		return rank;
+	}
+
+	/**
+	 * Returns the value of the first cluster whose rank reaches share of
+	 * the points, at least the first point
+	 */
+	private static int quantile(long[] clusters, double share) {
+		long target = Math.max(1, (long) Math.ceil(share
+				* TreeChecks.totalPoints(clusters)));
+		long seen = 0;
+		for (long cluster : clusters) {
+			seen += TreeChecks.pointsOf(cluster);
+			if (seen >= target)
+				return TreeChecks.valueOf(cluster);
+		}
+		return TreeChecks.valueOf(clusters[clusters.length - 1]);
+	}
+}
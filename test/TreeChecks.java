@@ -0,0 +1,252 @@
+package com.stack.gt.cse.c6140;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks of a whole tree shared by the tests. They read the tree without
+ * locks, so nothing may change it meanwhile.
+ *
+ * @author Brian
+ *
+ */
+final class TreeChecks {
+	private TreeChecks() {
+	}
+
+	/**
+	 * Returns the clusters of the tree in value order, each packed as its
+	 * value in the high and its points in the low half of a long
+	 *
+	 * @param tree
+	 */
+	static long[] clusters(ContextTree tree) {
+		int[] values = new int[64];
+		int[] points = new int[64];
+		int found;
+		while ((found = tree.clustersInRange(Integer.MIN_VALUE,
+				Integer.MAX_VALUE, values, points)) > values.length) {
+			values = new int[found];
+			points = new int[found];
+		}
+
+		long[] clusters = new long[found];
+		for (int i = 0; i < found; i++)
+			clusters[i] = (long) values[i] << 32 | points[i] & 0xFFFFFFFFL;
+		Arrays.sort(clusters);
+		return clusters;
+	}
+
+	static int valueOf(long cluster) {
+		return (int) (cluster >> 32);
+	}
+
+	static int pointsOf(long cluster) {
+		return (int) cluster;
+	}
+
+	/**
+	 * Returns the points of all the clusters
+	 *
+	 * @param clusters
+	 *            As returned by clusters
+	 */
+	static long totalPoints(long[] clusters) {
+		long total = 0;
+		for (long cluster : clusters)
+			total += pointsOf(cluster);
+		return total;
+	}
+
+	/**
+	 * Checks nearestCluster, clustersInRange and kNearest at random values
+	 * against a linear scan of the clusters
+	 *
+	 * @param what
+	 *            Describes the tree in failures
+	 * @param tree
+	 * @param clusters
+	 *            The clusters of the tree, as returned by clusters
+	 * @param random
+	 */
+	static void checkQueries(String what, ContextTree tree, long[] clusters,
+			Random random) {
+		int lo = valueOf(clusters[0]);
+		int hi = valueOf(clusters[clusters.length - 1]);
+		long span = (long) hi - lo + 1;
+		int[] values = new int[clusters.length];
+		int[] points = new int[clusters.length];
+		for (int q = 0; q < 200; q++) {
+			int value = (int) (lo - span / 8 + (long) (random.nextDouble()
+					* span * 5 / 4));
+
+			// Nearest: a cluster, at the least distance of any
+			long best = Long.MAX_VALUE;
+			for (long cluster : clusters)
+				best = Math.min(best, Math.abs((long) valueOf(cluster) - value));
+			int nearest = tree.nearestCluster(value);
+			Check.equal(what + " distance to nearest of " + value, best,
+					Math.abs((long) nearest - value));
+			Check.isTrue(what + " nearest of " + value + " is a cluster",
+					indexOf(clusters, nearest) >= 0);
+
+			// Range: exactly the clusters in it
+			int from = value;
+			int to = (int) Math.min(Integer.MAX_VALUE, from
+					+ (long) (random.nextDouble() * span / 4));
+			int found = tree.clustersInRange(from, to, values, points);
+			long[] expected = Arrays.stream(clusters).filter(
+					c -> valueOf(c) >= from && valueOf(c) <= to).toArray();
+			long[] result = new long[found];
+			for (int i = 0; i < found; i++)
+				result[i] = (long) values[i] << 32 | points[i] & 0xFFFFFFFFL;
+			Arrays.sort(result);
+			Check.equal(what + " range [" + from + ", " + to + "]", expected,
+					result);
+
+			// k nearest: closest first, at the k least distances
+			int k = 1 + random.nextInt(Math.min(clusters.length, 20));
+			found = tree.kNearest(value, k, values, points);
+			long[] distances = new long[clusters.length];
+			for (int i = 0; i < clusters.length; i++)
+				distances[i] = Math.abs((long) valueOf(clusters[i]) - value);
+			Arrays.sort(distances);
+			long[] kDistances = new long[found];
+			for (int i = 0; i < found; i++) {
+				kDistances[i] = Math.abs((long) values[i] - value);
+				// Clusters can share a value, so look for its points as well
+				Check.isTrue(what + " k nearest of " + value
+						+ " are clusters", Arrays.binarySearch(clusters,
+						(long) values[i] << 32 | points[i]) >= 0);
+			}
+			Check.equal(what + " " + k + " nearest of " + value,
+					Arrays.copyOf(distances, k), kDistances);
+		}
+	}
+
+	/**
+	 * Returns the index of a cluster with the given value, or a negative
+	 * number if there is none
+	 */
+	private static int indexOf(long[] clusters, int value) {
+		int at = Arrays.binarySearch(clusters, (long) value << 32);
+		if (at < 0)
+			at = -at - 1;
+		return at < clusters.length && valueOf(clusters[at]) == value ? at
+				: -1;
+	}
+
+	/**
+	 * Checks that every leaf is as deep as the height of the tree, that
+	 * the points a node keeps for each child and in total are those below
+	 * it, and that the bounds of every node hold the values below it
+	 *
+	 * @param what
+	 *            Describes the tree in failures
+	 * @param tree
+	 * @return The points in the tree
+	 */
+	static long checkStructure(String what, ContextTree tree) {
+		NodeStore store = tree.currentStore();
+		return checkNode(what, store, 0, 1, tree.getHeight(),
+				Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	private static long checkNode(String what, NodeStore store, int loc,
+			int depth, int height, int min, int max) {
+		String node = what + ", node " + loc;
+		Check.isTrue(node + " is occupied", store.isOccupied(loc));
+		int lo = store.getMinValue(loc);
+		int hi = store.getMaxValue(loc);
+		Check.isTrue(node + " bounds [" + lo + ", " + hi
+				+ "] lie in those of its parent [" + min + ", " + max + "]",
+				store.getNumValues(loc) == 0 || lo >= min && hi <= max);
+
+		long points = 0;
+		if (store.isLeaf(loc)) {
+			Check.equal(node + " leaf depth", height, depth);
+			for (int i = 0; i < store.getNumValues(loc); i++) {
+				int value = store.getValue(loc, i);
+				Check.isTrue(node + " value " + value + " in bounds",
+						value >= lo && value <= hi);
+				points += store.getPoints(loc, i);
+			}
+		} else {
+			Check.isTrue(node + " has children",
+					store.getNumChildren(loc) > 0);
+			for (int i = 0; i < store.getNumChildren(loc); i++) {
+				long below = checkNode(what, store, store.getChild(loc, i),
+						depth + 1, height, lo, hi);
+				Check.equal(node + " points of child " + i, below,
+						store.getPoints(loc, i));
+				points += below;
+			}
+		}
+		Check.equal(node + " points", points, store.getNumPoints(loc));
+		return points;
+	}
+
+	/**
+	 * Checks the occupied nodes of both trees are in the same locations and
+	 * hold the same records
+	 */
+	static void sameNodes(String what, ContextTree expected,
+			ContextTree actual) {
+		Check.equal(what + " height", expected.getHeight(), actual
+				.getHeight());
+		NodeStore x = expected.currentStore();
+		NodeStore y = actual.currentStore();
+		Check.equal(what + " capacity", x.getCapacity(), y.getCapacity());
+		int width = x.getWidth();
+		int fields = NodeStore.HEADER_SIZE + 3 * width;
+		int differ = 0;
+		for (int i = 0; i < x.getCapacity(); i++) {
+			if (x.isOccupied(i) != y.isOccupied(i)) {
+				differ++;
+				continue;
+			}
+			if (!x.isOccupied(i))
+				continue;
+			int[] a = new int[fields];
+			int[] b = new int[fields];
+			x.bufferOf(i).get(x.baseOf(i), a);
+			y.bufferOf(i).get(y.baseOf(i), b);
+			if (!Arrays.equals(a, 0, NodeStore.HEADER_SIZE, b, 0,
+					NodeStore.HEADER_SIZE)) {
+				differ++;
+				continue;
+			}
+			int children = a[NodeStore.NUM_CHILDREN];
+			int values = a[NodeStore.NUM_VALUES];
+			int at = NodeStore.HEADER_SIZE;
+			if (!Arrays.equals(a, at, at + children, b, at, at + children)
+					|| !Arrays.equals(a, at + width, at + width + values, b, at
+							+ width, at + width + values)
+					|| !Arrays.equals(a, at + 2 * width, at + 2 * width
+							+ values, b, at + 2 * width, at + 2 * width
+							+ values))
+				differ++;
+		}
+		Check.equal(what + " nodes that differ", 0, differ);
+	}
+
+	/**
+	 * Deletes a file, or a directory and everything in it
+	 *
+	 * @param path
+	 */
+	static void deleteAll(Path path) throws IOException {
+		if (!Files.exists(path))
+			return;
+		try (Stream<Path> paths = Files.walk(path)) {
+			for (Path p : (Iterable<Path>) paths.sorted(
+					Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+}
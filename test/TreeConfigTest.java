@@ -0,0 +1,128 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Arrays;
+
+/**
+ * Tests the settings a configuration is built with, and the branching
+ * factors derived from the cache geometry against every factor up to a
+ * bound
+ *
+ * @author Brian
+ *
+ */
+final class TreeConfigTest {
+	private TreeConfigTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		settings();
+		invalid();
+		for (int lineSize : new int[] { 32, 64, 128 }) {
+			for (int maxBytes : new int[] { 16, 256, 512, 1024, 4096 })
+				lineFilling(lineSize, maxBytes);
+		}
+		derived();
+	}
+
+	private static void settings() {
+		TreeConfig defaults = TreeConfig.builder().branchingFactor(8).build();
+		Check.equal("branching factor", 8, defaults.getBranchingFactor());
+		Check.equal("default threshold", 16, defaults
+				.getClosenessThreshold());
+		Check.isTrue("default layout",
+				defaults.getLayout() == Layout.VAN_EMDE_BOAS);
+		Check.isTrue("default rebuild", defaults.isBackgroundRebuild());
+		Check.isTrue("default store", !defaults.isSparse());
+		Check.isTrue("description", defaults.toString().equals(
+				"TreeConfig[b=8, t=16, layout=veb, backgroundRebuild=true, "
+						+ "sparse=false]"));
+
+		TreeConfig config = TreeConfig.builder().branchingFactor("12")
+				.closenessThreshold(0).layout(Layout.PRE_ORDER)
+				.backgroundRebuild(false).sparse(true).build();
+		ContextTree tree = new ContextTree(config);
+		Check.isTrue("tree settings", tree.getConfig().toString().equals(
+				config.toString()));
+		Check.isTrue("tree layout", tree.getLayout() == Layout.PRE_ORDER);
+
+		Check.equal("auto", TreeConfig.autoBranchingFactor(), TreeConfig
+				.builder().branchingFactor("auto").build()
+				.getBranchingFactor());
+		Check.equal("given after auto", 5, TreeConfig.builder()
+				.autoBranchingFactor().branchingFactor(5).build()
+				.getBranchingFactor());
+	}
+
+	private static void invalid() {
+		Check.fails("branching factor 1", IllegalArgumentException.class,
+				() -> TreeConfig.builder().branchingFactor(1));
+		Check.fails("branching factor \"1\"", IllegalArgumentException.class,
+				() -> TreeConfig.builder().branchingFactor("1"));
+		Check.fails("branching factor \"many\"",
+				NumberFormatException.class,
+				() -> TreeConfig.builder().branchingFactor("many"));
+		Check.fails("negative threshold", IllegalArgumentException.class,
+				() -> TreeConfig.builder().closenessThreshold(-1));
+		Check.fails("no layout", NullPointerException.class,
+				() -> TreeConfig.builder().layout(null));
+	}
+
+	/**
+	 * The factors are exactly those whose records are whole lines that fit,
+	 * or the smallest such if none fits
+	 */
+	private static void lineFilling(int lineSize, int maxBytes) {
+		int[] expected = new int[0];
+		int smallest = 0;
+		for (int b = 2; b < 4096; b++) {
+			int bytes = 4 * NodeStore.recordSize(b);
+			if (bytes % lineSize != 0)
+				continue;
+			if (smallest == 0)
+				smallest = b;
+			if (bytes <= maxBytes) {
+				expected = Arrays.copyOf(expected, expected.length + 1);
+				expected[expected.length - 1] = b;
+			}
+		}
+		if (expected.length == 0)
+			expected = new int[] { smallest };
+
+		int[] factors = TreeConfig.lineFillingFactors(lineSize, maxBytes);
+		long[] actual = Arrays.stream(factors).asLongStream().toArray();
+		Check.equal("line " + lineSize + " bytes " + maxBytes, Arrays.stream(
+				expected).asLongStream().toArray(), actual);
+	}
+
+	private static void derived() {
+		int lineSize = TreeConfig.cacheLineSize();
+		int pageSize = TreeConfig.pageSize();
+		Check.isTrue("line size " + lineSize, lineSize >= 16
+				&& Integer.bitCount(lineSize) == 1);
+		Check.isTrue("page size " + pageSize, pageSize >= lineSize);
+
+		int[] auto = TreeConfig.lineFillingFactors(lineSize, pageSize / 8);
+		Check.equal("auto is the largest", auto[auto.length - 1], TreeConfig
+				.autoBranchingFactor());
+
+		long start = System.nanoTime();
+		int calibrated = TreeConfig.calibrateBranchingFactor(16,
+				Layout.BREADTH_FIRST);
+		long first = System.nanoTime() - start;
+		int[] candidates = TreeConfig.lineFillingFactors(lineSize,
+				pageSize / 4);
+		Check.isTrue("calibrated " + calibrated + " is a candidate", Arrays
+				.stream(candidates).anyMatch(b -> b == calibrated));
+
+		start = System.nanoTime();
+		Check.equal("calibrated once", calibrated, TreeConfig.builder()
+				.closenessThreshold(16).layout(Layout.BREADTH_FIRST)
+				.branchingFactor("calibrate").build().getBranchingFactor());
+		Check.isTrue("kept", System.nanoTime() - start < first / 10);
+	}
+}
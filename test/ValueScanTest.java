@@ -0,0 +1,76 @@
+package com.stack.gt.cse.c6140;
+
+import java.util.Random;
+
+/**
+ * Tests of the scans of node values, the scalar loops on cases with known
+ * results and the vectorized scan against the scalar loops
+ *
+ * @author Brian
+ *
+ */
+final class ValueScanTest {
+	private ValueScanTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		Check.exit();
+	}
+
+	static void run() {
+		known(ValueScan.SCALAR, "scalar");
+		if (ValueScan.VECTOR == null) {
+			System.out.println("Vectorized scan not available, not tested");
+			return;
+		}
+		known(ValueScan.VECTOR, "vector");
+		Random random = new Random(13);
+		for (int count = 0; count <= 200; count++) {
+			for (int round = 0; round < 20; round++) {
+				int from = random.nextInt(8);
+				int[] a = new int[from + count + random.nextInt(8)];
+				// Narrow ranges make ties, full ones overflowing distances
+				int range = round % 2 == 0 ? 16 : 0;
+				for (int i = 0; i < a.length; i++)
+					a[i] = range == 0 ? random.nextInt() : random
+							.nextInt(range);
+				int value = range == 0 ? random.nextInt() : random
+						.nextInt(range);
+				String what = count + " values from " + from;
+				Check.equal(what + " closest", ValueScan.SCALAR.closest(a,
+						from, count, value), ValueScan.VECTOR.closest(a, from,
+						count, value));
+				Check.equal(what + " farthest", ValueScan.SCALAR.farthest(a,
+						from, count, value), ValueScan.VECTOR.farthest(a,
+						from, count, value));
+				Check.equal(what + " extent", ValueScan.SCALAR.extent(a,
+						from, count), ValueScan.VECTOR.extent(a, from, count));
+			}
+		}
+	}
+
+	private static void known(ValueScan scan, String what) {
+		int[] a = new int[100];
+		for (int i = 0; i < a.length; i++)
+			a[i] = i * 3;
+		a[70] = 150; // Equal to a[50]
+		Check.equal(what + " closest", 40, scan.closest(a, 0, 100, 121));
+		Check.equal(what + " closest from", 30, scan.closest(a, 10, 90, 121));
+		Check.equal(what + " first of ties", 50, scan.closest(a, 0, 100, 150));
+		Check.equal(what + " farthest", 99, scan.farthest(a, 0, 100, 0));
+		Check.equal(what + " farthest within count", 59, scan.farthest(a, 0,
+				60, 0));
+		Check.equal(what + " extent", ValueScan.extentOf(0, 297), scan
+				.extent(a, 0, 100));
+		Check.equal(what + " closest of none", 0, scan.closest(a, 5, 0, 1));
+		Check.equal(what + " extent of none", ValueScan.extentOf(
+				Integer.MAX_VALUE, Integer.MIN_VALUE), scan.extent(a, 5, 0));
+		long extent = scan.extent(new int[] { Integer.MIN_VALUE, -1,
+				Integer.MAX_VALUE }, 0, 3);
+		Check.equal(what + " extent min", Integer.MIN_VALUE, ValueScan
+				.extentMin(extent));
+		Check.equal(what + " extent max", Integer.MAX_VALUE, ValueScan
+				.extentMax(extent));
+	}
+}
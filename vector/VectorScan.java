@@ -0,0 +1,95 @@
+package com.stack.gt.cse.c6140;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * ValueScan using the widest int vectors of the processor. The closest and
+ * farthest values are found with a vector min or max over the distances,
+ * followed by a vector compare that finds the first value at that distance,
+ * so the results are the same as those of the scalar loops. See ValueScan
+ * for how this is compiled and enabled.
+ *
+ * @author Brian
+ *
+ */
+class VectorScan extends ValueScan {
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	int closest(int[] a, int from, int count, int value) {
+		IntVector target = IntVector.broadcast(SPECIES, value);
+		IntVector dists = IntVector.broadcast(SPECIES, Integer.MAX_VALUE);
+		int bound = SPECIES.loopBound(count);
+
+		int i = 0;
+		for (; i < bound; i += SPECIES.length())
+			dists = dists.min(distances(target, a, from + i));
+		int closestDist = dists.reduceLanes(VectorOperators.MIN);
+		for (; i < count; i++)
+			closestDist = Math.min(closestDist, Math.abs(value - a[from + i]));
+
+		return indexOf(target, a, from, count, value, closestDist);
+	}
+
+	int farthest(int[] a, int from, int count, int value) {
+		IntVector target = IntVector.broadcast(SPECIES, value);
+		IntVector dists = IntVector.broadcast(SPECIES, Integer.MIN_VALUE);
+		int bound = SPECIES.loopBound(count);
+
+		int i = 0;
+		for (; i < bound; i += SPECIES.length())
+			dists = dists.max(distances(target, a, from + i));
+		int farthestDist = dists.reduceLanes(VectorOperators.MAX);
+		for (; i < count; i++)
+			farthestDist = Math.max(farthestDist, Math.abs(value - a[from + i]));
+
+		return indexOf(target, a, from, count, value, farthestDist);
+	}
+
+	long extent(int[] a, int from, int count) {
+		IntVector mins = IntVector.broadcast(SPECIES, Integer.MAX_VALUE);
+		IntVector maxes = IntVector.broadcast(SPECIES, Integer.MIN_VALUE);
+		int bound = SPECIES.loopBound(count);
+
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			IntVector values = IntVector.fromArray(SPECIES, a, from + i);
+			mins = mins.min(values);
+			maxes = maxes.max(values);
+		}
+		int min = mins.reduceLanes(VectorOperators.MIN);
+		int max = maxes.reduceLanes(VectorOperators.MAX);
+		for (; i < count; i++) {
+			min = Math.min(min, a[from + i]);
+			max = Math.max(max, a[from + i]);
+		}
+		return extentOf(min, max);
+	}
+
+	private static IntVector distances(IntVector target, int[] a, int offset) {
+		return target.sub(IntVector.fromArray(SPECIES, a, offset)).abs();
+	}
+
+	/**
+	 * Returns the index of the first value at the given distance, or 0 if
+	 * there is none
+	 */
+	private static int indexOf(IntVector target, int[] a, int from,
+			int count, int value, int dist) {
+		int bound = SPECIES.loopBound(count);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			VectorMask<Integer> found = distances(target, a, from + i).compare(
+					VectorOperators.EQ, dist);
+			if (found.anyTrue())
+				return i + found.firstTrue();
+		}
+		for (; i < count; i++) {
+			if (Math.abs(value - a[from + i]) == dist)
+				return i;
+		}
+		return 0;
+	}
+}